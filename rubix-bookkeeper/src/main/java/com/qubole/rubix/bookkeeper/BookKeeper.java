@@ -28,11 +28,25 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.hash.BloomFilter;
 import com.google.common.hash.Funnels;
 import com.google.common.util.concurrent.Service;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.qubole.rubix.bookkeeper.utils.DiskUtils;
 import com.qubole.rubix.bookkeeper.validation.CachingValidator;
+import com.qubole.rubix.common.cache.BlockChecksums;
+import com.qubole.rubix.common.cache.CompressedCacheFile;
+import com.qubole.rubix.common.cache.DiskIoScheduler;
+import com.qubole.rubix.common.cache.DiskIoScheduler.Priority;
+import com.qubole.rubix.common.cache.DiskIoScheduler.Slot;
+import com.qubole.rubix.common.cache.FileChannelCache;
+import com.qubole.rubix.common.cache.FileChannelCache.CachedFileChannel;
+import com.qubole.rubix.common.cache.MemoryTier;
+import com.qubole.rubix.common.cache.PageCacheHints;
 import com.qubole.rubix.common.metrics.BookKeeperMetrics;
+import com.qubole.rubix.common.utils.IoThrottle;
+import com.qubole.rubix.common.utils.IoThrottle.Traffic;
 import com.qubole.rubix.core.CachingFileSystemStatsProvider;
 import com.qubole.rubix.core.ClusterManagerInitilizationException;
+import com.qubole.rubix.core.InFlightBlockRegistry;
+import com.qubole.rubix.core.InFlightBlockRegistry.BlockFetch;
 import com.qubole.rubix.core.ReadRequest;
 import com.qubole.rubix.core.ReadRequestChainStats;
 import com.qubole.rubix.core.RemoteReadRequestChain;
@@ -68,13 +82,19 @@ import java.nio.charset.Charset;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.OptionalInt;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static com.google.common.base.Preconditions.checkState;
 import static com.qubole.rubix.common.metrics.BookKeeperMetrics.CacheMetric.CACHE_AVAILABLE_SIZE_GAUGE;
@@ -85,8 +105,31 @@ import static com.qubole.rubix.common.metrics.BookKeeperMetrics.CacheMetric.CACH
 import static com.qubole.rubix.common.metrics.BookKeeperMetrics.CacheMetric.CACHE_MISS_RATE_GAUGE;
 import static com.qubole.rubix.common.metrics.BookKeeperMetrics.CacheMetric.CACHE_REQUEST_COUNT;
 import static com.qubole.rubix.common.metrics.BookKeeperMetrics.CacheMetric.CACHE_SIZE_GAUGE;
+import static com.qubole.rubix.common.metrics.BookKeeperMetrics.CacheMetric.CHECKSUM_VERIFICATION_TIME_GAUGE;
+import static com.qubole.rubix.common.metrics.BookKeeperMetrics.CacheMetric.COALESCED_READ_DATA_COUNT;
+import static com.qubole.rubix.common.metrics.BookKeeperMetrics.CacheMetric.COMPRESSION_RATIO_GAUGE;
+import static com.qubole.rubix.common.metrics.BookKeeperMetrics.CacheMetric.COMPRESSION_TIME_GAUGE;
+import static com.qubole.rubix.common.metrics.BookKeeperMetrics.CacheMetric.CORRUPTED_BLOCK_COUNT;
+import static com.qubole.rubix.common.metrics.BookKeeperMetrics.CacheMetric.DECOMPRESSION_TIME_GAUGE;
+import static com.qubole.rubix.common.metrics.BookKeeperMetrics.CacheMetric.DISK_QUEUE_BACKGROUND_TIME_GAUGE;
+import static com.qubole.rubix.common.metrics.BookKeeperMetrics.CacheMetric.DISK_QUEUE_FOREGROUND_READ_TIME_GAUGE;
+import static com.qubole.rubix.common.metrics.BookKeeperMetrics.CacheMetric.DISK_QUEUE_NON_LOCAL_SERVE_TIME_GAUGE;
+import static com.qubole.rubix.common.metrics.BookKeeperMetrics.CacheMetric.DISK_QUEUE_READ_THROUGH_WRITE_TIME_GAUGE;
+import static com.qubole.rubix.common.metrics.BookKeeperMetrics.CacheMetric.DROPPED_REPLICA_BLOCK_COUNT;
+import static com.qubole.rubix.common.metrics.BookKeeperMetrics.CacheMetric.FILE_HANDLE_CACHE_HIT_RATE_GAUGE;
+import static com.qubole.rubix.common.metrics.BookKeeperMetrics.CacheMetric.MEMORY_TIER_EVICTIONS_GAUGE;
+import static com.qubole.rubix.common.metrics.BookKeeperMetrics.CacheMetric.MEMORY_TIER_HITS_GAUGE;
+import static com.qubole.rubix.common.metrics.BookKeeperMetrics.CacheMetric.MEMORY_TIER_PROMOTIONS_GAUGE;
+import static com.qubole.rubix.common.metrics.BookKeeperMetrics.CacheMetric.MEMORY_TIER_SIZE_GAUGE;
 import static com.qubole.rubix.common.metrics.BookKeeperMetrics.CacheMetric.NONLOCAL_REQUEST_COUNT;
+import static com.qubole.rubix.common.metrics.BookKeeperMetrics.CacheMetric.OPEN_FILE_HANDLES_GAUGE;
+import static com.qubole.rubix.common.metrics.BookKeeperMetrics.CacheMetric.PAGE_CACHE_DROPPED_DATA_GAUGE;
 import static com.qubole.rubix.common.metrics.BookKeeperMetrics.CacheMetric.REMOTE_REQUEST_COUNT;
+import static com.qubole.rubix.common.metrics.BookKeeperMetrics.CacheMetric.REPLICATED_BLOCK_COUNT;
+import static com.qubole.rubix.common.metrics.BookKeeperMetrics.CacheMetric.REPLICA_REQUEST_COUNT;
+import static com.qubole.rubix.common.metrics.BookKeeperMetrics.CacheMetric.THROTTLE_FOREGROUND_TIME_GAUGE;
+import static com.qubole.rubix.common.metrics.BookKeeperMetrics.CacheMetric.THROTTLE_WARMUP_RATE_GAUGE;
+import static com.qubole.rubix.common.metrics.BookKeeperMetrics.CacheMetric.THROTTLE_WARMUP_TIME_GAUGE;
 import static com.qubole.rubix.common.metrics.BookKeeperMetrics.CacheMetric.TOTAL_REQUEST_COUNT;
 import static com.qubole.rubix.core.ReadRequestChainStats.DOWNLOADED_FOR_NON_LOCAL_METRIC;
 import static com.qubole.rubix.core.ReadRequestChainStats.DOWNLOADED_FOR_PARALLEL_WARMUP_METRIC;
@@ -94,6 +137,7 @@ import static com.qubole.rubix.core.ReadRequestChainStats.EXTRA_READ_FOR_NON_LOC
 import static com.qubole.rubix.core.ReadRequestChainStats.PARALLEL_DOWNLOAD_TIME_METRIC;
 import static com.qubole.rubix.core.ReadRequestChainStats.WARMUP_TIME_NON_LOCAL_METRIC;
 import static com.qubole.rubix.spi.CacheUtil.UNKONWN_GENERATION_NUMBER;
+import static com.qubole.rubix.spi.CommonUtilities.threadsNamed;
 import static com.qubole.rubix.spi.utils.DataSizeUnits.BYTES;
 import static com.qubole.rubix.spi.utils.DataSizeUnits.MEGABYTES;
 
@@ -104,6 +148,7 @@ public abstract class BookKeeper implements BookKeeperService.Iface
 {
   private static final int MAX_FILES_EXPECTED = 1000000;
   private static final double FILE_ACCESSED_FILTER_FPP = 0.01;
+  private static final int MAX_QUEUED_REPLICATIONS = 1000;
   private static Log log = LogFactory.getLog(BookKeeper.class);
   private static DirectBufferPool bufferPool = new DirectBufferPool();
   private static final CachingFileSystemStatsProvider warmupStats = new CachingFileSystemStatsProvider();
@@ -130,6 +175,22 @@ public abstract class BookKeeper implements BookKeeperService.Iface
   private Counter remoteRequestCount;
   private Counter cacheRequestCount;
   private Counter nonlocalRequestCount;
+  private Counter coalescedReadDataCount;
+  private Counter corruptedBlockCount;
+  private Counter replicaRequestCount;
+  private Counter replicatedBlockCount;
+  private Counter droppedReplicaBlockCount;
+
+  // Blocks being downloaded by readData calls, concurrent calls for the same block wait for the first one
+  private final InFlightBlockRegistry readDataDownloads = new InFlightBlockRegistry();
+
+  // Null unless the most accessed blocks are also kept in memory
+  private final MemoryTier memoryTier;
+
+  // Null unless this node caches copies of the hot blocks of other nodes it reads
+  private final ExecutorService replicationExecutor;
+  // Files holding such copies, whose blocks owned by other nodes are dropped first when the cache fills up
+  private final Set<String> replicatedFiles = ConcurrentHashMap.newKeySet();
 
   //  Maintains generation number for remote file
   private Cache<String, Integer> generationNumberCache;
@@ -154,6 +215,8 @@ public abstract class BookKeeper implements BookKeeperService.Iface
     this.metrics = bookKeeperMetrics.getMetricsRegistry();
     this.ticker = ticker;
     this.splitSize = CacheConfig.getCacheFileSplitSize(conf);
+    this.memoryTier = CacheConfig.isMemoryTierEnabled(conf) ? MemoryTier.getInstance(conf) : null;
+    this.replicationExecutor = CacheConfig.isReplicationEnabled(conf) ? createReplicationExecutor() : null;
     cleanupOldCacheFiles(conf);
     initializeMetrics();
     initializeCache(conf, ticker);
@@ -164,6 +227,18 @@ public abstract class BookKeeper implements BookKeeperService.Iface
     }
   }
 
+  // Replicas are only an optimization, requests beyond the capacity of the queue are dropped
+  private static ExecutorService createReplicationExecutor()
+  {
+    return new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<>(MAX_QUEUED_REPLICATIONS),
+        new ThreadFactoryBuilder()
+            .setThreadFactory(threadsNamed("rubix-replication-thread-%s"))
+            .setDaemon(true)
+            .build(),
+        new ThreadPoolExecutor.DiscardPolicy());
+  }
+
   RemoteFetchProcessor getRemoteFetchProcessorInstance()
   {
     return fetchProcessor;
@@ -209,6 +284,11 @@ public abstract class BookKeeper implements BookKeeperService.Iface
     cacheRequestCount = metrics.counter(CACHE_REQUEST_COUNT.getMetricName());
     nonlocalRequestCount = metrics.counter(NONLOCAL_REQUEST_COUNT.getMetricName());
     remoteRequestCount = metrics.counter(REMOTE_REQUEST_COUNT.getMetricName());
+    coalescedReadDataCount = metrics.counter(COALESCED_READ_DATA_COUNT.getMetricName());
+    corruptedBlockCount = metrics.counter(CORRUPTED_BLOCK_COUNT.getMetricName());
+    replicaRequestCount = metrics.counter(REPLICA_REQUEST_COUNT.getMetricName());
+    replicatedBlockCount = metrics.counter(REPLICATED_BLOCK_COUNT.getMetricName());
+    droppedReplicaBlockCount = metrics.counter(DROPPED_REPLICA_BLOCK_COUNT.getMetricName());
 
     metrics.register(CACHE_HIT_RATE_GAUGE.getMetricName(), new Gauge<Double>()
     {
@@ -243,6 +323,152 @@ public abstract class BookKeeper implements BookKeeperService.Iface
         return totalAvailableForCacheInMB;
       }
     });
+    metrics.register(OPEN_FILE_HANDLES_GAUGE.getMetricName(), new Gauge<Long>()
+    {
+      @Override
+      public Long getValue()
+      {
+        return FileChannelCache.getOpenHandles();
+      }
+    });
+    metrics.register(FILE_HANDLE_CACHE_HIT_RATE_GAUGE.getMetricName(), new Gauge<Double>()
+    {
+      @Override
+      public Double getValue()
+      {
+        return FileChannelCache.getInstance(conf).getHitRate();
+      }
+    });
+    metrics.register(MEMORY_TIER_SIZE_GAUGE.getMetricName(), new Gauge<Long>()
+    {
+      @Override
+      public Long getValue()
+      {
+        return memoryTier == null ? 0 : BYTES.toMB(memoryTier.getUsedMemory());
+      }
+    });
+    metrics.register(MEMORY_TIER_HITS_GAUGE.getMetricName(), new Gauge<Long>()
+    {
+      @Override
+      public Long getValue()
+      {
+        return memoryTier == null ? 0 : memoryTier.getHits();
+      }
+    });
+    metrics.register(MEMORY_TIER_PROMOTIONS_GAUGE.getMetricName(), new Gauge<Long>()
+    {
+      @Override
+      public Long getValue()
+      {
+        return memoryTier == null ? 0 : memoryTier.getPromotions();
+      }
+    });
+    metrics.register(MEMORY_TIER_EVICTIONS_GAUGE.getMetricName(), new Gauge<Long>()
+    {
+      @Override
+      public Long getValue()
+      {
+        return memoryTier == null ? 0 : memoryTier.getEvictions();
+      }
+    });
+    metrics.register(COMPRESSION_RATIO_GAUGE.getMetricName(), new Gauge<Double>()
+    {
+      @Override
+      public Double getValue()
+      {
+        return CompressedCacheFile.getCompressionRatio();
+      }
+    });
+    metrics.register(COMPRESSION_TIME_GAUGE.getMetricName(), new Gauge<Long>()
+    {
+      @Override
+      public Long getValue()
+      {
+        return CompressedCacheFile.getCompressionTimeMillis();
+      }
+    });
+    metrics.register(DECOMPRESSION_TIME_GAUGE.getMetricName(), new Gauge<Long>()
+    {
+      @Override
+      public Long getValue()
+      {
+        return CompressedCacheFile.getDecompressionTimeMillis();
+      }
+    });
+    metrics.register(CHECKSUM_VERIFICATION_TIME_GAUGE.getMetricName(), new Gauge<Long>()
+    {
+      @Override
+      public Long getValue()
+      {
+        return BlockChecksums.getVerificationTimeMillis();
+      }
+    });
+    final IoThrottle ioThrottle = IoThrottle.getInstance(conf);
+    metrics.register(THROTTLE_WARMUP_RATE_GAUGE.getMetricName(), new Gauge<Double>()
+    {
+      @Override
+      public Double getValue()
+      {
+        return ioThrottle.getWarmupRate();
+      }
+    });
+    metrics.register(THROTTLE_WARMUP_TIME_GAUGE.getMetricName(), new Gauge<Long>()
+    {
+      @Override
+      public Long getValue()
+      {
+        return ioThrottle.getThrottledTimeMillis(Traffic.WARMUP);
+      }
+    });
+    metrics.register(THROTTLE_FOREGROUND_TIME_GAUGE.getMetricName(), new Gauge<Long>()
+    {
+      @Override
+      public Long getValue()
+      {
+        return ioThrottle.getThrottledTimeMillis(Traffic.FOREGROUND);
+      }
+    });
+    final DiskIoScheduler diskIoScheduler = DiskIoScheduler.getInstance(conf);
+    metrics.register(DISK_QUEUE_FOREGROUND_READ_TIME_GAUGE.getMetricName(), new Gauge<Long>()
+    {
+      @Override
+      public Long getValue()
+      {
+        return diskIoScheduler.getQueueTimeMillis(Priority.FOREGROUND_READ);
+      }
+    });
+    metrics.register(DISK_QUEUE_NON_LOCAL_SERVE_TIME_GAUGE.getMetricName(), new Gauge<Long>()
+    {
+      @Override
+      public Long getValue()
+      {
+        return diskIoScheduler.getQueueTimeMillis(Priority.NON_LOCAL_SERVE);
+      }
+    });
+    metrics.register(DISK_QUEUE_READ_THROUGH_WRITE_TIME_GAUGE.getMetricName(), new Gauge<Long>()
+    {
+      @Override
+      public Long getValue()
+      {
+        return diskIoScheduler.getQueueTimeMillis(Priority.READ_THROUGH_WRITE);
+      }
+    });
+    metrics.register(DISK_QUEUE_BACKGROUND_TIME_GAUGE.getMetricName(), new Gauge<Long>()
+    {
+      @Override
+      public Long getValue()
+      {
+        return diskIoScheduler.getQueueTimeMillis(Priority.BACKGROUND);
+      }
+    });
+    metrics.register(PAGE_CACHE_DROPPED_DATA_GAUGE.getMetricName(), new Gauge<Long>()
+    {
+      @Override
+      public Long getValue()
+      {
+        return PageCacheHints.getDroppedBytes();
+      }
+    });
   }
 
   @Override
@@ -270,12 +496,7 @@ public abstract class BookKeeper implements BookKeeperService.Iface
     boolean incrMetrics = request.isIncrMetrics();
 
     for (long i = 0; i < fileLength; i = i + splitSize) {
-      long end = i + splitSize;
-      if (end > fileLength) {
-        end = fileLength;
-      }
-      String key = remotePath + i + end;
-      String nodeAddress = clusterManager.locateKey(key);
+      String nodeAddress = locateSplit(remotePath, fileLength, blockNumber);
       blockSplits.put(blockNumber, nodeAddress);
       blockNumber++;
     }
@@ -308,28 +529,44 @@ public abstract class BookKeeper implements BookKeeperService.Iface
       log.error(String.format("Could not fetch Metadata for %s", remotePath), e);
       throw new TException(e);
     }
-    endBlock = setCorrectEndBlock(endBlock, fileLength, remotePath);
+    int blockSize = md.getBlockSize();
+    endBlock = setCorrectEndBlock(endBlock, fileLength, blockSize);
     List<BlockLocation> blockLocations = new ArrayList<>((int) (endBlock - startBlock));
-    int blockSize = CacheConfig.getBlockSize(conf);
 
     //TODO: Store Node indices too, i.e. split to nodeIndex map and compare indices here instead of strings(nodenames).
     int totalRequests = 0;
     int cacheRequests = 0;
     int remoteRequests = 0;
     int nonLocalRequests = 0;
+    int replicaRequests = 0;
+    // Accesses to blocks on disk are handed to the memory tier at once after the statuses are known
+    List<Long> diskBlocks = memoryTier == null ? null : new ArrayList<>();
 
     try {
       for (long blockNum = startBlock; blockNum < endBlock; blockNum++) {
         totalRequests++;
 
         long split = (blockNum * blockSize) / splitSize;
-        if (!blockSplits.get(split).equals(currentNodeName)) {
+        boolean owned = blockSplits.get(split).equals(currentNodeName);
+        // Copies of hot blocks of other nodes are read like the cached blocks this node owns
+        if (!owned && (replicationExecutor == null || !md.isBlockCached(blockNum))) {
           blockLocations.add(new BlockLocation(Location.NON_LOCAL, blockSplits.get(split)));
           nonLocalRequests++;
         }
         else {
+          if (!owned) {
+            replicaRequests++;
+          }
           if (md.isBlockCached(blockNum)) {
-            blockLocations.add(new BlockLocation(Location.CACHED, blockSplits.get(split)));
+            if (memoryTier != null && memoryTier.contains(md.getLocalPath(), blockNum)) {
+              blockLocations.add(new BlockLocation(Location.IN_MEMORY, blockSplits.get(split)));
+            }
+            else {
+              blockLocations.add(new BlockLocation(Location.CACHED, blockSplits.get(split)));
+              if (memoryTier != null) {
+                diskBlocks.add(blockNum);
+              }
+            }
             cacheRequests++;
           }
           else {
@@ -342,14 +579,30 @@ public abstract class BookKeeper implements BookKeeperService.Iface
     catch (IOException e) {
       throw new TException(e);
     }
+    if (memoryTier != null) {
+      int generationNumber = md.getGenerationNumber();
+      memoryTier.recordAccesses(md.getLocalPath(), diskBlocks, blockSize, fileLength, md.getCompressedFile(),
+          () -> BlockChecksums.forFile(remotePath, fileLength, blockSize, generationNumber, conf));
+    }
 
     if (request.isIncrMetrics() && !isValidatingCachingBehavior(remotePath)) {
       totalRequestCount.inc(totalRequests);
       nonlocalRequestCount.inc(nonLocalRequests);
       cacheRequestCount.inc(cacheRequests);
       remoteRequestCount.inc(remoteRequests);
+      replicaRequestCount.inc(replicaRequests);
     }
-    return new CacheStatusResponse(blockLocations, md.getGenerationNumber());
+    return new CacheStatusResponse(blockLocations, md.getGenerationNumber())
+        .setBlockSize(blockSize)
+        .setCompressed(md.getCompressedFile() != null);
+  }
+
+  // Returns the node owning the split of the file
+  private String locateSplit(String remotePath, long fileLength, long split)
+  {
+    long start = split * splitSize;
+    long end = Math.min(start + splitSize, fileLength);
+    return clusterManager.locateKey(remotePath + start + end);
   }
 
   public boolean isInitialized()
@@ -433,13 +686,13 @@ public abstract class BookKeeper implements BookKeeperService.Iface
       invalidateFileMetadata(remotePath);
       return;
     }
-    endBlock = setCorrectEndBlock(endBlock, fileLength, remotePath);
+    endBlock = setCorrectEndBlock(endBlock, fileLength, md.getBlockSize());
     log.debug("Updating cache for " + remotePath + " StartBlock : " + startBlock + " EndBlock : " + endBlock);
 
     try {
       OptionalInt updatedBlocks = md.setBlocksCached(startBlock, endBlock);
       if (updatedBlocks.isPresent()) {
-        long currentFileSize = md.incrementCurrentFileSize(updatedBlocks.getAsInt() * CacheConfig.getBlockSize(conf));
+        long currentFileSize = md.incrementCurrentFileSize(getCachedBytes(md, startBlock, endBlock, updatedBlocks.getAsInt()));
         // CurrentFileSize as per Blocks' based computation can cross actual file size
         // This can only happen when the last block of file is not completely full
         // as it doesnt align to the block boundary
@@ -452,6 +705,29 @@ public abstract class BookKeeper implements BookKeeperService.Iface
     }
   }
 
+  // Blocks of compressed files take less space than the block size, the space taken by the newly cached ones is
+  // estimated from the space taken by the blocks of the range
+  private long getCachedBytes(FileMetadata md, long startBlock, long endBlock, int updatedBlocks)
+      throws IOException
+  {
+    CompressedCacheFile compressedFile = md.getCompressedFile();
+    if (compressedFile == null || updatedBlocks == 0) {
+      return (long) updatedBlocks * md.getBlockSize();
+    }
+
+    long storedBytes = 0;
+    CachedFileChannel cachedFileChannel = FileChannelCache.open(conf, md.getLocalPath());
+    try (Slot slot = DiskIoScheduler.getInstance(conf).acquire(md.getLocalPath(), Priority.READ_THROUGH_WRITE)) {
+      for (long block = startBlock; block < endBlock; block++) {
+        storedBytes += compressedFile.getStoredLength(cachedFileChannel.getChannel(), block);
+      }
+    }
+    finally {
+      cachedFileChannel.release();
+    }
+    return storedBytes * updatedBlocks / (endBlock - startBlock);
+  }
+
   @VisibleForTesting
   public long getTotalCacheWeight()
   {
@@ -526,6 +802,12 @@ public abstract class BookKeeper implements BookKeeperService.Iface
     }
   }
 
+  @VisibleForTesting
+  InFlightBlockRegistry getReadDataDownloads()
+  {
+    return readDataDownloads;
+  }
+
   private synchronized void startRemoteFetchProcessor()
   {
     if (fetchProcessor.state() == Service.State.NEW) {
@@ -552,49 +834,89 @@ public abstract class BookKeeper implements BookKeeperService.Iface
       long lastModified,
       int clusterType) throws TException
   {
-    int blockSize = CacheConfig.getBlockSize(conf);
+    int blockSize = CacheUtil.getFileBlockSize(remotePath, fileSize, conf);
     byte[] buffer = new byte[blockSize];
     FileSystem fs = null;
     FSDataInputStream inputStream = null;
     Path path = new Path(remotePath);
     long startBlock = offset / blockSize;
-    long endBlock = ((offset + (length - 1)) / CacheConfig.getBlockSize(conf)) + 1;
+    long endBlock = ((offset + (length - 1)) / blockSize) + 1;
+    // Client gives up on the request after its read timeout, no point in waiting longer for other downloads
+    int timeout = CacheConfig.getClientReadTimeout(conf);
     CacheStatusResponse response = null;
     try {
       int idx = 0;
       CacheStatusRequest request = new CacheStatusRequest(remotePath, fileSize, lastModified, startBlock, endBlock).setClusterType(clusterType);
       response = getCacheStatus(request);
       List<BlockLocation> blockLocations = response.getBlocks();
+      String localPath = CacheUtil.getLocalPath(remotePath, conf, response.getGenerationNumber());
 
       for (long blockNum = startBlock; blockNum < endBlock; blockNum++, idx++) {
         long readStart = blockNum * blockSize;
         log.debug(" blockLocation is: " + blockLocations.get(idx).getLocation() + " for path " + remotePath + " offset " + offset + " length " + length);
-        if (blockLocations.get(idx).getLocation() != Location.CACHED) {
-          if (fs == null) {
-            fs = path.getFileSystem(conf);
-            fs.initialize(path.toUri(), conf);
-
-            inputStream = fs.open(path, blockSize);
+        if (blockLocations.get(idx).getLocation() != Location.CACHED && blockLocations.get(idx).getLocation() != Location.IN_MEMORY) {
+          BlockFetch fetch = readDataDownloads.claim(localPath, blockNum);
+          if (!fetch.isOwner()) {
+            // Another request is downloading this block, it is cached once that download completes
+            coalescedReadDataCount.inc();
+            log.debug("Waiting for download in progress of block " + blockNum + " of " + remotePath);
+            try {
+              fetch.getFuture().get(timeout, TimeUnit.MILLISECONDS);
+              continue;
+            }
+            catch (ExecutionException e) {
+              log.error("Download in progress failed. Not able to cache block " + blockNum);
+              return new ReadResponse(false, response.getGenerationNumber());
+            }
+            catch (TimeoutException e) {
+              log.error("Download in progress did not finish in time. Not able to cache block " + blockNum);
+              return new ReadResponse(false, response.getGenerationNumber());
+            }
           }
 
-          // Cache the data
-          // Ue RRRC directly instead of creating instance of CachingFS as in certain circumstances, CachingFS could
-          // send this request to NonLocalRRC which would be wrong as that would not cache it on disk
-          long expectedBytesToRead = (readStart + blockSize) > fileSize ? (fileSize - readStart) : blockSize;
-          RemoteReadRequestChain remoteReadRequestChain = new RemoteReadRequestChain(inputStream, remotePath, response.getGenerationNumber(), bufferPool, conf, buffer, new BookKeeperFactory(this));
-          remoteReadRequestChain.addReadRequest(new ReadRequest(readStart, readStart + expectedBytesToRead, readStart, readStart + expectedBytesToRead, buffer, 0, fileSize));
-          remoteReadRequestChain.lock();
-          long dataRead = remoteReadRequestChain.call();
-          // Making sure the data downloaded matches with the expected bytes. If not, there is some problem with
-          // the download this time. So won't update the cache metadata and return false so that client can
-          // fall back on the directread
-          if (dataRead == expectedBytesToRead) {
-            remoteReadRequestChain.updateCacheStatus(remotePath, fileSize, lastModified, blockSize, conf);
-            warmupStats.addReadRequestChainStats(remoteReadRequestChain.getStats());
+          Throwable failure = new IOException("Could not download block " + blockNum + " of " + remotePath);
+          try {
+            if (fs == null) {
+              fs = path.getFileSystem(conf);
+              fs.initialize(path.toUri(), conf);
+
+              inputStream = fs.open(path, blockSize);
+            }
+
+            // Cache the data
+            // Ue RRRC directly instead of creating instance of CachingFS as in certain circumstances, CachingFS could
+            // send this request to NonLocalRRC which would be wrong as that would not cache it on disk
+            long expectedBytesToRead = (readStart + blockSize) > fileSize ? (fileSize - readStart) : blockSize;
+            RemoteReadRequestChain remoteReadRequestChain = new RemoteReadRequestChain(inputStream, remotePath, response.getGenerationNumber(), bufferPool, conf, buffer, new BookKeeperFactory(this));
+            remoteReadRequestChain.addReadRequest(new ReadRequest(readStart, readStart + expectedBytesToRead, readStart, readStart + expectedBytesToRead, buffer, 0, fileSize));
+            remoteReadRequestChain.lock();
+            long dataRead = remoteReadRequestChain.call();
+            // Making sure the data downloaded matches with the expected bytes. If not, there is some problem with
+            // the download this time. So won't update the cache metadata and return false so that client can
+            // fall back on the directread
+            if (dataRead == expectedBytesToRead) {
+              if (remoteReadRequestChain.getCacheWriteFuture() != null) {
+                // Caller reads the block from the local file once this returns
+                try {
+                  remoteReadRequestChain.getCacheWriteFuture().get(timeout, TimeUnit.MILLISECONDS);
+                }
+                catch (TimeoutException e) {
+                  log.error("Write of block " + blockNum + " to cache did not finish in time. Not updating the cache for it");
+                  return new ReadResponse(false, response.getGenerationNumber());
+                }
+              }
+              remoteReadRequestChain.updateCacheStatus(remotePath, fileSize, lastModified, blockSize, conf);
+              warmupStats.addReadRequestChainStats(remoteReadRequestChain.getStats());
+              failure = null;
+            }
+            else {
+              log.error("Not able to download requested bytes. Not updating the cache for block " + blockNum);
+              return new ReadResponse(false, response.getGenerationNumber());
+            }
           }
-          else {
-            log.error("Not able to download requested bytes. Not updating the cache for block " + blockNum);
-            return new ReadResponse(false, response.getGenerationNumber());
+          finally {
+            // Requests waiting for this block are released once it is cached
+            readDataDownloads.complete(fetch, failure);
           }
         }
       }
@@ -616,9 +938,9 @@ public abstract class BookKeeper implements BookKeeperService.Iface
     }
   }
 
-  private long setCorrectEndBlock(long endBlock, long fileLength, String remotePath)
+  private long setCorrectEndBlock(long endBlock, long fileLength, int blockSize)
   {
-    long lastBlock = (fileLength - 1) / CacheConfig.getBlockSize(conf);
+    long lastBlock = (fileLength - 1) / blockSize;
     if (endBlock > (lastBlock + 1)) {
       endBlock = lastBlock + 1;
     }
@@ -755,6 +1077,137 @@ public abstract class BookKeeper implements BookKeeperService.Iface
     }
   }
 
+  @Override
+  public void invalidateBlocks(String remotePath, long startBlock, long endBlock, int generationNumber)
+  {
+    FileMetadata md = fileMetadataCache == null ? null : fileMetadataCache.getIfPresent(remotePath);
+    // Different generation number means the file was invalidated already
+    if (md == null || md.getGenerationNumber() != generationNumber) {
+      return;
+    }
+
+    log.warn(String.format("Invalidating corrupted blocks [%d, %d) of %s", startBlock, endBlock, remotePath));
+    try {
+      OptionalInt updatedBlocks = md.setBlocksNotCached(startBlock, endBlock);
+      if (!updatedBlocks.isPresent()) {
+        invalidateFileMetadata(remotePath);
+        return;
+      }
+      corruptedBlockCount.inc(updatedBlocks.getAsInt());
+      // The weight is left unchanged, the blocks keep their space on disk until the file is evicted
+      MemoryTier.invalidateFile(md.getLocalPath());
+    }
+    catch (IOException e) {
+      log.error("Could not invalidate blocks of " + remotePath + ", invalidating the file", e);
+      invalidateFileMetadata(remotePath);
+    }
+  }
+
+  @Override
+  public void replicateBlocks(String remotePath, long fileLength, long lastModified, long startBlock, long endBlock, int clusterType)
+  {
+    if (replicationExecutor == null) {
+      return;
+    }
+    replicationExecutor.execute(() -> replicate(remotePath, fileLength, lastModified, startBlock, endBlock, clusterType));
+  }
+
+  /**
+   * Caches the blocks owned by another node, which this node then reads locally.
+   *
+   * The blocks are downloaded from the object store like the blocks requested by other nodes through readData, so
+   * that the owner, already busy serving them, does not have to send them. Once the cache is past the configured
+   * fullness, the copies of blocks of other nodes are dropped and no new ones are made.
+   *
+   * @return true if the blocks are cached
+   */
+  @VisibleForTesting
+  boolean replicate(String remotePath, long fileLength, long lastModified, long startBlock, long endBlock, int clusterType)
+  {
+    if (isCacheFullForReplicas()) {
+      dropReplicas();
+      if (isCacheFullForReplicas()) {
+        log.debug("Cache is full, not replicating blocks of " + remotePath);
+        return false;
+      }
+    }
+
+    int blockSize = CacheUtil.getFileBlockSize(remotePath, fileLength, conf);
+    long offset = startBlock * blockSize;
+    long length = Math.min(endBlock * blockSize, fileLength) - offset;
+    if (length <= 0 || length > Integer.MAX_VALUE) {
+      return false;
+    }
+    log.debug(String.format("Replicating blocks [%d, %d) of %s", startBlock, endBlock, remotePath));
+    try {
+      if (!readDataInternal(remotePath, offset, (int) length, fileLength, lastModified, clusterType).isStatus()) {
+        return false;
+      }
+    }
+    catch (TException e) {
+      log.warn("Could not replicate blocks of " + remotePath, e);
+      return false;
+    }
+    replicatedFiles.add(remotePath);
+    replicatedBlockCount.inc(endBlock - startBlock);
+    return true;
+  }
+
+  private boolean isCacheFullForReplicas()
+  {
+    return getTotalCacheWeight() * 100 >= MEGABYTES.toKB(totalAvailableForCacheInMB) * CacheConfig.getReplicationMaxCacheFullnessPercentage(conf);
+  }
+
+  // Drops the cached blocks owned by other nodes. Files holding only such blocks are evicted, the space taken by the
+  // dropped blocks of the other files is reclaimed once they are evicted, so their weight is left unchanged until then.
+  private void dropReplicas()
+  {
+    if (clusterManager == null) {
+      return;
+    }
+    String currentNodeName = clusterManager.getCurrentNodeName();
+    for (Iterator<String> files = replicatedFiles.iterator(); files.hasNext(); ) {
+      String remotePath = files.next();
+      files.remove();
+      FileMetadata md = fileMetadataCache.getIfPresent(remotePath);
+      if (md == null) {
+        continue;
+      }
+
+      try {
+        int blockSize = md.getBlockSize();
+        long blockCount = (md.getFileSize() + blockSize - 1) / blockSize;
+        List<Long> replicaBlocks = new ArrayList<>();
+        boolean ownsCachedBlocks = false;
+        for (long block = 0; block < blockCount; block++) {
+          if (md.isBlockCached(block)) {
+            if (locateSplit(remotePath, md.getFileSize(), block * blockSize / splitSize).equals(currentNodeName)) {
+              ownsCachedBlocks = true;
+            }
+            else {
+              replicaBlocks.add(block);
+            }
+          }
+        }
+
+        if (!ownsCachedBlocks) {
+          invalidateFileMetadata(remotePath);
+        }
+        else {
+          for (long block : replicaBlocks) {
+            md.setBlocksNotCached(block, block + 1);
+          }
+          MemoryTier.invalidateFile(md.getLocalPath());
+        }
+        droppedReplicaBlockCount.inc(replicaBlocks.size());
+      }
+      catch (IOException e) {
+        log.error("Could not drop replicated blocks of " + remotePath + ", invalidating the file", e);
+        invalidateFileMetadata(remotePath);
+      }
+    }
+  }
+
   private void replaceFileMetadata(String key, long currentFileSize, Configuration conf)
   {
     if (fileMetadataCache != null) {
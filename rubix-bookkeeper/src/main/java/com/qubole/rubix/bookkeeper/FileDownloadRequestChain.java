@@ -12,10 +12,22 @@
  */
 package com.qubole.rubix.bookkeeper;
 
+import com.qubole.rubix.common.cache.BlockChecksums;
+import com.qubole.rubix.common.cache.CompressedCacheFile;
+import com.qubole.rubix.common.cache.DirectIo;
+import com.qubole.rubix.common.cache.DiskIoScheduler;
+import com.qubole.rubix.common.cache.DiskIoScheduler.Priority;
+import com.qubole.rubix.common.cache.DiskIoScheduler.Slot;
+import com.qubole.rubix.common.cache.FileChannelCache;
+import com.qubole.rubix.common.cache.FileChannelCache.CachedFileChannel;
+import com.qubole.rubix.common.cache.PageCacheHints;
+import com.qubole.rubix.common.utils.IoThrottle;
+import com.qubole.rubix.common.utils.IoThrottle.Traffic;
 import com.qubole.rubix.core.ReadRequest;
 import com.qubole.rubix.core.ReadRequestChain;
 import com.qubole.rubix.core.ReadRequestChainStats;
 import com.qubole.rubix.spi.CacheConfig;
+import com.qubole.rubix.spi.CacheUtil;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
@@ -25,9 +37,7 @@ import org.apache.hadoop.fs.Path;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.List;
@@ -51,6 +61,18 @@ public class FileDownloadRequestChain extends ReadRequestChain
   ByteBuffer directBuffer;
   private long timeSpentOnDownload;
   private int blockSize;
+  // Null if the blocks are stored uncompressed
+  private CompressedCacheFile compressedFile;
+  // Null if block checksums are disabled
+  private BlockChecksums blockChecksums;
+  private IoThrottle ioThrottle;
+  private DiskIoScheduler diskIoScheduler;
+  // Downloaded data is dropped from the page cache once written, it is not read until a query needs it
+  private boolean dropBehind;
+  // Set while the chain runs if its aligned writes bypass the page cache
+  private FileChannel directChannel;
+  private ByteBuffer alignedBuffer;
+  private int alignment;
 
   private static final Log log = LogFactory.getLog(FileDownloadRequestChain.class);
 
@@ -64,7 +86,7 @@ public class FileDownloadRequestChain extends ReadRequestChain
       long lastModified,
       int generationNumber)
   {
-    super(generationNumber, getBlockAlignedMaxChunkSize(conf));
+    super(generationNumber, getBlockAlignedMaxChunkSize(conf, CacheUtil.getFileBlockSize(remotePath, fileSize, conf)));
     this.bookKeeper = bookKeeper;
     this.remoteFileSystem = remoteFileSystem;
     this.localFile = localfile;
@@ -74,14 +96,19 @@ public class FileDownloadRequestChain extends ReadRequestChain
     this.lastModified = lastModified;
     this.directBuffer = directBuffer;
     this.maxRemoteReadBufferSize = CacheConfig.getDataTransferBufferSize(conf);
-    this.blockSize = CacheConfig.getBlockSize(conf);
+    this.blockSize = CacheUtil.getFileBlockSize(remotePath, fileSize, conf);
+    this.compressedFile = CompressedCacheFile.forFile(remotePath, blockSize, conf);
+    this.blockChecksums = BlockChecksums.forFile(remotePath, fileSize, blockSize, generationNumber, conf);
+    this.ioThrottle = IoThrottle.getInstance(conf);
+    this.diskIoScheduler = DiskIoScheduler.getInstance(conf);
+    this.dropBehind = CacheConfig.isPageCacheHintsEnabled(conf);
   }
 
-  private static long getBlockAlignedMaxChunkSize(Configuration conf)
+  private static long getBlockAlignedMaxChunkSize(Configuration conf, int blockSize)
   {
     long maxReadRequestLength = CacheConfig.getParallelWarmupMaxChunkSize(conf);
-    long blockSize = CacheConfig.getBlockSize(conf);
-    return (maxReadRequestLength / blockSize) * blockSize;
+    // Blocks of large files can be bigger than the max chunk size, chunks hold at least one block
+    return Math.max((maxReadRequestLength / blockSize) * blockSize, blockSize);
   }
 
   public String getRemotePath()
@@ -128,14 +155,22 @@ public class FileDownloadRequestChain extends ReadRequestChain
             .get();
     int remoteReadBufferSize = Math.min(maxRemoteReadBufferSize,
             Math.toIntExact(Math.min(Integer.MAX_VALUE, highestReadRequestLength)));
+    if ((compressedFile != null || blockChecksums != null) && remoteReadBufferSize < highestReadRequestLength) {
+      // Blocks are compressed and checksummed as a whole, every chunk written holds complete blocks
+      remoteReadBufferSize = Math.max(remoteReadBufferSize / blockSize, 1) * blockSize;
+    }
     byte[] remoteReadBuffer = new byte[remoteReadBufferSize];
 
     FSDataInputStream inputStream = null;
-    FileChannel fileChannel = null;
+    CachedFileChannel cachedFileChannel = null;
     FileSystem fileSystem = remoteFileSystem;
     try {
       inputStream = fileSystem.open(new Path(remotePath));
-      fileChannel = new FileOutputStream(new RandomAccessFile(file, "rw").getFD()).getChannel();
+      cachedFileChannel = FileChannelCache.open(conf, localFile);
+      FileChannel fileChannel = cachedFileChannel.getChannel();
+      if (CacheConfig.isWarmupDirectIoEnabled(conf)) {
+        openDirectChannel();
+      }
       for (ReadRequest readRequest : readRequests) {
         if (isCancelled()) {
           log.debug("Request Cancelled for " + readRequest.getBackendReadStart());
@@ -156,8 +191,13 @@ public class FileDownloadRequestChain extends ReadRequestChain
       return totalRequestedRead;
     }
     finally {
-      if (fileChannel != null) {
-        fileChannel.close();
+      if (directChannel != null) {
+        directChannel.close();
+        directChannel = null;
+      }
+
+      if (cachedFileChannel != null) {
+        cachedFileChannel.release();
       }
 
       if (inputStream != null) {
@@ -174,6 +214,7 @@ public class FileDownloadRequestChain extends ReadRequestChain
   {
     log.debug(String.format("Copying data of file %s of length %d from position %d", remotePath, length, cacheReadStart));
     if (length <= remoteReadBuffer.length) {
+      ioThrottle.acquireNetwork(Traffic.WARMUP, length);
       inputStream.readFully(cacheReadStart, remoteReadBuffer, 0, Math.toIntExact(length));
       writeToFile(remoteReadBuffer, Math.toIntExact(length), fileChannel, cacheReadStart);
     }
@@ -182,6 +223,7 @@ public class FileDownloadRequestChain extends ReadRequestChain
       long leftToRead = length;
       while (leftToRead > 0) {
         int toRead = Math.toIntExact(Math.min(remoteReadBuffer.length, leftToRead));
+        ioThrottle.acquireNetwork(Traffic.WARMUP, toRead);
         inputStream.seek(cacheReadStart);
         readIntoBuffer(remoteReadBuffer, 0, toRead, inputStream);
         writeToFile(remoteReadBuffer, toRead, fileChannel, cacheReadStart);
@@ -197,19 +239,75 @@ public class FileDownloadRequestChain extends ReadRequestChain
   private void writeToFile(byte[] buffer, int length, FileChannel fileChannel, long cacheReadStart)
           throws IOException
   {
-    int leftToWrite = length;
-    int writtenSoFar = 0;
+    ioThrottle.acquireDiskWrite(Traffic.WARMUP, length);
+    try (Slot slot = diskIoScheduler.acquire(localFile, Priority.BACKGROUND)) {
+      if (blockChecksums != null) {
+        blockChecksums.write(cacheReadStart, ByteBuffer.wrap(buffer, 0, length));
+      }
+      if (compressedFile != null) {
+        compressedFile.write(fileChannel, cacheReadStart, ByteBuffer.wrap(buffer, 0, length));
+        return;
+      }
+
+      int writtenSoFar = 0;
+      if (directChannel != null && cacheReadStart % alignment == 0) {
+        writtenSoFar = writeDirect(buffer, length - length % alignment, cacheReadStart);
+      }
+      int leftToWrite = length - writtenSoFar;
+
+      while (leftToWrite > 0) {
+        int writeInThisCycle = Math.min(leftToWrite, directBuffer.capacity());
+        directBuffer.clear();
+        directBuffer.put(buffer, writtenSoFar, writeInThisCycle);
+        directBuffer.flip();
+        int nwrite = fileChannel.write(directBuffer, cacheReadStart + writtenSoFar);
+        directBuffer.compact();
+        writtenSoFar += nwrite;
+        leftToWrite -= nwrite;
+      }
+
+      if (dropBehind) {
+        PageCacheHints.dropBehind(localFile, cacheReadStart, length);
+      }
+    }
+  }
 
-    while (leftToWrite > 0) {
-      int writeInThisCycle = Math.min(leftToWrite, directBuffer.capacity());
-      directBuffer.clear();
-      directBuffer.put(buffer, writtenSoFar, writeInThisCycle);
-      directBuffer.flip();
-      int nwrite = fileChannel.write(directBuffer, cacheReadStart + writtenSoFar);
-      directBuffer.compact();
-      writtenSoFar += nwrite;
-      leftToWrite -= nwrite;
+  // Compressed blocks are not stored at aligned positions, they are always written through the page cache
+  private void openDirectChannel()
+  {
+    if (compressedFile != null || !DirectIo.isSupported()) {
+      return;
+    }
+    int fileAlignment = DirectIo.getAlignment(localFile);
+    ByteBuffer buffer = DirectIo.alignedSlice(directBuffer, fileAlignment);
+    if (buffer.capacity() < fileAlignment) {
+      return;
+    }
+    try {
+      directChannel = DirectIo.openForWrite(localFile);
+      alignedBuffer = buffer;
+      alignment = fileAlignment;
+    }
+    catch (IOException | UnsupportedOperationException e) {
+      log.warn("Could not open " + localFile + " for direct I/O, writing it through the page cache", e);
+    }
+  }
+
+  // Writes `length` bytes, a multiple of the alignment, at an aligned position bypassing the page cache
+  private int writeDirect(byte[] buffer, int length, long cacheReadStart)
+      throws IOException
+  {
+    int writtenSoFar = 0;
+    while (writtenSoFar < length) {
+      int writeInThisCycle = Math.min(length - writtenSoFar, alignedBuffer.capacity());
+      alignedBuffer.clear();
+      alignedBuffer.put(buffer, writtenSoFar, writeInThisCycle);
+      alignedBuffer.flip();
+      while (alignedBuffer.hasRemaining()) {
+        writtenSoFar += directChannel.write(alignedBuffer, cacheReadStart + writtenSoFar);
+      }
     }
+    return writtenSoFar;
   }
 
   private void updateCacheStatus(ReadRequest readRequest)
@@ -49,7 +49,6 @@ import java.util.concurrent.ThreadPoolExecutor;
 
 import static com.qubole.rubix.spi.utils.DataSizeUnits.BYTES;
 import static com.qubole.rubix.spi.CacheUtil.UNKONWN_GENERATION_NUMBER;
-import static com.qubole.rubix.spi.CommonUtilities.toBlockStartPosition;
 import static com.qubole.rubix.spi.CommonUtilities.toEndBlock;
 import static com.qubole.rubix.spi.CommonUtilities.toStartBlock;
 
@@ -112,12 +111,13 @@ class FileDownloader
       ByteBuffer directWriteBuffer = bufferPool.getBuffer(diskReadBufferSize);
       FileDownloadRequestChain requestChain = null;
       String remotePath = entry.getKey();
+      int blockSize = CacheUtil.getFileBlockSize(remotePath, context.getFileSize(), conf);
 
       Range<Long> previousRange = null;
       for (Range<Long> range : context.getRanges().asRanges()) {
         // align range to block boundary
-        long startBlock = toStartBlock(range.lowerEndpoint(), conf);
-        long endBlock = toEndBlock(range.upperEndpoint(), conf);
+        long startBlock = toStartBlock(range.lowerEndpoint(), blockSize);
+        long endBlock = toEndBlock(range.upperEndpoint(), blockSize);
 
         // We can get cases where multiple reads are part of same Block
         Range<Long> currentRange = Range.closedOpen(startBlock, endBlock);
@@ -173,8 +173,8 @@ class FileDownloader
           }
 
           long block = startBlock + i;
-          long startPosition = toBlockStartPosition(block, conf);
-          long endPosition = Math.min(toBlockStartPosition(block + 1, conf), context.getFileSize());
+          long startPosition = block * blockSize;
+          long endPosition = Math.min(startPosition + blockSize, context.getFileSize());
           ReadRequest readRequest = new ReadRequest(startPosition, endPosition, startPosition, endPosition, null, 0, context.getFileSize());
           requestChain.addReadRequest(readRequest);
         }
@@ -17,6 +17,10 @@ import com.google.common.cache.Cache;
 import com.google.common.cache.RemovalCause;
 import com.google.common.hash.BloomFilter;
 import com.google.common.util.concurrent.Striped;
+import com.qubole.rubix.common.cache.CompressedCacheFile;
+import com.qubole.rubix.common.cache.FileChannelCache;
+import com.qubole.rubix.common.cache.MappedFileCache;
+import com.qubole.rubix.common.cache.MemoryTier;
 import com.qubole.rubix.spi.CacheConfig;
 import com.qubole.rubix.spi.CacheUtil;
 import org.apache.commons.logging.Log;
@@ -33,8 +37,9 @@ import java.util.OptionalInt;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.locks.Lock;
 
-import static com.qubole.rubix.spi.CacheConfig.getBlockSize;
 import static com.qubole.rubix.spi.CacheUtil.DUMMY_MODE_GENERATION_NUMBER;
+import static com.qubole.rubix.spi.CacheUtil.METADATA_FILE_MAGIC;
+import static com.qubole.rubix.spi.CacheUtil.METADATA_HEADER_SIZE;
 import static com.qubole.rubix.spi.CacheUtil.UNKONWN_GENERATION_NUMBER;
 import static com.qubole.rubix.spi.utils.DataSizeUnits.BYTES;
 
@@ -51,6 +56,9 @@ public class FileMetadata
   private long currentFileSize;
   private boolean needsRefresh = true;
   private final int generationNumber;
+  private final int blockSize;
+  // Null if the blocks are stored uncompressed
+  private final CompressedCacheFile compressedFile;
 
   int bitmapFileSizeBytes;
   ByteBufferBitmap blockBitmap;
@@ -74,7 +82,7 @@ public class FileMetadata
         lastModified,
         currentFileSize,
         conf,
-        findGenerationNumber(remotePath, conf, generationNumberCache, fileAccessedBloomFilter));
+        findGenerationNumber(remotePath, fileLength, conf, generationNumberCache, fileAccessedBloomFilter));
     createLocalFiles();
   }
 
@@ -93,7 +101,9 @@ public class FileMetadata
     this.generationNumber = generationNumber;
     localPath = CacheUtil.getLocalPath(remotePath, conf, generationNumber);
     mdFilePath = CacheUtil.getMetadataFilePath(remotePath, conf, generationNumber);
-    int bitsRequired = (int) Math.ceil((double) size / getBlockSize(conf)); //numBlocks
+    blockSize = CacheUtil.getFileBlockSize(remotePath, fileLength, conf);
+    compressedFile = CompressedCacheFile.forFile(remotePath, blockSize, conf);
+    int bitsRequired = (int) Math.ceil((double) size / blockSize); //numBlocks
     bitmapFileSizeBytes = (int) Math.ceil((double) bitsRequired / 8);
 
     /*
@@ -119,10 +129,43 @@ public class FileMetadata
     file.createNewFile();
     file.setWritable(true, false);
     file.setReadable(true, false);
+    try (RandomAccessFile mdFile = new RandomAccessFile(file, "rw")) {
+      writeHeader(mdFile);
+    }
+  }
+
+  private void writeHeader(RandomAccessFile mdFile)
+      throws IOException
+  {
+    mdFile.seek(0);
+    mdFile.writeInt(METADATA_FILE_MAGIC);
+    mdFile.writeInt(blockSize);
+  }
+
+  /*
+   * Returns true if the mdfile has no blocks marked cached yet or its header records the given block size.
+   * Files cached with another block size, e.g. before the block size configuration changed, must not be reused
+   * as the bitmap and the data file offsets would be interpreted with the wrong block size.
+   */
+  private static boolean hasBlockSize(String mdFilePath, int blockSize)
+  {
+    try (RandomAccessFile mdFile = new RandomAccessFile(mdFilePath, "r")) {
+      if (mdFile.length() == 0) {
+        return true;
+      }
+      return mdFile.length() >= METADATA_HEADER_SIZE
+          && mdFile.readInt() == METADATA_FILE_MAGIC
+          && mdFile.readInt() == blockSize;
+    }
+    catch (IOException e) {
+      log.warn(String.format("Could not read header of md file %s", mdFilePath), e);
+      return false;
+    }
   }
 
   // Should not be called in parallel for the same remotePath
   private static int findGenerationNumber(String remotePath,
+      long fileLength,
       Configuration conf,
       Cache<String, Integer> generationNumberCache,
       BloomFilter fileAccessedBloomFilter)
@@ -156,9 +199,12 @@ public class FileMetadata
         if (highestGenNumberOnDisk == UNKONWN_GENERATION_NUMBER) {
           genNumber = 1;
         }
-        // If both datafile and mdfile exist for highestGenNumberOnDisk, use that as genNumber
+        // If both datafile and mdfile exist for highestGenNumberOnDisk and were cached with the same block size,
+        // use that as genNumber
         else if (new File(CacheUtil.getLocalPath(remotePath, conf, highestGenNumberOnDisk)).exists() &&
-                new File(CacheUtil.getMetadataFilePath(remotePath, conf, highestGenNumberOnDisk)).exists()) {
+                new File(CacheUtil.getMetadataFilePath(remotePath, conf, highestGenNumberOnDisk)).exists() &&
+                hasBlockSize(CacheUtil.getMetadataFilePath(remotePath, conf, highestGenNumberOnDisk),
+                    CacheUtil.getFileBlockSize(remotePath, fileLength, conf))) {
           addFilesForDeletion(highestGenNumberOnDisk - 1, remotePath, conf);
           genNumber = highestGenNumberOnDisk;
         }
@@ -185,6 +231,10 @@ public class FileMetadata
     for (int i = 1; i <= generationNumber; i++) {
       String localPath = CacheUtil.getLocalPath(remotePath, conf, i);
       String mdPath = CacheUtil.getMetadataFilePath(remotePath, conf, i);
+      MappedFileCache.invalidateMapping(localPath);
+      MemoryTier.invalidateFile(localPath);
+      FileChannelCache.invalidateChannel(localPath);
+      FileChannelCache.invalidateChannel(mdPath);
       try {
         Files.delete(Paths.get(localPath));
       } catch (IOException e) {
@@ -225,7 +275,9 @@ public class FileMetadata
       lock.lock();
       try {
         mdFile = new RandomAccessFile(mdFilePath, "rw");
-        mdFile.readFully(bytes, 0, (int) mdFile.length());
+        // The bitmap follows the header in the mdfile, block checksums if enabled follow the bitmap
+        mdFile.seek(METADATA_HEADER_SIZE);
+        mdFile.readFully(bytes, 0, (int) Math.max(0, Math.min(mdFile.length() - METADATA_HEADER_SIZE, bitmapFileSizeBytes)));
       }
       catch (FileNotFoundException e) {
         File file = new File(mdFilePath);
@@ -233,7 +285,8 @@ public class FileMetadata
         file.setWritable(true, false);
         file.setReadable(true, false);
         mdFile = new RandomAccessFile(file, "rw");
-        mdFile.setLength(bitmapFileSizeBytes);
+        writeHeader(mdFile);
+        mdFile.setLength(METADATA_HEADER_SIZE + bitmapFileSizeBytes);
       }
       mdFile.close();
     }
@@ -280,6 +333,7 @@ public class FileMetadata
     // update mdfile
     try {
       RandomAccessFile mdFile = new RandomAccessFile(mdFilePath, "rw");
+      mdFile.seek(METADATA_HEADER_SIZE);
       mdFile.write(blockBitmap.getBytes());
       mdFile.close();
     }
@@ -307,6 +361,36 @@ public class FileMetadata
     return numberOfBlocksUpdated == -1 ? OptionalInt.empty() : OptionalInt.of(numberOfBlocksUpdated);
   }
 
+  /*
+   * Marks the blocks not cached, e.g. when their data is found to be corrupted.
+   * Returns number of blocks that were cached, empty in case errors
+   */
+  public synchronized OptionalInt setBlocksNotCached(long startBlock, long endBlock)
+      throws IOException
+  {
+    int numberOfBlocksUpdated = 0;
+    for (long blockNum = startBlock; blockNum < endBlock; blockNum++) {
+      if (isBlockCached(blockNum)) {
+        numberOfBlocksUpdated++;
+        blockBitmap.unset((int) blockNum);
+      }
+    }
+    if (numberOfBlocksUpdated == 0) {
+      return OptionalInt.of(0);
+    }
+
+    try (RandomAccessFile mdFile = new RandomAccessFile(mdFilePath, "rw")) {
+      mdFile.seek(METADATA_HEADER_SIZE);
+      mdFile.write(blockBitmap.getBytes());
+    }
+    catch (IOException e) {
+      log.error("Could not update mdfile for " + remotePath, e);
+      setNeedsRefresh();
+      return OptionalInt.empty();
+    }
+    return OptionalInt.of(numberOfBlocksUpdated);
+  }
+
   public void closeAndCleanup(RemovalCause cause, Cache cache)
   {
     if (cause != RemovalCause.REPLACED) {
@@ -326,6 +410,11 @@ public class FileMetadata
     return mdFilePath;
   }
 
+  public String getLocalPath()
+  {
+    return localPath;
+  }
+
   public String getRemotePath()
   {
     return remotePath;
@@ -364,6 +453,10 @@ public class FileMetadata
     finally {
       lock.unlock();
     }
+    MappedFileCache.invalidateMapping(localPath);
+    MemoryTier.invalidateFile(localPath);
+    FileChannelCache.invalidateChannel(localPath);
+    FileChannelCache.invalidateChannel(mdFilePath);
 
     FileMetadata newEntry = cache.getIfPresent(getRemotePath());
     if (newEntry != null) {
@@ -381,4 +474,14 @@ public class FileMetadata
   {
     return generationNumber;
   }
+
+  public int getBlockSize()
+  {
+    return blockSize;
+  }
+
+  public CompressedCacheFile getCompressedFile()
+  {
+    return compressedFile;
+  }
 }
@@ -0,0 +1,170 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.bookkeeper;
+
+import com.codahale.metrics.Counter;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.qubole.rubix.spi.BookKeeperFactory;
+import com.qubole.rubix.spi.CacheConfig;
+import com.qubole.rubix.spi.CacheUtil;
+import com.qubole.rubix.spi.RetryingPooledBookkeeperClient;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static com.qubole.rubix.spi.CommonUtilities.threadsNamed;
+
+/**
+ * Counts the reads of the blocks of this node by other nodes, in the Local Data Transfer Server.
+ *
+ * A block owned by this node is read over the network by every other node reading it, which for a small table read
+ * by every query saturates the network and the threads of this node. Once a block is read by other nodes more than
+ * the replication threshold within the replication window, each node reading it is asked to cache a copy, which it
+ * then reads locally. A node is asked at most once per window and block, in case it dropped its copy since.
+ * Requests which do not fit in the queue are not sent, the node is asked again when it next reads the block.
+ */
+class HotBlockTracker
+{
+  private static final Log log = LogFactory.getLog(HotBlockTracker.class);
+  private static final int MAX_TRACKED_BLOCKS = 100000;
+  private static final int MAX_QUEUED_REQUESTS = 1000;
+
+  private final Configuration conf;
+  private final int threshold;
+  private final long windowNanos;
+  private final Ticker ticker;
+  private final Cache<String, BlockReads> blockReads;
+  private final Executor executor;
+  private final ReplicationRequester requester;
+  private final Counter replicationRequestCount;
+
+  /**
+   * Sends the replication requests to the nodes
+   */
+  interface ReplicationRequester
+  {
+    void replicate(String host, String remotePath, long fileSize, long lastModified, long block, int clusterType)
+        throws Exception;
+  }
+
+  HotBlockTracker(Configuration conf, Counter replicationRequestCount)
+  {
+    // Requests are sent to the BookKeeper of other nodes, even when the BookKeeper of this one is embedded
+    this(conf, replicationRequestCount, Ticker.systemTicker(),
+        new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(MAX_QUEUED_REQUESTS),
+            new ThreadFactoryBuilder()
+                .setThreadFactory(threadsNamed("rubix-hotblock-thread-%s"))
+                .setDaemon(true)
+                .build(),
+            new ThreadPoolExecutor.AbortPolicy()),
+        (host, remotePath, fileSize, lastModified, block, clusterType) -> {
+          try (RetryingPooledBookkeeperClient client = new BookKeeperFactory().createBookKeeperClient(host, conf)) {
+            client.replicateBlocks(remotePath, fileSize, lastModified, block, block + 1, clusterType);
+          }
+        });
+  }
+
+  @VisibleForTesting
+  HotBlockTracker(Configuration conf, Counter replicationRequestCount, Ticker ticker, Executor executor, ReplicationRequester requester)
+  {
+    this.conf = conf;
+    this.threshold = CacheConfig.getReplicationThreshold(conf);
+    this.windowNanos = TimeUnit.MILLISECONDS.toNanos(CacheConfig.getReplicationWindow(conf));
+    this.ticker = ticker;
+    this.blockReads = CacheBuilder.newBuilder()
+        .ticker(ticker)
+        .maximumSize(MAX_TRACKED_BLOCKS)
+        .expireAfterAccess(windowNanos, TimeUnit.NANOSECONDS)
+        .build();
+    this.executor = executor;
+    this.requester = requester;
+    this.replicationRequestCount = replicationRequestCount;
+  }
+
+  /**
+   * Records a read by the host of the blocks of the range
+   */
+  void recordRead(String host, String remotePath, long fileSize, long lastModified, int clusterType, long offset, long length)
+  {
+    if (length <= 0) {
+      return;
+    }
+    long blockSize = CacheUtil.getFileBlockSize(remotePath, fileSize, conf);
+    long startBlock = offset / blockSize;
+    long endBlock = ((offset + (length - 1)) / blockSize) + 1;
+    long now = ticker.read();
+    for (long block = startBlock; block < endBlock; block++) {
+      BlockReads reads = blockReads.asMap().computeIfAbsent(remotePath + ":" + block, key -> new BlockReads(now));
+      if (reads.record(host, now)) {
+        long hotBlock = block;
+        try {
+          executor.execute(() -> {
+            try {
+              requester.replicate(host, remotePath, fileSize, lastModified, hotBlock, clusterType);
+            }
+            catch (Exception e) {
+              log.warn(String.format("Could not ask %s to replicate block %d of %s", host, hotBlock, remotePath), e);
+            }
+          });
+          replicationRequestCount.inc();
+        }
+        catch (RejectedExecutionException e) {
+          // The queue of requests is full, the host is asked on one of its next reads instead
+          reads.forget(host);
+        }
+      }
+    }
+  }
+
+  private class BlockReads
+  {
+    private long windowStart;
+    private int count;
+    private final Set<String> replicatedTo = new HashSet<>();
+
+    BlockReads(long now)
+    {
+      this.windowStart = now;
+    }
+
+    // Returns true if the host should be asked to replicate the block
+    synchronized boolean record(String host, long now)
+    {
+      if (now - windowStart >= windowNanos) {
+        windowStart = now;
+        count = 0;
+        replicatedTo.clear();
+      }
+      count++;
+      return count >= threshold && replicatedTo.add(host);
+    }
+
+    synchronized void forget(String host)
+    {
+      replicatedTo.remove(host);
+    }
+  }
+}
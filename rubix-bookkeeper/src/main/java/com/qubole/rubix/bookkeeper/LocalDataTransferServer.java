@@ -13,18 +13,31 @@
 package com.qubole.rubix.bookkeeper;
 
 import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.jvm.CachedThreadStatesGaugeSet;
 import com.codahale.metrics.jvm.GarbageCollectorMetricSet;
 import com.codahale.metrics.jvm.MemoryUsageGaugeSet;
 import com.google.common.annotations.VisibleForTesting;
+import com.qubole.rubix.common.cache.BlockChecksums;
+import com.qubole.rubix.common.cache.BlockChecksums.CorruptedBlockException;
+import com.qubole.rubix.common.cache.CompressedCacheFile;
+import com.qubole.rubix.common.cache.DiskIoScheduler;
+import com.qubole.rubix.common.cache.DiskIoScheduler.Priority;
+import com.qubole.rubix.common.cache.DiskIoScheduler.Slot;
+import com.qubole.rubix.common.cache.FileChannelCache;
+import com.qubole.rubix.common.cache.FileChannelCache.CachedFileChannel;
+import com.qubole.rubix.common.cache.MemoryTier;
+import com.qubole.rubix.bookkeeper.LocalTransferEventLoop.Response;
 import com.qubole.rubix.common.metrics.BookKeeperMetrics;
 import com.qubole.rubix.spi.BookKeeperFactory;
 import com.qubole.rubix.spi.CacheConfig;
 import com.qubole.rubix.spi.CacheUtil;
-import com.qubole.rubix.spi.DataTransferClientHelper;
 import com.qubole.rubix.spi.DataTransferHeader;
+import com.qubole.rubix.spi.DataTransferProtocol;
+import com.qubole.rubix.spi.DataTransferRequest;
 import com.qubole.rubix.spi.RetryingPooledBookkeeperClient;
+import com.qubole.rubix.spi.WireCompression;
 import com.qubole.rubix.spi.thrift.BlockLocation;
 import com.qubole.rubix.spi.thrift.CacheStatusRequest;
 import com.qubole.rubix.spi.thrift.CacheStatusResponse;
@@ -34,31 +47,46 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.io.compress.CompressionCodec;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 import org.apache.thrift.TException;
 
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.FileChannel;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import static com.qubole.rubix.common.metrics.BookKeeperMetrics.CacheMetric.LDTS_CACHING_EXCEPTION;
+import static com.qubole.rubix.common.metrics.BookKeeperMetrics.CacheMetric.LDTS_OPEN_CONNECTIONS_GAUGE;
+import static com.qubole.rubix.common.metrics.BookKeeperMetrics.CacheMetric.LDTS_PENDING_REQUESTS_GAUGE;
+import static com.qubole.rubix.common.metrics.BookKeeperMetrics.CacheMetric.LDTS_QUEUED_RESPONSE_DATA_GAUGE;
+import static com.qubole.rubix.common.metrics.BookKeeperMetrics.CacheMetric.LDTS_REPLICATION_REQUEST_COUNT;
+import static com.qubole.rubix.common.metrics.BookKeeperMetrics.CacheMetric.LDTS_WIRE_COMPRESSION_RATIO_GAUGE;
+import static com.qubole.rubix.common.metrics.BookKeeperMetrics.CacheMetric.LDTS_WIRE_COMPRESSION_TIME_GAUGE;
+import static com.qubole.rubix.common.metrics.BookKeeperMetrics.CacheMetric.LDTS_WRITE_BLOCKED_CONNECTIONS_GAUGE;
 import static com.qubole.rubix.common.utils.ClusterUtil.applyRubixSiteConfig;
+import static com.qubole.rubix.spi.CacheConfig.getLocalTransferServerIoThreads;
 import static com.qubole.rubix.spi.CacheConfig.getLocalTransferServerMaxThreads;
 import static com.qubole.rubix.spi.CommonUtilities.threadsNamed;
 import static com.qubole.rubix.spi.CacheUtil.UNKONWN_GENERATION_NUMBER;
+import static com.qubole.rubix.spi.DataTransferProtocol.STATUS_ERROR;
+import static com.qubole.rubix.spi.DataTransferProtocol.STATUS_NOT_CACHED;
+import static com.qubole.rubix.spi.DataTransferProtocol.STATUS_OK;
+import static com.qubole.rubix.spi.DataTransferProtocol.STATUS_OK_COMPRESSED;
 
 /**
  * Created by sakshia on 26/10/16.
@@ -72,6 +100,7 @@ public class LocalDataTransferServer extends Configured implements Tool
   private static MetricRegistry metrics;
   private static BookKeeperMetrics bookKeeperMetrics;
   private static Counter cachingExceptionCounter;
+  private static Counter replicationRequestCounter;
 
   private LocalDataTransferServer()
   {
@@ -121,6 +150,55 @@ public class LocalDataTransferServer extends Configured implements Tool
     metrics.register(BookKeeperMetrics.LDTSJvmMetric.LDTS_JVM_MEMORY_PREFIX.getMetricName(), new MemoryUsageGaugeSet());
 
     cachingExceptionCounter = metrics.counter(LDTS_CACHING_EXCEPTION.getMetricName());
+    replicationRequestCounter = metrics.counter(LDTS_REPLICATION_REQUEST_COUNT.getMetricName());
+    metrics.register(LDTS_OPEN_CONNECTIONS_GAUGE.getMetricName(), new Gauge<Integer>()
+    {
+      @Override
+      public Integer getValue()
+      {
+        return LocalTransferEventLoop.getOpenConnections();
+      }
+    });
+    metrics.register(LDTS_PENDING_REQUESTS_GAUGE.getMetricName(), new Gauge<Integer>()
+    {
+      @Override
+      public Integer getValue()
+      {
+        return LocalTransferEventLoop.getPendingRequests();
+      }
+    });
+    metrics.register(LDTS_WRITE_BLOCKED_CONNECTIONS_GAUGE.getMetricName(), new Gauge<Integer>()
+    {
+      @Override
+      public Integer getValue()
+      {
+        return LocalTransferEventLoop.getWriteBlockedConnections();
+      }
+    });
+    metrics.register(LDTS_QUEUED_RESPONSE_DATA_GAUGE.getMetricName(), new Gauge<Long>()
+    {
+      @Override
+      public Long getValue()
+      {
+        return LocalTransferEventLoop.getQueuedResponseBytes();
+      }
+    });
+    metrics.register(LDTS_WIRE_COMPRESSION_RATIO_GAUGE.getMetricName(), new Gauge<Double>()
+    {
+      @Override
+      public Double getValue()
+      {
+        return WireCompression.getSentCompressionRatio();
+      }
+    });
+    metrics.register(LDTS_WIRE_COMPRESSION_TIME_GAUGE.getMetricName(), new Gauge<Long>()
+    {
+      @Override
+      public Long getValue()
+      {
+        return WireCompression.getCompressionTimeMillis();
+      }
+    });
   }
 
   public static void stopServer()
@@ -162,6 +240,8 @@ public class LocalDataTransferServer extends Configured implements Tool
     static ServerSocketChannel listener;
     Configuration conf;
     BookKeeperFactory bookKeeperFactory;
+    private LocalTransferEventLoop[] eventLoops;
+    private ExecutorService workers;
 
     public LocalServer(Configuration conf, BookKeeper bookKeeper)
     {
@@ -186,16 +266,29 @@ public class LocalDataTransferServer extends Configured implements Tool
     @Override
     public void run()
     {
-      ExecutorService threadPool = new ThreadPoolExecutor(
-              0, getLocalTransferServerMaxThreads(conf),
+      // Lookups in the cache and cache misses block, they run in this pool and never in the I/O threads
+      ThreadPoolExecutor threadPool = new ThreadPoolExecutor(
+              getLocalTransferServerMaxThreads(conf), getLocalTransferServerMaxThreads(conf),
               60L, TimeUnit.SECONDS,
-              new SynchronousQueue<>(),
+              new LinkedBlockingQueue<>(),
               threadsNamed("lds-worker-%s"));
+      threadPool.allowCoreThreadTimeOut(true);
+      workers = threadPool;
+
+      ClientRequestHandler handler = new ClientRequestHandler(conf, bookKeeperFactory);
+      eventLoops = new LocalTransferEventLoop[Math.max(1, getLocalTransferServerIoThreads(conf))];
+      ThreadFactory ioThreadFactory = threadsNamed("lds-io-%s");
       try {
-        while (true) {
+        for (int i = 0; i < eventLoops.length; i++) {
+          eventLoops[i] = new LocalTransferEventLoop(conf, handler, workers);
+          ioThreadFactory.newThread(eventLoops[i]).start();
+        }
+
+        for (int next = 0; ; next = (next + 1) % eventLoops.length) {
           SocketChannel clientSocket = listener.accept();
-          ClientServiceThread cliThread = new ClientServiceThread(clientSocket, conf, bookKeeperFactory);
-          threadPool.execute(cliThread);
+          log.debug("Connected to node - Local Address: " + clientSocket.getLocalAddress() +
+                  " Remote Address: " + clientSocket.getRemoteAddress());
+          eventLoops[next].register(clientSocket);
         }
       }
       catch (AsynchronousCloseException e) {
@@ -204,6 +297,14 @@ public class LocalDataTransferServer extends Configured implements Tool
       catch (IOException e) {
         log.error("Error accepting Local Transfer connection", e);
       }
+      finally {
+        for (LocalTransferEventLoop eventLoop : eventLoops) {
+          if (eventLoop != null) {
+            eventLoop.stop();
+          }
+        }
+        workers.shutdownNow();
+      }
     }
 
     public boolean isAlive()
@@ -222,154 +323,443 @@ public class LocalDataTransferServer extends Configured implements Tool
     }
   }
 
-  static class ClientServiceThread
-      extends Thread
+  /**
+   * Looks up the cache for the requests of other nodes and prepares the responses, in the blocking pool of the server
+   */
+  static class ClientRequestHandler
+      implements LocalTransferEventLoop.RequestHandler
   {
-    SocketChannel localDataTransferClient;
     Configuration conf;
     BookKeeperFactory bookKeeperFactory;
+    // Null unless the hot blocks of this node are replicated to the nodes reading them
+    HotBlockTracker hotBlockTracker;
 
-    ClientServiceThread(SocketChannel s, Configuration conf, BookKeeperFactory bookKeeperFactory)
+    ClientRequestHandler(Configuration conf, BookKeeperFactory bookKeeperFactory)
     {
-      localDataTransferClient = s;
       this.conf = conf;
       this.bookKeeperFactory = bookKeeperFactory;
+      this.hotBlockTracker = CacheConfig.isReplicationEnabled(conf) ? new HotBlockTracker(conf, replicationRequestCounter) : null;
     }
 
-    public void run()
+    @Override
+    public Response serve(InetSocketAddress client, DataTransferHeader header)
     {
-      try {
-        log.debug("Connected to node - Local Address: " + localDataTransferClient.getLocalAddress() +
-                " Remote Address: " + localDataTransferClient.getRemoteAddress());
-
-        while (localDataTransferClient.isConnected()) {
-
-          ByteBuffer dataInfo = ByteBuffer.allocate(CacheConfig.getMaxHeaderSize(conf));
-
-          try {
-            int read = localDataTransferClient.read(dataInfo);
-            if (read == -1) {
-              throw new IOException("Could not read data from Non-local node");
-            }
+      long offset = header.getOffset();
+      int readLength = header.getReadLength();
+      String remotePath = header.getFilePath();
+      log.debug(String.format("Trying to read from %s at offset %d and length %d for client %s", remotePath, offset, readLength, client));
+      int generationNumber = UNKONWN_GENERATION_NUMBER;
+      Response response = new Response();
+      try (RetryingPooledBookkeeperClient bookKeeperClient = bookKeeperFactory.createBookKeeperClient(conf)) {
+        if (!CacheConfig.isParallelWarmupEnabled(conf)) {
+          ReadResponse readResponse = bookKeeperClient.readData(remotePath, offset, readLength, header.getFileSize(),
+              header.getLastModified(), header.getClusterType());
+          generationNumber = readResponse.getGenerationNumber();
+          if (!readResponse.isStatus()) {
+            throw new Exception("Could not cache data required by non-local node");
           }
-          catch (IOException e)
-          {
-            // Assume the client died and continue silently
-            break;
-          }
-          dataInfo.flip();
-
-          DataTransferHeader header = DataTransferClientHelper.readHeaders(dataInfo);
-          long offset = header.getOffset();
-          int readLength = header.getReadLength();
-          String remotePath = header.getFilePath();
-          log.debug(String.format("Trying to read from %s at offset %d and length %d for client %s", remotePath, offset, readLength, localDataTransferClient.getRemoteAddress()));
-          int generationNumber = UNKONWN_GENERATION_NUMBER;
-          try (RetryingPooledBookkeeperClient bookKeeperClient = bookKeeperFactory.createBookKeeperClient(conf)) {
-            if (!CacheConfig.isParallelWarmupEnabled(conf)) {
-              ReadResponse response = bookKeeperClient.readData(remotePath, offset, readLength, header.getFileSize(),
-                  header.getLastModified(), header.getClusterType());
-              generationNumber = response.getGenerationNumber();
-              if (!response.isStatus()) {
-                throw new Exception("Could not cache data required by non-local node");
-              }
-            }
-            else {
-              // Just make sure the requested blocks are present in the cache. If any the blocks is
-              // not presnt in the cache, throw an exception so that the caller NonLocalReadRequestChain
-              // can read the data from the object store
-              long blockSize = CacheConfig.getBlockSize(conf);
-              long startBlock = offset / blockSize;
-              long endBlock = ((offset + (readLength - 1)) / blockSize) + 1;
-
-              CacheStatusRequest request = new CacheStatusRequest(remotePath, header.getFileSize(), header.getLastModified(),
-                      startBlock, endBlock).setClusterType(header.getClusterType());
-              CacheStatusResponse response = bookKeeperClient.getCacheStatus(request);
-              List<BlockLocation> blockLocations = response.getBlocks();
-              generationNumber = response.getGenerationNumber();
-
-              long blockNum = startBlock;
-              for (BlockLocation location : blockLocations) {
-                if (location.getLocation() != Location.CACHED) {
-                  // Block ownership could have changed due to change in cluster members
-                  log.warn(String.format("The requested data for block %d of file %s is not in cache. " +
-                          " The data will be read from object store. Status: %s %s", blockNum, remotePath, location.getLocation(), location.getRemoteLocation()));
-                  throw new Exception("The requested data in not in cache. The data will be read from object store");
-                }
-                blockNum++;
-              }
+        }
+        else {
+          // Just make sure the requested blocks are present in the cache. If any the blocks is
+          // not presnt in the cache, throw an exception so that the caller NonLocalReadRequestChain
+          // can read the data from the object store
+          long blockSize = CacheUtil.getFileBlockSize(remotePath, header.getFileSize(), conf);
+          long startBlock = offset / blockSize;
+          long endBlock = ((offset + (readLength - 1)) / blockSize) + 1;
+
+          CacheStatusRequest request = new CacheStatusRequest(remotePath, header.getFileSize(), header.getLastModified(),
+                  startBlock, endBlock).setClusterType(header.getClusterType());
+          CacheStatusResponse statusResponse = bookKeeperClient.getCacheStatus(request);
+          List<BlockLocation> blockLocations = statusResponse.getBlocks();
+          generationNumber = statusResponse.getGenerationNumber();
+
+          long blockNum = startBlock;
+          for (BlockLocation location : blockLocations) {
+            if (location.getLocation() != Location.CACHED && location.getLocation() != Location.IN_MEMORY) {
+              // Block ownership could have changed due to change in cluster members
+              log.warn(String.format("The requested data for block %d of file %s is not in cache. " +
+                      " The data will be read from object store. Status: %s %s", blockNum, remotePath, location.getLocation(), location.getRemoteLocation()));
+              throw new Exception("The requested data in not in cache. The data will be read from object store");
             }
-            int nread = readDataFromCachedFile(bookKeeperClient, remotePath, generationNumber, offset, readLength);
-            log.debug(String.format("Done reading %d from %s at offset %d and length %d for client %s", nread, remotePath, offset, readLength, localDataTransferClient.getRemoteAddress()));
+            blockNum++;
           }
         }
+        addData(response, new CachedFileSource(response, remotePath, header.getFileSize(), generationNumber), bookKeeperClient, offset, readLength);
+        recordRead(client, remotePath, header.getFileSize(), header.getLastModified(), header.getClusterType(), offset, readLength);
+        log.debug(String.format("Done reading from %s at offset %d and length %d for client %s", remotePath, offset, readLength, client));
+        return response;
       }
       catch (Exception e) {
+        log.warn("Error in Local Data Transfer Server for client: " + client, e);
+        cachingExceptionCounter.inc();
+        response.release();
+        return null;
+      }
+    }
+
+    @Override
+    public Response serve(InetSocketAddress client, DataTransferRequest request)
+    {
+      String remotePath = request.getFilePath();
+      log.debug(String.format("Trying to read %d ranges of %s for client %s", request.getRangeCount(), remotePath, client));
+      Response response = new Response();
+      try (RetryingPooledBookkeeperClient bookKeeperClient = bookKeeperFactory.createBookKeeperClient(conf)) {
+        int[] statuses = new int[request.getRangeCount()];
+        int generationNumber = UNKONWN_GENERATION_NUMBER;
         try {
-          log.warn("Error in Local Data Transfer Server for client: " + localDataTransferClient.getRemoteAddress(), e);
+          generationNumber = getRangeStatuses(bookKeeperClient, request, statuses);
+        }
+        catch (TException e) {
+          log.warn("Could not get cache status of " + remotePath + ". The data will be read from object store", e);
           cachingExceptionCounter.inc();
+          Arrays.fill(statuses, STATUS_ERROR);
         }
-        catch (IOException e1) {
-          log.warn("Error in Local Data Transfer Server for client: ", e);
+
+        response.add((ByteBuffer) ByteBuffer.allocate(DataTransferProtocol.RESPONSE_HEADER_SIZE)
+            .putLong(request.getRequestId()).putInt(request.getRangeCount()).flip());
+        CachedFileSource source = new CachedFileSource(response, remotePath, request.getFileSize(), generationNumber);
+        CompressionCodec codec = WireCompression.getResponseCodec(request.getFlags(), conf);
+        for (int i = 0; i < request.getRangeCount(); i++) {
+          ByteBuffer rangeHeader = ByteBuffer.allocate(DataTransferProtocol.RANGE_HEADER_SIZE);
+          response.add(rangeHeader);
+          int length = request.getLength(i);
+          if (statuses[i] == STATUS_OK) {
+            try {
+              int compressedLength = codec == null ? -1
+                  : addCompressedData(response, source, bookKeeperClient, request.getOffset(i), length, codec);
+              if (compressedLength < 0) {
+                addData(response, source, bookKeeperClient, request.getOffset(i), length);
+              }
+              else {
+                statuses[i] = STATUS_OK_COMPRESSED;
+                length = compressedLength;
+              }
+              recordRead(client, remotePath, request.getFileSize(), request.getLastModified(), request.getClusterType(),
+                  request.getOffset(i), request.getLength(i));
+            }
+            catch (IOException | TException e) {
+              // Nothing is sent yet, only this range is read from the object store by the client
+              log.warn(String.format("Error in reading %s at offset %d for client %s", remotePath, request.getOffset(i), client), e);
+              cachingExceptionCounter.inc();
+              statuses[i] = STATUS_ERROR;
+            }
+          }
+          rangeHeader.putInt(statuses[i]).putInt(statuses[i] == STATUS_OK || statuses[i] == STATUS_OK_COMPRESSED ? length : 0).flip();
         }
-        return;
+        log.debug(String.format("Done reading %d ranges of %s for client %s", request.getRangeCount(), remotePath, client));
+        return response;
       }
-      finally {
-        try {
-          localDataTransferClient.close();
+      catch (Exception e) {
+        log.warn("Error in Local Data Transfer Server for client: " + client, e);
+        cachingExceptionCounter.inc();
+        response.release();
+        return null;
+      }
+    }
+
+    private void recordRead(InetSocketAddress client, String remotePath, long fileSize, long lastModified, int clusterType, long offset, long length)
+    {
+      if (hotBlockTracker != null) {
+        hotBlockTracker.recordRead(client.getAddress().getHostAddress(), remotePath, fileSize, lastModified, clusterType, offset, length);
+      }
+    }
+
+    // Fills the status of each range of the request, returns the generation number of the cached file
+    private int getRangeStatuses(RetryingPooledBookkeeperClient bookKeeperClient, DataTransferRequest request, int[] statuses) throws TException
+    {
+      String remotePath = request.getFilePath();
+      long blockSize = CacheUtil.getFileBlockSize(remotePath, request.getFileSize(), conf);
+      if (!CacheConfig.isParallelWarmupEnabled(conf)) {
+        return readRangeGroups(bookKeeperClient, request, blockSize, statuses);
+      }
+
+      // One cache status request covers the blocks of all the ranges
+      long startBlock = Long.MAX_VALUE;
+      long endBlock = 0;
+      for (int i = 0; i < request.getRangeCount(); i++) {
+        startBlock = Math.min(startBlock, request.getOffset(i) / blockSize);
+        endBlock = Math.max(endBlock, ((request.getOffset(i) + (request.getLength(i) - 1)) / blockSize) + 1);
+      }
+      if (startBlock >= endBlock) {
+        return UNKONWN_GENERATION_NUMBER;
+      }
+      CacheStatusRequest statusRequest = new CacheStatusRequest(remotePath, request.getFileSize(), request.getLastModified(),
+          startBlock, endBlock).setClusterType(request.getClusterType());
+      CacheStatusResponse response = bookKeeperClient.getCacheStatus(statusRequest);
+      List<BlockLocation> blockLocations = response.getBlocks();
+
+      for (int i = 0; i < request.getRangeCount(); i++) {
+        statuses[i] = STATUS_OK;
+        long rangeEndBlock = ((request.getOffset(i) + (request.getLength(i) - 1)) / blockSize) + 1;
+        for (long blockNum = request.getOffset(i) / blockSize; blockNum < rangeEndBlock; blockNum++) {
+          int index = (int) (blockNum - startBlock);
+          Location location = index < blockLocations.size() ? blockLocations.get(index).getLocation() : null;
+          if (location != Location.CACHED && location != Location.IN_MEMORY) {
+            // Block ownership could have changed due to change in cluster members
+            log.debug(String.format("The requested data for block %d of file %s is not in cache. Status: %s", blockNum, remotePath, location));
+            statuses[i] = STATUS_NOT_CACHED;
+            break;
+          }
         }
-        catch (IOException e) {
-          log.warn("Error in Local Data Transfer Server: ", e);
+      }
+      return response.getGenerationNumber();
+    }
+
+    // Caches the data of the ranges with one readData call per group of ranges whose blocks are shared or adjacent,
+    // so no block between the ranges is downloaded that was not requested. Returns the generation number.
+    private int readRangeGroups(RetryingPooledBookkeeperClient bookKeeperClient, DataTransferRequest request, long blockSize, int[] statuses)
+        throws TException
+    {
+      Integer[] ranges = new Integer[request.getRangeCount()];
+      for (int i = 0; i < ranges.length; i++) {
+        ranges[i] = i;
+      }
+      Arrays.sort(ranges, Comparator.comparingLong(request::getOffset));
+      int generationNumber = UNKONWN_GENERATION_NUMBER;
+      int groupStart = 0;
+      while (groupStart < ranges.length) {
+        long start = request.getOffset(ranges[groupStart]);
+        long end = start + request.getLength(ranges[groupStart]);
+        int groupEnd = groupStart + 1;
+        while (groupEnd < ranges.length) {
+          int range = ranges[groupEnd];
+          long rangeEnd = Math.max(end, request.getOffset(range) + request.getLength(range));
+          if (request.getOffset(range) / blockSize > (end - 1) / blockSize + 1 || rangeEnd - start > Integer.MAX_VALUE) {
+            break;
+          }
+          end = rangeEnd;
+          groupEnd++;
+        }
+
+        ReadResponse response = bookKeeperClient.readData(request.getFilePath(), start, (int) (end - start),
+            request.getFileSize(), request.getLastModified(), request.getClusterType());
+        generationNumber = response.getGenerationNumber();
+        for (int i = groupStart; i < groupEnd; i++) {
+          statuses[ranges[i]] = response.isStatus() ? STATUS_OK : STATUS_NOT_CACHED;
         }
+        groupStart = groupEnd;
       }
+      return generationNumber;
     }
 
-    private int readDataFromCachedFile(RetryingPooledBookkeeperClient bookKeeperClient, String remotePath, int generationNumber, long offset, int readLength) throws IOException, TException
+    // Adds the data of the range to the response, from the memory tier if all of it is there or else from the
+    // cached file. Nothing is added if it fails.
+    private void addData(Response response, CachedFileSource source, RetryingPooledBookkeeperClient bookKeeperClient, long offset, int readLength)
+        throws IOException, TException
     {
-      FileChannel fc = null;
-      int nread = 0;
-      String filename = CacheUtil.getLocalPath(remotePath, conf, generationNumber);
+      String remotePath = source.remotePath;
+      if (CacheConfig.isMemoryTierEnabled(conf)) {
+        // Copied as the buffers of the memory tier are freed when their blocks are evicted
+        ByteBuffer data = ByteBuffer.allocate(readLength);
+        if (MemoryTier.getInstance(conf).read(source.filename, offset, source.blockSize, data)) {
+          data.flip();
+          response.add(data);
+          return;
+        }
+      }
 
-      try {
-        fc = new FileInputStream(filename).getChannel();
-        int maxCount = CacheConfig.getDataTransferBufferSize(conf);
-        int lengthRemaining = readLength;
-        long position = offset;
-
-        // This situation should not arise as ActualReadLength cannot be greater than the file size.
-        // This seems to case of corrupted file. We should invalidate the file in this case.
-        if (fc.size() < readLength) {
-          log.error(String.format("File size is smaller than requested read. Invalidating corrupted cached file %s", remotePath));
-          bookKeeperClient.invalidateFileMetadata(remotePath);
-          throw new IOException("File size is smaller than requested read");
+      FileChannel fc = source.open(bookKeeperClient);
+      CompressedCacheFile compressedFile = CompressedCacheFile.forFile(remotePath, source.blockSize, conf);
+      BlockChecksums blockChecksums = BlockChecksums.forFile(remotePath, source.fileSize, source.blockSize, source.generationNumber, conf);
+      if (compressedFile != null || blockChecksums != null) {
+        // Data is decompressed or verified into a buffer and sent from there instead of transferred from the file
+        response.add(readDecoded(source, bookKeeperClient, fc, compressedFile, blockChecksums, offset, readLength));
+        return;
+      }
+
+      // This situation should not arise as ActualReadLength cannot be greater than the file size.
+      // This seems to case of corrupted file. We should invalidate the file in this case.
+      if (fc.size() < offset + readLength) {
+        log.error(String.format("File size is smaller than requested read. Invalidating corrupted cached file %s", remotePath));
+        bookKeeperClient.invalidateFileMetadata(remotePath);
+        throw new IOException("File size is smaller than requested read");
+      }
+      response.add(fc, offset, readLength);
+    }
+
+    // Adds the data of the range to the response as frames compressed with the codec. Blocks the cache already
+    // stores compressed with the same codec are transferred from the file as they are. Returns the number of
+    // bytes added, or -1 if nothing was added as the data does not compress.
+    private int addCompressedData(Response response, CachedFileSource source, RetryingPooledBookkeeperClient bookKeeperClient,
+        long offset, int readLength, CompressionCodec codec)
+        throws IOException, TException
+    {
+      String remotePath = source.remotePath;
+      Response frames = new Response();
+      long wireLength;
+      CompressedCacheFile compressedFile = CompressedCacheFile.forFile(remotePath, source.blockSize, conf);
+      if (compressedFile != null && compressedFile.getCompressionCodec().getClass() == codec.getClass()
+          && BlockChecksums.forFile(remotePath, source.fileSize, source.blockSize, source.generationNumber, conf) == null) {
+        wireLength = addStoredFrames(frames, source, bookKeeperClient, compressedFile, offset, readLength, codec);
+      }
+      else {
+        ByteBuffer data = ByteBuffer.allocate(readLength);
+        readData(source, bookKeeperClient, offset, data);
+        data.flip();
+        ByteBuffer compressed = WireCompression.compress(codec, data, source.blockSize);
+        wireLength = compressed.remaining();
+        frames.add(compressed);
+      }
+
+      if (wireLength >= readLength) {
+        return -1;
+      }
+      response.addAll(frames);
+      WireCompression.recordSent(readLength, wireLength);
+      return (int) wireLength;
+    }
+
+    // Adds the frames of the range read from the slots of the compressed cache file, returns their length
+    private long addStoredFrames(Response frames, CachedFileSource source, RetryingPooledBookkeeperClient bookKeeperClient,
+        CompressedCacheFile compressedFile, long offset, int readLength, CompressionCodec codec)
+        throws IOException, TException
+    {
+      FileChannel fc = source.open(bookKeeperClient);
+      long end = offset + readLength;
+      long wireLength = 0;
+      for (long block = offset / source.blockSize; block * source.blockSize < end; block++) {
+        long blockStart = block * source.blockSize;
+        long blockEnd = Math.min(blockStart + source.blockSize, source.fileSize);
+        long start = Math.max(offset, blockStart);
+        int length = (int) (Math.min(end, blockEnd) - start);
+        if (start == blockStart && length == blockEnd - blockStart) {
+          // The slot of a complete block is a frame already
+          long storedLength;
+          try (Slot slot = source.acquireSlot()) {
+            storedLength = compressedFile.getStoredLength(fc, block);
+          }
+          if (storedLength == 0) {
+            log.error(String.format("Cached file misses requested data. Invalidating corrupted cached file %s", source.remotePath));
+            bookKeeperClient.invalidateFileMetadata(source.remotePath);
+            throw new IOException("Cached file misses requested data");
+          }
+          frames.add(fc, compressedFile.getSlotStart(block), storedLength);
+          wireLength += storedLength;
+        }
+        else {
+          ByteBuffer data = ByteBuffer.allocate(length);
+          readData(source, bookKeeperClient, start, data);
+          data.flip();
+          ByteBuffer compressed = WireCompression.compress(codec, data, source.blockSize);
+          frames.add(compressed);
+          wireLength += compressed.remaining();
         }
+      }
+      return wireLength;
+    }
 
-        while (nread < readLength) {
-          if (maxCount > lengthRemaining) {
-            maxCount = lengthRemaining;
+    // Fills the buffer with the data of the file starting at offset, from the memory tier if all of it is there
+    // or else from the cached file
+    private void readData(CachedFileSource source, RetryingPooledBookkeeperClient bookKeeperClient, long offset, ByteBuffer buffer)
+        throws IOException, TException
+    {
+      int readLength = buffer.remaining();
+      if (CacheConfig.isMemoryTierEnabled(conf) && MemoryTier.getInstance(conf).read(source.filename, offset, source.blockSize, buffer)) {
+        return;
+      }
+
+      FileChannel fc = source.open(bookKeeperClient);
+      CompressedCacheFile compressedFile = CompressedCacheFile.forFile(source.remotePath, source.blockSize, conf);
+      BlockChecksums blockChecksums = BlockChecksums.forFile(source.remotePath, source.fileSize, source.blockSize, source.generationNumber, conf);
+      if (compressedFile != null || blockChecksums != null) {
+        buffer.put(readDecoded(source, bookKeeperClient, fc, compressedFile, blockChecksums, offset, readLength));
+        return;
+      }
+      if (fc.size() < offset + readLength) {
+        log.error(String.format("File size is smaller than requested read. Invalidating corrupted cached file %s", source.remotePath));
+        bookKeeperClient.invalidateFileMetadata(source.remotePath);
+        throw new IOException("File size is smaller than requested read");
+      }
+      try (Slot slot = source.acquireSlot()) {
+        while (buffer.hasRemaining()) {
+          if (fc.read(buffer, offset + readLength - buffer.remaining()) < 0) {
+            throw new IOException("File size is smaller than requested read");
           }
-          nread += fc.transferTo(position + nread, maxCount, localDataTransferClient);
-          lengthRemaining = readLength - nread;
         }
       }
-      catch (FileNotFoundException ex) {
-        log.error(String.format("Could not create file channel for %s. Invalidating missing remote file %s", filename, remotePath));
+    }
+
+    // Returns the data of the range decompressed or verified from the cached file, in read mode
+    private ByteBuffer readDecoded(CachedFileSource source, RetryingPooledBookkeeperClient bookKeeperClient, FileChannel fc,
+        CompressedCacheFile compressedFile, BlockChecksums blockChecksums, long offset, int readLength)
+        throws IOException, TException
+    {
+      String remotePath = source.remotePath;
+      ByteBuffer buffer = ByteBuffer.allocate(readLength);
+      int length;
+      try (Slot slot = source.acquireSlot()) {
+        length = blockChecksums != null
+            ? blockChecksums.readVerified(fc, compressedFile, offset, buffer)
+            : compressedFile.read(fc, offset, buffer);
+      }
+      catch (CorruptedBlockException e) {
+        // The client reads the data from the object store, only the corrupted block is dropped from the cache
+        log.error(String.format("Invalidating corrupted block %d of cached file %s", e.getBlock(), remotePath));
+        bookKeeperClient.invalidateBlocks(remotePath, e.getBlock(), e.getBlock() + 1, source.generationNumber);
+        throw e;
+      }
+      if (length < readLength) {
+        log.error(String.format("Cached file misses requested data. Invalidating corrupted cached file %s", remotePath));
         bookKeeperClient.invalidateFileMetadata(remotePath);
-        throw new IOException(String.format("File not found %s ", filename), ex);
+        throw new IOException("Cached file misses requested data");
       }
-      catch (Exception e) {
-        if (e instanceof IOException) {
-          throw (IOException) e;
-        }
-        throw new IOException(e);
+      buffer.flip();
+      return buffer;
+    }
+
+    /**
+     * Cached file the data of a response is sent from. It is opened on first use and held until the response is
+     * sent: the data is transferred from the file as the client takes it.
+     *
+     * Reads of the workers into buffers each take a disk slot for their duration. Transfers to the socket are not
+     * scheduled: they run on the event loop, which must not wait for a slot, and are paced by the client, so a slot
+     * held for them would be held while waiting for the network.
+     */
+    private class CachedFileSource
+    {
+      private final Response response;
+      private final String remotePath;
+      private final long fileSize;
+      private final int generationNumber;
+      private final String filename;
+      private final int blockSize;
+      private FileChannel channel;
+
+      CachedFileSource(Response response, String remotePath, long fileSize, int generationNumber)
+      {
+        this.response = response;
+        this.remotePath = remotePath;
+        this.fileSize = fileSize;
+        this.generationNumber = generationNumber;
+        this.filename = CacheUtil.getLocalPath(remotePath, conf, generationNumber);
+        this.blockSize = CacheUtil.getFileBlockSize(remotePath, fileSize, conf);
       }
-      finally {
-        if (fc != null) {
-          fc.close();
+
+      FileChannel open(RetryingPooledBookkeeperClient bookKeeperClient)
+          throws IOException, TException
+      {
+        if (channel != null) {
+          return channel;
+        }
+        CachedFileChannel cachedFileChannel;
+        try {
+          cachedFileChannel = FileChannelCache.open(conf, filename);
         }
+        catch (FileNotFoundException ex) {
+          log.error(String.format("Could not create file channel for %s. Invalidating missing remote file %s", filename, remotePath));
+          bookKeeperClient.invalidateFileMetadata(remotePath);
+          throw new IOException(String.format("File not found %s ", filename), ex);
+        }
+        response.onRelease(cachedFileChannel::release);
+        channel = cachedFileChannel.getChannel();
+        return channel;
       }
 
-      return nread;
+      Slot acquireSlot()
+          throws InterruptedIOException
+      {
+        return DiskIoScheduler.getInstance(conf).acquire(filename, Priority.NON_LOCAL_SERVE);
+      }
     }
   }
 }
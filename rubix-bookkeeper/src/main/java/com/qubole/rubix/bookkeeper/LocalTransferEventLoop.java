@@ -0,0 +1,569 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.bookkeeper;
+
+import com.qubole.rubix.common.utils.IoThrottle;
+import com.qubole.rubix.spi.CacheConfig;
+import com.qubole.rubix.spi.DataTransferClientHelper;
+import com.qubole.rubix.spi.DataTransferHeader;
+import com.qubole.rubix.spi.DataTransferProtocol;
+import com.qubole.rubix.spi.DataTransferRequest;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.qubole.rubix.spi.DataTransferProtocol.VERSION_1;
+import static com.qubole.rubix.spi.DataTransferProtocol.VERSION_2;
+
+/**
+ * I/O thread of the local data transfer server, serving its connections with non-blocking sockets from one selector.
+ *
+ * The loop reads the requests and hands each one to the blocking pool, which looks up the cache and prepares the
+ * response. The loop then sends the response as fast as the socket takes it, transferring cached files straight
+ * to the socket. A connection has at most one request in progress: the following requests of the client wait in
+ * its buffer, so responses keep the order of the requests. Idle connections only cost their buffer.
+ */
+class LocalTransferEventLoop
+    implements Runnable
+{
+  private static final Log log = LogFactory.getLog(LocalTransferEventLoop.class);
+
+  private static final AtomicInteger openConnections = new AtomicInteger();
+  private static final AtomicInteger pendingRequests = new AtomicInteger();
+  private static final AtomicInteger writeBlockedConnections = new AtomicInteger();
+  private static final AtomicLong queuedResponseBytes = new AtomicLong();
+
+  private final Configuration conf;
+  private final RequestHandler handler;
+  private final Executor workers;
+  private final int maxRequestSize;
+  private final Selector selector;
+  private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+  private volatile boolean running = true;
+
+  LocalTransferEventLoop(Configuration conf, RequestHandler handler, Executor workers)
+      throws IOException
+  {
+    this.conf = conf;
+    this.handler = handler;
+    this.workers = workers;
+    this.maxRequestSize = CacheConfig.getMaxHeaderSize(conf);
+    this.selector = Selector.open();
+  }
+
+  /**
+   * Prepares the responses of the server, called from the blocking pool
+   */
+  interface RequestHandler
+  {
+    /**
+     * @return the response, null if the request failed and the connection must be closed
+     */
+    Response serve(InetSocketAddress client, DataTransferHeader header);
+
+    /**
+     * @return the response, null if the request failed and the connection must be closed
+     */
+    Response serve(InetSocketAddress client, DataTransferRequest request);
+  }
+
+  /**
+   * Serves the accepted connection from this loop
+   */
+  void register(SocketChannel channel)
+  {
+    execute(() -> {
+      try {
+        channel.configureBlocking(false);
+        Connection connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        openConnections.incrementAndGet();
+      }
+      catch (IOException | RuntimeException e) {
+        log.warn("Error in registering Local Transfer connection", e);
+        closeQuietly(channel);
+      }
+    });
+  }
+
+  void stop()
+  {
+    running = false;
+    selector.wakeup();
+  }
+
+  private void execute(Runnable task)
+  {
+    tasks.add(task);
+    selector.wakeup();
+  }
+
+  @Override
+  public void run()
+  {
+    try {
+      while (running) {
+        selector.select();
+        runTasks();
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          Connection connection = (Connection) key.attachment();
+          try {
+            if (key.isValid() && key.isWritable()) {
+              connection.sendResponse();
+            }
+            if (key.isValid() && key.isReadable()) {
+              connection.receive();
+            }
+          }
+          catch (IOException | RuntimeException e) {
+            // Mostly clients going away, errors of requests are logged when they are prepared
+            log.debug("Closing Local Transfer connection of client " + connection.client, e);
+            connection.close();
+          }
+        }
+      }
+    }
+    catch (IOException e) {
+      log.error("Error in Local Transfer server I/O thread", e);
+    }
+    finally {
+      for (SelectionKey key : new ArrayList<>(selector.keys())) {
+        ((Connection) key.attachment()).close();
+      }
+      closeQuietly(selector);
+      // Connections registered or responses prepared in the meantime are closed and released
+      runTasks();
+    }
+  }
+
+  private void runTasks()
+  {
+    Runnable task;
+    while ((task = tasks.poll()) != null) {
+      task.run();
+    }
+  }
+
+  private static void closeQuietly(Closeable closeable)
+  {
+    try {
+      closeable.close();
+    }
+    catch (IOException e) {
+      log.warn("Error in closing " + closeable, e);
+    }
+  }
+
+  /**
+   * Returns the number of connections of all the loops
+   */
+  static int getOpenConnections()
+  {
+    return openConnections.get();
+  }
+
+  /**
+   * Returns the number of requests waiting for a thread of the blocking pool
+   */
+  static int getPendingRequests()
+  {
+    return pendingRequests.get();
+  }
+
+  /**
+   * Returns the number of connections waiting for their client to take more of a response
+   */
+  static int getWriteBlockedConnections()
+  {
+    return writeBlockedConnections.get();
+  }
+
+  /**
+   * Returns the bytes of the prepared responses not sent yet
+   */
+  static long getQueuedResponseBytes()
+  {
+    return queuedResponseBytes.get();
+  }
+
+  private class Connection
+  {
+    private final SocketChannel channel;
+    private final InetSocketAddress client;
+    // Bytes received and not consumed yet, in read mode
+    private final ByteBuffer received;
+    private SelectionKey key;
+    private int version;
+
+    // Request handed to the blocking pool
+    private boolean busy;
+    private Response response;
+    private long startTime;
+    private boolean writeBlocked;
+    private boolean closed;
+
+    Connection(SocketChannel channel)
+        throws IOException
+    {
+      this.channel = channel;
+      this.client = (InetSocketAddress) channel.getRemoteAddress();
+      this.received = ByteBuffer.allocate(maxRequestSize);
+      received.flip();
+    }
+
+    void receive()
+        throws IOException
+    {
+      received.compact();
+      int nread;
+      try {
+        nread = channel.read(received);
+      }
+      finally {
+        received.flip();
+      }
+      if (nread < 0) {
+        // Nobody is left to send a response in progress to
+        close();
+        return;
+      }
+      serveNextRequest();
+    }
+
+    private void serveNextRequest()
+        throws IOException
+    {
+      if (busy || response != null || closed) {
+        return;
+      }
+      if (version == 0 && DataTransferProtocol.isHandshake(received)) {
+        answerHandshake();
+        return;
+      }
+      Object request = nextRequest();
+      if (request == null) {
+        if (received.remaining() == received.capacity()) {
+          throw new IOException("Request of client " + client + " exceeds " + received.capacity() + " bytes");
+        }
+        key.interestOps(SelectionKey.OP_READ);
+        return;
+      }
+
+      busy = true;
+      startTime = System.nanoTime();
+      // Reading stops until the response is sent, the client and then TCP hold back the following requests
+      key.interestOps(0);
+      pendingRequests.incrementAndGet();
+      try {
+        workers.execute(() -> {
+          pendingRequests.decrementAndGet();
+          Response prepared = request instanceof DataTransferRequest
+              ? handler.serve(client, (DataTransferRequest) request)
+              : handler.serve(client, (DataTransferHeader) request);
+          execute(() -> onResponse(prepared));
+        });
+      }
+      catch (RejectedExecutionException e) {
+        // The server is stopping
+        pendingRequests.decrementAndGet();
+        throw e;
+      }
+    }
+
+    // Answered by the loop itself, the client sends its requests once it has the answer
+    private void answerHandshake()
+        throws IOException
+    {
+      if (received.remaining() < DataTransferProtocol.HANDSHAKE_SIZE) {
+        key.interestOps(SelectionKey.OP_READ);
+        return;
+      }
+      version = Math.min(DataTransferProtocol.readHandshake(received), VERSION_2);
+      ByteBuffer answer = ByteBuffer.allocate(DataTransferProtocol.HANDSHAKE_SIZE);
+      DataTransferProtocol.writeHandshake(answer, version);
+      answer.flip();
+      response = new Response().add(answer);
+      queuedResponseBytes.addAndGet(response.remaining());
+      sendResponse();
+    }
+
+    private Object nextRequest()
+        throws IOException
+    {
+      if (version == 0) {
+        if (received.remaining() < Integer.BYTES) {
+          return null;
+        }
+        version = DataTransferProtocol.isMultiplexed(received) ? VERSION_2 : VERSION_1;
+      }
+      if (version == VERSION_2) {
+        return DataTransferProtocol.readRequest(received);
+      }
+      return DataTransferClientHelper.isHeaderComplete(received) ? DataTransferClientHelper.readHeaders(received) : null;
+    }
+
+    private void onResponse(Response prepared)
+    {
+      busy = false;
+      if (closed || prepared == null) {
+        if (prepared != null) {
+          prepared.release();
+        }
+        close();
+        return;
+      }
+      response = prepared;
+      queuedResponseBytes.addAndGet(response.remaining());
+      try {
+        sendResponse();
+      }
+      catch (IOException | RuntimeException e) {
+        log.debug("Closing Local Transfer connection of client " + client, e);
+        close();
+      }
+    }
+
+    // Sends as much of the response as the socket takes, and serves the next request once it is sent
+    void sendResponse()
+        throws IOException
+    {
+      if (response == null) {
+        return;
+      }
+      if (!response.writeTo(channel)) {
+        setWriteBlocked(true);
+        key.interestOps(SelectionKey.OP_WRITE);
+        return;
+      }
+      setWriteBlocked(false);
+      response.release();
+      response = null;
+      // Reads of other nodes are foreground reads, warmup backs off if they slow down. The handshake, sent before
+      // any request, is not a read.
+      if (startTime != 0) {
+        IoThrottle.getInstance(conf).recordForegroundLatency(System.nanoTime() - startTime);
+      }
+      serveNextRequest();
+    }
+
+    private void setWriteBlocked(boolean blocked)
+    {
+      if (writeBlocked != blocked) {
+        writeBlocked = blocked;
+        writeBlockedConnections.addAndGet(blocked ? 1 : -1);
+      }
+    }
+
+    void close()
+    {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      key.cancel();
+      closeQuietly(channel);
+      if (response != null) {
+        response.release();
+        response = null;
+      }
+      setWriteBlocked(false);
+      openConnections.decrementAndGet();
+    }
+  }
+
+  /**
+   * Data sent back for a request: buffers and regions of cached files, in order. What the data is read from is held
+   * until the response is sent or its connection is closed.
+   */
+  static class Response
+  {
+    private final List<Segment> segments = new ArrayList<>();
+    private final List<Runnable> releaseActions = new ArrayList<>();
+    private int current;
+    private boolean released;
+
+    Response add(ByteBuffer buffer)
+    {
+      segments.add(new BufferSegment(buffer));
+      return this;
+    }
+
+    Response add(FileChannel file, long position, long length)
+    {
+      segments.add(new FileSegment(file, position, length));
+      return this;
+    }
+
+    /**
+     * Appends the data and the release actions of the other response
+     */
+    Response addAll(Response other)
+    {
+      segments.addAll(other.segments);
+      releaseActions.addAll(other.releaseActions);
+      return this;
+    }
+
+    /**
+     * Adds an action to run once the response is sent or dropped
+     */
+    void onRelease(Runnable action)
+    {
+      releaseActions.add(action);
+    }
+
+    long remaining()
+    {
+      long remaining = 0;
+      for (int i = current; i < segments.size(); i++) {
+        remaining += segments.get(i).remaining();
+      }
+      return remaining;
+    }
+
+    // Returns true if all of the response was written
+    boolean writeTo(WritableByteChannel channel)
+        throws IOException
+    {
+      while (current < segments.size()) {
+        Segment segment = segments.get(current);
+        long before = segment.remaining();
+        boolean done;
+        try {
+          done = segment.writeTo(channel);
+        }
+        finally {
+          queuedResponseBytes.addAndGet(segment.remaining() - before);
+        }
+        if (!done) {
+          return false;
+        }
+        current++;
+      }
+      return true;
+    }
+
+    void release()
+    {
+      if (released) {
+        return;
+      }
+      released = true;
+      queuedResponseBytes.addAndGet(-remaining());
+      for (Runnable action : releaseActions) {
+        action.run();
+      }
+    }
+  }
+
+  private interface Segment
+  {
+    long remaining();
+
+    // Returns true if all of the segment was written, false if the channel does not take more for now
+    boolean writeTo(WritableByteChannel channel)
+        throws IOException;
+  }
+
+  private static class BufferSegment
+      implements Segment
+  {
+    private final ByteBuffer buffer;
+
+    BufferSegment(ByteBuffer buffer)
+    {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public long remaining()
+    {
+      return buffer.remaining();
+    }
+
+    @Override
+    public boolean writeTo(WritableByteChannel channel)
+        throws IOException
+    {
+      while (buffer.hasRemaining()) {
+        if (channel.write(buffer) == 0) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  private static class FileSegment
+      implements Segment
+  {
+    private final FileChannel file;
+    private long position;
+    private long remaining;
+
+    FileSegment(FileChannel file, long position, long length)
+    {
+      this.file = file;
+      this.position = position;
+      this.remaining = length;
+    }
+
+    @Override
+    public long remaining()
+    {
+      return remaining;
+    }
+
+    @Override
+    public boolean writeTo(WritableByteChannel channel)
+        throws IOException
+    {
+      while (remaining > 0) {
+        long nwritten = file.transferTo(position, remaining, channel);
+        if (nwritten == 0) {
+          if (position >= file.size()) {
+            throw new EOFException("Cached file was truncated while sending it");
+          }
+          return false;
+        }
+        position += nwritten;
+        remaining -= nwritten;
+      }
+      return true;
+    }
+  }
+}
@@ -136,7 +136,7 @@ public class CachingValidator extends AbstractScheduledService
       }
 
       List<BlockLocation> locations = bookKeeper.getCacheStatus(request).getBlocks();
-      if (locations.isEmpty() || locations.get(0).getLocation() != Location.CACHED) {
+      if (locations.isEmpty() || (locations.get(0).getLocation() != Location.CACHED && locations.get(0).getLocation() != Location.IN_MEMORY)) {
         return false;
       }
 
@@ -0,0 +1,187 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.bookkeeper;
+
+import com.qubole.rubix.spi.DataTransferConnection;
+import com.qubole.rubix.spi.DataTransferRequest;
+import org.apache.hadoop.conf.Configuration;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.qubole.rubix.spi.DataTransferProtocol.STATUS_OK;
+
+/**
+ * Load benchmark of the I/O threads of the local data transfer server, without the BookKeeper.
+ *
+ * Keeps many idle connections open while clients read ranges of a file through version 2 of the protocol, and
+ * reports the throughput, the latencies of requests and the peaks of the backpressure gauges.
+ *
+ * Usage: BenchmarkLocalTransferEventLoop [idle connections] [clients] [ranges per request] [range size] [seconds] [I/O threads]
+ */
+public class BenchmarkLocalTransferEventLoop
+{
+  private static final String TEST_FILE = System.getProperty("java.io.tmpdir") + "/BenchmarkLocalTransferEventLoop";
+
+  private BenchmarkLocalTransferEventLoop()
+  {
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    int idleConnections = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+    int clients = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+    int rangesPerRequest = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+    int rangeSize = args.length > 3 ? Integer.parseInt(args[3]) : 64 * 1024;
+    int seconds = args.length > 4 ? Integer.parseInt(args[4]) : 30;
+    int ioThreads = args.length > 5 ? Integer.parseInt(args[5]) : 2;
+
+    long fileSize = 256L * 1024 * 1024;
+    try (RandomAccessFile file = new RandomAccessFile(TEST_FILE, "rw")) {
+      file.setLength(fileSize);
+    }
+
+    ExecutorService workers = Executors.newFixedThreadPool(16);
+    List<LocalTransferEventLoop> eventLoops = new ArrayList<>();
+    List<SocketChannel> idle = new ArrayList<>();
+    ExecutorService clientPool = Executors.newFixedThreadPool(clients);
+    try (FileChannel file = FileChannel.open(new File(TEST_FILE).toPath(), StandardOpenOption.READ);
+        ServerSocketChannel listener = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0), Integer.MAX_VALUE)) {
+      for (int i = 0; i < ioThreads; i++) {
+        LocalTransferEventLoop eventLoop = new LocalTransferEventLoop(new Configuration(), new TestLocalTransferEventLoop.FileRequestHandler(file, fileSize), workers);
+        new Thread(eventLoop, "lds-io-" + i).start();
+        eventLoops.add(eventLoop);
+      }
+      Thread acceptor = new Thread(() -> {
+        try {
+          for (int next = 0; ; next = (next + 1) % eventLoops.size()) {
+            eventLoops.get(next).register(listener.accept());
+          }
+        }
+        catch (IOException e) {
+          // Closed at the end of the benchmark
+        }
+      });
+      acceptor.setDaemon(true);
+      acceptor.start();
+
+      for (int i = 0; i < idleConnections; i++) {
+        idle.add(SocketChannel.open(listener.getLocalAddress()));
+      }
+      System.out.println(String.format("Opened %d idle connections", idle.size()));
+
+      long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+      List<Future<long[]>> results = new ArrayList<>();
+      for (int client = 0; client < clients; client++) {
+        int seed = client;
+        results.add(clientPool.submit(() -> runClient(listener, fileSize, rangesPerRequest, rangeSize, end, seed)));
+      }
+
+      int maxPendingRequests = 0;
+      int maxWriteBlocked = 0;
+      long maxQueuedBytes = 0;
+      while (System.nanoTime() < end) {
+        maxPendingRequests = Math.max(maxPendingRequests, LocalTransferEventLoop.getPendingRequests());
+        maxWriteBlocked = Math.max(maxWriteBlocked, LocalTransferEventLoop.getWriteBlockedConnections());
+        maxQueuedBytes = Math.max(maxQueuedBytes, LocalTransferEventLoop.getQueuedResponseBytes());
+        Thread.sleep(10);
+      }
+
+      List<Long> latencies = new ArrayList<>();
+      for (Future<long[]> result : results) {
+        for (long latency : result.get()) {
+          latencies.add(latency);
+        }
+      }
+      latencies.sort(null);
+      long bytes = (long) latencies.size() * rangesPerRequest * rangeSize;
+      System.out.println(String.format("Open connections: %d", LocalTransferEventLoop.getOpenConnections()));
+      System.out.println(String.format("Requests: %d, %.0f requests/s, %.1f MB/s", latencies.size(),
+          latencies.size() / (double) seconds, bytes / (double) seconds / (1024 * 1024)));
+      System.out.println(String.format("Latency ms: p50 %.2f, p99 %.2f, max %.2f", percentile(latencies, 0.5),
+          percentile(latencies, 0.99), percentile(latencies, 1)));
+      System.out.println(String.format("Peaks: pending requests %d, write blocked connections %d, queued response data %d bytes",
+          maxPendingRequests, maxWriteBlocked, maxQueuedBytes));
+    }
+    finally {
+      clientPool.shutdownNow();
+      for (SocketChannel connection : idle) {
+        connection.close();
+      }
+      for (LocalTransferEventLoop eventLoop : eventLoops) {
+        eventLoop.stop();
+      }
+      workers.shutdownNow();
+      new File(TEST_FILE).delete();
+    }
+  }
+
+  // Returns the latencies of the requests of the client, in nanoseconds
+  private static long[] runClient(ServerSocketChannel listener, long fileSize, int rangesPerRequest, int rangeSize, long end, int seed)
+      throws IOException
+  {
+    Random random = new Random(seed);
+    long[] latencies = new long[1024];
+    int count = 0;
+    ByteBuffer[] buffers = new ByteBuffer[rangesPerRequest];
+    for (int i = 0; i < rangesPerRequest; i++) {
+      buffers[i] = ByteBuffer.allocate(rangeSize);
+    }
+
+    try (DataTransferConnection connection = new DataTransferConnection("localhost", SocketChannel.open(listener.getLocalAddress()), 0, 1024)) {
+      while (System.nanoTime() < end) {
+        DataTransferRequest request = new DataTransferRequest(TEST_FILE, fileSize, 1, 1);
+        for (ByteBuffer buffer : buffers) {
+          buffer.clear();
+          request.addRange((long) (random.nextDouble() * (fileSize - rangeSize)), rangeSize);
+        }
+        long start = System.nanoTime();
+        int[] statuses = connection.read(request, Arrays.asList(buffers));
+        for (int status : statuses) {
+          if (status != STATUS_OK) {
+            throw new IOException("Unexpected status " + status);
+          }
+        }
+        if (count == latencies.length) {
+          latencies = Arrays.copyOf(latencies, 2 * count);
+        }
+        latencies[count++] = System.nanoTime() - start;
+      }
+    }
+    return Arrays.copyOf(latencies, count);
+  }
+
+  private static double percentile(List<Long> sortedLatencies, double percentile)
+  {
+    if (sortedLatencies.isEmpty()) {
+      return 0;
+    }
+    int index = (int) Math.min(sortedLatencies.size() - 1, Math.ceil(percentile * sortedLatencies.size()) - 1);
+    return sortedLatencies.get(Math.max(0, index)) / 1e6;
+  }
+}
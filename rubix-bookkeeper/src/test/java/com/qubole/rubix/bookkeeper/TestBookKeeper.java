@@ -19,6 +19,7 @@ import com.qubole.rubix.common.metrics.BookKeeperMetrics;
 import com.qubole.rubix.common.utils.DataGen;
 import com.qubole.rubix.common.utils.TestUtil;
 import com.qubole.rubix.core.ClusterManagerInitilizationException;
+import com.qubole.rubix.core.InFlightBlockRegistry;
 import com.qubole.rubix.core.utils.DummyClusterManager;
 import com.qubole.rubix.hadoop2.Hadoop2ClusterManager;
 import com.qubole.rubix.presto.PrestoClusterManager;
@@ -26,9 +27,11 @@ import com.qubole.rubix.spi.CacheConfig;
 import com.qubole.rubix.spi.CacheUtil;
 import com.qubole.rubix.spi.ClusterManager;
 import com.qubole.rubix.spi.ClusterType;
+import com.qubole.rubix.spi.thrift.BlockLocation;
 import com.qubole.rubix.spi.thrift.CacheStatusRequest;
 import com.qubole.rubix.spi.thrift.CacheStatusResponse;
 import com.qubole.rubix.spi.thrift.FileInfo;
+import com.qubole.rubix.spi.thrift.Location;
 import com.qubole.rubix.spi.thrift.ReadResponse;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.logging.Log;
@@ -44,11 +47,15 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static com.qubole.rubix.spi.utils.DataSizeUnits.BYTES;
 import static com.qubole.rubix.common.metrics.BookKeeperMetrics.CacheMetric.CACHE_EVICTION_COUNT;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertTrue;
 
 /**
@@ -363,6 +370,110 @@ public class TestBookKeeper
     assertEquals(metrics.getCounters().get(BookKeeperMetrics.CacheMetric.CACHE_REQUEST_COUNT.getMetricName()).getCount(), totalRequests);
   }
 
+  /**
+   * Verify that blocks of the disk cache accessed repeatedly are reported in memory once promoted.
+   */
+  @Test
+  public void verifyRepeatedlyAccessedBlocksPromotedToMemory() throws Exception
+  {
+    CacheConfig.setMemoryTierEnabled(conf, true);
+    try (BookKeeperMetrics memoryTierMetrics = new BookKeeperMetrics(conf, new MetricRegistry())) {
+      BookKeeper memoryTierBookKeeper = new CoordinatorBookKeeper(conf, memoryTierMetrics);
+      CacheStatusRequest request = new CacheStatusRequest(TEST_REMOTE_PATH, TEST_FILE_LENGTH, TEST_LAST_MODIFIED,
+          TEST_START_BLOCK, TEST_END_BLOCK)
+              .setClusterType(ClusterType.TEST_CLUSTER_MANAGER.ordinal());
+
+      int generationNumber = memoryTierBookKeeper.getCacheStatus(request).getGenerationNumber();
+      try (RandomAccessFile localFile = new RandomAccessFile(CacheUtil.getLocalPath(TEST_REMOTE_PATH, conf, generationNumber), "rw")) {
+        localFile.write(new byte[(int) TEST_FILE_LENGTH]);
+      }
+      memoryTierBookKeeper.setAllCached(TEST_REMOTE_PATH, TEST_FILE_LENGTH, TEST_LAST_MODIFIED, TEST_START_BLOCK, TEST_END_BLOCK, generationNumber);
+
+      List<BlockLocation> locations = memoryTierBookKeeper.getCacheStatus(request).getBlocks();
+      for (BlockLocation location : locations) {
+        assertEquals(location.getLocation(), Location.CACHED, "Block should be on disk after the first access");
+      }
+
+      // Promoted in background on the second access
+      memoryTierBookKeeper.getCacheStatus(request);
+      for (int i = 0; i < 50 && locations.get(locations.size() - 1).getLocation() != Location.IN_MEMORY; i++) {
+        Thread.sleep(100);
+        locations = memoryTierBookKeeper.getCacheStatus(request).getBlocks();
+      }
+      for (BlockLocation location : locations) {
+        assertEquals(location.getLocation(), Location.IN_MEMORY, "Block should be in memory after repeated accesses");
+      }
+    }
+  }
+
+  /**
+   * Verify that invalidated blocks are reported not cached while the other blocks of the file stay cached.
+   */
+  @Test
+  public void verifyCorruptedBlocksInvalidated() throws TException
+  {
+    CacheStatusRequest request = new CacheStatusRequest(TEST_REMOTE_PATH, TEST_FILE_LENGTH, TEST_LAST_MODIFIED,
+        TEST_START_BLOCK, TEST_END_BLOCK)
+            .setClusterType(ClusterType.TEST_CLUSTER_MANAGER.ordinal());
+    int generationNumber = bookKeeper.getCacheStatus(request).getGenerationNumber();
+    bookKeeper.setAllCached(TEST_REMOTE_PATH, TEST_FILE_LENGTH, TEST_LAST_MODIFIED, TEST_START_BLOCK, TEST_END_BLOCK, generationNumber);
+    long weight = bookKeeper.getTotalCacheWeight();
+
+    bookKeeper.invalidateBlocks(TEST_REMOTE_PATH, TEST_START_BLOCK + 1, TEST_START_BLOCK + 2, generationNumber);
+    // Stale generation numbers are ignored
+    bookKeeper.invalidateBlocks(TEST_REMOTE_PATH, TEST_START_BLOCK, TEST_START_BLOCK + 1, generationNumber - 1);
+
+    List<BlockLocation> locations = bookKeeper.getCacheStatus(request).getBlocks();
+    for (int i = 0; i < locations.size(); i++) {
+      Location expected = i == 1 ? Location.LOCAL : Location.CACHED;
+      assertEquals(locations.get(i).getLocation(), expected, "Only the invalidated block should be reported not cached");
+    }
+    assertEquals(metrics.getCounters().get(BookKeeperMetrics.CacheMetric.CORRUPTED_BLOCK_COUNT.getMetricName()).getCount(), 1);
+    assertEquals(bookKeeper.getTotalCacheWeight(), weight, "Invalidated blocks take space until the file is evicted");
+  }
+
+  /**
+   * Verify that the copies of blocks owned by other nodes are reported cached, and dropped once the cache is full.
+   */
+  @Test
+  public void verifyReplicatedBlocksReportedCached() throws Exception
+  {
+    final String remotePathWithScheme = "file://" + TEST_REMOTE_PATH;
+    final int clusterType = ClusterType.TEST_CLUSTER_MANAGER_MULTINODE.ordinal();
+    DataGen.populateFile(TEST_REMOTE_PATH);
+    CacheConfig.setReplicationEnabled(conf, true);
+
+    MetricRegistry replicationMetrics = new MetricRegistry();
+    try (BookKeeperMetrics replicationBookKeeperMetrics = new BookKeeperMetrics(conf, replicationMetrics)) {
+      BookKeeper replicationBookKeeper = new CoordinatorBookKeeper(conf, replicationBookKeeperMetrics);
+      CacheStatusRequest request = new CacheStatusRequest(remotePathWithScheme, TEST_FILE_LENGTH, TEST_LAST_MODIFIED,
+          TEST_START_BLOCK, TEST_END_BLOCK)
+              .setClusterType(clusterType)
+              .setIncrMetrics(true);
+      for (BlockLocation location : replicationBookKeeper.getCacheStatus(request).getBlocks()) {
+        assertEquals(location.getLocation(), Location.NON_LOCAL, "Blocks of other nodes should be read from them");
+      }
+
+      assertTrue(replicationBookKeeper.replicate(remotePathWithScheme, TEST_FILE_LENGTH, TEST_LAST_MODIFIED, TEST_START_BLOCK, TEST_END_BLOCK, clusterType),
+          "Blocks should be replicated");
+      for (BlockLocation location : replicationBookKeeper.getCacheStatus(request).getBlocks()) {
+        assertEquals(location.getLocation(), Location.CACHED, "Replicated blocks should be read locally");
+      }
+      final long replicatedBlocks = TEST_END_BLOCK - TEST_START_BLOCK;
+      assertEquals(replicationMetrics.getCounters().get(BookKeeperMetrics.CacheMetric.REPLICATED_BLOCK_COUNT.getMetricName()).getCount(), replicatedBlocks);
+      assertEquals(replicationMetrics.getCounters().get(BookKeeperMetrics.CacheMetric.REPLICA_REQUEST_COUNT.getMetricName()).getCount(), replicatedBlocks);
+
+      // Copies are dropped, and no new ones are made, once the cache is full
+      CacheConfig.setReplicationMaxCacheFullnessPercentage(conf, 0);
+      assertFalse(replicationBookKeeper.replicate(remotePathWithScheme, TEST_FILE_LENGTH, TEST_LAST_MODIFIED, TEST_END_BLOCK, TEST_END_BLOCK + 1, clusterType),
+          "Blocks should not be replicated in a full cache");
+      for (BlockLocation location : replicationBookKeeper.getCacheStatus(request).getBlocks()) {
+        assertEquals(location.getLocation(), Location.NON_LOCAL, "Dropped blocks should be read from their owner");
+      }
+      assertEquals(replicationMetrics.getCounters().get(BookKeeperMetrics.CacheMetric.DROPPED_REPLICA_BLOCK_COUNT.getMetricName()).getCount(), replicatedBlocks);
+    }
+  }
+
   /**
    * Verify that the metric representing total non-local requests is correctly registered & incremented.
    *
@@ -410,6 +521,43 @@ public class TestBookKeeper
     assertEquals(metrics.getGauges().get(BookKeeperMetrics.CacheMetric.CACHE_SIZE_GAUGE.getMetricName()).getValue(), totalCacheSize);
   }
 
+  /**
+   * Verify that readData for a block already being downloaded waits for that download instead of downloading again.
+   */
+  @Test
+  public void verifyConcurrentReadDataIsCoalesced() throws Exception
+  {
+    final String remotePathWithScheme = "file://" + TEST_REMOTE_PATH;
+    DataGen.populateFile(TEST_REMOTE_PATH);
+
+    CacheStatusRequest request = new CacheStatusRequest(remotePathWithScheme, TEST_FILE_LENGTH, TEST_LAST_MODIFIED, 0, 1)
+        .setClusterType(ClusterType.TEST_CLUSTER_MANAGER.ordinal());
+    int generationNumber = bookKeeper.getCacheStatus(request).getGenerationNumber();
+    InFlightBlockRegistry.BlockFetch download = bookKeeper.getReadDataDownloads()
+        .claim(CacheUtil.getLocalPath(remotePathWithScheme, conf, generationNumber), 0);
+
+    final AtomicReference<ReadResponse> response = new AtomicReference<>();
+    Thread reader = new Thread(() -> {
+      try {
+        response.set(bookKeeper.readData(remotePathWithScheme, 0, TEST_BLOCK_SIZE, TEST_FILE_LENGTH, TEST_LAST_MODIFIED, ClusterType.TEST_CLUSTER_MANAGER.ordinal()));
+      }
+      catch (TException e) {
+        log.error("readData failed", e);
+      }
+    });
+    reader.start();
+
+    while (metrics.getCounters().get(BookKeeperMetrics.CacheMetric.COALESCED_READ_DATA_COUNT.getMetricName()).getCount() == 0) {
+      Thread.sleep(10);
+    }
+    assertTrue(reader.isAlive(), "readData should wait for the download in progress");
+
+    bookKeeper.getReadDataDownloads().complete(download, null);
+    reader.join();
+    assertTrue(response.get().isStatus(), "readData should succeed once the download in progress completes");
+    assertEquals(bookKeeper.getReadDataDownloads().getInFlightBlocks(), 0);
+  }
+
   /**
    * Verify that the metric representing total cache evictions is correctly registered & incremented.
    *
@@ -497,6 +645,40 @@ public class TestBookKeeper
             String.format("Expected size: %s but found %s", (size + 10) * CacheConfig.getBlockSize(conf), newSize));
   }
 
+  /**
+   * Verify that files cached on disk are reused after a restart only if they were cached with the same block size.
+   */
+  @Test
+  public void testCachedFilesOfOtherBlockSizeNotReused() throws Exception
+  {
+    CacheConfig.setCleanupFilesDuringStart(conf, false);
+    CacheStatusRequest request = new CacheStatusRequest(TEST_REMOTE_PATH, TEST_FILE_LENGTH, TEST_LAST_MODIFIED,
+        TEST_START_BLOCK, TEST_END_BLOCK)
+            .setClusterType(ClusterType.TEST_CLUSTER_MANAGER.ordinal());
+    int generationNumber = bookKeeper.getCacheStatus(request).getGenerationNumber();
+    bookKeeper.setAllCached(TEST_REMOTE_PATH, TEST_FILE_LENGTH, TEST_LAST_MODIFIED, TEST_START_BLOCK, TEST_END_BLOCK, generationNumber);
+
+    try (BookKeeperMetrics restartedMetrics = new BookKeeperMetrics(conf, new MetricRegistry())) {
+      BookKeeper restartedBookKeeper = new CoordinatorBookKeeper(conf, restartedMetrics);
+      CacheStatusResponse response = restartedBookKeeper.getCacheStatus(request);
+      assertEquals(response.getGenerationNumber(), generationNumber, "Cached files should be reused with the same block size");
+      for (BlockLocation location : response.getBlocks()) {
+        assertEquals(location.getLocation(), Location.CACHED);
+      }
+    }
+
+    CacheConfig.setBlockSize(conf, 2 * TEST_BLOCK_SIZE);
+    try (BookKeeperMetrics restartedMetrics = new BookKeeperMetrics(conf, new MetricRegistry())) {
+      BookKeeper restartedBookKeeper = new CoordinatorBookKeeper(conf, restartedMetrics);
+      CacheStatusResponse response = restartedBookKeeper.getCacheStatus(request);
+      assertEquals(response.getGenerationNumber(), generationNumber + 1, "Cached files should not be reused with another block size");
+      for (BlockLocation location : response.getBlocks()) {
+        assertFalse(location.getLocation() == Location.CACHED, "Blocks cached with another block size should not be reported cached");
+      }
+      assertFalse(new File(CacheUtil.getMetadataFilePath(TEST_REMOTE_PATH, conf, generationNumber)).exists());
+    }
+  }
+
   @Test
   /*
    * This test checks that even with 1MB block size, files lesser than 1MB
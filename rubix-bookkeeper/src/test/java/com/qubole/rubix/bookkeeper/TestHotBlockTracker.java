@@ -0,0 +1,118 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.bookkeeper;
+
+import com.codahale.metrics.Counter;
+import com.google.common.testing.FakeTicker;
+import com.qubole.rubix.spi.CacheConfig;
+import org.apache.hadoop.conf.Configuration;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+
+public class TestHotBlockTracker
+{
+  private static final String TEST_REMOTE_PATH = "/tmp/testPath";
+  private static final int TEST_BLOCK_SIZE = 100;
+  private static final long TEST_FILE_LENGTH = 5000;
+  private static final long TEST_LAST_MODIFIED = 1514764800;
+
+  private final FakeTicker ticker = new FakeTicker();
+  private Counter replicationRequests;
+  private final List<String> requests = new ArrayList<>();
+  private final Configuration conf = new Configuration();
+  private HotBlockTracker tracker;
+
+  @BeforeMethod
+  public void setUp()
+  {
+    CacheConfig.setBlockSize(conf, TEST_BLOCK_SIZE);
+    CacheConfig.setReplicationThreshold(conf, 3);
+    CacheConfig.setReplicationWindow(conf, 1000);
+    requests.clear();
+    replicationRequests = new Counter();
+    tracker = new HotBlockTracker(conf, replicationRequests, ticker, Runnable::run,
+        (host, remotePath, fileSize, lastModified, block, clusterType) -> requests.add(host + ":" + block));
+  }
+
+  @Test
+  public void testHotBlocksReplicatedToReaders()
+  {
+    tracker.recordRead("node1", TEST_REMOTE_PATH, TEST_FILE_LENGTH, TEST_LAST_MODIFIED, 0, 0, 150);
+    tracker.recordRead("node2", TEST_REMOTE_PATH, TEST_FILE_LENGTH, TEST_LAST_MODIFIED, 0, 50, 10);
+    assertEquals(requests, Arrays.asList(), "Blocks read less than the threshold should not be replicated");
+
+    // The third read of block 0 crosses the threshold, the nodes reading it from then on are asked once each
+    tracker.recordRead("node2", TEST_REMOTE_PATH, TEST_FILE_LENGTH, TEST_LAST_MODIFIED, 0, 0, 10);
+    tracker.recordRead("node2", TEST_REMOTE_PATH, TEST_FILE_LENGTH, TEST_LAST_MODIFIED, 0, 0, 10);
+    tracker.recordRead("node1", TEST_REMOTE_PATH, TEST_FILE_LENGTH, TEST_LAST_MODIFIED, 0, 0, 10);
+    assertEquals(requests, Arrays.asList("node2:0", "node1:0"));
+    assertEquals(replicationRequests.getCount(), 2);
+  }
+
+  @Test
+  public void testReadsCountedPerWindow()
+  {
+    tracker.recordRead("node1", TEST_REMOTE_PATH, TEST_FILE_LENGTH, TEST_LAST_MODIFIED, 0, 200, 10);
+    tracker.recordRead("node1", TEST_REMOTE_PATH, TEST_FILE_LENGTH, TEST_LAST_MODIFIED, 0, 200, 10);
+    ticker.advance(1, TimeUnit.SECONDS);
+    tracker.recordRead("node1", TEST_REMOTE_PATH, TEST_FILE_LENGTH, TEST_LAST_MODIFIED, 0, 200, 10);
+    assertEquals(requests, Arrays.asList(), "Reads of past windows should not count");
+
+    tracker.recordRead("node1", TEST_REMOTE_PATH, TEST_FILE_LENGTH, TEST_LAST_MODIFIED, 0, 200, 10);
+    tracker.recordRead("node1", TEST_REMOTE_PATH, TEST_FILE_LENGTH, TEST_LAST_MODIFIED, 0, 200, 10);
+    assertEquals(requests, Arrays.asList("node1:2"));
+
+    // Asked again in the next window, in case it dropped its copy
+    ticker.advance(1, TimeUnit.SECONDS);
+    for (int i = 0; i < 3; i++) {
+      tracker.recordRead("node1", TEST_REMOTE_PATH, TEST_FILE_LENGTH, TEST_LAST_MODIFIED, 0, 200, 10);
+    }
+    assertEquals(requests, Arrays.asList("node1:2", "node1:2"));
+  }
+
+  @Test
+  public void testRequestsDroppedByFullQueueNotCounted()
+  {
+    List<Runnable> queue = new ArrayList<>();
+    // Queue of one request
+    tracker = new HotBlockTracker(conf, replicationRequests, ticker,
+        command -> {
+          if (!queue.isEmpty()) {
+            throw new RejectedExecutionException();
+          }
+          queue.add(command);
+        },
+        (host, remotePath, fileSize, lastModified, block, clusterType) -> requests.add(host + ":" + block));
+
+    for (int i = 0; i < 3; i++) {
+      tracker.recordRead("node1", TEST_REMOTE_PATH, TEST_FILE_LENGTH, TEST_LAST_MODIFIED, 0, 0, 10);
+    }
+    tracker.recordRead("node2", TEST_REMOTE_PATH, TEST_FILE_LENGTH, TEST_LAST_MODIFIED, 0, 0, 10);
+    assertEquals(replicationRequests.getCount(), 1, "Requests not queued should not be counted");
+
+    // Once the queue has room, the next read of the node whose request was dropped asks it again
+    queue.remove(0).run();
+    tracker.recordRead("node2", TEST_REMOTE_PATH, TEST_FILE_LENGTH, TEST_LAST_MODIFIED, 0, 0, 10);
+    queue.remove(0).run();
+    assertEquals(requests, Arrays.asList("node1:0", "node2:0"));
+    assertEquals(replicationRequests.getCount(), 2);
+  }
+}
@@ -0,0 +1,254 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.bookkeeper;
+
+import com.qubole.rubix.bookkeeper.LocalTransferEventLoop.Response;
+import com.qubole.rubix.spi.DataTransferClientHelper;
+import com.qubole.rubix.spi.DataTransferConnection;
+import com.qubole.rubix.spi.DataTransferHeader;
+import com.qubole.rubix.spi.DataTransferProtocol;
+import com.qubole.rubix.spi.DataTransferRequest;
+import org.apache.hadoop.conf.Configuration;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.qubole.rubix.spi.DataTransferProtocol.STATUS_NOT_CACHED;
+import static com.qubole.rubix.spi.DataTransferProtocol.STATUS_OK;
+import static com.qubole.rubix.spi.DataTransferProtocol.VERSION_2;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TestLocalTransferEventLoop
+{
+  private static final String TEST_FILE = System.getProperty("java.io.tmpdir") + "/TestLocalTransferEventLoop";
+  private static final int FILE_SIZE = 16 * 1024 * 1024;
+  // Ranges starting past this offset are answered as not cached
+  private static final int CACHED_SIZE = FILE_SIZE / 2;
+
+  private final Configuration conf = new Configuration();
+  private ExecutorService workers;
+  private LocalTransferEventLoop eventLoop;
+  private ServerSocketChannel listener;
+  private FileChannel file;
+
+  @BeforeMethod
+  public void setUp() throws IOException
+  {
+    try (RandomAccessFile data = new RandomAccessFile(TEST_FILE, "rw")) {
+      byte[] bytes = new byte[FILE_SIZE];
+      for (int i = 0; i < bytes.length; i++) {
+        bytes[i] = (byte) i;
+      }
+      data.write(bytes);
+    }
+    file = FileChannel.open(new File(TEST_FILE).toPath(), StandardOpenOption.READ);
+
+    workers = Executors.newFixedThreadPool(4);
+    eventLoop = new LocalTransferEventLoop(conf, new FileRequestHandler(file, CACHED_SIZE), workers);
+    new Thread(eventLoop).start();
+
+    listener = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0), Integer.MAX_VALUE);
+    new Thread(() -> {
+      try {
+        while (true) {
+          eventLoop.register(listener.accept());
+        }
+      }
+      catch (IOException e) {
+        // Closed by the test
+      }
+    }).start();
+  }
+
+  @AfterMethod
+  public void tearDown() throws IOException
+  {
+    listener.close();
+    eventLoop.stop();
+    workers.shutdownNow();
+    file.close();
+    new File(TEST_FILE).delete();
+  }
+
+  @Test
+  public void testManyConnections() throws Exception
+  {
+    int baseline = LocalTransferEventLoop.getOpenConnections();
+    List<SocketChannel> idleConnections = new ArrayList<>();
+    ExecutorService clients = Executors.newFixedThreadPool(8);
+    try {
+      for (int i = 0; i < 1000; i++) {
+        idleConnections.add(SocketChannel.open(listener.getLocalAddress()));
+      }
+
+      List<Future<?>> reads = new ArrayList<>();
+      for (int client = 0; client < 8; client++) {
+        int clientId = client;
+        reads.add(clients.submit(() -> {
+          try (DataTransferConnection connection = openConnection()) {
+            for (int i = 0; i < 50; i++) {
+              int offset = (clientId * 50 + i) * 1000 % (CACHED_SIZE - 2000);
+              ByteBuffer first = ByteBuffer.allocate(1000);
+              ByteBuffer second = ByteBuffer.allocate(100);
+              int[] statuses = connection.read(new DataTransferRequest(TEST_FILE, FILE_SIZE, 1, 1)
+                  .addRange(offset, 1000).addRange(CACHED_SIZE + offset, 100), Arrays.asList(first, second));
+
+              assertEquals(statuses, new int[] {STATUS_OK, STATUS_NOT_CACHED});
+              assertEquals(first.get(0), (byte) offset);
+              assertEquals(first.get(999), (byte) (offset + 999));
+            }
+          }
+          return null;
+        }));
+      }
+      for (Future<?> read : reads) {
+        read.get();
+      }
+      waitForOpenConnections(baseline + idleConnections.size());
+    }
+    finally {
+      clients.shutdownNow();
+      for (SocketChannel connection : idleConnections) {
+        connection.close();
+      }
+    }
+    waitForOpenConnections(baseline);
+  }
+
+  @Test
+  public void testHandshake() throws Exception
+  {
+    try (DataTransferConnection connection = openConnection()) {
+      assertEquals(connection.handshake(), VERSION_2);
+      ByteBuffer data = ByteBuffer.allocate(100);
+      int[] statuses = connection.read(new DataTransferRequest(TEST_FILE, FILE_SIZE, 1, 1).addRange(200, 100),
+          Arrays.asList(data));
+
+      assertEquals(statuses, new int[] {STATUS_OK});
+      assertEquals(data.get(99), (byte) 299);
+    }
+  }
+
+  @Test
+  public void testVersion1Requests() throws Exception
+  {
+    try (SocketChannel client = SocketChannel.open(listener.getLocalAddress())) {
+      for (int offset : new int[] {0, 5000}) {
+        client.write(DataTransferClientHelper.writeHeaders(conf, new DataTransferHeader(offset, 3000, FILE_SIZE, 1, 1, TEST_FILE)));
+        ByteBuffer data = ByteBuffer.allocate(3000);
+        DataTransferProtocol.readFully(client, data);
+        assertEquals(data.get(2999), (byte) (offset + 2999));
+      }
+
+      // The connection is closed if the data is not cached
+      client.write(DataTransferClientHelper.writeHeaders(conf, new DataTransferHeader(CACHED_SIZE, 10, FILE_SIZE, 1, 1, TEST_FILE)));
+      assertEquals(client.read(ByteBuffer.allocate(10)), -1);
+    }
+  }
+
+  @Test
+  public void testSlowClient() throws Exception
+  {
+    try (SocketChannel client = SocketChannel.open()) {
+      client.setOption(StandardSocketOptions.SO_RCVBUF, 4096);
+      client.connect(listener.getLocalAddress());
+      client.write(DataTransferClientHelper.writeHeaders(conf, new DataTransferHeader(0, CACHED_SIZE, FILE_SIZE, 1, 1, TEST_FILE)));
+
+      // The response does not fit in the socket buffers while the client does not read
+      long deadline = System.currentTimeMillis() + 10000;
+      while (LocalTransferEventLoop.getWriteBlockedConnections() == 0 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertEquals(LocalTransferEventLoop.getWriteBlockedConnections(), 1);
+      assertTrue(LocalTransferEventLoop.getQueuedResponseBytes() > 0, "Unsent data should be queued");
+
+      ByteBuffer data = ByteBuffer.allocate(CACHED_SIZE);
+      DataTransferProtocol.readFully(client, data);
+      assertEquals(data.get(CACHED_SIZE - 1), (byte) (CACHED_SIZE - 1));
+    }
+  }
+
+  private DataTransferConnection openConnection() throws IOException
+  {
+    return new DataTransferConnection("localhost", SocketChannel.open(listener.getLocalAddress()), 0, 1024);
+  }
+
+  private static void waitForOpenConnections(int expected) throws InterruptedException
+  {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (LocalTransferEventLoop.getOpenConnections() != expected && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(LocalTransferEventLoop.getOpenConnections(), expected);
+  }
+
+  /**
+   * Serves the start of the file as cached
+   */
+  static class FileRequestHandler
+      implements LocalTransferEventLoop.RequestHandler
+  {
+    private final FileChannel file;
+    private final long cachedSize;
+
+    FileRequestHandler(FileChannel file, long cachedSize)
+    {
+      this.file = file;
+      this.cachedSize = cachedSize;
+    }
+
+    @Override
+    public Response serve(InetSocketAddress client, DataTransferHeader header)
+    {
+      if (header.getOffset() + header.getReadLength() > cachedSize) {
+        return null;
+      }
+      return new Response().add(file, header.getOffset(), header.getReadLength());
+    }
+
+    @Override
+    public Response serve(InetSocketAddress client, DataTransferRequest request)
+    {
+      Response response = new Response();
+      response.add((ByteBuffer) ByteBuffer.allocate(DataTransferProtocol.RESPONSE_HEADER_SIZE)
+          .putLong(request.getRequestId()).putInt(request.getRangeCount()).flip());
+      for (int i = 0; i < request.getRangeCount(); i++) {
+        boolean cached = request.getOffset(i) + request.getLength(i) <= cachedSize;
+        response.add((ByteBuffer) ByteBuffer.allocate(DataTransferProtocol.RANGE_HEADER_SIZE)
+            .putInt(cached ? STATUS_OK : STATUS_NOT_CACHED).putInt(cached ? request.getLength(i) : 0).flip());
+        if (cached) {
+          response.add(file, request.getOffset(i), request.getLength(i));
+        }
+      }
+      return response;
+    }
+  }
+}
@@ -0,0 +1,286 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.common.cache;
+
+import com.qubole.rubix.common.cache.FileChannelCache.CachedFileChannel;
+import com.qubole.rubix.spi.CacheConfig;
+import com.qubole.rubix.spi.CacheUtil;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Per block checksums of a local cache file, stored in its mdfile right after the bitmap of cached blocks.
+ *
+ * The entry of block N takes ENTRY_SIZE bytes at getChecksumsStart + N * ENTRY_SIZE of the mdfile and holds the
+ * algorithm and the checksum of the uncompressed data of the block. Blocks are checksummed with CRC32C when the
+ * JVM provides it (Java 9+), CRC32 otherwise, and verified with the algorithm they were written with so that
+ * processes running on different JVMs can share the cache. An entry of zeros means the block has no checksum.
+ */
+public class BlockChecksums
+{
+  private static final Log log = LogFactory.getLog(BlockChecksums.class);
+
+  public static final int ENTRY_SIZE = 8;
+
+  private static final int NO_CHECKSUM = 0;
+  private static final int ALGORITHM_CRC32 = 1;
+  private static final int ALGORITHM_CRC32C = 2;
+
+  private static final Constructor<? extends Checksum> crc32cConstructor = findCrc32c();
+
+  private static final AtomicLong verifiedBlocks = new AtomicLong();
+  private static final AtomicLong corruptedBlocks = new AtomicLong();
+  private static final AtomicLong verificationNanos = new AtomicLong();
+
+  private final Configuration conf;
+  private final String mdFilePath;
+  private final long fileSize;
+  private final int blockSize;
+  private final long checksumsStart;
+
+  BlockChecksums(Configuration conf, String mdFilePath, long fileSize, int blockSize)
+  {
+    this.conf = conf;
+    this.mdFilePath = mdFilePath;
+    this.fileSize = fileSize;
+    this.blockSize = blockSize;
+    this.checksumsStart = getChecksumsStart(fileSize, blockSize);
+  }
+
+  /**
+   * Returns the checksums of the local cache file of the remote file, null if block checksums are disabled
+   */
+  public static BlockChecksums forFile(String remotePath, long fileSize, int blockSize, int generationNumber, Configuration conf)
+  {
+    if (!CacheConfig.isBlockChecksumEnabled(conf)) {
+      return null;
+    }
+    return new BlockChecksums(conf, CacheUtil.getMetadataFilePath(remotePath, conf, generationNumber), fileSize, blockSize);
+  }
+
+  /**
+   * Returns the offset of the checksums in the mdfile, right after its header and the bitmap of cached blocks
+   */
+  public static long getChecksumsStart(long fileSize, int blockSize)
+  {
+    long blocks = (fileSize + blockSize - 1) / blockSize;
+    return CacheUtil.METADATA_HEADER_SIZE + (blocks + 7) / 8;
+  }
+
+  private static Constructor<? extends Checksum> findCrc32c()
+  {
+    try {
+      return Class.forName("java.util.zip.CRC32C").asSubclass(Checksum.class).getConstructor();
+    }
+    catch (ReflectiveOperationException e) {
+      log.info("CRC32C is not available, block checksums use CRC32");
+      return null;
+    }
+  }
+
+  /**
+   * Computes and stores the checksums of the remaining bytes of `data`, the data of the remote file starting at
+   * the block aligned `position`. All blocks but the last one of the file must be complete.
+   */
+  public void write(long position, ByteBuffer data)
+      throws IOException
+  {
+    checkArgument(position % blockSize == 0, "Position %s is not aligned to block size %s", position, blockSize);
+    ByteBuffer source = data.duplicate();
+    long firstBlock = position / blockSize;
+    int blocks = (source.remaining() + blockSize - 1) / blockSize;
+    ByteBuffer entries = ByteBuffer.allocate(blocks * ENTRY_SIZE);
+    byte[] block = new byte[Math.min(blockSize, source.remaining())];
+    while (source.hasRemaining()) {
+      int length = Math.min(blockSize, source.remaining());
+      source.get(block, 0, length);
+      int algorithm = crc32cConstructor != null ? ALGORITHM_CRC32C : ALGORITHM_CRC32;
+      entries.putInt(algorithm);
+      entries.putInt((int) checksum(algorithm, block, length));
+    }
+    entries.flip();
+
+    CachedFileChannel mdFile = FileChannelCache.open(conf, mdFilePath);
+    try {
+      long entriesStart = checksumsStart + firstBlock * ENTRY_SIZE;
+      while (entries.hasRemaining()) {
+        mdFile.getChannel().write(entries, entriesStart + entries.position());
+      }
+    }
+    finally {
+      mdFile.release();
+    }
+  }
+
+  /**
+   * Fills the remaining bytes of `destination` with the data of the remote file starting at `position`, reading
+   * the blocks covering the range as a whole to verify them against their checksums. `compressedFile` is the
+   * layout of the local file, null if it is not compressed.
+   *
+   * @return the number of bytes read, short if a block of the range is not in the file
+   * @throws CorruptedBlockException if the data of a block does not match its checksum, in which case
+   * `destination` may be partially filled
+   */
+  public int readVerified(FileChannel fileChannel, CompressedCacheFile compressedFile, long position, ByteBuffer destination)
+      throws IOException
+  {
+    long end = Math.min(position + destination.remaining(), fileSize);
+    if (position >= end) {
+      return 0;
+    }
+    long firstBlock = position / blockSize;
+    long lastBlock = (end - 1) / blockSize;
+    ByteBuffer entries = readEntries(firstBlock, lastBlock);
+
+    ByteBuffer block = ByteBuffer.allocate(blockSize);
+    int nread = 0;
+    for (long blockNum = firstBlock; blockNum <= lastBlock; blockNum++) {
+      long blockStart = blockNum * blockSize;
+      block.clear();
+      block.limit((int) Math.min(blockSize, fileSize - blockStart));
+      if (!readBlock(fileChannel, compressedFile, blockStart, block)) {
+        break;
+      }
+      verify(blockNum, block, entries, (int) (blockNum - firstBlock) * ENTRY_SIZE);
+
+      block.position((int) (Math.max(position, blockStart) - blockStart));
+      block.limit((int) (Math.min(end, blockStart + block.limit()) - blockStart));
+      nread += block.remaining();
+      destination.put(block);
+    }
+    return nread;
+  }
+
+  private ByteBuffer readEntries(long firstBlock, long lastBlock)
+      throws IOException
+  {
+    ByteBuffer entries = ByteBuffer.allocate((int) (lastBlock - firstBlock + 1) * ENTRY_SIZE);
+    CachedFileChannel mdFile = FileChannelCache.open(conf, mdFilePath);
+    try {
+      long entriesStart = checksumsStart + firstBlock * ENTRY_SIZE;
+      while (entries.hasRemaining()) {
+        if (mdFile.getChannel().read(entries, entriesStart + entries.position()) < 0) {
+          // Entries beyond the end of the mdfile were never written
+          break;
+        }
+      }
+    }
+    finally {
+      mdFile.release();
+    }
+    entries.clear();
+    return entries;
+  }
+
+  // Reads the remaining bytes of the block, returns false if it is not complete in the file
+  private static boolean readBlock(FileChannel fileChannel, CompressedCacheFile compressedFile, long blockStart, ByteBuffer block)
+      throws IOException
+  {
+    if (compressedFile != null) {
+      int length = block.remaining();
+      boolean complete = compressedFile.read(fileChannel, blockStart, block) == length;
+      block.flip();
+      return complete;
+    }
+    while (block.hasRemaining()) {
+      if (fileChannel.read(block, blockStart + block.position()) < 0) {
+        return false;
+      }
+    }
+    block.flip();
+    return true;
+  }
+
+  private void verify(long blockNum, ByteBuffer block, ByteBuffer entries, int entry)
+      throws CorruptedBlockException
+  {
+    int algorithm = entries.getInt(entry);
+    if (algorithm == NO_CHECKSUM || (algorithm == ALGORITHM_CRC32C && crc32cConstructor == null)) {
+      // Written before checksums were enabled, or with an algorithm this JVM does not provide
+      return;
+    }
+
+    long start = System.nanoTime();
+    long checksum = checksum(algorithm, block.array(), block.limit());
+    verificationNanos.addAndGet(System.nanoTime() - start);
+    verifiedBlocks.incrementAndGet();
+    if ((int) checksum != entries.getInt(entry + 4)) {
+      corruptedBlocks.incrementAndGet();
+      throw new CorruptedBlockException(blockNum, mdFilePath);
+    }
+  }
+
+  private static long checksum(int algorithm, byte[] data, int length)
+  {
+    Checksum checksum;
+    if (algorithm == ALGORITHM_CRC32C) {
+      try {
+        checksum = crc32cConstructor.newInstance();
+      }
+      catch (ReflectiveOperationException e) {
+        throw new IllegalStateException("Could not create CRC32C checksum", e);
+      }
+    }
+    else {
+      checksum = new CRC32();
+    }
+    checksum.update(data, 0, length);
+    return checksum.getValue();
+  }
+
+  public static long getVerifiedBlocks()
+  {
+    return verifiedBlocks.get();
+  }
+
+  public static long getCorruptedBlocks()
+  {
+    return corruptedBlocks.get();
+  }
+
+  public static long getVerificationTimeMillis()
+  {
+    return verificationNanos.get() / 1_000_000;
+  }
+
+  /**
+   * Thrown when the data of a cached block does not match its checksum
+   */
+  public static class CorruptedBlockException
+      extends IOException
+  {
+    private final long block;
+
+    public CorruptedBlockException(long block, String mdFilePath)
+    {
+      super(String.format("Checksum mismatch for block %d of the cache file of %s", block, mdFilePath));
+      this.block = block;
+    }
+
+    public long getBlock()
+    {
+      return block;
+    }
+  }
+}
@@ -0,0 +1,276 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.common.cache;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.qubole.rubix.spi.CacheConfig;
+import com.qubole.rubix.spi.CacheUtil;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.CompressionInputStream;
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.io.compress.Compressor;
+import org.apache.hadoop.io.compress.Decompressor;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Block compressed layout of a local cache file, used for the files selected by CacheUtil.isCompressedFile.
+ *
+ * Block N of the remote file is stored in the slot of blockSize + HEADER_SIZE bytes starting at
+ * N * (blockSize + HEADER_SIZE) of the local file, so the slots form a fixed offset index and blocks are written
+ * independently of each other. A slot starts with the uncompressed and the stored length of the block, followed
+ * by the stored data: compressed with the configured codec, or as is if it does not compress. The unused end of
+ * a slot is never written, cache files are sparse so it takes no disk space.
+ */
+public class CompressedCacheFile
+{
+  private static final Log log = LogFactory.getLog(CompressedCacheFile.class);
+
+  public static final int HEADER_SIZE = 8;
+
+  private static final ConcurrentMap<String, CompressionCodec> codecs = new ConcurrentHashMap<>();
+
+  private static final AtomicLong uncompressedBytes = new AtomicLong();
+  private static final AtomicLong storedBytes = new AtomicLong();
+  private static final AtomicLong compressionNanos = new AtomicLong();
+  private static final AtomicLong decompressionNanos = new AtomicLong();
+
+  private final CompressionCodec codec;
+  private final int blockSize;
+
+  @VisibleForTesting
+  CompressedCacheFile(CompressionCodec codec, int blockSize)
+  {
+    this.codec = codec;
+    this.blockSize = blockSize;
+  }
+
+  /**
+   * Returns the layout of the local cache file of the remote file, null if its blocks are stored uncompressed
+   */
+  public static CompressedCacheFile forFile(String remotePath, int blockSize, Configuration conf)
+  {
+    if (!CacheUtil.isCompressedFile(remotePath, conf)) {
+      return null;
+    }
+    return new CompressedCacheFile(getCodec(CacheConfig.getCompressionCodec(conf), conf), blockSize);
+  }
+
+  private static CompressionCodec getCodec(String name, Configuration conf)
+  {
+    return codecs.computeIfAbsent(name, codecName -> {
+      CompressionCodec codec = new CompressionCodecFactory(conf).getCodecByName(codecName);
+      if (codec != null) {
+        try {
+          // Codecs like lz4 and zstd of older Hadoop versions need the native hadoop library
+          CodecPool.returnCompressor(CodecPool.getCompressor(codec));
+          CodecPool.returnDecompressor(CodecPool.getDecompressor(codec));
+          return codec;
+        }
+        catch (RuntimeException | UnsatisfiedLinkError e) {
+          log.warn("Compression codec " + codecName + " is not available, falling back to deflate", e);
+        }
+      }
+      else {
+        log.warn("Unknown compression codec " + codecName + ", falling back to deflate");
+      }
+      return ReflectionUtils.newInstance(DefaultCodec.class, conf);
+    });
+  }
+
+  public CompressionCodec getCompressionCodec()
+  {
+    return codec;
+  }
+
+  public long getSlotStart(long block)
+  {
+    return block * (blockSize + HEADER_SIZE);
+  }
+
+  /**
+   * Stores the remaining bytes of `data`, the data of the remote file starting at the block aligned `position`.
+   * All blocks but the last one of the file must be complete.
+   *
+   * @return the number of bytes written to the file
+   */
+  public long write(FileChannel fileChannel, long position, ByteBuffer data)
+      throws IOException
+  {
+    checkArgument(position % blockSize == 0, "Position %s is not aligned to block size %s", position, blockSize);
+    long written = 0;
+    for (long block = position / blockSize; data.hasRemaining(); block++) {
+      byte[] uncompressed = new byte[Math.min(blockSize, data.remaining())];
+      data.get(uncompressed);
+      byte[] compressed = compress(uncompressed);
+      boolean useCompressed = compressed.length < uncompressed.length;
+      byte[] stored = useCompressed ? compressed : uncompressed;
+
+      ByteBuffer slot = ByteBuffer.allocate(HEADER_SIZE + stored.length);
+      slot.putInt(uncompressed.length);
+      slot.putInt(stored.length);
+      slot.put(stored);
+      slot.flip();
+      long slotStart = getSlotStart(block);
+      while (slot.hasRemaining()) {
+        written += fileChannel.write(slot, slotStart + slot.position());
+      }
+      uncompressedBytes.addAndGet(uncompressed.length);
+      storedBytes.addAndGet(stored.length);
+    }
+    return written;
+  }
+
+  /**
+   * Fills the remaining bytes of `destination` with the data of the remote file starting at `position`.
+   *
+   * @return the number of bytes read, short if a block of the range is not in the file
+   */
+  public int read(FileChannel fileChannel, long position, ByteBuffer destination)
+      throws IOException
+  {
+    int nread = 0;
+    while (destination.hasRemaining()) {
+      long block = (position + nread) / blockSize;
+      byte[] data = readBlock(fileChannel, block);
+      int offset = (int) (position + nread - block * blockSize);
+      if (data == null || offset >= data.length) {
+        break;
+      }
+      int length = Math.min(destination.remaining(), data.length - offset);
+      destination.put(data, offset, length);
+      nread += length;
+    }
+    return nread;
+  }
+
+  /**
+   * Returns the number of bytes the block takes in the file, 0 if it is not in the file
+   */
+  public long getStoredLength(FileChannel fileChannel, long block)
+      throws IOException
+  {
+    ByteBuffer header = readHeader(fileChannel, block);
+    return header == null ? 0 : HEADER_SIZE + header.getInt(4);
+  }
+
+  // Returns the uncompressed data of the block, null if it is not in the file
+  private byte[] readBlock(FileChannel fileChannel, long block)
+      throws IOException
+  {
+    ByteBuffer header = readHeader(fileChannel, block);
+    if (header == null) {
+      return null;
+    }
+    int uncompressedLength = header.getInt(0);
+    int storedLength = header.getInt(4);
+    if (uncompressedLength > blockSize || storedLength > uncompressedLength) {
+      throw new IOException(String.format("Corrupted header of block %d: uncompressed length %d, stored length %d", block, uncompressedLength, storedLength));
+    }
+
+    ByteBuffer stored = ByteBuffer.allocate(storedLength);
+    long storedStart = getSlotStart(block) + HEADER_SIZE;
+    while (stored.hasRemaining()) {
+      if (fileChannel.read(stored, storedStart + stored.position()) < 0) {
+        return null;
+      }
+    }
+    if (storedLength == uncompressedLength) {
+      return stored.array();
+    }
+    return decompress(stored.array(), uncompressedLength);
+  }
+
+  private ByteBuffer readHeader(FileChannel fileChannel, long block)
+      throws IOException
+  {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    long slotStart = getSlotStart(block);
+    while (header.hasRemaining()) {
+      if (fileChannel.read(header, slotStart + header.position()) < 0) {
+        return null;
+      }
+    }
+    // Slots of blocks not written yet read as zeros
+    return header.getInt(0) == 0 ? null : header;
+  }
+
+  private byte[] compress(byte[] data)
+      throws IOException
+  {
+    long start = System.nanoTime();
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length);
+    Compressor compressor = CodecPool.getCompressor(codec);
+    try (CompressionOutputStream outputStream = codec.createOutputStream(compressed, compressor)) {
+      outputStream.write(data);
+    }
+    finally {
+      CodecPool.returnCompressor(compressor);
+    }
+    compressionNanos.addAndGet(System.nanoTime() - start);
+    return compressed.toByteArray();
+  }
+
+  private byte[] decompress(byte[] data, int uncompressedLength)
+      throws IOException
+  {
+    long start = System.nanoTime();
+    byte[] uncompressed = new byte[uncompressedLength];
+    Decompressor decompressor = CodecPool.getDecompressor(codec);
+    try (CompressionInputStream inputStream = codec.createInputStream(new ByteArrayInputStream(data), decompressor)) {
+      IOUtils.readFully(inputStream, uncompressed, 0, uncompressedLength);
+    }
+    finally {
+      CodecPool.returnDecompressor(decompressor);
+    }
+    decompressionNanos.addAndGet(System.nanoTime() - start);
+    return uncompressed;
+  }
+
+  /**
+   * Returns the ratio of the size of the data written to the compressed cache files of this process to the size
+   * it takes in them, 1 if nothing was written
+   */
+  public static double getCompressionRatio()
+  {
+    long stored = storedBytes.get();
+    return stored == 0 ? 1 : (double) uncompressedBytes.get() / stored;
+  }
+
+  public static long getCompressionTimeMillis()
+  {
+    return compressionNanos.get() / 1_000_000;
+  }
+
+  public static long getDecompressionTimeMillis()
+  {
+    return decompressionNanos.get() / 1_000_000;
+  }
+}
@@ -0,0 +1,49 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.common.cache;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.util.CleanerUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Frees the memory of direct buffers without waiting for the garbage collector, so off-heap memory bounded by
+ * a configured limit is given back to the OS when the buffers are no longer used.
+ *
+ * The buffer and all its views must not be accessed after it is freed.
+ */
+public final class DirectBuffers
+{
+  private static final Log log = LogFactory.getLog(DirectBuffers.class);
+
+  private DirectBuffers()
+  {
+  }
+
+  public static void free(ByteBuffer buffer)
+  {
+    if (buffer == null || !buffer.isDirect() || !CleanerUtil.UNMAP_SUPPORTED) {
+      return;
+    }
+    try {
+      CleanerUtil.getCleaner().freeBuffer(buffer);
+    }
+    catch (IOException | RuntimeException | LinkageError e) {
+      // Freeing relies on JDK internals, the memory is released on garbage collection instead
+      log.debug("Could not free buffer", e);
+    }
+  }
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.common.cache;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Paths;
+
+import static com.google.common.base.Preconditions.checkState;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Writes to local cache files bypassing the page cache (O_DIRECT), available on JDK 10 and later.
+ *
+ * The JDK support is looked up by reflection as RubiX is built for Java 8. Direct writes need the address of the
+ * buffer, the position in the file and the length to be multiples of the block size of the filesystem, callers
+ * write the unaligned parts of their data through a regular channel.
+ */
+public final class DirectIo
+{
+  private static final Log log = LogFactory.getLog(DirectIo.class);
+
+  private static final int DEFAULT_ALIGNMENT = 4096;
+
+  private static final OpenOption DIRECT = getDirectOpenOption();
+  private static final Method ALIGNED_SLICE = getMethod(ByteBuffer.class, "alignedSlice", int.class);
+  private static final Method GET_BLOCK_SIZE = getMethod(FileStore.class, "getBlockSize");
+
+  private DirectIo()
+  {
+  }
+
+  public static boolean isSupported()
+  {
+    return DIRECT != null && ALIGNED_SLICE != null;
+  }
+
+  /**
+   * Opens the local cache file for direct writes, the file must exist
+   */
+  public static FileChannel openForWrite(String localPath)
+      throws IOException
+  {
+    checkState(isSupported(), "Direct I/O is not supported by this JVM");
+    return FileChannel.open(Paths.get(localPath), WRITE, DIRECT);
+  }
+
+  /**
+   * Returns the alignment direct I/O needs on the filesystem of the local file
+   */
+  public static int getAlignment(String localPath)
+  {
+    if (GET_BLOCK_SIZE != null) {
+      try {
+        return Math.toIntExact((long) GET_BLOCK_SIZE.invoke(Files.getFileStore(Paths.get(localPath))));
+      }
+      catch (IOException | ReflectiveOperationException | RuntimeException e) {
+        log.debug("Could not get block size of the filesystem of " + localPath, e);
+      }
+    }
+    return DEFAULT_ALIGNMENT;
+  }
+
+  /**
+   * Returns the part of the direct buffer starting at an aligned address, its capacity is a multiple of the alignment
+   */
+  public static ByteBuffer alignedSlice(ByteBuffer buffer, int alignment)
+  {
+    checkState(isSupported(), "Direct I/O is not supported by this JVM");
+    ByteBuffer whole = buffer.duplicate();
+    whole.clear();
+    try {
+      return ((ByteBuffer) ALIGNED_SLICE.invoke(whole, alignment)).slice();
+    }
+    catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("Could not align buffer", e);
+    }
+  }
+
+  private static OpenOption getDirectOpenOption()
+  {
+    try {
+      Class<?> extendedOpenOption = Class.forName("com.sun.nio.file.ExtendedOpenOption");
+      for (Object option : extendedOpenOption.getEnumConstants()) {
+        if ("DIRECT".equals(((Enum<?>) option).name())) {
+          return (OpenOption) option;
+        }
+      }
+    }
+    catch (ClassNotFoundException | RuntimeException e) {
+      log.debug("Direct I/O is not available", e);
+    }
+    return null;
+  }
+
+  private static Method getMethod(Class<?> clazz, String name, Class<?>... parameterTypes)
+  {
+    try {
+      return clazz.getMethod(name, parameterTypes);
+    }
+    catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,200 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.common.cache;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.qubole.rubix.spi.CacheConfig;
+import com.qubole.rubix.spi.CacheUtil;
+import org.apache.hadoop.conf.Configuration;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process wide scheduler of the I/O on the cache disks.
+ *
+ * Each disk runs at most rubix.cache.disk.io.queue.depth operations at a time, further operations wait for a slot
+ * and get it in priority order, first come first served within a priority. A slot covers one operation of the
+ * caller, like copying a read request out of the cache or writing a downloaded chunk, and is held for its
+ * duration only, never while waiting for the network. Operations run unscheduled if the queue depth is 0.
+ *
+ * Slots are only shared within a process. When the BookKeeper runs as a daemon, the reads of the clients and the
+ * downloads and serving of the BookKeeper are scheduled by different instances and do not wait for each other, so
+ * a disk can run up to the queue depth of each process at once.
+ */
+public class DiskIoScheduler
+{
+  private static DiskIoScheduler instance;
+
+  /**
+   * Priority classes of disk I/O, the most latency sensitive first
+   */
+  public enum Priority
+  {
+    FOREGROUND_READ,
+    NON_LOCAL_SERVE,
+    READ_THROUGH_WRITE,
+    BACKGROUND
+  }
+
+  /**
+   * Slot to run an operation on a disk, given back when closed
+   */
+  public interface Slot
+      extends AutoCloseable
+  {
+    @Override
+    void close();
+  }
+
+  private static final Slot UNSCHEDULED = () -> {};
+
+  private final int queueDepth;
+  private final List<String> diskPaths;
+  private final Map<String, DiskQueue> diskQueues = new ConcurrentHashMap<>();
+  private final AtomicLongArray queueNanos = new AtomicLongArray(Priority.values().length);
+  private final AtomicLongArray operations = new AtomicLongArray(Priority.values().length);
+
+  @VisibleForTesting
+  DiskIoScheduler(int queueDepth, Collection<String> diskPaths)
+  {
+    this.queueDepth = queueDepth;
+    this.diskPaths = new ArrayList<>(diskPaths);
+  }
+
+  public static synchronized DiskIoScheduler getInstance(Configuration conf)
+  {
+    if (instance == null) {
+      instance = new DiskIoScheduler(CacheConfig.getDiskIoQueueDepth(conf), CacheUtil.getCacheDiskPathsMap(conf).values());
+    }
+    return instance;
+  }
+
+  /**
+   * Waits for a slot to run an operation on the disk of the local file
+   */
+  public Slot acquire(String localPath, Priority priority)
+      throws InterruptedIOException
+  {
+    operations.incrementAndGet(priority.ordinal());
+    if (queueDepth <= 0) {
+      return UNSCHEDULED;
+    }
+
+    DiskQueue diskQueue = diskQueues.computeIfAbsent(getDisk(localPath), disk -> new DiskQueue());
+    long start = System.nanoTime();
+    diskQueue.acquire(priority);
+    queueNanos.addAndGet(priority.ordinal(), System.nanoTime() - start);
+    return diskQueue::release;
+  }
+
+  // Files outside of the cache disks share one queue
+  private String getDisk(String localPath)
+  {
+    for (String diskPath : diskPaths) {
+      if (localPath.startsWith(diskPath + "/")) {
+        return diskPath;
+      }
+    }
+    return "";
+  }
+
+  /**
+   * Returns the total time in ms operations of the priority waited for a slot
+   */
+  public long getQueueTimeMillis(Priority priority)
+  {
+    return TimeUnit.NANOSECONDS.toMillis(queueNanos.get(priority.ordinal()));
+  }
+
+  public long getOperations(Priority priority)
+  {
+    return operations.get(priority.ordinal());
+  }
+
+  private class DiskQueue
+  {
+    private final PriorityQueue<Waiter> waiters = new PriorityQueue<>();
+    private int running;
+    private long sequence;
+
+    synchronized void acquire(Priority priority)
+        throws InterruptedIOException
+    {
+      if (running < queueDepth && waiters.isEmpty()) {
+        running++;
+        return;
+      }
+
+      Waiter waiter = new Waiter(priority, sequence++);
+      waiters.add(waiter);
+      try {
+        while (!waiter.granted) {
+          wait();
+        }
+      }
+      catch (InterruptedException e) {
+        if (waiter.granted) {
+          release();
+        }
+        else {
+          waiters.remove(waiter);
+        }
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for disk I/O slot");
+      }
+    }
+
+    // The slot goes to the first waiter, if any
+    synchronized void release()
+    {
+      Waiter next = waiters.poll();
+      if (next == null) {
+        running--;
+        return;
+      }
+      next.granted = true;
+      notifyAll();
+    }
+  }
+
+  private static class Waiter
+      implements Comparable<Waiter>
+  {
+    private final Priority priority;
+    private final long sequence;
+    private boolean granted;
+
+    Waiter(Priority priority, long sequence)
+    {
+      this.priority = priority;
+      this.sequence = sequence;
+    }
+
+    @Override
+    public int compareTo(Waiter other)
+    {
+      if (priority != other.priority) {
+        return priority.compareTo(other.priority);
+      }
+      return Long.compare(sequence, other.sequence);
+    }
+  }
+}
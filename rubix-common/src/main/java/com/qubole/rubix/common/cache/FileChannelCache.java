@@ -0,0 +1,209 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.common.cache;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.qubole.rubix.spi.CacheConfig;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Process wide LRU of open channels to local cache files, shared by readers and writers of the files.
+ *
+ * Local cache files are named after the generation number of the remote file, so the local path identifies both.
+ * Channels are reference counted: a channel removed from the cache, on eviction or when its file is deleted,
+ * is closed once the last user releases it.
+ */
+public class FileChannelCache
+{
+  private static final Log log = LogFactory.getLog(FileChannelCache.class);
+
+  private static final AtomicLong openHandles = new AtomicLong();
+  private static FileChannelCache instance;
+
+  private final Cache<String, CachedFileChannel> channels;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  @VisibleForTesting
+  FileChannelCache(int maxOpenFiles)
+  {
+    this.channels = CacheBuilder.newBuilder()
+        .maximumSize(maxOpenFiles)
+        .removalListener((RemovalListener<String, CachedFileChannel>) notification -> {
+          log.debug("Closing channel of " + notification.getKey() + " due to " + notification.getCause());
+          notification.getValue().evict();
+        })
+        .build();
+  }
+
+  public static synchronized FileChannelCache getInstance(Configuration conf)
+  {
+    if (instance == null) {
+      instance = new FileChannelCache(CacheConfig.getFileHandleCacheSize(conf));
+    }
+    return instance;
+  }
+
+  /**
+   * Opens the local cache file for reading and writing, through the cache if it is enabled. The returned channel
+   * must be released, not closed, once done.
+   *
+   * @throws FileNotFoundException if the file does not exist, files are never created here
+   */
+  public static CachedFileChannel open(Configuration conf, String localPath)
+      throws IOException
+  {
+    if (CacheConfig.isFileHandleCacheEnabled(conf)) {
+      return getInstance(conf).acquire(localPath);
+    }
+    // Not shared, the only reference is the caller's so the channel is closed on release
+    return openChannel(localPath);
+  }
+
+  /**
+   * Drops the channel of the local file, if any. Called when the file is deleted or found to be corrupted.
+   */
+  public static void invalidateChannel(String localPath)
+  {
+    FileChannelCache fileChannelCache;
+    synchronized (FileChannelCache.class) {
+      fileChannelCache = instance;
+    }
+    if (fileChannelCache != null) {
+      fileChannelCache.invalidate(localPath);
+    }
+  }
+
+  /**
+   * Returns the number of channels to local cache files currently open, including the ones not cached
+   */
+  public static long getOpenHandles()
+  {
+    return openHandles.get();
+  }
+
+  public CachedFileChannel acquire(String localPath)
+      throws IOException
+  {
+    while (true) {
+      CachedFileChannel channel = channels.getIfPresent(localPath);
+      if (channel != null && !channel.getChannel().isOpen()) {
+        // Channels are closed if a thread using it is interrupted
+        channels.asMap().remove(localPath, channel);
+        channel = null;
+      }
+
+      if (channel == null) {
+        misses.incrementAndGet();
+        CachedFileChannel newChannel = openChannel(localPath);
+        channel = channels.asMap().putIfAbsent(localPath, newChannel);
+        if (channel == null) {
+          channel = newChannel;
+        }
+        else {
+          newChannel.evict();
+        }
+      }
+      else {
+        hits.incrementAndGet();
+      }
+
+      if (channel.retain()) {
+        return channel;
+      }
+      // Lost the race with eviction of this channel, retry with a fresh one
+    }
+  }
+
+  public void invalidate(String localPath)
+  {
+    channels.invalidate(localPath);
+  }
+
+  @VisibleForTesting
+  public void invalidateAll()
+  {
+    channels.invalidateAll();
+  }
+
+  public double getHitRate()
+  {
+    long requests = hits.get() + misses.get();
+    return requests == 0 ? 0 : (double) hits.get() / requests;
+  }
+
+  @VisibleForTesting
+  long size()
+  {
+    return channels.size();
+  }
+
+  private static CachedFileChannel openChannel(String localPath)
+      throws IOException
+  {
+    try {
+      FileChannel channel = FileChannel.open(Paths.get(localPath), READ, WRITE);
+      openHandles.incrementAndGet();
+      return new CachedFileChannel(channel);
+    }
+    catch (NoSuchFileException e) {
+      throw new FileNotFoundException(String.format("File does not exists %s", localPath));
+    }
+  }
+
+  public static class CachedFileChannel
+      extends ReferenceCounted
+  {
+    private final FileChannel channel;
+
+    private CachedFileChannel(FileChannel channel)
+    {
+      this.channel = channel;
+    }
+
+    /**
+     * Returns the shared channel, only positional reads and writes may be used on it
+     */
+    public FileChannel getChannel()
+    {
+      return channel;
+    }
+
+    @Override
+    protected void deallocate()
+    {
+      openHandles.decrementAndGet();
+      try {
+        channel.close();
+      }
+      catch (IOException e) {
+        log.warn("Could not close file channel", e);
+      }
+    }
+  }
+}
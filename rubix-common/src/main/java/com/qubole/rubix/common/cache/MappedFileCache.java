@@ -0,0 +1,195 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.common.cache;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.Weigher;
+import com.qubole.rubix.spi.CacheConfig;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.nativeio.NativeIO;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static com.qubole.rubix.spi.utils.DataSizeUnits.BYTES;
+
+/**
+ * Process wide cache of read-only mappings of local cache files.
+ *
+ * Local cache files are named after the generation number of the remote file, so a mapping is never shared across
+ * generations. Mappings are reference counted: a mapping removed from the cache, on eviction or invalidation,
+ * is unmapped once the last reader releases it.
+ */
+public class MappedFileCache
+{
+  private static final Log log = LogFactory.getLog(MappedFileCache.class);
+
+  private static MappedFileCache instance;
+
+  private final Cache<String, MappedFile> mappedFiles;
+
+  @VisibleForTesting
+  MappedFileCache(long maxMappedSize)
+  {
+    this.mappedFiles = CacheBuilder.newBuilder()
+        .weigher((Weigher<String, MappedFile>) (path, mappedFile) -> Math.toIntExact(BYTES.toKB(mappedFile.getSize())))
+        .maximumWeight(BYTES.toKB(maxMappedSize))
+        .removalListener((RemovalListener<String, MappedFile>) notification -> {
+          log.debug("Unmapping " + notification.getKey() + " due to " + notification.getCause());
+          notification.getValue().evict();
+        })
+        .build();
+  }
+
+  public static synchronized MappedFileCache getInstance(Configuration conf)
+  {
+    if (instance == null) {
+      instance = new MappedFileCache(CacheConfig.getMmapMaxMappedSize(conf));
+    }
+    return instance;
+  }
+
+  /**
+   * Drops the mapping of the local file, if any. Called when the file is deleted or found to be corrupted.
+   */
+  public static void invalidateMapping(String localPath)
+  {
+    MappedFileCache mappedFileCache;
+    synchronized (MappedFileCache.class) {
+      mappedFileCache = instance;
+    }
+    if (mappedFileCache != null) {
+      mappedFileCache.invalidate(localPath);
+    }
+  }
+
+  /**
+   * Returns the mapping of the local file with a reference held on it, the caller must release it once done.
+   * The file is remapped if it has grown beyond `minSize` since it was mapped.
+   *
+   * @return the mapping or null if the file is too large to be mapped in a single buffer
+   */
+  public MappedFile acquire(String localPath, long minSize)
+      throws IOException
+  {
+    if (minSize > Integer.MAX_VALUE) {
+      return null;
+    }
+
+    while (true) {
+      MappedFile mappedFile = mappedFiles.getIfPresent(localPath);
+      if (mappedFile != null && mappedFile.getSize() < minSize) {
+        // Blocks were cached beyond the end of the file since it was mapped
+        mappedFiles.asMap().remove(localPath, mappedFile);
+        mappedFile = null;
+      }
+
+      if (mappedFile == null) {
+        MappedFile newMapping = map(localPath);
+        if (newMapping == null) {
+          return null;
+        }
+        mappedFile = mappedFiles.asMap().putIfAbsent(localPath, newMapping);
+        if (mappedFile == null) {
+          mappedFile = newMapping;
+        }
+        else {
+          newMapping.evict();
+        }
+      }
+
+      if (mappedFile.retain()) {
+        return mappedFile;
+      }
+      // Lost the race with eviction of this mapping, retry with a fresh one
+    }
+  }
+
+  public void invalidate(String localPath)
+  {
+    mappedFiles.invalidate(localPath);
+  }
+
+  @VisibleForTesting
+  public void invalidateAll()
+  {
+    mappedFiles.invalidateAll();
+  }
+
+  @VisibleForTesting
+  long size()
+  {
+    return mappedFiles.size();
+  }
+
+  private static MappedFile map(String localPath)
+      throws IOException
+  {
+    try (RandomAccessFile raf = new RandomAccessFile(localPath, "r");
+        FileChannel fileChannel = raf.getChannel()) {
+      long size = fileChannel.size();
+      if (size > Integer.MAX_VALUE) {
+        return null;
+      }
+      // The mapping stays valid after the channel is closed
+      return new MappedFile(fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+    }
+  }
+
+  public static class MappedFile
+      extends ReferenceCounted
+  {
+    private final MappedByteBuffer buffer;
+
+    private MappedFile(MappedByteBuffer buffer)
+    {
+      this.buffer = buffer;
+    }
+
+    public long getSize()
+    {
+      return buffer.capacity();
+    }
+
+    /**
+     * Returns a view of `length` bytes of the file starting at `position`, positioned at its first byte
+     */
+    public ByteBuffer slice(long position, int length)
+    {
+      ByteBuffer view = buffer.duplicate();
+      view.position(Math.toIntExact(position));
+      view.limit(Math.toIntExact(position + length));
+      return view;
+    }
+
+    @Override
+    protected void deallocate()
+    {
+      try {
+        NativeIO.POSIX.munmap(buffer);
+      }
+      catch (LinkageError e) {
+        // Unmapping relies on JDK internals, the mapping is released on garbage collection instead
+        log.debug("Could not unmap buffer", e);
+      }
+    }
+  }
+}
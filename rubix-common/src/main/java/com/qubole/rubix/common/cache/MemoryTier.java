@@ -0,0 +1,408 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.common.cache;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.qubole.rubix.common.cache.DiskIoScheduler.Priority;
+import com.qubole.rubix.common.cache.DiskIoScheduler.Slot;
+import com.qubole.rubix.common.cache.FileChannelCache.CachedFileChannel;
+import com.qubole.rubix.spi.CacheConfig;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static com.qubole.rubix.spi.CommonUtilities.threadsNamed;
+
+/**
+ * Process wide memory tier above the disk cache, holding copies of the most accessed blocks of local cache files
+ * in off-heap buffers.
+ *
+ * Blocks of the disk cache are promoted in background once accessed rubix.cache.memory.tier.promotion.threshold
+ * times. The disk copy is kept, so a block evicted from memory is served from disk again. Blocks are keyed by
+ * their local cache file, which is named after the generation number of the remote file.
+ *
+ * The buffer of an evicted block is freed once the last read copying from it completes. Blocks are looked up
+ * without locking, the lock of the tier only guards the eviction order, which is kept sorted so that neither
+ * eviction nor an access has to visit every block.
+ */
+public class MemoryTier
+{
+  private static final Log log = LogFactory.getLog(MemoryTier.class);
+
+  private static final int MAX_TRACKED_BLOCKS = 100000;
+  private static final int MAX_QUEUED_TASKS = 1000;
+
+  private static MemoryTier instance;
+
+  public enum EvictionPolicy
+  {
+    LRU,
+    LFU
+  }
+
+  private final Configuration conf;
+  private final long maxMemory;
+  private final EvictionPolicy evictionPolicy;
+  private final int promotionThreshold;
+  private final Executor promotionService;
+
+  private final Map<String, MemoryBlock> blocks = new ConcurrentHashMap<>();
+  // Keys of the blocks by their rank, the block to evict first is the oldest entry of the lowest rank
+  private final TreeMap<Long, LinkedHashSet<String>> evictionOrder = new TreeMap<>();
+  private long accessClock;
+  private long usedMemory;
+
+  private final Cache<String, AtomicInteger> accessCounts = CacheBuilder.newBuilder()
+      .maximumSize(MAX_TRACKED_BLOCKS)
+      .build();
+  private final Set<String> promoting = ConcurrentHashMap.newKeySet();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong promotions = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  @VisibleForTesting
+  MemoryTier(Configuration conf, long maxMemory, EvictionPolicy evictionPolicy, int promotionThreshold, Executor promotionService)
+  {
+    this.conf = conf;
+    this.maxMemory = maxMemory;
+    this.evictionPolicy = evictionPolicy;
+    this.promotionThreshold = promotionThreshold;
+    this.promotionService = promotionService;
+  }
+
+  public static synchronized MemoryTier getInstance(Configuration conf)
+  {
+    if (instance == null) {
+      instance = new MemoryTier(
+          conf,
+          CacheConfig.getMemoryTierMaxMemory(conf),
+          EvictionPolicy.valueOf(CacheConfig.getMemoryTierEvictionPolicy(conf).toUpperCase()),
+          CacheConfig.getMemoryTierPromotionThreshold(conf),
+          new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+              new LinkedBlockingQueue<>(MAX_QUEUED_TASKS),
+              new ThreadFactoryBuilder()
+                  .setThreadFactory(threadsNamed("rubix-memoryTier-thread-%s"))
+                  .setDaemon(true)
+                  .build(),
+              new ThreadPoolExecutor.AbortPolicy()));
+    }
+    return instance;
+  }
+
+  /**
+   * Drops the blocks of the local file, if any. Called when the file is deleted or found to be corrupted.
+   */
+  public static void invalidateFile(String localPath)
+  {
+    MemoryTier memoryTier;
+    synchronized (MemoryTier.class) {
+      memoryTier = instance;
+    }
+    if (memoryTier != null) {
+      memoryTier.invalidate(localPath);
+    }
+  }
+
+  public boolean contains(String localPath, long block)
+  {
+    return blocks.containsKey(getKey(localPath, block));
+  }
+
+  /**
+   * Records an access to each of the blocks of the disk cache in background, so callers answering on the hot path
+   * neither count the accesses nor build the checksums of the file themselves. Accesses are dropped while the
+   * background thread is busy.
+   *
+   * @see #recordAccess
+   */
+  public void recordAccesses(String localPath, List<Long> accessedBlocks, int blockSize, long fileSize,
+      CompressedCacheFile compressedFile, Supplier<BlockChecksums> blockChecksums)
+  {
+    if (accessedBlocks.isEmpty()) {
+      return;
+    }
+    try {
+      promotionService.execute(() -> {
+        BlockChecksums checksums = blockChecksums.get();
+        for (long block : accessedBlocks) {
+          recordAccess(localPath, block, blockSize, fileSize, compressedFile, checksums);
+        }
+      });
+    }
+    catch (RejectedExecutionException e) {
+      log.debug("Memory tier busy, dropping accesses to " + accessedBlocks.size() + " blocks of " + localPath);
+    }
+  }
+
+  /**
+   * Records an access to a block of the disk cache, the block is promoted in background once accessed often enough.
+   * `compressedFile` is the layout of the local file, null if it is not compressed, and `blockChecksums` the
+   * checksums the block is verified against before promotion, null if block checksums are disabled.
+   */
+  public void recordAccess(String localPath, long block, int blockSize, long fileSize, CompressedCacheFile compressedFile,
+      BlockChecksums blockChecksums)
+  {
+    String key = getKey(localPath, block);
+    if (contains(localPath, block)) {
+      return;
+    }
+
+    AtomicInteger accessCount = accessCounts.asMap().computeIfAbsent(key, k -> new AtomicInteger());
+    if (accessCount.incrementAndGet() >= promotionThreshold && promoting.add(key)) {
+      try {
+        promotionService.execute(() -> {
+          try {
+            promote(localPath, block, blockSize, fileSize, compressedFile, blockChecksums);
+          }
+          catch (IOException e) {
+            log.warn("Could not promote block " + block + " of " + localPath, e);
+          }
+          finally {
+            promoting.remove(key);
+          }
+        });
+      }
+      catch (RejectedExecutionException e) {
+        // Promoted on one of the next accesses instead
+        promoting.remove(key);
+      }
+    }
+  }
+
+  @VisibleForTesting
+  void promote(String localPath, long block, int blockSize, long fileSize, CompressedCacheFile compressedFile,
+      BlockChecksums blockChecksums)
+      throws IOException
+  {
+    long start = block * blockSize;
+    int length = (int) Math.min(blockSize, fileSize - start);
+    if (length <= 0 || length > maxMemory) {
+      return;
+    }
+
+    ByteBuffer data = ByteBuffer.allocateDirect(length);
+    boolean stored = false;
+    try {
+      readBlock(localPath, block, start, length, compressedFile, blockChecksums, data);
+      data.flip();
+      String key = getKey(localPath, block);
+      synchronized (this) {
+        if (blocks.containsKey(key)) {
+          return;
+        }
+        while (usedMemory + length > maxMemory) {
+          evict();
+        }
+        AtomicInteger accessCount = accessCounts.getIfPresent(key);
+        MemoryBlock memoryBlock = new MemoryBlock(data, accessCount == null ? 0 : accessCount.get());
+        blocks.put(key, memoryBlock);
+        addToEvictionOrder(key, memoryBlock);
+        usedMemory += length;
+        stored = true;
+      }
+      accessCounts.invalidate(key);
+    }
+    finally {
+      if (!stored) {
+        DirectBuffers.free(data);
+      }
+    }
+    promotions.incrementAndGet();
+    log.debug("Promoted block " + block + " of " + localPath + " to memory");
+  }
+
+  private void readBlock(String localPath, long block, long start, int length, CompressedCacheFile compressedFile,
+      BlockChecksums blockChecksums, ByteBuffer data)
+      throws IOException
+  {
+    CachedFileChannel cachedFileChannel = FileChannelCache.open(conf, localPath);
+    try (Slot slot = DiskIoScheduler.getInstance(conf).acquire(localPath, Priority.BACKGROUND)) {
+      FileChannel fileChannel = cachedFileChannel.getChannel();
+      if (blockChecksums != null) {
+        // Blocks served from memory are not verified again, so a corrupted block must not get there
+        if (blockChecksums.readVerified(fileChannel, compressedFile, start, data) < length) {
+          throw new EOFException("Block " + block + " not complete in " + localPath);
+        }
+      }
+      else if (compressedFile != null && compressedFile.read(fileChannel, start, data) < length) {
+        throw new EOFException("Block " + block + " not complete in " + localPath);
+      }
+      while (data.hasRemaining()) {
+        if (fileChannel.read(data, start + data.position()) < 0) {
+          throw new EOFException("Block " + block + " not complete in " + localPath);
+        }
+      }
+    }
+    finally {
+      cachedFileChannel.release();
+    }
+  }
+
+  /**
+   * Copies the data of the local file starting at `position` into the remaining bytes of `destination`.
+   *
+   * @return false, leaving `destination` untouched, if not all the data is in memory
+   */
+  public boolean read(String localPath, long position, int blockSize, ByteBuffer destination)
+  {
+    List<MemoryBlock> range = new ArrayList<>();
+    long end = position + destination.remaining();
+    synchronized (this) {
+      for (long block = position / blockSize; block * blockSize < end; block++) {
+        MemoryBlock memoryBlock = blocks.get(getKey(localPath, block));
+        if (memoryBlock == null || memoryBlock.data.limit() < Math.min(end, (block + 1) * blockSize) - block * blockSize) {
+          range.forEach(MemoryBlock::release);
+          return false;
+        }
+        // Held until the data is copied, so the buffer is not freed if the block is evicted meanwhile
+        memoryBlock.retain();
+        range.add(memoryBlock);
+      }
+      for (int i = 0; i < range.size(); i++) {
+        String key = getKey(localPath, position / blockSize + i);
+        removeFromEvictionOrder(key, range.get(i));
+        range.get(i).accessCount++;
+        addToEvictionOrder(key, range.get(i));
+      }
+    }
+    try {
+      long blockStart = (position / blockSize) * blockSize;
+      for (MemoryBlock memoryBlock : range) {
+        ByteBuffer slice = memoryBlock.data.duplicate();
+        slice.position((int) (Math.max(position, blockStart) - blockStart));
+        slice.limit((int) (Math.min(end, blockStart + blockSize) - blockStart));
+        destination.put(slice);
+        blockStart += blockSize;
+      }
+    }
+    finally {
+      range.forEach(MemoryBlock::release);
+    }
+    hits.incrementAndGet();
+    return true;
+  }
+
+  public synchronized long getUsedMemory()
+  {
+    return usedMemory;
+  }
+
+  public long getHits()
+  {
+    return hits.get();
+  }
+
+  public long getPromotions()
+  {
+    return promotions.get();
+  }
+
+  public long getEvictions()
+  {
+    return evictions.get();
+  }
+
+  private synchronized void invalidate(String localPath)
+  {
+    String prefix = localPath + ":";
+    Iterator<Map.Entry<String, MemoryBlock>> iterator = blocks.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<String, MemoryBlock> entry = iterator.next();
+      if (entry.getKey().startsWith(prefix)) {
+        iterator.remove();
+        drop(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  // Drops the least recently used block, or the least frequently used one with the LFU policy
+  private void evict()
+  {
+    String victim = evictionOrder.firstEntry().getValue().iterator().next();
+    drop(victim, blocks.remove(victim));
+    evictions.incrementAndGet();
+    log.debug("Evicted " + victim + " from memory");
+  }
+
+  private void drop(String key, MemoryBlock memoryBlock)
+  {
+    removeFromEvictionOrder(key, memoryBlock);
+    usedMemory -= memoryBlock.data.limit();
+    memoryBlock.evict();
+  }
+
+  private void addToEvictionOrder(String key, MemoryBlock memoryBlock)
+  {
+    memoryBlock.rank = evictionPolicy == EvictionPolicy.LRU ? ++accessClock : memoryBlock.accessCount;
+    evictionOrder.computeIfAbsent(memoryBlock.rank, rank -> new LinkedHashSet<>()).add(key);
+  }
+
+  private void removeFromEvictionOrder(String key, MemoryBlock memoryBlock)
+  {
+    LinkedHashSet<String> keys = evictionOrder.get(memoryBlock.rank);
+    keys.remove(key);
+    if (keys.isEmpty()) {
+      evictionOrder.remove(memoryBlock.rank);
+    }
+  }
+
+  private static String getKey(String localPath, long block)
+  {
+    return localPath + ":" + block;
+  }
+
+  private static class MemoryBlock
+      extends ReferenceCounted
+  {
+    private final ByteBuffer data;
+    private long accessCount;
+    // Position in the eviction order, the access clock with the LRU policy and the access count with LFU
+    private long rank;
+
+    MemoryBlock(ByteBuffer data, long accessCount)
+    {
+      this.data = data;
+      this.accessCount = accessCount;
+    }
+
+    @Override
+    protected void deallocate()
+    {
+      DirectBuffers.free(data);
+    }
+  }
+}
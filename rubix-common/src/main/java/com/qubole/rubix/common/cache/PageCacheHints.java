@@ -0,0 +1,106 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.common.cache;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.io.nativeio.NativeIO;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * posix_fadvise hints on ranges of local cache files, through the native library of Hadoop.
+ *
+ * Hints are best effort: they are skipped if the native library is not loaded and failures are only logged.
+ * The page cache is per file, not per descriptor, so hints are given on a descriptor opened for the purpose.
+ */
+public final class PageCacheHints
+{
+  private static final Log log = LogFactory.getLog(PageCacheHints.class);
+
+  private static final AtomicLong droppedBytes = new AtomicLong();
+  private static final AtomicLong prefetchedBytes = new AtomicLong();
+
+  private PageCacheHints()
+  {
+  }
+
+  public static boolean isAvailable()
+  {
+    return NativeIO.isAvailable();
+  }
+
+  /**
+   * Writes back the range of the file and drops it from the page cache, for data written once and not read soon
+   */
+  public static void dropBehind(String localPath, long offset, long length)
+  {
+    if (!isAvailable() || length <= 0) {
+      return;
+    }
+    try (FileInputStream file = new FileInputStream(localPath)) {
+      // Dirty pages are not dropped, they are written back first
+      NativeIO.POSIX.syncFileRangeIfPossible(file.getFD(), offset, length,
+          NativeIO.POSIX.SYNC_FILE_RANGE_WAIT_BEFORE | NativeIO.POSIX.SYNC_FILE_RANGE_WRITE | NativeIO.POSIX.SYNC_FILE_RANGE_WAIT_AFTER);
+      NativeIO.POSIX.getCacheManipulator().posixFadviseIfPossible(localPath, file.getFD(), offset, length,
+          NativeIO.POSIX.POSIX_FADV_DONTNEED);
+      droppedBytes.addAndGet(length);
+    }
+    catch (FileNotFoundException e) {
+      log.debug("Not dropping pages of deleted file " + localPath);
+    }
+    catch (IOException | RuntimeException e) {
+      log.debug(String.format("Could not drop pages of %s at offset %d", localPath, offset), e);
+    }
+  }
+
+  /**
+   * Asks the kernel to read the range of the file into the page cache in background
+   */
+  public static void willNeed(String localPath, long offset, long length)
+  {
+    if (!isAvailable() || length <= 0) {
+      return;
+    }
+    try (FileInputStream file = new FileInputStream(localPath)) {
+      NativeIO.POSIX.getCacheManipulator().posixFadviseIfPossible(localPath, file.getFD(), offset, length,
+          NativeIO.POSIX.POSIX_FADV_WILLNEED);
+      prefetchedBytes.addAndGet(length);
+    }
+    catch (FileNotFoundException e) {
+      log.debug("Not prefetching pages of deleted file " + localPath);
+    }
+    catch (IOException | RuntimeException e) {
+      log.debug(String.format("Could not prefetch pages of %s at offset %d", localPath, offset), e);
+    }
+  }
+
+  /**
+   * Returns the total bytes of cache files dropped from the page cache after being written
+   */
+  public static long getDroppedBytes()
+  {
+    return droppedBytes.get();
+  }
+
+  /**
+   * Returns the total bytes of cache files the kernel was asked to read ahead
+   */
+  public static long getPrefetchedBytes()
+  {
+    return prefetchedBytes.get();
+  }
+}
@@ -0,0 +1,60 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.common.cache;
+
+/**
+ * Resource shared through a cache. The cache holds one reference until the resource is evicted, every user holds
+ * another one until it releases the resource. The resource is deallocated once the last reference is released.
+ */
+public abstract class ReferenceCounted
+{
+  private int references = 1;
+  private boolean evicted;
+
+  synchronized boolean retain()
+  {
+    if (references == 0) {
+      return false;
+    }
+    references++;
+    return true;
+  }
+
+  public void release()
+  {
+    boolean deallocate;
+    synchronized (this) {
+      references--;
+      deallocate = references == 0;
+    }
+    if (deallocate) {
+      deallocate();
+    }
+  }
+
+  /**
+   * Drops the reference held by the cache, called once when the resource is removed from the cache
+   */
+  void evict()
+  {
+    synchronized (this) {
+      if (evicted) {
+        return;
+      }
+      evicted = true;
+    }
+    release();
+  }
+
+  protected abstract void deallocate();
+}
@@ -217,6 +217,36 @@ public class BookKeeperMetrics implements AutoCloseable
     ASYNC_QUEUE_SIZE_GAUGE("rubix.bookkeeper.gauge.async_queue_size"),
     ASYNC_DOWNLOADED_MB_COUNT("rubix.bookkeeper.count.async_downloaded_mb"),
     ASYNC_DOWNLOAD_TIME_COUNT("rubix.bookkeeper.count.async_download_time"),
+    COALESCED_READ_DATA_COUNT("rubix.bookkeeper.count.coalesced_read_data"),
+    OPEN_FILE_HANDLES_GAUGE("rubix.bookkeeper.gauge.open_file_handles"),
+    FILE_HANDLE_CACHE_HIT_RATE_GAUGE("rubix.bookkeeper.gauge.file_handle_cache_hit_rate"),
+    MEMORY_TIER_SIZE_GAUGE("rubix.bookkeeper.gauge.memory_tier_size_mb"),
+    MEMORY_TIER_HITS_GAUGE("rubix.bookkeeper.gauge.memory_tier_hits"),
+    MEMORY_TIER_PROMOTIONS_GAUGE("rubix.bookkeeper.gauge.memory_tier_promotions"),
+    MEMORY_TIER_EVICTIONS_GAUGE("rubix.bookkeeper.gauge.memory_tier_evictions"),
+    COMPRESSION_RATIO_GAUGE("rubix.bookkeeper.gauge.compression_ratio"),
+    COMPRESSION_TIME_GAUGE("rubix.bookkeeper.gauge.compression_time_ms"),
+    DECOMPRESSION_TIME_GAUGE("rubix.bookkeeper.gauge.decompression_time_ms"),
+    CORRUPTED_BLOCK_COUNT("rubix.bookkeeper.count.corrupted_block"),
+    CHECKSUM_VERIFICATION_TIME_GAUGE("rubix.bookkeeper.gauge.checksum_verification_time_ms"),
+    THROTTLE_WARMUP_RATE_GAUGE("rubix.bookkeeper.gauge.throttle_warmup_rate"),
+    THROTTLE_WARMUP_TIME_GAUGE("rubix.bookkeeper.gauge.throttle_warmup_time_ms"),
+    THROTTLE_FOREGROUND_TIME_GAUGE("rubix.bookkeeper.gauge.throttle_foreground_time_ms"),
+    DISK_QUEUE_FOREGROUND_READ_TIME_GAUGE("rubix.bookkeeper.gauge.disk_queue_foreground_read_time_ms"),
+    DISK_QUEUE_NON_LOCAL_SERVE_TIME_GAUGE("rubix.bookkeeper.gauge.disk_queue_non_local_serve_time_ms"),
+    DISK_QUEUE_READ_THROUGH_WRITE_TIME_GAUGE("rubix.bookkeeper.gauge.disk_queue_read_through_write_time_ms"),
+    DISK_QUEUE_BACKGROUND_TIME_GAUGE("rubix.bookkeeper.gauge.disk_queue_background_time_ms"),
+    PAGE_CACHE_DROPPED_DATA_GAUGE("rubix.bookkeeper.gauge.page_cache_dropped_data"),
+    REPLICA_REQUEST_COUNT("rubix.bookkeeper.count.replica_request"),
+    REPLICATED_BLOCK_COUNT("rubix.bookkeeper.count.replicated_block"),
+    DROPPED_REPLICA_BLOCK_COUNT("rubix.bookkeeper.count.dropped_replica_block"),
+    LDTS_OPEN_CONNECTIONS_GAUGE("rubix.ldts.gauge.open_connections"),
+    LDTS_PENDING_REQUESTS_GAUGE("rubix.ldts.gauge.pending_requests"),
+    LDTS_WRITE_BLOCKED_CONNECTIONS_GAUGE("rubix.ldts.gauge.write_blocked_connections"),
+    LDTS_QUEUED_RESPONSE_DATA_GAUGE("rubix.ldts.gauge.queued_response_data"),
+    LDTS_WIRE_COMPRESSION_RATIO_GAUGE("rubix.ldts.gauge.wire_compression_ratio"),
+    LDTS_WIRE_COMPRESSION_TIME_GAUGE("rubix.ldts.gauge.wire_compression_time_ms"),
+    LDTS_REPLICATION_REQUEST_COUNT("rubix.ldts.count.replication_request"),
     LDTS_CACHING_EXCEPTION("rubix.ldts.exception.trasnsferdata");
 
     private final String metricName;
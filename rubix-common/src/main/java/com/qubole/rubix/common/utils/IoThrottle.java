@@ -0,0 +1,248 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.common.utils;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.RateLimiter;
+import com.qubole.rubix.spi.CacheConfig;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide token bucket budgets for the network downloads and the disk writes of the cache, kept separately
+ * for foreground reads and for warmup (parallel warmup downloads), so that draining a warmup backlog does not
+ * take the bandwidth queries are waiting for.
+ *
+ * Warmup backs off when the latency of foreground reads rises: the recent latency is compared every second with
+ * the long term one, and while it is more than rubix.cache.throttle.warmup.backoff.latency.factor times higher the
+ * warmup budgets are halved, down to MIN_WARMUP_RATE of their rate. Warmup budgets without a configured limit are
+ * limited from the warmup throughput seen when the backoff starts. Once foreground latency settles the budgets
+ * grow back step by step.
+ */
+public class IoThrottle
+{
+  private static final Log log = LogFactory.getLog(IoThrottle.class);
+
+  private static final long ADJUSTMENT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+  private static final double MIN_WARMUP_RATE = 1.0 / 16;
+  private static final double WARMUP_RATE_STEP = 1.0 / 8;
+  private static final double RECENT_LATENCY_WEIGHT = 0.2;
+  private static final double BASELINE_LATENCY_WEIGHT = 0.01;
+
+  private static IoThrottle instance;
+
+  public enum Traffic
+  {
+    FOREGROUND,
+    WARMUP
+  }
+
+  private final Ticker ticker;
+  private final double backoffLatencyFactor;
+  private final Budgets foreground;
+  private final Budgets warmup;
+
+  private double recentLatencyNanos;
+  private double baselineLatencyNanos;
+  private long lastAdjustment;
+  private double warmupRate = 1;
+
+  @VisibleForTesting
+  IoThrottle(Configuration conf, Ticker ticker)
+  {
+    this.ticker = ticker;
+    this.backoffLatencyFactor = CacheConfig.getThrottleWarmupBackoffLatencyFactor(conf);
+    this.foreground = new Budgets(
+        CacheConfig.getThrottleForegroundNetworkBandwidth(conf),
+        CacheConfig.getThrottleForegroundDiskBandwidth(conf),
+        CacheConfig.getThrottleForegroundDiskIops(conf));
+    this.warmup = new Budgets(
+        CacheConfig.getThrottleWarmupNetworkBandwidth(conf),
+        CacheConfig.getThrottleWarmupDiskBandwidth(conf),
+        CacheConfig.getThrottleWarmupDiskIops(conf));
+    this.lastAdjustment = ticker.read();
+  }
+
+  public static synchronized IoThrottle getInstance(Configuration conf)
+  {
+    if (instance == null) {
+      instance = new IoThrottle(conf, Ticker.systemTicker());
+    }
+    return instance;
+  }
+
+  /**
+   * Waits until `bytes` can be downloaded from the remote filesystem
+   */
+  public void acquireNetwork(Traffic traffic, long bytes)
+  {
+    getBudgets(traffic).network.acquire(bytes);
+  }
+
+  /**
+   * Waits until `bytes` can be written to the cache in one write
+   */
+  public void acquireDiskWrite(Traffic traffic, long bytes)
+  {
+    Budgets budgets = getBudgets(traffic);
+    budgets.diskIops.acquire(1);
+    budgets.diskBandwidth.acquire(bytes);
+  }
+
+  /**
+   * Records the latency of a foreground read, adjusting the warmup budgets at most once per second
+   */
+  public synchronized void recordForegroundLatency(long latencyNanos)
+  {
+    if (backoffLatencyFactor <= 0) {
+      return;
+    }
+    if (baselineLatencyNanos == 0) {
+      recentLatencyNanos = latencyNanos;
+      baselineLatencyNanos = latencyNanos;
+    }
+    recentLatencyNanos += (latencyNanos - recentLatencyNanos) * RECENT_LATENCY_WEIGHT;
+    boolean congested = recentLatencyNanos > baselineLatencyNanos * backoffLatencyFactor;
+    if (!congested) {
+      // The baseline is kept while congested so that it does not drift up with the latency it is compared with
+      baselineLatencyNanos += (latencyNanos - baselineLatencyNanos) * BASELINE_LATENCY_WEIGHT;
+    }
+
+    long now = ticker.read();
+    long elapsed = now - lastAdjustment;
+    if (elapsed < ADJUSTMENT_INTERVAL_NANOS) {
+      return;
+    }
+    lastAdjustment = now;
+
+    double previousRate = warmupRate;
+    if (congested) {
+      warmupRate = Math.max(warmupRate / 2, MIN_WARMUP_RATE);
+    }
+    else {
+      warmupRate = Math.min(warmupRate + WARMUP_RATE_STEP, 1);
+    }
+    if (warmupRate != previousRate) {
+      log.debug(String.format("Foreground read latency %.1f ms against %.1f ms, warmup rate set to %.2f",
+          recentLatencyNanos / 1e6, baselineLatencyNanos / 1e6, warmupRate));
+    }
+    warmup.scale(warmupRate, elapsed);
+  }
+
+  /**
+   * Returns the fraction of their rate the warmup budgets are currently at, 1 if warmup is not backing off
+   */
+  public synchronized double getWarmupRate()
+  {
+    return warmupRate;
+  }
+
+  /**
+   * Returns the total time in ms the traffic waited for its budgets
+   */
+  public long getThrottledTimeMillis(Traffic traffic)
+  {
+    Budgets budgets = getBudgets(traffic);
+    return TimeUnit.NANOSECONDS.toMillis(budgets.network.throttledNanos.get()
+        + budgets.diskBandwidth.throttledNanos.get()
+        + budgets.diskIops.throttledNanos.get());
+  }
+
+  private Budgets getBudgets(Traffic traffic)
+  {
+    return traffic == Traffic.FOREGROUND ? foreground : warmup;
+  }
+
+  private static class Budgets
+  {
+    private final Budget network;
+    private final Budget diskBandwidth;
+    private final Budget diskIops;
+
+    Budgets(long networkBandwidth, long diskBandwidth, long diskIops)
+    {
+      this.network = new Budget(networkBandwidth);
+      this.diskBandwidth = new Budget(diskBandwidth);
+      this.diskIops = new Budget(diskIops);
+    }
+
+    void scale(double rate, long intervalNanos)
+    {
+      network.scale(rate, intervalNanos);
+      diskBandwidth.scale(rate, intervalNanos);
+      diskIops.scale(rate, intervalNanos);
+    }
+  }
+
+  private static class Budget
+  {
+    // Permits per second, 0 if not limited
+    private final long configuredRate;
+    private final AtomicLong throttledNanos = new AtomicLong();
+    private final AtomicLong permitsSinceScaling = new AtomicLong();
+    private volatile RateLimiter rateLimiter;
+    // Rate the backoff scales down from, the configured one or the throughput seen when the backoff started
+    private double baseRate;
+
+    Budget(long configuredRate)
+    {
+      this.configuredRate = configuredRate;
+      this.baseRate = configuredRate;
+      this.rateLimiter = configuredRate > 0 ? RateLimiter.create(configuredRate) : null;
+    }
+
+    void acquire(long permits)
+    {
+      if (permits <= 0) {
+        return;
+      }
+      permitsSinceScaling.addAndGet(permits);
+      RateLimiter limiter = rateLimiter;
+      if (limiter != null) {
+        double waitedSeconds = limiter.acquire((int) Math.min(permits, Integer.MAX_VALUE));
+        throttledNanos.addAndGet((long) (waitedSeconds * TimeUnit.SECONDS.toNanos(1)));
+      }
+    }
+
+    void scale(double rate, long intervalNanos)
+    {
+      long permits = permitsSinceScaling.getAndSet(0);
+      if (rate >= 1 && configuredRate == 0) {
+        baseRate = 0;
+        rateLimiter = null;
+        return;
+      }
+      if (baseRate == 0) {
+        baseRate = permits * (double) TimeUnit.SECONDS.toNanos(1) / intervalNanos;
+        if (baseRate == 0) {
+          // No traffic to back off from yet
+          return;
+        }
+      }
+
+      double scaledRate = baseRate * rate;
+      RateLimiter limiter = rateLimiter;
+      if (limiter == null) {
+        rateLimiter = RateLimiter.create(scaledRate);
+      }
+      else if (limiter.getRate() != scaledRate) {
+        limiter.setRate(scaledRate);
+      }
+    }
+  }
+}
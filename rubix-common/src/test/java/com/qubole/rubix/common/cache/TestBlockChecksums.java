@@ -0,0 +1,152 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.common.cache;
+
+import com.qubole.rubix.common.cache.BlockChecksums.CorruptedBlockException;
+import com.qubole.rubix.spi.CacheConfig;
+import org.apache.hadoop.conf.Configuration;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.util.Random;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.Arrays.copyOfRange;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.fail;
+
+public class TestBlockChecksums
+{
+  private static final String TEST_FILE = System.getProperty("java.io.tmpdir") + "/TestBlockChecksums_g1";
+  private static final String TEST_MD_FILE = System.getProperty("java.io.tmpdir") + "/TestBlockChecksums_mdfile_g1";
+  private static final String TEST_REMOTE_PATH = "s3://bucket/table/data.csv";
+  private static final int BLOCK_SIZE = 100;
+  private static final long FILE_SIZE = 450;
+
+  private final Configuration conf = new Configuration();
+  private final byte[] data = new byte[(int) FILE_SIZE];
+  private FileChannel fileChannel;
+  private BlockChecksums blockChecksums;
+
+  @BeforeMethod
+  public void setup()
+      throws IOException
+  {
+    new Random(1).nextBytes(data);
+    fileChannel = FileChannel.open(Paths.get(TEST_FILE), CREATE, READ, WRITE);
+    new File(TEST_MD_FILE).createNewFile();
+    blockChecksums = new BlockChecksums(conf, TEST_MD_FILE, FILE_SIZE, BLOCK_SIZE);
+  }
+
+  @AfterMethod
+  public void cleanup()
+      throws IOException
+  {
+    fileChannel.close();
+    FileChannelCache.invalidateChannel(TEST_MD_FILE);
+    new File(TEST_FILE).delete();
+    new File(TEST_MD_FILE).delete();
+    conf.clear();
+  }
+
+  @Test
+  public void testVerifiedRead()
+      throws IOException
+  {
+    writeData(0, (int) FILE_SIZE);
+
+    ByteBuffer destination = ByteBuffer.allocate(200);
+    assertEquals(blockChecksums.readVerified(fileChannel, null, 150, destination), 200);
+    assertEquals(destination.array(), copyOfRange(data, 150, 350));
+
+    destination = ByteBuffer.allocate(100);
+    assertEquals(blockChecksums.readVerified(fileChannel, null, 400, destination), 50, "Read should stop at the end of the file");
+    assertEquals(copyOfRange(destination.array(), 0, 50), copyOfRange(data, 400, 450));
+  }
+
+  @Test
+  public void testCorruptedBlockDetected()
+      throws IOException
+  {
+    writeData(0, (int) FILE_SIZE);
+    try (RandomAccessFile file = new RandomAccessFile(TEST_FILE, "rw")) {
+      file.seek(250);
+      file.write(data[250] + 1);
+    }
+
+    assertEquals(blockChecksums.readVerified(fileChannel, null, 0, ByteBuffer.allocate(200)), 200, "Blocks before the corrupted one should be read");
+    try {
+      blockChecksums.readVerified(fileChannel, null, 150, ByteBuffer.allocate(200));
+      fail("Corrupted block should be detected");
+    }
+    catch (CorruptedBlockException e) {
+      assertEquals(e.getBlock(), 2);
+    }
+  }
+
+  @Test
+  public void testBlocksWithoutChecksumNotVerified()
+      throws IOException
+  {
+    writeData(0, 200);
+    try (RandomAccessFile file = new RandomAccessFile(TEST_FILE, "rw")) {
+      file.seek(200);
+      file.write(data, 200, 100);
+    }
+
+    ByteBuffer destination = ByteBuffer.allocate(300);
+    assertEquals(blockChecksums.readVerified(fileChannel, null, 0, destination), 300);
+    assertEquals(destination.array(), copyOfRange(data, 0, 300));
+    assertEquals(blockChecksums.readVerified(fileChannel, null, 300, ByteBuffer.allocate(100)), 0, "Block not written should not be read");
+  }
+
+  @Test
+  public void testCompressedBlocksVerified()
+      throws IOException
+  {
+    CacheConfig.setCompressionEnabled(conf, true);
+    CompressedCacheFile compressedFile = CompressedCacheFile.forFile(TEST_REMOTE_PATH, BLOCK_SIZE, conf);
+    compressedFile.write(fileChannel, 0, ByteBuffer.wrap(data));
+    blockChecksums.write(0, ByteBuffer.wrap(data));
+
+    ByteBuffer destination = ByteBuffer.allocate(120);
+    assertEquals(blockChecksums.readVerified(fileChannel, compressedFile, 90, destination), 120);
+    assertEquals(destination.array(), copyOfRange(data, 90, 210));
+  }
+
+  @Test
+  public void testDisabledByDefault()
+  {
+    assertNull(BlockChecksums.forFile(TEST_REMOTE_PATH, FILE_SIZE, BLOCK_SIZE, 1, conf));
+  }
+
+  private void writeData(int start, int length)
+      throws IOException
+  {
+    ByteBuffer source = ByteBuffer.wrap(data, start, length);
+    blockChecksums.write(start, source);
+    while (source.hasRemaining()) {
+      fileChannel.write(source, start + source.position());
+    }
+  }
+}
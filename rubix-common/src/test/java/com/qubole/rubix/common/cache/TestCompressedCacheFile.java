@@ -0,0 +1,120 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.common.cache;
+
+import com.qubole.rubix.spi.CacheConfig;
+import org.apache.hadoop.conf.Configuration;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.util.Random;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.Arrays.copyOfRange;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class TestCompressedCacheFile
+{
+  private static final String TEST_FILE = System.getProperty("java.io.tmpdir") + "/TestCompressedCacheFile_g1";
+  private static final String TEST_REMOTE_PATH = "s3://bucket/table/data.csv";
+  private static final int BLOCK_SIZE = 1000;
+
+  private final Configuration conf = new Configuration();
+  private FileChannel fileChannel;
+
+  @BeforeMethod
+  public void setup()
+      throws IOException
+  {
+    CacheConfig.setCompressionEnabled(conf, true);
+    fileChannel = FileChannel.open(Paths.get(TEST_FILE), CREATE, READ, WRITE);
+  }
+
+  @AfterMethod
+  public void cleanup()
+      throws IOException
+  {
+    fileChannel.close();
+    new File(TEST_FILE).delete();
+    conf.clear();
+  }
+
+  @Test
+  public void testCompressedBlocksReadBack()
+      throws IOException
+  {
+    CompressedCacheFile compressedFile = CompressedCacheFile.forFile(TEST_REMOTE_PATH, BLOCK_SIZE, conf);
+    assertNotNull(compressedFile, "Text file should be compressed");
+
+    StringBuilder text = new StringBuilder();
+    while (text.length() < 3.5 * BLOCK_SIZE) {
+      text.append("id,name,value\n").append(text.length()).append(",rubix,42\n");
+    }
+    byte[] data = text.substring(0, (int) (3.5 * BLOCK_SIZE)).getBytes();
+    compressedFile.write(fileChannel, 0, ByteBuffer.wrap(data));
+
+    assertTrue(compressedFile.getStoredLength(fileChannel, 0) < BLOCK_SIZE / 2, "Block should be compressed");
+    assertTrue(CompressedCacheFile.getCompressionRatio() > 2, "Compression ratio should be reported");
+
+    ByteBuffer destination = ByteBuffer.allocate(2000);
+    assertEquals(compressedFile.read(fileChannel, 900, destination), 2000);
+    assertEquals(destination.array(), copyOfRange(data, 900, 2900));
+
+    destination = ByteBuffer.allocate(1000);
+    assertEquals(compressedFile.read(fileChannel, 3000, destination), 500, "Read should stop at the end of the last block");
+    assertEquals(copyOfRange(destination.array(), 0, 500), copyOfRange(data, 3000, 3500));
+  }
+
+  @Test
+  public void testIncompressibleBlocksStoredAsIs()
+      throws IOException
+  {
+    CompressedCacheFile compressedFile = CompressedCacheFile.forFile(TEST_REMOTE_PATH, BLOCK_SIZE, conf);
+    byte[] data = new byte[BLOCK_SIZE];
+    new Random(1).nextBytes(data);
+    compressedFile.write(fileChannel, 2 * BLOCK_SIZE, ByteBuffer.wrap(data));
+
+    assertEquals(compressedFile.getStoredLength(fileChannel, 2), CompressedCacheFile.HEADER_SIZE + BLOCK_SIZE);
+    ByteBuffer destination = ByteBuffer.allocate(BLOCK_SIZE);
+    assertEquals(compressedFile.read(fileChannel, 2 * BLOCK_SIZE, destination), BLOCK_SIZE);
+    assertEquals(destination.array(), data);
+
+    assertEquals(compressedFile.getStoredLength(fileChannel, 1), 0, "Block not written should take no space");
+    assertEquals(compressedFile.read(fileChannel, BLOCK_SIZE, ByteBuffer.allocate(10)), 0, "Block not written should not be read");
+  }
+
+  @Test
+  public void testCompressedFileSelection()
+  {
+    assertNotNull(CompressedCacheFile.forFile("s3://bucket/logs/2019/01/part-0000", BLOCK_SIZE, conf));
+    assertNull(CompressedCacheFile.forFile("s3://bucket/table/part-0000.parquet", BLOCK_SIZE, conf),
+        "Compressed formats should be excluded by default");
+
+    CacheConfig.setCompressionExcludePattern(conf, ".*/logs/.*");
+    assertNull(CompressedCacheFile.forFile("s3://bucket/logs/2019/01/part-0000", BLOCK_SIZE, conf));
+
+    CacheConfig.setCompressionEnabled(conf, false);
+    assertNull(CompressedCacheFile.forFile(TEST_REMOTE_PATH, BLOCK_SIZE, conf));
+  }
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.common.cache;
+
+import org.testng.SkipException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TestDirectIo
+{
+  private static final String TEST_FILE = System.getProperty("java.io.tmpdir") + "/TestDirectIo";
+
+  @BeforeMethod
+  public void setup()
+      throws IOException
+  {
+    try (RandomAccessFile file = new RandomAccessFile(TEST_FILE, "rw")) {
+      file.setLength(0);
+    }
+  }
+
+  @AfterMethod
+  public void cleanup()
+  {
+    new File(TEST_FILE).delete();
+  }
+
+  @Test
+  public void testAlignedSlice()
+  {
+    if (!DirectIo.isSupported()) {
+      throw new SkipException("Direct I/O is not supported by this JVM");
+    }
+    ByteBuffer slice = DirectIo.alignedSlice(ByteBuffer.allocateDirect(10000), 4096);
+    assertEquals(slice.capacity() % 4096, 0, "Capacity should be a multiple of the alignment");
+    assertTrue(slice.capacity() >= 4096);
+    assertEquals(slice.position(), 0);
+  }
+
+  @Test
+  public void testDirectWrite()
+      throws IOException
+  {
+    if (!DirectIo.isSupported()) {
+      throw new SkipException("Direct I/O is not supported by this JVM");
+    }
+    int alignment = DirectIo.getAlignment(TEST_FILE);
+    byte[] data = new byte[2 * alignment];
+    Arrays.fill(data, (byte) 7);
+    ByteBuffer buffer = DirectIo.alignedSlice(ByteBuffer.allocateDirect(4 * alignment), alignment);
+    buffer.put(data);
+    buffer.flip();
+
+    try (FileChannel channel = DirectIo.openForWrite(TEST_FILE)) {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer, alignment + (2 * alignment - buffer.remaining()));
+      }
+    }
+    catch (IOException e) {
+      throw new SkipException("Filesystem of " + TEST_FILE + " does not support direct I/O", e);
+    }
+
+    byte[] written = Files.readAllBytes(new File(TEST_FILE).toPath());
+    assertEquals(written.length, 3 * alignment);
+    assertEquals(Arrays.copyOfRange(written, alignment, 3 * alignment), data);
+  }
+}
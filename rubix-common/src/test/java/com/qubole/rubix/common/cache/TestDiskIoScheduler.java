@@ -0,0 +1,94 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.common.cache;
+
+import com.google.common.collect.ImmutableList;
+import com.qubole.rubix.common.cache.DiskIoScheduler.Priority;
+import com.qubole.rubix.common.cache.DiskIoScheduler.Slot;
+import org.testng.annotations.Test;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TestDiskIoScheduler
+{
+  private static final String DISK_0 = "/media/ephemeral0";
+  private static final String DISK_1 = "/media/ephemeral1";
+
+  @Test
+  public void testSlotsGrantedByPriority()
+      throws Exception
+  {
+    DiskIoScheduler scheduler = new DiskIoScheduler(1, ImmutableList.of(DISK_0, DISK_1));
+    List<Priority> order = Collections.synchronizedList(new ArrayList<>());
+
+    Slot running = scheduler.acquire(DISK_0 + "/fcache/file", Priority.FOREGROUND_READ);
+    Thread background = startWaiter(scheduler, DISK_0 + "/fcache/file", Priority.BACKGROUND, order);
+    Thread write = startWaiter(scheduler, DISK_0 + "/fcache/file", Priority.READ_THROUGH_WRITE, order);
+    Thread read = startWaiter(scheduler, DISK_0 + "/fcache/file", Priority.FOREGROUND_READ, order);
+
+    // Other disks are not held up by the busy one
+    try (Slot slot = scheduler.acquire(DISK_1 + "/fcache/file", Priority.BACKGROUND)) {
+      assertTrue(order.isEmpty(), "Waiters should not run while the slot is taken");
+    }
+
+    running.close();
+    background.join();
+    write.join();
+    read.join();
+    assertEquals(order, ImmutableList.of(Priority.FOREGROUND_READ, Priority.READ_THROUGH_WRITE, Priority.BACKGROUND));
+    assertTrue(scheduler.getQueueTimeMillis(Priority.BACKGROUND) > 0, "Queue time of waiting operations should be recorded");
+    assertEquals(scheduler.getOperations(Priority.FOREGROUND_READ), 2);
+  }
+
+  @Test
+  public void testUnscheduled()
+      throws Exception
+  {
+    DiskIoScheduler scheduler = new DiskIoScheduler(0, ImmutableList.of(DISK_0));
+
+    Slot first = scheduler.acquire(DISK_0 + "/fcache/file", Priority.BACKGROUND);
+    Slot second = scheduler.acquire(DISK_0 + "/fcache/file", Priority.BACKGROUND);
+    first.close();
+    second.close();
+    assertEquals(scheduler.getQueueTimeMillis(Priority.BACKGROUND), 0);
+    assertEquals(scheduler.getOperations(Priority.BACKGROUND), 2);
+  }
+
+  // Starts a thread taking a slot and waits until it queued behind the running operation
+  private Thread startWaiter(DiskIoScheduler scheduler, String localPath, Priority priority, List<Priority> order)
+      throws InterruptedException
+  {
+    CountDownLatch started = new CountDownLatch(1);
+    Thread thread = new Thread(() -> {
+      started.countDown();
+      try (Slot slot = scheduler.acquire(localPath, priority)) {
+        order.add(priority);
+      }
+      catch (InterruptedIOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    thread.start();
+    started.await();
+    TimeUnit.MILLISECONDS.sleep(100);
+    return thread;
+  }
+}
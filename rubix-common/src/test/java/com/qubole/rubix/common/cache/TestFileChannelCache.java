@@ -0,0 +1,124 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.common.cache;
+
+import com.qubole.rubix.common.cache.FileChannelCache.CachedFileChannel;
+import com.qubole.rubix.spi.CacheConfig;
+import org.apache.hadoop.conf.Configuration;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+public class TestFileChannelCache
+{
+  private static final String TEST_FILE_PREFIX = System.getProperty("java.io.tmpdir") + "/TestFileChannelCache_g";
+
+  private FileChannelCache fileChannelCache;
+
+  @BeforeMethod
+  public void setup()
+      throws IOException
+  {
+    for (int i = 1; i <= 3; i++) {
+      new File(TEST_FILE_PREFIX + i).createNewFile();
+    }
+    fileChannelCache = new FileChannelCache(2);
+  }
+
+  @AfterMethod
+  public void cleanup()
+  {
+    fileChannelCache.invalidateAll();
+    for (int i = 1; i <= 3; i++) {
+      new File(TEST_FILE_PREFIX + i).delete();
+    }
+  }
+
+  @Test
+  public void testChannelIsShared()
+      throws IOException
+  {
+    CachedFileChannel first = fileChannelCache.acquire(TEST_FILE_PREFIX + 1);
+    CachedFileChannel second = fileChannelCache.acquire(TEST_FILE_PREFIX + 1);
+
+    assertSame(first, second, "Channel should be reused");
+    assertEquals(fileChannelCache.getHitRate(), 0.5);
+
+    first.release();
+    second.release();
+    assertTrue(first.getChannel().isOpen(), "Cached channel should stay open after release");
+  }
+
+  @Test
+  public void testEvictedChannelClosedAfterRelease()
+      throws IOException
+  {
+    CachedFileChannel channel = fileChannelCache.acquire(TEST_FILE_PREFIX + 1);
+    fileChannelCache.acquire(TEST_FILE_PREFIX + 2).release();
+    fileChannelCache.acquire(TEST_FILE_PREFIX + 3).release();
+
+    assertEquals(fileChannelCache.size(), 2);
+    assertTrue(channel.getChannel().isOpen(), "Channel in use should not be closed on eviction");
+
+    channel.release();
+    assertFalse(channel.getChannel().isOpen(), "Evicted channel should be closed once released");
+  }
+
+  @Test
+  public void testInvalidate()
+      throws IOException
+  {
+    long openHandles = FileChannelCache.getOpenHandles();
+    CachedFileChannel channel = fileChannelCache.acquire(TEST_FILE_PREFIX + 1);
+    assertEquals(FileChannelCache.getOpenHandles(), openHandles + 1);
+
+    fileChannelCache.invalidate(TEST_FILE_PREFIX + 1);
+    channel.release();
+
+    assertFalse(channel.getChannel().isOpen(), "Invalidated channel should be closed");
+    assertEquals(FileChannelCache.getOpenHandles(), openHandles);
+
+    CachedFileChannel newChannel = fileChannelCache.acquire(TEST_FILE_PREFIX + 1);
+    assertNotSame(newChannel, channel, "File should be opened again after invalidation");
+    newChannel.release();
+  }
+
+  @Test
+  public void testUncachedChannelClosedOnRelease()
+      throws IOException
+  {
+    CachedFileChannel channel = FileChannelCache.open(new Configuration(), TEST_FILE_PREFIX + 1);
+    channel.release();
+
+    assertFalse(channel.getChannel().isOpen(), "Channel should be closed when the cache is disabled");
+  }
+
+  @Test(expectedExceptions = FileNotFoundException.class)
+  public void testMissingFileNotCreated()
+      throws IOException
+  {
+    Configuration conf = new Configuration();
+    CacheConfig.setFileHandleCacheEnabled(conf, true);
+    FileChannelCache.open(conf, TEST_FILE_PREFIX + 4);
+  }
+}
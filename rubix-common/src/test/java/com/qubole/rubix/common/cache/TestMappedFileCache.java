@@ -0,0 +1,116 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.common.cache;
+
+import com.qubole.rubix.common.cache.MappedFileCache.MappedFile;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+
+public class TestMappedFileCache
+{
+  private static final String TEST_FILE = System.getProperty("java.io.tmpdir") + "/TestMappedFileCache_g1";
+
+  private MappedFileCache mappedFileCache;
+
+  @BeforeMethod
+  public void setup()
+      throws IOException
+  {
+    writeFile(0, 1024);
+    mappedFileCache = new MappedFileCache(1024 * 1024);
+  }
+
+  @AfterMethod
+  public void cleanup()
+  {
+    mappedFileCache.invalidateAll();
+    new File(TEST_FILE).delete();
+  }
+
+  @Test
+  public void testMappingIsShared()
+      throws IOException
+  {
+    MappedFile first = mappedFileCache.acquire(TEST_FILE, 1024);
+    MappedFile second = mappedFileCache.acquire(TEST_FILE, 512);
+
+    assertSame(first, second, "Mapping should be reused");
+    assertEquals(mappedFileCache.size(), 1);
+
+    ByteBuffer data = first.slice(100, 10);
+    assertEquals(data.remaining(), 10);
+    assertEquals(data.get(), (byte) 100);
+
+    first.release();
+    second.release();
+  }
+
+  @Test
+  public void testRemapWhenFileGrows()
+      throws IOException
+  {
+    MappedFile mappedFile = mappedFileCache.acquire(TEST_FILE, 1024);
+    assertEquals(mappedFile.getSize(), 1024);
+
+    writeFile(1024, 1024);
+    MappedFile grownMappedFile = mappedFileCache.acquire(TEST_FILE, 2048);
+
+    assertNotSame(grownMappedFile, mappedFile, "File should be remapped after it grew");
+    assertEquals(grownMappedFile.getSize(), 2048);
+    assertEquals(grownMappedFile.slice(2000, 1).get(), (byte) 2000);
+    // The old mapping is still usable by its reader until released
+    assertEquals(mappedFile.slice(1000, 1).get(), (byte) 1000);
+
+    mappedFile.release();
+    grownMappedFile.release();
+  }
+
+  @Test
+  public void testInvalidate()
+      throws IOException
+  {
+    MappedFile mappedFile = mappedFileCache.acquire(TEST_FILE, 1024);
+    mappedFileCache.invalidate(TEST_FILE);
+
+    assertEquals(mappedFileCache.size(), 0, "Invalidated mapping should be removed");
+    assertEquals(mappedFile.slice(10, 1).get(), (byte) 10);
+    mappedFile.release();
+
+    MappedFile newMappedFile = mappedFileCache.acquire(TEST_FILE, 1024);
+    assertNotSame(newMappedFile, mappedFile, "File should be mapped again after invalidation");
+    newMappedFile.release();
+  }
+
+  private static void writeFile(long start, int length)
+      throws IOException
+  {
+    byte[] data = new byte[length];
+    for (int i = 0; i < length; i++) {
+      data[i] = (byte) (start + i);
+    }
+    try (RandomAccessFile file = new RandomAccessFile(TEST_FILE, "rw")) {
+      file.seek(start);
+      file.write(data);
+    }
+  }
+}
@@ -0,0 +1,230 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.common.cache;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.qubole.rubix.common.cache.MemoryTier.EvictionPolicy;
+import org.apache.hadoop.conf.Configuration;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TestMemoryTier
+{
+  private static final String TEST_FILE = System.getProperty("java.io.tmpdir") + "/TestMemoryTier_g1";
+  private static final int BLOCK_SIZE = 100;
+  private static final long FILE_SIZE = 450;
+
+  @BeforeMethod
+  public void setup()
+      throws IOException
+  {
+    byte[] data = new byte[(int) FILE_SIZE];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) i;
+    }
+    try (RandomAccessFile file = new RandomAccessFile(TEST_FILE, "rw")) {
+      file.write(data);
+    }
+  }
+
+  @AfterMethod
+  public void cleanup()
+  {
+    new File(TEST_FILE).delete();
+  }
+
+  @Test
+  public void testPromotedOnRepeatedAccess()
+  {
+    MemoryTier memoryTier = createMemoryTier(1000, EvictionPolicy.LRU);
+
+    memoryTier.recordAccess(TEST_FILE, 1, BLOCK_SIZE, FILE_SIZE, null, null);
+    assertFalse(memoryTier.contains(TEST_FILE, 1), "Block should not be promoted on first access");
+    memoryTier.recordAccess(TEST_FILE, 1, BLOCK_SIZE, FILE_SIZE, null, null);
+    memoryTier.recordAccess(TEST_FILE, 2, BLOCK_SIZE, FILE_SIZE, null, null);
+    memoryTier.recordAccess(TEST_FILE, 2, BLOCK_SIZE, FILE_SIZE, null, null);
+
+    assertTrue(memoryTier.contains(TEST_FILE, 1), "Block should be promoted on second access");
+    assertEquals(memoryTier.getPromotions(), 2);
+    assertEquals(memoryTier.getUsedMemory(), 2 * BLOCK_SIZE);
+
+    ByteBuffer destination = ByteBuffer.allocate(50);
+    assertTrue(memoryTier.read(TEST_FILE, 175, BLOCK_SIZE, destination), "Range across promoted blocks should be read");
+    assertEquals(destination.get(0), (byte) 175);
+    assertEquals(destination.get(49), (byte) 224);
+    assertFalse(memoryTier.read(TEST_FILE, 250, BLOCK_SIZE, ByteBuffer.allocate(100)), "Range beyond promoted blocks should not be read");
+
+    MemoryTier.invalidateFile(TEST_FILE);
+  }
+
+  @Test
+  public void testLastBlockPromoted()
+      throws IOException
+  {
+    MemoryTier memoryTier = createMemoryTier(1000, EvictionPolicy.LRU);
+    memoryTier.promote(TEST_FILE, 4, BLOCK_SIZE, FILE_SIZE, null, null);
+
+    assertEquals(memoryTier.getUsedMemory(), 50, "Only the data of the partial last block should be kept");
+    ByteBuffer destination = ByteBuffer.allocate(50);
+    assertTrue(memoryTier.read(TEST_FILE, 400, BLOCK_SIZE, destination));
+    assertEquals(destination.get(49), (byte) 449);
+  }
+
+  @Test
+  public void testLruEviction()
+      throws IOException
+  {
+    MemoryTier memoryTier = createMemoryTier(2 * BLOCK_SIZE, EvictionPolicy.LRU);
+    memoryTier.promote(TEST_FILE, 0, BLOCK_SIZE, FILE_SIZE, null, null);
+    memoryTier.promote(TEST_FILE, 1, BLOCK_SIZE, FILE_SIZE, null, null);
+    memoryTier.read(TEST_FILE, 0, BLOCK_SIZE, ByteBuffer.allocate(10));
+    memoryTier.promote(TEST_FILE, 2, BLOCK_SIZE, FILE_SIZE, null, null);
+
+    assertTrue(memoryTier.contains(TEST_FILE, 0));
+    assertFalse(memoryTier.contains(TEST_FILE, 1), "Least recently used block should be evicted");
+    assertEquals(memoryTier.getEvictions(), 1);
+    assertEquals(memoryTier.getUsedMemory(), 2 * BLOCK_SIZE);
+  }
+
+  @Test
+  public void testLfuEviction()
+      throws IOException
+  {
+    MemoryTier memoryTier = createMemoryTier(2 * BLOCK_SIZE, EvictionPolicy.LFU);
+    memoryTier.promote(TEST_FILE, 0, BLOCK_SIZE, FILE_SIZE, null, null);
+    memoryTier.promote(TEST_FILE, 1, BLOCK_SIZE, FILE_SIZE, null, null);
+    memoryTier.read(TEST_FILE, 0, BLOCK_SIZE, ByteBuffer.allocate(10));
+    memoryTier.read(TEST_FILE, 0, BLOCK_SIZE, ByteBuffer.allocate(10));
+    memoryTier.read(TEST_FILE, 100, BLOCK_SIZE, ByteBuffer.allocate(10));
+    memoryTier.promote(TEST_FILE, 2, BLOCK_SIZE, FILE_SIZE, null, null);
+
+    assertTrue(memoryTier.contains(TEST_FILE, 0));
+    assertFalse(memoryTier.contains(TEST_FILE, 1), "Least frequently used block should be evicted");
+  }
+
+  @Test
+  public void testEvictionAfterRepeatedAccesses()
+      throws IOException
+  {
+    MemoryTier memoryTier = createMemoryTier(3 * BLOCK_SIZE, EvictionPolicy.LFU);
+    for (int block = 0; block < 3; block++) {
+      memoryTier.promote(TEST_FILE, block, BLOCK_SIZE, FILE_SIZE, null, null);
+    }
+    for (int i = 0; i < 3; i++) {
+      memoryTier.read(TEST_FILE, 0, BLOCK_SIZE, ByteBuffer.allocate(200));
+    }
+    memoryTier.read(TEST_FILE, 200, BLOCK_SIZE, ByteBuffer.allocate(10));
+    memoryTier.promote(TEST_FILE, 3, BLOCK_SIZE, FILE_SIZE, null, null);
+    memoryTier.promote(TEST_FILE, 4, BLOCK_SIZE, FILE_SIZE, null, null);
+
+    assertTrue(memoryTier.contains(TEST_FILE, 0));
+    assertTrue(memoryTier.contains(TEST_FILE, 1));
+    assertFalse(memoryTier.contains(TEST_FILE, 2), "Least frequently used block should be evicted");
+    assertFalse(memoryTier.contains(TEST_FILE, 3), "Least frequently used block should be evicted");
+    assertTrue(memoryTier.contains(TEST_FILE, 4));
+    assertEquals(memoryTier.getEvictions(), 2);
+    assertEquals(memoryTier.getUsedMemory(), 2 * BLOCK_SIZE + 50);
+
+    ByteBuffer destination = ByteBuffer.allocate(BLOCK_SIZE);
+    assertTrue(memoryTier.read(TEST_FILE, 100, BLOCK_SIZE, destination), "Remaining blocks should still be read");
+    assertEquals(destination.get(0), (byte) 100);
+  }
+
+  @Test
+  public void testAccessesRecordedInBatches()
+  {
+    MemoryTier memoryTier = createMemoryTier(1000, EvictionPolicy.LRU);
+    AtomicInteger checksumLookups = new AtomicInteger();
+    Supplier<BlockChecksums> blockChecksums = () -> {
+      checksumLookups.incrementAndGet();
+      return null;
+    };
+
+    memoryTier.recordAccesses(TEST_FILE, Arrays.asList(1L, 2L), BLOCK_SIZE, FILE_SIZE, null, blockChecksums);
+    assertFalse(memoryTier.contains(TEST_FILE, 1), "Block should not be promoted on first access");
+    memoryTier.recordAccesses(TEST_FILE, Arrays.asList(1L, 2L), BLOCK_SIZE, FILE_SIZE, null, blockChecksums);
+
+    assertTrue(memoryTier.contains(TEST_FILE, 1), "Block should be promoted on second access");
+    assertTrue(memoryTier.contains(TEST_FILE, 2), "Block should be promoted on second access");
+    assertEquals(checksumLookups.get(), 2, "Checksums should be looked up once per batch");
+  }
+
+  @Test
+  public void testAccessesDroppedWhenBusy()
+  {
+    MemoryTier memoryTier = new MemoryTier(new Configuration(), 1000, EvictionPolicy.LRU, 1, command -> {
+      throw new RejectedExecutionException();
+    });
+
+    memoryTier.recordAccesses(TEST_FILE, Arrays.asList(1L, 2L), BLOCK_SIZE, FILE_SIZE, null, () -> null);
+    memoryTier.recordAccess(TEST_FILE, 1, BLOCK_SIZE, FILE_SIZE, null, null);
+
+    assertFalse(memoryTier.contains(TEST_FILE, 1));
+    assertEquals(memoryTier.getPromotions(), 0);
+  }
+
+  @Test
+  public void testCorruptedBlockNotPromoted()
+      throws IOException
+  {
+    File mdFile = new File(TEST_FILE + "_mdfile");
+    mdFile.createNewFile();
+    try {
+      BlockChecksums blockChecksums = new BlockChecksums(new Configuration(), mdFile.getPath(), FILE_SIZE, BLOCK_SIZE);
+      byte[] data = new byte[BLOCK_SIZE];
+      for (int i = 0; i < data.length; i++) {
+        data[i] = (byte) i;
+      }
+      blockChecksums.write(0, ByteBuffer.wrap(data));
+      try (RandomAccessFile file = new RandomAccessFile(TEST_FILE, "rw")) {
+        file.seek(50);
+        file.write(0);
+      }
+
+      MemoryTier memoryTier = createMemoryTier(1000, EvictionPolicy.LRU);
+      try {
+        memoryTier.promote(TEST_FILE, 0, BLOCK_SIZE, FILE_SIZE, null, blockChecksums);
+        fail("Corrupted block should not be promoted");
+      }
+      catch (BlockChecksums.CorruptedBlockException e) {
+        assertEquals(e.getBlock(), 0);
+      }
+      assertFalse(memoryTier.contains(TEST_FILE, 0));
+      assertEquals(memoryTier.getUsedMemory(), 0);
+    }
+    finally {
+      FileChannelCache.invalidateChannel(mdFile.getPath());
+      mdFile.delete();
+    }
+  }
+
+  private static MemoryTier createMemoryTier(long maxMemory, EvictionPolicy evictionPolicy)
+  {
+    return new MemoryTier(new Configuration(), maxMemory, evictionPolicy, 2, MoreExecutors.directExecutor());
+  }
+}
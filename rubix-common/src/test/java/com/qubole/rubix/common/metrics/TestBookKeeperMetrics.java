@@ -195,6 +195,36 @@ public class TestBookKeeperMetrics
         BookKeeperMetrics.CacheMetric.ASYNC_QUEUE_SIZE_GAUGE.getMetricName(),
         BookKeeperMetrics.CacheMetric.ASYNC_DOWNLOADED_MB_COUNT.getMetricName(),
         BookKeeperMetrics.CacheMetric.ASYNC_DOWNLOAD_TIME_COUNT.getMetricName(),
+        BookKeeperMetrics.CacheMetric.COALESCED_READ_DATA_COUNT.getMetricName(),
+        BookKeeperMetrics.CacheMetric.OPEN_FILE_HANDLES_GAUGE.getMetricName(),
+        BookKeeperMetrics.CacheMetric.FILE_HANDLE_CACHE_HIT_RATE_GAUGE.getMetricName(),
+        BookKeeperMetrics.CacheMetric.MEMORY_TIER_SIZE_GAUGE.getMetricName(),
+        BookKeeperMetrics.CacheMetric.MEMORY_TIER_HITS_GAUGE.getMetricName(),
+        BookKeeperMetrics.CacheMetric.MEMORY_TIER_PROMOTIONS_GAUGE.getMetricName(),
+        BookKeeperMetrics.CacheMetric.MEMORY_TIER_EVICTIONS_GAUGE.getMetricName(),
+        BookKeeperMetrics.CacheMetric.COMPRESSION_RATIO_GAUGE.getMetricName(),
+        BookKeeperMetrics.CacheMetric.COMPRESSION_TIME_GAUGE.getMetricName(),
+        BookKeeperMetrics.CacheMetric.DECOMPRESSION_TIME_GAUGE.getMetricName(),
+        BookKeeperMetrics.CacheMetric.CORRUPTED_BLOCK_COUNT.getMetricName(),
+        BookKeeperMetrics.CacheMetric.CHECKSUM_VERIFICATION_TIME_GAUGE.getMetricName(),
+        BookKeeperMetrics.CacheMetric.THROTTLE_WARMUP_RATE_GAUGE.getMetricName(),
+        BookKeeperMetrics.CacheMetric.THROTTLE_WARMUP_TIME_GAUGE.getMetricName(),
+        BookKeeperMetrics.CacheMetric.THROTTLE_FOREGROUND_TIME_GAUGE.getMetricName(),
+        BookKeeperMetrics.CacheMetric.DISK_QUEUE_FOREGROUND_READ_TIME_GAUGE.getMetricName(),
+        BookKeeperMetrics.CacheMetric.DISK_QUEUE_NON_LOCAL_SERVE_TIME_GAUGE.getMetricName(),
+        BookKeeperMetrics.CacheMetric.DISK_QUEUE_READ_THROUGH_WRITE_TIME_GAUGE.getMetricName(),
+        BookKeeperMetrics.CacheMetric.DISK_QUEUE_BACKGROUND_TIME_GAUGE.getMetricName(),
+        BookKeeperMetrics.CacheMetric.PAGE_CACHE_DROPPED_DATA_GAUGE.getMetricName(),
+        BookKeeperMetrics.CacheMetric.REPLICA_REQUEST_COUNT.getMetricName(),
+        BookKeeperMetrics.CacheMetric.REPLICATED_BLOCK_COUNT.getMetricName(),
+        BookKeeperMetrics.CacheMetric.DROPPED_REPLICA_BLOCK_COUNT.getMetricName(),
+        BookKeeperMetrics.CacheMetric.LDTS_OPEN_CONNECTIONS_GAUGE.getMetricName(),
+        BookKeeperMetrics.CacheMetric.LDTS_PENDING_REQUESTS_GAUGE.getMetricName(),
+        BookKeeperMetrics.CacheMetric.LDTS_WRITE_BLOCKED_CONNECTIONS_GAUGE.getMetricName(),
+        BookKeeperMetrics.CacheMetric.LDTS_QUEUED_RESPONSE_DATA_GAUGE.getMetricName(),
+        BookKeeperMetrics.CacheMetric.LDTS_WIRE_COMPRESSION_RATIO_GAUGE.getMetricName(),
+        BookKeeperMetrics.CacheMetric.LDTS_WIRE_COMPRESSION_TIME_GAUGE.getMetricName(),
+        BookKeeperMetrics.CacheMetric.LDTS_REPLICATION_REQUEST_COUNT.getMetricName(),
         BookKeeperMetrics.CacheMetric.LDTS_CACHING_EXCEPTION.getMetricName());
 
     assertEquals(cacheMetricsNames, BookKeeperMetrics.CacheMetric.getAllNames());
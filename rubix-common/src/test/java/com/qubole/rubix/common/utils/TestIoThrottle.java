@@ -0,0 +1,98 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.common.utils;
+
+import com.google.common.base.Ticker;
+import com.qubole.rubix.common.utils.IoThrottle.Traffic;
+import com.qubole.rubix.spi.CacheConfig;
+import org.apache.hadoop.conf.Configuration;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TestIoThrottle
+{
+  private static final long FAST_READ = TimeUnit.MILLISECONDS.toNanos(10);
+  private static final long SLOW_READ = TimeUnit.MILLISECONDS.toNanos(100);
+
+  private final AtomicLong time = new AtomicLong();
+  private final Ticker ticker = new Ticker()
+  {
+    @Override
+    public long read()
+    {
+      return time.get();
+    }
+  };
+
+  @Test
+  public void testWarmupThrottledSeparately()
+  {
+    Configuration conf = new Configuration();
+    CacheConfig.setThrottleWarmupNetworkBandwidth(conf, 10000);
+    IoThrottle ioThrottle = new IoThrottle(conf, ticker);
+
+    ioThrottle.acquireNetwork(Traffic.WARMUP, 5000);
+    ioThrottle.acquireNetwork(Traffic.WARMUP, 5000);
+    ioThrottle.acquireNetwork(Traffic.FOREGROUND, 100000);
+
+    assertTrue(ioThrottle.getThrottledTimeMillis(Traffic.WARMUP) >= 400, "Warmup should wait for its budget");
+    assertEquals(ioThrottle.getThrottledTimeMillis(Traffic.FOREGROUND), 0, "Foreground reads should not be limited by default");
+  }
+
+  @Test
+  public void testWarmupBacksOffWhenForegroundLatencyRises()
+  {
+    Configuration conf = new Configuration();
+    CacheConfig.setThrottleWarmupNetworkBandwidth(conf, 10000);
+    IoThrottle ioThrottle = new IoThrottle(conf, ticker);
+
+    recordForegroundLatencies(ioThrottle, FAST_READ, 3);
+    assertEquals(ioThrottle.getWarmupRate(), 1.0);
+
+    recordForegroundLatencies(ioThrottle, SLOW_READ, 1);
+    assertEquals(ioThrottle.getWarmupRate(), 0.5, "Warmup should back off once foreground reads slow down");
+    recordForegroundLatencies(ioThrottle, SLOW_READ, 10);
+    assertEquals(ioThrottle.getWarmupRate(), 1.0 / 16, "Warmup should keep a minimum rate");
+
+    recordForegroundLatencies(ioThrottle, FAST_READ, 10);
+    assertEquals(ioThrottle.getWarmupRate(), 1.0, "Warmup should recover once foreground reads are fast again");
+  }
+
+  @Test
+  public void testBackoffDisabled()
+  {
+    Configuration conf = new Configuration();
+    CacheConfig.setThrottleWarmupBackoffLatencyFactor(conf, 0);
+    IoThrottle ioThrottle = new IoThrottle(conf, ticker);
+
+    recordForegroundLatencies(ioThrottle, FAST_READ, 3);
+    recordForegroundLatencies(ioThrottle, SLOW_READ, 3);
+    assertEquals(ioThrottle.getWarmupRate(), 1.0);
+  }
+
+  // Records 20 reads of the latency per second for `seconds`
+  private void recordForegroundLatencies(IoThrottle ioThrottle, long latencyNanos, int seconds)
+  {
+    for (int second = 0; second < seconds; second++) {
+      for (int i = 0; i < 20; i++) {
+        time.addAndGet(TimeUnit.MILLISECONDS.toNanos(50));
+        ioThrottle.recordForegroundLatency(latencyNanos);
+      }
+    }
+  }
+}
@@ -0,0 +1,40 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Positional reads into a ByteBuffer, the position of the stream is not changed.
+ *
+ * Mirrors org.apache.hadoop.fs.ByteBufferPositionedReadable which is not available in the hadoop version RubiX builds against.
+ */
+public interface ByteBufferPositionedReadable
+{
+  /**
+   * Reads up to buf.remaining() bytes starting at the given position into buf, advancing the position of buf
+   *
+   * @return number of bytes read, -1 if position is at end of file
+   */
+  int read(long position, ByteBuffer buf)
+      throws IOException;
+
+  /**
+   * Reads exactly buf.remaining() bytes starting at the given position into buf
+   *
+   * @throws java.io.EOFException if end of file is reached before buf is filled
+   */
+  void readFully(long position, ByteBuffer buf)
+      throws IOException;
+}
@@ -13,9 +13,21 @@
 package com.qubole.rubix.core;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.qubole.rubix.common.cache.BlockChecksums;
+import com.qubole.rubix.common.cache.BlockChecksums.CorruptedBlockException;
+import com.qubole.rubix.common.cache.CompressedCacheFile;
+import com.qubole.rubix.common.cache.DiskIoScheduler;
+import com.qubole.rubix.common.cache.DiskIoScheduler.Priority;
+import com.qubole.rubix.common.cache.DiskIoScheduler.Slot;
+import com.qubole.rubix.common.cache.FileChannelCache;
+import com.qubole.rubix.common.cache.FileChannelCache.CachedFileChannel;
+import com.qubole.rubix.common.cache.MappedFileCache;
+import com.qubole.rubix.common.cache.MappedFileCache.MappedFile;
+import com.qubole.rubix.common.cache.MemoryTier;
 import com.qubole.rubix.common.metrics.CachingFileSystemMetrics;
 import com.qubole.rubix.common.metrics.CustomMetricsReporterProvider;
 import com.qubole.rubix.spi.BookKeeperFactory;
+import com.qubole.rubix.spi.CacheConfig;
 import com.qubole.rubix.spi.CacheUtil;
 import com.qubole.rubix.spi.RetryingPooledBookkeeperClient;
 import org.apache.commons.logging.Log;
@@ -26,11 +38,11 @@ import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.util.DirectBufferPool;
 
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.List;
 
 import static com.google.common.base.Preconditions.checkState;
 import static com.qubole.rubix.spi.CacheUtil.UNKONWN_GENERATION_NUMBER;
@@ -47,6 +59,8 @@ public class CachedReadRequestChain extends ReadRequestChain
   private DirectReadRequestChain directReadChain;
   private Configuration conf;
   private long directDataRead;
+  // Data of the requests over corrupted blocks, read from the object store
+  private long corruptedBlockDataRead;
   private BookKeeperFactory factory;
 
   private DirectBufferPool bufferPool;
@@ -100,37 +114,54 @@ public class CachedReadRequestChain extends ReadRequestChain
 
     checkState(isLocked, "Trying to execute Chain without locking");
 
-    RandomAccessFile raf = null;
-    FileInputStream fis = null;
+    CachedFileChannel cachedFileChannel = null;
     FileChannel fileChannel = null;
+    MappedFile mappedFile = null;
+    // Blocks promoted to memory by a BookKeeper running in this JVM are copied from there
+    MemoryTier memoryTier = null;
+    if (CacheConfig.isMemoryTierEnabled(conf) && factory != null && factory.isBookKeeperInitialized()) {
+      memoryTier = MemoryTier.getInstance(conf);
+    }
     boolean needsInvalidation = false;
     String localCachedFile = CacheUtil.getLocalPath(remotePath, conf, generationNumber);
+    long fileSize = readRequests.get(0).getBackendFileSize();
+    int blockSize = CacheUtil.getFileBlockSize(remotePath, fileSize, conf);
+    // Null if the blocks are stored uncompressed
+    CompressedCacheFile compressedFile = CompressedCacheFile.forFile(remotePath, blockSize, conf);
+    // Null if block checksums are disabled
+    BlockChecksums blockChecksums = BlockChecksums.forFile(remotePath, fileSize, blockSize, generationNumber, conf);
 
+    DiskIoScheduler diskIoScheduler = DiskIoScheduler.getInstance(conf);
     ByteBuffer directBuffer = bufferPool.getBuffer(directBufferSize);
     try {
-      raf = new RandomAccessFile(localCachedFile, "r");
-      fis = new FileInputStream(raf.getFD());
-      fileChannel = fis.getChannel();
+      if (CacheConfig.isMmapReadEnabled(conf) && compressedFile == null && blockChecksums == null) {
+        mappedFile = MappedFileCache.getInstance(conf).acquire(localCachedFile, getMaxActualReadEnd());
+      }
+      if (mappedFile == null) {
+        cachedFileChannel = FileChannelCache.open(conf, localCachedFile);
+        fileChannel = cachedFileChannel.getChannel();
+      }
 
       for (ReadRequest readRequest : readRequests) {
         if (cancelled) {
           propagateCancel(this.getClass().getName());
         }
-        int nread = 0;
-        int leftToRead = readRequest.getActualReadLengthIntUnsafe();
-        log.debug(String.format("Processing readrequest %d-%d, length %d", readRequest.actualReadStart, readRequest.actualReadEnd, leftToRead));
-        while (nread < readRequest.getActualReadLengthIntUnsafe()) {
-          int readInThisCycle = Math.min(leftToRead, directBuffer.capacity());
-          directBuffer.clear();
-          int nbytes = fileChannel.read(directBuffer, readRequest.getActualReadStart() + nread);
-          if (nbytes <= 0) {
-            break;
+        int nread;
+        log.debug(String.format("Processing readrequest %d-%d, length %d", readRequest.actualReadStart, readRequest.actualReadEnd, readRequest.getActualReadLengthIntUnsafe()));
+        if (memoryTier != null && copyFromMemoryTier(memoryTier, localCachedFile, readRequest)) {
+          nread = readRequest.getActualReadLengthIntUnsafe();
+        }
+        else {
+          try (Slot slot = diskIoScheduler.acquire(localCachedFile, Priority.FOREGROUND_READ)) {
+            nread = readFromDisk(readRequest, fileChannel, mappedFile, compressedFile, blockChecksums, directBuffer);
+          }
+          catch (CorruptedBlockException e) {
+            // Only the corrupted block is dropped from the cache, the rest of the file stays usable
+            log.warn(String.format("Reading [%d - %d] of %s from object store", readRequest.getActualReadStart(), readRequest.getActualReadEnd(), remotePath), e);
+            invalidateBlock(e.getBlock());
+            corruptedBlockDataRead += readFromRemoteFileSystem(Collections.singletonList(readRequest));
+            continue;
           }
-          directBuffer.flip();
-          int transferBytes = Math.min(readInThisCycle, nbytes);
-          directBuffer.get(readRequest.getDestBuffer(), readRequest.getDestBufferOffset() + nread, transferBytes);
-          leftToRead -= transferBytes;
-          nread += transferBytes;
         }
         log.debug(String.format("CachedFileRead copied data [%d - %d] at buffer offset %d",
                 readRequest.getActualReadStart(),
@@ -159,19 +190,21 @@ public class CachedReadRequestChain extends ReadRequestChain
     finally {
       bufferPool.returnBuffer(directBuffer);
 
-      if (fis != null) {
-        fis.close();
+      if (mappedFile != null) {
+        mappedFile.release();
       }
-      if (fileChannel != null) {
-        fileChannel.close();
-      }
-      if (raf != null) {
-        raf.close();
+
+      if (cachedFileChannel != null) {
+        cachedFileChannel.release();
       }
 
       // We are calling invalidateMetadata from finally block to make sure fileChannel is closed before we delete the file
       if (needsInvalidation) {
         corruptedFileCount++;
+        MappedFileCache.invalidateMapping(localCachedFile);
+        MemoryTier.invalidateFile(localCachedFile);
+        FileChannelCache.invalidateChannel(localCachedFile);
+        FileChannelCache.invalidateChannel(CacheUtil.getMetadataFilePath(remotePath, conf, generationNumber));
         invalidateMetadata();
       }
 
@@ -179,7 +212,90 @@ public class CachedReadRequestChain extends ReadRequestChain
         statistics.incrementBytesRead(readFromCache);
       }
     }
-    return readFromCache;
+    return readFromCache + corruptedBlockDataRead;
+  }
+
+  // Copies the data of the request out of the local file, returns the number of bytes copied
+  private static int readFromDisk(ReadRequest readRequest, FileChannel fileChannel, MappedFile mappedFile,
+      CompressedCacheFile compressedFile, BlockChecksums blockChecksums, ByteBuffer directBuffer)
+      throws IOException
+  {
+    if (blockChecksums != null) {
+      return blockChecksums.readVerified(fileChannel, compressedFile, readRequest.getActualReadStart(), readRequest.getDestination());
+    }
+    if (compressedFile != null) {
+      return compressedFile.read(fileChannel, readRequest.getActualReadStart(), readRequest.getDestination());
+    }
+    if (mappedFile != null) {
+      return copyFromMappedFile(mappedFile, readRequest);
+    }
+
+    int nread = 0;
+    if (readRequest.getDestByteBuffer() != null) {
+      // Read straight into the caller's buffer, no copy through the pooled buffer needed
+      ByteBuffer destination = readRequest.getDestination();
+      while (destination.hasRemaining()) {
+        int nbytes = fileChannel.read(destination, readRequest.getActualReadStart() + nread);
+        if (nbytes <= 0) {
+          break;
+        }
+        nread += nbytes;
+      }
+      return nread;
+    }
+
+    int leftToRead = readRequest.getActualReadLengthIntUnsafe();
+    while (nread < readRequest.getActualReadLengthIntUnsafe()) {
+      int readInThisCycle = Math.min(leftToRead, directBuffer.capacity());
+      directBuffer.clear();
+      int nbytes = fileChannel.read(directBuffer, readRequest.getActualReadStart() + nread);
+      if (nbytes <= 0) {
+        break;
+      }
+      directBuffer.flip();
+      int transferBytes = Math.min(readInThisCycle, nbytes);
+      directBuffer.get(readRequest.getDestBuffer(), readRequest.getDestBufferOffset() + nread, transferBytes);
+      leftToRead -= transferBytes;
+      nread += transferBytes;
+    }
+    return nread;
+  }
+
+  private long getMaxActualReadEnd()
+  {
+    long maxActualReadEnd = 0;
+    for (ReadRequest readRequest : readRequests) {
+      maxActualReadEnd = Math.max(maxActualReadEnd, readRequest.getActualReadEnd());
+    }
+    return maxActualReadEnd;
+  }
+
+  // Copies the data of the request out of the memory tier, returns false if not all of it is in memory
+  private boolean copyFromMemoryTier(MemoryTier memoryTier, String localCachedFile, ReadRequest readRequest)
+  {
+    int blockSize = CacheUtil.getFileBlockSize(remotePath, readRequest.getBackendFileSize(), conf);
+    return memoryTier.read(localCachedFile, readRequest.getActualReadStart(), blockSize, readRequest.getDestination());
+  }
+
+  /*
+   * Copies the data of the request out of the mapped file, returns the number of bytes copied which is short
+   * if the request goes beyond the end of the file
+   */
+  private static int copyFromMappedFile(MappedFile mappedFile, ReadRequest readRequest)
+  {
+    long available = mappedFile.getSize() - readRequest.getActualReadStart();
+    if (available <= 0) {
+      return 0;
+    }
+    int length = (int) Math.min(readRequest.getActualReadLengthIntUnsafe(), available);
+    ByteBuffer source = mappedFile.slice(readRequest.getActualReadStart(), length);
+    if (readRequest.getDestByteBuffer() != null) {
+      readRequest.getDestination().put(source);
+    }
+    else {
+      source.get(readRequest.getDestBuffer(), readRequest.getDestBufferOffset(), length);
+    }
+    return length;
   }
 
   @Override
@@ -201,18 +317,33 @@ public class CachedReadRequestChain extends ReadRequestChain
     }
   }
 
+  private void invalidateBlock(long block)
+  {
+    try (RetryingPooledBookkeeperClient client = factory.createBookKeeperClient(conf)) {
+      client.invalidateBlocks(remotePath, block, block + 1, generationNumber);
+    }
+    catch (Exception e) {
+      log.error("Could not Invalidate Corrupted Block " + block + " of " + remotePath + " Error : ", e);
+    }
+  }
+
   private long readFromRemoteFileSystem() throws IOException
   {
     // Setting the cached read data to zero as we are reading the whole request from remote object store
     readFromCache = 0;
+    corruptedBlockDataRead = 0;
+    return readFromRemoteFileSystem(readRequests);
+  }
 
+  private long readFromRemoteFileSystem(List<ReadRequest> requests) throws IOException
+  {
     if (cancelled) {
       return 0;
     }
 
     try (FSDataInputStream inputStream = remoteFileSystem.open(new Path(remotePath))) {
       directReadChain = new DirectReadRequestChain(inputStream);
-      for (ReadRequest readRequest : readRequests) {
+      for (ReadRequest readRequest : requests) {
         directReadChain.addReadRequest(readRequest);
       }
       directReadChain.lock();
@@ -227,7 +358,7 @@ public class CachedReadRequestChain extends ReadRequestChain
     return new ReadRequestChainStats()
             .setCachedRRCDataRead(directDataRead == 0 ? readFromCache : 0)  // If read directly then do not report it under cached reads
             .setCachedRRCRequests(directDataRead == 0 ? requests : 0)
-            .setDirectRRCDataRead(directDataRead)
+            .setDirectRRCDataRead(directDataRead + corruptedBlockDataRead)
             .setDirectRRCRequests(directDataRead == 0 ? 0 : requests)
             .setCorruptedFileCount(corruptedFileCount);
   }
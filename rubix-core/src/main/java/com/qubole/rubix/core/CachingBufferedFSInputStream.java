@@ -0,0 +1,264 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.core;
+
+import com.google.common.annotations.VisibleForTesting;
+import org.apache.hadoop.fs.ByteBufferReadable;
+import org.apache.hadoop.fs.FSInputStream;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.function.IntFunction;
+
+import static org.apache.hadoop.fs.FSExceptionMessages.NEGATIVE_SEEK;
+import static org.apache.hadoop.fs.FSExceptionMessages.STREAM_IS_CLOSED;
+
+/**
+ * Buffered stream returned by CachingFileSystem, exposes the ByteBuffer and vectored read APIs of the underlying CachingInputStream.
+ *
+ * The buffer adapts to the access pattern: it starts at `minBufferSize` and doubles, up to `maxBufferSize`, every time
+ * a fill continues where the previous one ended. Any other fill resets it to `minBufferSize`, so random reads of
+ * columnar formats do not pull in a whole block each. Reads at least as large as the current buffer skip it and
+ * are served straight into the caller's buffer.
+ */
+public class CachingBufferedFSInputStream extends FSInputStream
+    implements ByteBufferReadable, ByteBufferPositionedReadable, VectoredReadable
+{
+  private final CachingInputStream cachingInputStream;
+  private final int minBufferSize;
+  private final int maxBufferSize;
+
+  private byte[] buffer;
+  private int fillSize;
+  // File position of the first byte of buffer and number of valid bytes in it
+  private long bufferStart;
+  private int count;
+  private long lastFillEnd = -1;
+  private long position;
+  private boolean closed;
+
+  public CachingBufferedFSInputStream(CachingInputStream cachingInputStream, int minBufferSize, int maxBufferSize)
+  {
+    this.cachingInputStream = cachingInputStream;
+    this.maxBufferSize = maxBufferSize;
+    this.minBufferSize = Math.min(minBufferSize, maxBufferSize);
+    this.fillSize = this.minBufferSize;
+  }
+
+  @Override
+  public synchronized void seek(long pos)
+      throws IOException
+  {
+    checkNotClosed();
+    if (pos < 0) {
+      throw new EOFException(NEGATIVE_SEEK);
+    }
+    // Buffered data stays valid, it is served again if the new position falls in it
+    position = pos;
+  }
+
+  @Override
+  public synchronized long getPos()
+      throws IOException
+  {
+    return position;
+  }
+
+  @Override
+  public boolean seekToNewSource(long targetPos)
+      throws IOException
+  {
+    return false;
+  }
+
+  @Override
+  public synchronized long skip(long n)
+      throws IOException
+  {
+    if (n <= 0) {
+      return 0;
+    }
+    seek(position + n);
+    return n;
+  }
+
+  @Override
+  public synchronized int available()
+      throws IOException
+  {
+    checkNotClosed();
+    return bufferedAvailable();
+  }
+
+  @Override
+  public synchronized int read()
+      throws IOException
+  {
+    checkNotClosed();
+    if (bufferedAvailable() == 0 && fill() <= 0) {
+      return -1;
+    }
+    return buffer[(int) (position++ - bufferStart)] & 0xff;
+  }
+
+  @Override
+  public synchronized int read(byte[] b, int offset, int length)
+      throws IOException
+  {
+    checkNotClosed();
+    if (offset < 0 || length < 0 || length > b.length - offset) {
+      throw new IndexOutOfBoundsException();
+    }
+    if (length == 0) {
+      return 0;
+    }
+
+    if (bufferedAvailable() == 0) {
+      if (length >= fillSize) {
+        cachingInputStream.seek(position);
+        int read = cachingInputStream.read(b, offset, length);
+        if (read > 0) {
+          position += read;
+          lastFillEnd = position;
+        }
+        return read;
+      }
+      if (fill() <= 0) {
+        return -1;
+      }
+    }
+
+    int read = Math.min(bufferedAvailable(), length);
+    System.arraycopy(buffer, (int) (position - bufferStart), b, offset, read);
+    position += read;
+    return read;
+  }
+
+  @Override
+  public synchronized int read(ByteBuffer byteBuffer)
+      throws IOException
+  {
+    checkNotClosed();
+    int length = byteBuffer.remaining();
+    if (length == 0) {
+      return 0;
+    }
+
+    if (bufferedAvailable() == 0) {
+      if (length >= fillSize) {
+        cachingInputStream.seek(position);
+        int read = cachingInputStream.read(byteBuffer);
+        if (read > 0) {
+          position += read;
+          lastFillEnd = position;
+        }
+        return read;
+      }
+      if (fill() <= 0) {
+        return -1;
+      }
+    }
+
+    int read = Math.min(bufferedAvailable(), length);
+    byteBuffer.put(buffer, (int) (position - bufferStart), read);
+    position += read;
+    return read;
+  }
+
+  @Override
+  public int read(long pos, byte[] b, int offset, int length)
+      throws IOException
+  {
+    return cachingInputStream.read(pos, b, offset, length);
+  }
+
+  @Override
+  public int read(long pos, ByteBuffer byteBuffer)
+      throws IOException
+  {
+    return cachingInputStream.read(pos, byteBuffer);
+  }
+
+  @Override
+  public void readFully(long pos, ByteBuffer byteBuffer)
+      throws IOException
+  {
+    cachingInputStream.readFully(pos, byteBuffer);
+  }
+
+  @Override
+  public void readVectored(List<? extends FileRange> ranges, IntFunction<ByteBuffer> allocate)
+      throws IOException
+  {
+    // Like positional reads, vectored reads bypass the buffer
+    cachingInputStream.readVectored(ranges, allocate);
+  }
+
+  @Override
+  public synchronized void close()
+      throws IOException
+  {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    buffer = null;
+    count = 0;
+    cachingInputStream.close();
+  }
+
+  @VisibleForTesting
+  int getFillSize()
+  {
+    return fillSize;
+  }
+
+  private int bufferedAvailable()
+  {
+    if (position < bufferStart || position >= bufferStart + count) {
+      return 0;
+    }
+    return (int) (bufferStart + count - position);
+  }
+
+  private int fill()
+      throws IOException
+  {
+    if (position == lastFillEnd) {
+      fillSize = Math.min(fillSize * 2, maxBufferSize);
+    }
+    else {
+      fillSize = minBufferSize;
+    }
+    if (buffer == null || buffer.length < fillSize) {
+      buffer = new byte[fillSize];
+    }
+
+    cachingInputStream.seek(position);
+    int read = cachingInputStream.read(buffer, 0, fillSize);
+    bufferStart = position;
+    count = Math.max(read, 0);
+    lastFillEnd = position + count;
+    return read;
+  }
+
+  private void checkNotClosed()
+      throws IOException
+  {
+    if (closed) {
+      throw new IOException(STREAM_IS_CLOSED);
+    }
+  }
+}
@@ -48,8 +48,12 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntFunction;
 
 import static com.google.common.base.Preconditions.checkState;
 import static com.qubole.rubix.common.utils.ClusterUtil.applyRubixSiteConfig;
@@ -244,9 +248,10 @@ public abstract class CachingFileSystem<T extends FileSystem> extends FilterFile
 
     try {
       return new FSDataInputStream(
-              new BufferedFSInputStream(
+              new CachingBufferedFSInputStream(
                       new CachingInputStream(originalPath, this.getConf(), stats,
                               clusterManager.getClusterType(), bookKeeperFactory, fs, bufferSize, statistics),
+                      CacheConfig.getReadBufferMinSize(getConf()),
                       CacheConfig.getBlockSize(getConf())));
     }
     catch (Exception e) {
@@ -259,6 +264,35 @@ public abstract class CachingFileSystem<T extends FileSystem> extends FilterFile
     }
   }
 
+  /**
+   * Reads the given ranges from a stream opened by CachingFileSystem using a vectored read when the stream supports it.
+   * Other streams, e.g. of paths which skip the cache, are read with one positional read per range.
+   */
+  public static void readVectored(FSDataInputStream inputStream, List<? extends FileRange> ranges, IntFunction<ByteBuffer> allocate)
+      throws IOException
+  {
+    if (inputStream.getWrappedStream() instanceof VectoredReadable) {
+      ((VectoredReadable) inputStream.getWrappedStream()).readVectored(ranges, allocate);
+      return;
+    }
+
+    for (FileRange range : VectoredReadUtils.validateAndSortRanges(ranges)) {
+      CompletableFuture<ByteBuffer> data = new CompletableFuture<>();
+      range.setData(data);
+      try {
+        byte[] buffer = new byte[range.getLength()];
+        inputStream.readFully(range.getOffset(), buffer, 0, range.getLength());
+        ByteBuffer byteBuffer = allocate.apply(range.getLength());
+        byteBuffer.put(buffer);
+        byteBuffer.flip();
+        data.complete(byteBuffer);
+      }
+      catch (IOException e) {
+        data.completeExceptionally(e);
+      }
+    }
+  }
+
   @Override
   public FSDataOutputStream create(Path path, FsPermission fsPermission, boolean b, int i, short i1, long l, Progressable progressable)
       throws IOException
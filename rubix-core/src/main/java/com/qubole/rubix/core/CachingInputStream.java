@@ -14,12 +14,16 @@ package com.qubole.rubix.core;
 
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
 import com.qubole.rubix.common.metrics.CustomMetricsReporterProvider;
+import com.qubole.rubix.common.utils.IoThrottle;
+import com.qubole.rubix.core.VectoredReadUtils.CombinedFileRange;
 import com.qubole.rubix.spi.BookKeeperFactory;
 import com.qubole.rubix.spi.CacheConfig;
+import com.qubole.rubix.spi.CacheUtil;
 import com.qubole.rubix.spi.ClusterType;
 import com.qubole.rubix.spi.RetryingPooledBookkeeperClient;
 import com.qubole.rubix.spi.thrift.BlockLocation;
@@ -30,7 +34,9 @@ import com.qubole.rubix.spi.thrift.Location;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.ByteBufferReadable;
 import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSExceptionMessages;
 import org.apache.hadoop.fs.FSInputStream;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
@@ -41,12 +47,15 @@ import javax.annotation.Nullable;
 
 import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
+import java.util.function.IntFunction;
 
 import static com.qubole.rubix.common.metrics.CachingFileSystemMetrics.POSITIONAL_READ_FAILURE;
 import static com.qubole.rubix.spi.CacheUtil.UNKONWN_GENERATION_NUMBER;
@@ -55,25 +64,16 @@ import static org.apache.hadoop.fs.FSExceptionMessages.NEGATIVE_SEEK;
 /**
  * Created by stagra on 29/12/15.
  */
-public class CachingInputStream extends FSInputStream
+public class CachingInputStream extends FSInputStream implements ByteBufferReadable, ByteBufferPositionedReadable, VectoredReadable
 {
   private FSDataInputStream inputStream;
 
   private long nextReadPosition;
   private long nextReadBlock;
   int blockSize;
+  private boolean compressed;
   private CachingFileSystemStatsProvider stats;
 
-  static ListeningExecutorService readService = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(CacheConfig.READ_SERVICE_THREAD_POOL_SIZE, new ThreadFactory()
-  {
-    public Thread newThread(Runnable r)
-    {
-      Thread t = Executors.defaultThreadFactory().newThread(r);
-      t.setName("rubix-readRequest-thread");
-      t.setDaemon(true);
-      return t;
-    }
-  }));
   private static final Log log = LogFactory.getLog(CachingInputStream.class);
 
   protected final String remotePath;
@@ -92,6 +92,8 @@ public class CachingInputStream extends FSInputStream
   private int diskReadBufferSize;
   private final int bufferSize;
   BookKeeperFactory bookKeeperFactory;
+  private ReadAheadPrefetcher readAheadPrefetcher;
+  private SmallRangeCache smallRangeCache;
 
   public CachingInputStream(Path backendPath, Configuration conf,
                             CachingFileSystemStatsProvider stats, ClusterType clusterType,
@@ -101,7 +103,6 @@ public class CachingInputStream extends FSInputStream
     this.conf = conf;
     this.strictMode = CacheConfig.isStrictMode(conf);
     this.remotePath = backendPath.toString();
-    this.blockSize = CacheConfig.getBlockSize(conf);
     this.diskReadBufferSize = CacheConfig.getDiskReadBufferSize(conf);
     this.bookKeeperFactory = bookKeeperFactory;
     this.remoteFileSystem = remoteFileSystem;
@@ -125,14 +126,23 @@ public class CachingInputStream extends FSInputStream
       this.fileSize = fileStatus.getLen();
       this.lastModified = fileStatus.getModificationTime();
     }
+    this.blockSize = CacheUtil.getFileBlockSize(remotePath, fileSize, conf);
+    this.compressed = CacheUtil.isCompressedFile(remotePath, conf);
 
     this.stats = stats;
     this.clusterType = clusterType;
     this.bufferSize = bufferSize;
     this.statistics = statistics;
+    if (CacheConfig.isReadAheadEnabled(conf) && !CacheConfig.isDummyModeEnabled(conf)) {
+      this.readAheadPrefetcher = new ReadAheadPrefetcher(remotePath, fileSize, lastModified, conf, clusterType,
+          remoteFileSystem, bookKeeperFactory, stats);
+    }
+    if (CacheConfig.isSmallRangeCacheEnabled(conf) && !CacheConfig.isDummyModeEnabled(conf)) {
+      this.smallRangeCache = SmallRangeCache.getInstance(conf);
+    }
   }
 
-  FSDataInputStream getParentDataInputStream() throws IOException
+  synchronized FSDataInputStream getParentDataInputStream() throws IOException
   {
     if (inputStream == null) {
       inputStream = remoteFileSystem.open(new Path(remotePath), bufferSize);
@@ -198,6 +208,39 @@ public class CachingInputStream extends FSInputStream
     }
   }
 
+  @Override
+  public int read(ByteBuffer buffer)
+      throws IOException
+  {
+    int length = buffer.remaining();
+    if (length == 0) {
+      return 0;
+    }
+    try {
+      int read = readInternal(null, buffer, buffer.position(), length);
+      if (read > 0) {
+        buffer.position(buffer.position() + read);
+      }
+      return read;
+    }
+    catch (InterruptedException e) {
+      throw Throwables.propagate(e);
+    }
+    catch (Exception e) {
+      log.error(String.format("Failed to read from rubix for file %s position %d length %d. Falling back to remote", remotePath, nextReadPosition, length), e);
+      CustomMetricsReporterProvider.getCustomMetricsReporter().addMetric(POSITIONAL_READ_FAILURE);
+      getParentDataInputStream().seek(nextReadPosition);
+      byte[] bytes = new byte[length];
+      int read = readFullyDirect(bytes, 0, length);
+      if (read > 0) {
+        buffer.put(bytes, 0, read);
+        nextReadPosition += read;
+        setNextReadBlock();
+      }
+      return read;
+    }
+  }
+
   protected int readFullyDirect(byte[] buffer, int offset, int length)
       throws IOException
   {
@@ -236,8 +279,68 @@ public class CachingInputStream extends FSInputStream
     }
   }
 
+  @Override
+  public int read(long position, ByteBuffer buffer)
+      throws IOException
+  {
+    int length = buffer.remaining();
+    if (length == 0) {
+      return 0;
+    }
+    synchronized (this) {
+      long oldPos = getPos();
+      try {
+        seek(position);
+        int read = readInternal(null, buffer, buffer.position(), length);
+        if (read > 0) {
+          buffer.position(buffer.position() + read);
+        }
+        return read;
+      }
+      catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      catch (Exception e) {
+        log.error(String.format("Failed to read from rubix for file %s position %d length %d. Falling back to remote", remotePath, nextReadPosition, length), e);
+        if (position >= fileSize) {
+          return -1;
+        }
+        int read = (int) Math.min(length, fileSize - position);
+        ByteBuffer destination = buffer.duplicate();
+        destination.limit(destination.position() + read);
+        DirectReadRequestChain.readFully(getParentDataInputStream(), position, destination);
+        buffer.position(buffer.position() + read);
+        return read;
+      }
+      finally {
+        seek(oldPos);
+      }
+    }
+  }
+
+  @Override
+  public void readFully(long position, ByteBuffer buffer)
+      throws IOException
+  {
+    long nextPosition = position;
+    while (buffer.hasRemaining()) {
+      int read = read(nextPosition, buffer);
+      if (read < 0) {
+        throw new EOFException(FSExceptionMessages.EOF_IN_READ_FULLY);
+      }
+      nextPosition += read;
+    }
+  }
+
   private int readInternal(byte[] buffer, int offset, int length)
       throws IOException, InterruptedException, ExecutionException
+  {
+    return readInternal(buffer, null, offset, length);
+  }
+
+  // Reads into either buffer or byteBuffer, offset is the absolute index in the one used
+  private int readInternal(@Nullable byte[] buffer, @Nullable ByteBuffer byteBuffer, int offset, int length)
+      throws IOException, InterruptedException, ExecutionException
 
   {
     log.debug(String.format("Got Read, currentPos: %d currentBlock: %d bufferOffset: %d length: %d of file : %s", nextReadPosition, nextReadBlock, offset, length, remotePath));
@@ -247,16 +350,118 @@ public class CachingInputStream extends FSInputStream
       return -1;
     }
 
+    if (smallRangeCache == null) {
+      return readThroughCache(buffer, byteBuffer, offset, length);
+    }
+
+    int read = readFromSmallRangeCache(buffer, byteBuffer, offset, length);
+    if (read > 0) {
+      return read;
+    }
+
+    long position = nextReadPosition;
+    read = readThroughCache(buffer, byteBuffer, offset, length);
+    if (read > 0 && smallRangeCache.isSmallRead(read)) {
+      smallRangeCache.put(remotePath, lastModified, position, getDestination(buffer, byteBuffer, offset, read));
+    }
+    return read;
+  }
+
+  // Serves the read from the small range cache, loading the tail of the file first for reads within it
+  // Returns 0 if the range is not in the small range cache
+  private int readFromSmallRangeCache(@Nullable byte[] buffer, @Nullable ByteBuffer byteBuffer, int offset, int length)
+      throws IOException, InterruptedException, ExecutionException
+  {
+    int readLength = (int) Math.min(length, fileSize - nextReadPosition);
+    ByteBuffer destination = getDestination(buffer, byteBuffer, offset, readLength);
+    if (!smallRangeCache.read(remotePath, lastModified, nextReadPosition, destination)) {
+      long tailStart = smallRangeCache.getTailStart(fileSize);
+      if (nextReadPosition < tailStart || !loadTail(tailStart)
+          || !smallRangeCache.read(remotePath, lastModified, nextReadPosition, destination)) {
+        return 0;
+      }
+    }
+
+    log.debug(String.format("Read %d bytes from small range cache", readLength));
+    nextReadPosition += readLength;
+    setNextReadBlock();
+    return readLength;
+  }
+
+  private boolean loadTail(long tailStart)
+      throws IOException, InterruptedException, ExecutionException
+  {
+    int tailLength = (int) (fileSize - tailStart);
+    byte[] tail = new byte[tailLength];
+    long position = nextReadPosition;
+    try {
+      int read = 0;
+      while (read < tailLength) {
+        // Loaded on behalf of the small range cache, so neither read-ahead nor the foreground latency account for it
+        seek(tailStart + read);
+        int nread = executeReadRequestChains(tail, null, read, tailLength - read);
+        if (nread <= 0) {
+          return false;
+        }
+        read += nread;
+      }
+    }
+    finally {
+      seek(position);
+    }
+    smallRangeCache.put(remotePath, lastModified, tailStart, ByteBuffer.wrap(tail));
+    return true;
+  }
+
+  // Returns a buffer over [offset, offset + length) of either buffer or byteBuffer
+  private static ByteBuffer getDestination(@Nullable byte[] buffer, @Nullable ByteBuffer byteBuffer, int offset, int length)
+  {
+    if (byteBuffer == null) {
+      return ByteBuffer.wrap(buffer, offset, length);
+    }
+    ByteBuffer destination = byteBuffer.duplicate();
+    destination.limit(offset + length);
+    destination.position(offset);
+    return destination;
+  }
+
+  private int readThroughCache(@Nullable byte[] buffer, @Nullable ByteBuffer byteBuffer, int offset, int length)
+      throws IOException, InterruptedException, ExecutionException
+  {
+    long startTime = System.nanoTime();
+    int sizeRead = executeReadRequestChains(buffer, byteBuffer, offset, length);
+
+    IoThrottle.getInstance(conf).recordForegroundLatency(System.nanoTime() - startTime);
+    log.debug(String.format("Read %d bytes", sizeRead));
+    if (sizeRead > 0) {
+      if (readAheadPrefetcher != null) {
+        readAheadPrefetcher.onRead(nextReadPosition, sizeRead);
+      }
+      nextReadPosition += sizeRead;
+      setNextReadBlock();
+      log.debug(String.format("New nextReadPosition: %d nextReadBlock: %d", nextReadPosition, nextReadBlock));
+    }
+    return sizeRead;
+  }
+
+  // Reads through the cache starting at nextReadPosition without moving it, returns the number of bytes read
+  private int executeReadRequestChains(@Nullable byte[] buffer, @Nullable ByteBuffer byteBuffer, int offset, int length)
+      throws IOException, InterruptedException, ExecutionException
+  {
     // Get the last block
     final long endBlock = ((nextReadPosition + (length - 1)) / blockSize) + 1; // this block will not be read
 
     // Create read requests
+    CacheStatusResponse response = getCacheStatus(nextReadBlock, endBlock, true);
     final List<ReadRequestChain> readRequestChains = setupReadRequestChains(buffer,
+        byteBuffer,
         offset,
         endBlock,
         length,
         nextReadPosition,
-        nextReadBlock);
+        nextReadBlock,
+        response == null ? null : response.getBlocks(),
+        response == null ? UNKONWN_GENERATION_NUMBER : response.getGenerationNumber());
 
     log.debug("Executing Chains");
 
@@ -266,8 +471,8 @@ public class CachingInputStream extends FSInputStream
 
     for (ReadRequestChain readRequestChain : readRequestChains) {
       readRequestChain.lock();
-      builder.add(readService.submit(readRequestChain));
     }
+    builder.addAll(getReadExecutor().submit(readRequestChains));
 
     List<ListenableFuture<Long>> futures = builder.build();
     for (ListenableFuture<Long> future : futures) {
@@ -285,21 +490,185 @@ public class CachingInputStream extends FSInputStream
 
     // mark all read blocks cached
     // We can let this is happen in background
-    readService.execute(new Runnable() {
+    getReadExecutor().getBackgroundService().execute(new Runnable() {
       @Override
       public void run()
       {
         updateCacheAndStats(readRequestChains);
       }
     });
+    return sizeRead;
+  }
 
-    log.debug(String.format("Read %d bytes", sizeRead));
-    if (sizeRead > 0) {
-      nextReadPosition += sizeRead;
-      setNextReadBlock();
-      log.debug(String.format("New nextReadPosition: %d nextReadBlock: %d", nextReadPosition, nextReadBlock));
+  /**
+   * Reads the given ranges with a single cache status lookup. Nearby ranges are coalesced and the chains of all
+   * coalesced ranges are executed in parallel, the future of a range is completed as soon as the chains covering
+   * it are done. Chains that read from the parent input stream are executed one after the other in the calling
+   * thread while holding the stream lock, as the parent stream and affix buffer are shared with the other reads.
+   * They are grouped per range, so a failed read of the parent stream only makes its own range fall back.
+   */
+  @Override
+  public void readVectored(List<? extends FileRange> ranges, IntFunction<ByteBuffer> allocate)
+      throws IOException
+  {
+    List<FileRange> validRanges = new ArrayList<>();
+    for (FileRange range : VectoredReadUtils.validateAndSortRanges(ranges)) {
+      range.setData(new CompletableFuture<>());
+      if (range.getOffset() + range.getLength() > fileSize) {
+        range.getData().completeExceptionally(new EOFException(String.format("%s is beyond the end of file %s of length %d", range, remotePath, fileSize)));
+      }
+      else if (range.getLength() == 0) {
+        range.getData().complete(allocate.apply(0));
+      }
+      else {
+        validRanges.add(range);
+      }
     }
-    return sizeRead;
+    if (validRanges.isEmpty()) {
+      return;
+    }
+
+    List<CombinedFileRange> combinedRanges = VectoredReadUtils.mergeSortedRanges(validRanges,
+        CacheConfig.getVectoredReadMinSeekSize(conf), CacheConfig.getVectoredReadMaxMergedSize(conf));
+    long startBlock = combinedRanges.get(0).getOffset() / blockSize;
+    long endBlock = getEndBlock(combinedRanges.get(combinedRanges.size() - 1));
+
+    // Only count the lookup in cache metrics if it does not include blocks that are not going to be read
+    long requestedBlocks = 0;
+    long lastCountedBlock = -1;
+    for (CombinedFileRange combinedRange : combinedRanges) {
+      long rangeStartBlock = Math.max(combinedRange.getOffset() / blockSize, lastCountedBlock + 1);
+      long rangeEndBlock = getEndBlock(combinedRange);
+      requestedBlocks += Math.max(0, rangeEndBlock - rangeStartBlock);
+      lastCountedBlock = rangeEndBlock - 1;
+    }
+    CacheStatusResponse response = getCacheStatus(startBlock, endBlock, requestedBlocks == endBlock - startBlock);
+
+    final List<ReadRequestChain> completedChains = Collections.synchronizedList(new ArrayList<>());
+    List<ListenableFuture<Long>> allFutures = new ArrayList<>();
+    Map<CombinedFileRange, List<ReadRequestChain>> rangeChains = new HashMap<>();
+    Map<CombinedFileRange, byte[]> rangeBuffers = new HashMap<>();
+    Map<CombinedFileRange, List<ListenableFuture<Long>>> rangeFutures = new HashMap<>();
+    // Chains of each range reading from the parent stream, so a failure only fails the range it belongs to
+    Map<CombinedFileRange, ChainedReadRequestChain> rangeStreamChains = new HashMap<>();
+
+    synchronized (this) {
+      for (CombinedFileRange combinedRange : combinedRanges) {
+        long rangeStartBlock = combinedRange.getOffset() / blockSize;
+        long rangeEndBlock = getEndBlock(combinedRange);
+        byte[] buffer = new byte[combinedRange.getLength()];
+        List<ReadRequestChain> chains = setupReadRequestChains(buffer, null, 0, rangeEndBlock, combinedRange.getLength(),
+            combinedRange.getOffset(), rangeStartBlock,
+            response == null ? null : response.getBlocks().subList(Math.toIntExact(rangeStartBlock - startBlock), Math.toIntExact(rangeEndBlock - startBlock)),
+            response == null ? UNKONWN_GENERATION_NUMBER : response.getGenerationNumber());
+
+        List<ListenableFuture<Long>> futures = new ArrayList<>();
+        List<ReadRequestChain> ownChains = new ArrayList<>();
+        for (ReadRequestChain chain : chains) {
+          if (chain instanceof ChainedReadRequestChain || chain instanceof DirectReadRequestChain) {
+            rangeStreamChains.computeIfAbsent(combinedRange, range -> new ChainedReadRequestChain()).addReadRequestChain(chain);
+          }
+          else {
+            chain.lock();
+            ListenableFuture<Long> future = getReadExecutor().submit(chain);
+            futures.add(future);
+            allFutures.add(future);
+            ownChains.add(chain);
+          }
+        }
+        rangeChains.put(combinedRange, ownChains);
+        rangeBuffers.put(combinedRange, buffer);
+        rangeFutures.put(combinedRange, futures);
+      }
+
+      // Executed in the order of the ranges, so the parent stream is read forward
+      for (CombinedFileRange combinedRange : combinedRanges) {
+        final ChainedReadRequestChain streamReadRequestChain = rangeStreamChains.get(combinedRange);
+        if (streamReadRequestChain == null) {
+          continue;
+        }
+        streamReadRequestChain.lock();
+        ListenableFuture<Long> streamFuture;
+        try {
+          streamFuture = Futures.immediateFuture(streamReadRequestChain.call());
+        }
+        catch (Exception e) {
+          streamFuture = Futures.immediateFailedFuture(e);
+        }
+        allFutures.add(streamFuture);
+        Futures.addCallback(streamFuture, new FutureCallback<Long>()
+        {
+          @Override
+          public void onSuccess(@Nullable Long result)
+          {
+            completedChains.add(streamReadRequestChain);
+          }
+
+          @Override
+          public void onFailure(Throwable t)
+          {
+            log.debug(String.format("Reads of [%d, %d) from parent stream failed for vectored read of %s",
+                combinedRange.getOffset(), combinedRange.getOffset() + combinedRange.getLength(), remotePath), t);
+          }
+        }, MoreExecutors.directExecutor());
+        rangeFutures.get(combinedRange).add(streamFuture);
+      }
+    }
+
+    for (final CombinedFileRange combinedRange : combinedRanges) {
+      final byte[] buffer = rangeBuffers.get(combinedRange);
+      final List<ReadRequestChain> chains = rangeChains.get(combinedRange);
+      Futures.addCallback(Futures.allAsList(rangeFutures.get(combinedRange)), new FutureCallback<List<Long>>()
+      {
+        @Override
+        public void onSuccess(@Nullable List<Long> result)
+        {
+          completedChains.addAll(chains);
+          VectoredReadUtils.scatter(combinedRange, buffer, allocate);
+        }
+
+        @Override
+        public void onFailure(Throwable t)
+        {
+          for (ReadRequestChain chain : chains) {
+            chain.cancel();
+          }
+          log.error(String.format("Failed to read [%d, %d) from rubix for file %s. Falling back to remote",
+              combinedRange.getOffset(), combinedRange.getOffset() + combinedRange.getLength(), remotePath), t);
+          CustomMetricsReporterProvider.getCustomMetricsReporter().addMetric(POSITIONAL_READ_FAILURE);
+          // Parent stream might still be in use by other ranges, read through a separate stream
+          try (FSDataInputStream inputStream = remoteFileSystem.open(new Path(remotePath), bufferSize)) {
+            inputStream.readFully(combinedRange.getOffset(), buffer, 0, combinedRange.getLength());
+          }
+          catch (Exception e) {
+            for (FileRange range : combinedRange.getUnderlying()) {
+              range.getData().completeExceptionally(e);
+            }
+            return;
+          }
+          VectoredReadUtils.scatter(combinedRange, buffer, allocate);
+        }
+      }, getReadExecutor().getBackgroundService());
+    }
+
+    Futures.successfulAsList(allFutures).addListener(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        updateCacheAndStats(completedChains);
+      }
+    }, getReadExecutor().getBackgroundService());
+  }
+
+  ReadRequestChainExecutor getReadExecutor()
+  {
+    return ReadRequestChainExecutor.getInstance(conf);
+  }
+
+  private long getEndBlock(CombinedFileRange combinedRange)
+  {
+    return (combinedRange.getOffset() + combinedRange.getLength() - 1) / blockSize + 1;
   }
 
   void updateCacheAndStats(final List<ReadRequestChain> readRequestChains)
@@ -319,32 +688,62 @@ public class CachingInputStream extends FSInputStream
                                    long nextReadPosition,
                                    long nextReadBlock) throws IOException
   {
-    DirectReadRequestChain directReadRequestChain = null;
-    RemoteReadRequestChain remoteReadRequestChain = null;
-    CachedReadRequestChain cachedReadRequestChain = null;
-    RemoteFetchRequestChain remoteFetchRequestChain = null;
-    Map<String, NonLocalReadRequestChain> nonLocalRequests = new HashMap<>();
-    Map<String, NonLocalRequestChain> nonLocalAsyncRequests = new HashMap<String, NonLocalRequestChain>();
-    ImmutableList.Builder chainedReadRequestChainBuilder = ImmutableList.builder();
-
-    int lengthAlreadyConsidered = 0;
-    List<BlockLocation> isCached = null;
-    int generationNumber = UNKONWN_GENERATION_NUMBER;
+    CacheStatusResponse response = getCacheStatus(nextReadBlock, endBlock, true);
+    return setupReadRequestChains(buffer, null, offset, endBlock, length, nextReadPosition, nextReadBlock,
+        response == null ? null : response.getBlocks(),
+        response == null ? UNKONWN_GENERATION_NUMBER : response.getGenerationNumber());
+  }
 
+  @Nullable
+  private CacheStatusResponse getCacheStatus(long startBlock, long endBlock, boolean incrMetrics)
+  {
     try (RetryingPooledBookkeeperClient bookKeeperClient = bookKeeperFactory.createBookKeeperClient(conf)) {
       CacheStatusRequest request = new CacheStatusRequest(remotePath, fileSize, lastModified,
-          nextReadBlock, endBlock).setClusterType(clusterType.ordinal());
-      request.setIncrMetrics(true);
+          startBlock, endBlock).setClusterType(clusterType.ordinal());
+      request.setIncrMetrics(incrMetrics);
       CacheStatusResponse response = bookKeeperClient.getCacheStatus(request);
-      isCached = response.getBlocks();
-      generationNumber = response.getGenerationNumber();
+      if (response.isSetBlockSize() && response.getBlockSize() != blockSize) {
+        // Block numbers of the response do not match ours, the data is read directly instead
+        log.warn(String.format("Block size %d of %s in BookKeeper differs from %d of the client", response.getBlockSize(), remotePath, blockSize));
+        return null;
+      }
+      if (response.isSetCompressed() && response.isCompressed() != compressed) {
+        // Layout of the local file does not match ours, the data is read directly instead
+        log.warn(String.format("Compression of %s in BookKeeper differs from the client", remotePath));
+        return null;
+      }
+      return response;
     }
     catch (Exception e) {
       if (strictMode) {
         throw Throwables.propagate(e);
       }
       log.debug("Could not get cache status from server ", e);
+      return null;
     }
+  }
+
+  // isCached holds the locations of blocks [nextReadBlock, endBlock), null if cache status is not known
+  // Requests read into byteBuffer instead of buffer when it is set
+  private List<ReadRequestChain> setupReadRequestChains(@Nullable byte[] buffer,
+                                                        @Nullable ByteBuffer byteBuffer,
+                                                        int offset,
+                                                        long endBlock,
+                                                        int length,
+                                                        long nextReadPosition,
+                                                        long nextReadBlock,
+                                                        @Nullable List<BlockLocation> isCached,
+                                                        int generationNumber) throws IOException
+  {
+    DirectReadRequestChain directReadRequestChain = null;
+    RemoteReadRequestChain remoteReadRequestChain = null;
+    CachedReadRequestChain cachedReadRequestChain = null;
+    RemoteFetchRequestChain remoteFetchRequestChain = null;
+    Map<String, NonLocalReadRequestChain> nonLocalRequests = new HashMap<>();
+    Map<String, NonLocalRequestChain> nonLocalAsyncRequests = new HashMap<String, NonLocalRequestChain>();
+    ImmutableList.Builder chainedReadRequestChainBuilder = ImmutableList.builder();
+
+    int lengthAlreadyConsidered = 0;
 
     int idx = 0;
     for (long blockNum = nextReadBlock; blockNum < endBlock; blockNum++, idx++) {
@@ -373,6 +772,9 @@ public class CachingInputStream extends FSInputStream
           buffer,
           bufferOffest,
           fileSize);
+      if (byteBuffer != null) {
+        readRequest.setDestByteBuffer(byteBuffer);
+      }
 
       lengthAlreadyConsidered += readRequest.getActualReadLengthIntUnsafe();
 
@@ -384,7 +786,7 @@ public class CachingInputStream extends FSInputStream
         directReadRequestChain.addReadRequest(readRequest);
       }
 
-      else if (isCached.get(idx).getLocation() == Location.CACHED) {
+      else if (isCached.get(idx).getLocation() == Location.CACHED || isCached.get(idx).getLocation() == Location.IN_MEMORY) {
         log.debug(String.format("Sending cached block %d to cachedReadRequestChain", blockNum));
         if (cachedReadRequestChain == null) {
           cachedReadRequestChain = new CachedReadRequestChain(remoteFileSystem, remotePath, bufferPool, diskReadBufferSize,
@@ -453,6 +855,20 @@ public class CachingInputStream extends FSInputStream
       }
     }
 
+    if (directReadRequestChain != null) {
+      directReadRequestChain.setCoalescing(CacheConfig.getReadCoalesceMaxGap(conf), CacheConfig.getReadCoalesceMaxSize(conf));
+      directReadRequestChain.setIoThrottle(IoThrottle.getInstance(conf));
+    }
+
+    if (CacheConfig.isHedgedReadEnabled(conf)) {
+      if (directReadRequestChain != null) {
+        directReadRequestChain.setHedgedReader(new HedgedReader(conf, remoteFileSystem, new Path(remotePath), getParentDataInputStream()));
+      }
+      if (remoteReadRequestChain != null) {
+        remoteReadRequestChain.setHedgedReader(new HedgedReader(conf, remoteFileSystem, new Path(remotePath), getParentDataInputStream()));
+      }
+    }
+
     if (cachedReadRequestChain != null) {
       chainedReadRequestChainBuilder.add(cachedReadRequestChain);
     }
@@ -507,6 +923,9 @@ public class CachingInputStream extends FSInputStream
   @Override
   public void close()
   {
+    if (readAheadPrefetcher != null) {
+      readAheadPrefetcher.close();
+    }
     try {
       if (inputStream != null) {
         inputStream.close();
@@ -12,7 +12,12 @@
  */
 package com.qubole.rubix.core;
 
+import com.qubole.rubix.common.cache.CompressedCacheFile;
+import com.qubole.rubix.common.cache.FileChannelCache;
+import com.qubole.rubix.common.cache.PageCacheHints;
 import com.qubole.rubix.spi.BookKeeperFactory;
+import com.qubole.rubix.spi.CacheConfig;
+import com.qubole.rubix.spi.WireCompression;
 import org.apache.hadoop.conf.Configuration;
 import org.weakref.jmx.Managed;
 
@@ -125,6 +130,158 @@ public class DetailedCachingFileSystemStats
         return NANOSECONDS.toSeconds(statsProvider.getStats().getTotalTimeForParallelDownload(bookKeeperFactory, conf));
     }
 
+    // Read-ahead
+    @Managed(description = "Gets the total number of read-ahead rounds issued for sequentially read streams")
+    public long getReadahead_requests()
+    {
+        return statsProvider.getStats().getReadAheadRequests();
+    }
+
+    @Managed(description = "Gets the total size in MB warmed up by read-ahead")
+    public long getReadahead_data_read()
+    {
+        return BYTES.toMB(statsProvider.getStats().getReadAheadDataRead());
+    }
+
+    @Managed(description = "Gets the total size in MB read by streams from data warmed up by read-ahead")
+    public long getReadahead_hit_data()
+    {
+        return BYTES.toMB(statsProvider.getStats().getReadAheadHitData());
+    }
+
+    @Managed(description = "Gets the total size in MB warmed up by read-ahead but never read by the stream")
+    public long getReadahead_wasted_data()
+    {
+        return BYTES.toMB(statsProvider.getStats().getReadAheadWastedData());
+    }
+
+    // Local file handles
+    @Managed(description = "Gets the number of channels to local cache files currently open")
+    public long getOpen_file_handles()
+    {
+        return FileChannelCache.getOpenHandles();
+    }
+
+    @Managed(description = "Gets the fraction of local cache file opens served by an already open channel")
+    public double getFile_handle_cache_hit_rate()
+    {
+        return FileChannelCache.getInstance(conf).getHitRate();
+    }
+
+    @Managed(description = "Gets the average time in ms read requests of cached data waited for a thread")
+    public double getCached_read_avg_queue_time()
+    {
+        return ReadRequestChainExecutor.getInstance(conf).getCachedQueueTimeStats().getAverageQueueTimeMillis();
+    }
+
+    @Managed(description = "Gets the maximum time in ms read requests of cached data waited for a thread")
+    public long getCached_read_max_queue_time()
+    {
+        return ReadRequestChainExecutor.getInstance(conf).getCachedQueueTimeStats().getMaxQueueTimeMillis();
+    }
+
+    @Managed(description = "Gets the average time in ms read requests of non cached data waited for a thread")
+    public double getRemote_read_avg_queue_time()
+    {
+        return ReadRequestChainExecutor.getInstance(conf).getRemoteQueueTimeStats().getAverageQueueTimeMillis();
+    }
+
+    @Managed(description = "Gets the maximum time in ms read requests of non cached data waited for a thread")
+    public long getRemote_read_max_queue_time()
+    {
+        return ReadRequestChainExecutor.getInstance(conf).getRemoteQueueTimeStats().getMaxQueueTimeMillis();
+    }
+
+    @Managed(description = "Gets the MB of downloaded data waiting to be written into the cache")
+    public long getWrite_behind_pending_data()
+    {
+        return BYTES.toMB(WriteBehindCacheWriter.getInstance(conf).getPendingBytes());
+    }
+
+    @Managed(description = "Gets the number of times downloaded data was written synchronously as the write behind queue was full")
+    public long getWrite_behind_synchronous_fallbacks()
+    {
+        return WriteBehindCacheWriter.getInstance(conf).getSynchronousFallbacks();
+    }
+
+    @Managed(description = "Gets the number of reads served by a download of the same blocks already in progress")
+    public long getDeduplicated_remote_reads()
+    {
+        return InFlightBlockRegistry.getInstance().getDeduplicatedReads();
+    }
+
+    @Managed(description = "Gets the MB not downloaded again as the blocks were already being downloaded")
+    public long getDeduplicated_remote_data()
+    {
+        return BYTES.toMB(InFlightBlockRegistry.getInstance().getDeduplicatedBytes());
+    }
+
+    @Managed(description = "Gets the number of reads served from the in-memory cache of file tails and small ranges")
+    public long getSmall_range_cache_hits()
+    {
+        if (!CacheConfig.isSmallRangeCacheEnabled(conf)) {
+            return 0;
+        }
+        return SmallRangeCache.getInstance(conf).getHits();
+    }
+
+    @Managed(description = "Gets the MB of memory used by the in-memory cache of file tails and small ranges")
+    public long getSmall_range_cache_size()
+    {
+        if (!CacheConfig.isSmallRangeCacheEnabled(conf)) {
+            return 0;
+        }
+        return BYTES.toMB(SmallRangeCache.getInstance(conf).getSize());
+    }
+
+    @Managed(description = "Gets the ratio of the size of the data written to compressed cache files to the space it takes in them")
+    public double getCompression_ratio()
+    {
+        return CompressedCacheFile.getCompressionRatio();
+    }
+
+    @Managed(description = "Gets the total time in ms spent compressing blocks written to the cache")
+    public long getCompression_time()
+    {
+        return CompressedCacheFile.getCompressionTimeMillis();
+    }
+
+    @Managed(description = "Gets the total time in ms spent decompressing blocks read from the cache")
+    public long getDecompression_time()
+    {
+        return CompressedCacheFile.getDecompressionTimeMillis();
+    }
+
+    @Managed(description = "Gets the number of remote reads hedged with a second request after stalling")
+    public long getHedged_reads()
+    {
+        return HedgedReader.getHedgedReads();
+    }
+
+    @Managed(description = "Gets the number of hedged remote reads where the second request finished first")
+    public long getHedged_read_wins()
+    {
+        return HedgedReader.getHedgedReadWins();
+    }
+
+    @Managed(description = "Gets the total bytes of cached data the kernel was asked to read ahead for sequential reads")
+    public long getPage_cache_prefetched_data()
+    {
+        return PageCacheHints.getPrefetchedBytes();
+    }
+
+    @Managed(description = "Gets the ratio of the size of the data received compressed from non-local caches to its size on the wire")
+    public double getWire_compression_ratio()
+    {
+        return WireCompression.getReceivedCompressionRatio();
+    }
+
+    @Managed(description = "Gets the total time in ms spent decompressing data received from non-local caches")
+    public long getWire_decompression_time()
+    {
+        return WireCompression.getDecompressionTimeMillis();
+    }
+
     @Managed(description = "Gets the total number corrupted files that have been invalidated")
     public int getcorrupted_file_count()
     {
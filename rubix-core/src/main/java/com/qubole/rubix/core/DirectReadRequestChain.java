@@ -12,11 +12,15 @@
  */
 package com.qubole.rubix.core;
 
+import com.qubole.rubix.common.utils.IoThrottle;
+import com.qubole.rubix.common.utils.IoThrottle.Traffic;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.fs.FSDataInputStream;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
 
 import static com.google.common.base.Preconditions.checkState;
 import static com.qubole.rubix.spi.CacheUtil.UNKONWN_GENERATION_NUMBER;
@@ -31,8 +35,12 @@ public class DirectReadRequestChain extends ReadRequestChain
 {
   private final FSDataInputStream inputStream;
   private long totalRead;
+  private long gapRead;
+  private HedgedReader hedgedReader;
+  private IoThrottle ioThrottle;
 
   private static final Log log = LogFactory.getLog(DirectReadRequestChain.class);
+  private static final int READ_CHUNK_SIZE = 1024 * 1024;
 
   public DirectReadRequestChain(FSDataInputStream inputStream)
   {
@@ -40,6 +48,22 @@ public class DirectReadRequestChain extends ReadRequestChain
     this.inputStream = inputStream;
   }
 
+  /**
+   * Issues the positional reads of the chain through `hedgedReader`, which is closed once the chain is executed
+   */
+  public void setHedgedReader(HedgedReader hedgedReader)
+  {
+    this.hedgedReader = hedgedReader;
+  }
+
+  /**
+   * Charges the reads of the chain to the foreground network budget of `ioThrottle`
+   */
+  public void setIoThrottle(IoThrottle ioThrottle)
+  {
+    this.ioThrottle = ioThrottle;
+  }
+
   @Override
   public ReadRequestChainStats getStats()
   {
@@ -61,21 +85,99 @@ public class DirectReadRequestChain extends ReadRequestChain
 
     checkState(isLocked, "Trying to execute Chain without locking");
 
-    for (ReadRequest readRequest : readRequests) {
-      if (cancelled) {
-        propagateCancel(this.getClass().getName());
+    try {
+      for (List<ReadRequest> run : getCoalescedRuns(false)) {
+        if (cancelled) {
+          propagateCancel(this.getClass().getName());
+        }
+        if (run.size() > 1) {
+          readCoalesced(run);
+          continue;
+        }
+        ReadRequest readRequest = run.get(0);
+        if (ioThrottle != null) {
+          ioThrottle.acquireNetwork(Traffic.FOREGROUND, readRequest.getActualReadLength());
+        }
+        try {
+          if (hedgedReader != null) {
+            hedgedReader.readFully(readRequest.actualReadStart, readRequest.getDestination());
+          }
+          else if (readRequest.getDestByteBuffer() != null) {
+            readFully(inputStream, readRequest.actualReadStart, readRequest.getDestination());
+          }
+          else {
+            inputStream.readFully(readRequest.actualReadStart, readRequest.getDestBuffer(), readRequest.getDestBufferOffset(), readRequest.getActualReadLengthIntUnsafe());
+          }
+        }
+        catch (Exception e) {
+          log.error(format("Error reading %d bytes directly from remote at position %d", readRequest.getActualReadLengthIntUnsafe(), readRequest.actualReadStart), e);
+          throw e;
+        }
+        totalRead += readRequest.getActualReadLengthIntUnsafe();
       }
-      try {
-        inputStream.readFully(readRequest.actualReadStart, readRequest.getDestBuffer(), readRequest.getDestBufferOffset(), readRequest.getActualReadLengthIntUnsafe());
-      }
-      catch (Exception e) {
-        log.error(format("Error reading %d bytes directly from remote at position %d", readRequest.getActualReadLengthIntUnsafe(), readRequest.actualReadStart), e);
-        throw e;
+    }
+    finally {
+      if (hedgedReader != null) {
+        hedgedReader.close();
       }
-      totalRead += readRequest.getActualReadLengthIntUnsafe();
     }
-    log.debug(String.format("Read %d bytes directly from remote, no caching", totalRead));
+    log.debug(String.format("Read %d bytes directly from remote with %d bytes of gaps, no caching", totalRead, gapRead));
     log.debug("DirectReadRequest took : " + (System.currentTimeMillis() - startTime) + " msecs ");
     return totalRead;
   }
+
+  // Reads the range spanning the requests of the run at once and copies the requested parts into their destinations
+  private void readCoalesced(List<ReadRequest> run)
+      throws IOException
+  {
+    long start = run.get(0).getActualReadStart();
+    int length = Math.toIntExact(run.get(run.size() - 1).getActualReadEnd() - start);
+    byte[] span = new byte[length];
+    if (ioThrottle != null) {
+      ioThrottle.acquireNetwork(Traffic.FOREGROUND, length);
+    }
+    try {
+      if (hedgedReader != null) {
+        hedgedReader.readFully(start, ByteBuffer.wrap(span));
+      }
+      else {
+        inputStream.readFully(start, span, 0, length);
+      }
+    }
+    catch (Exception e) {
+      log.error(format("Error reading %d bytes of %d coalesced requests directly from remote at position %d", length, run.size(), start), e);
+      throw e;
+    }
+
+    for (ReadRequest readRequest : run) {
+      int requestLength = readRequest.getActualReadLengthIntUnsafe();
+      readRequest.getDestination().put(span, Math.toIntExact(readRequest.getActualReadStart() - start), requestLength);
+      totalRead += requestLength;
+      length -= requestLength;
+    }
+    gapRead += length;
+  }
+
+  /**
+   * Positional read filling all the remaining bytes of the destination
+   */
+  public static void readFully(FSDataInputStream inputStream, long position, ByteBuffer destination)
+      throws IOException
+  {
+    if (destination.hasArray()) {
+      int length = destination.remaining();
+      inputStream.readFully(position, destination.array(), destination.arrayOffset() + destination.position(), length);
+      destination.position(destination.position() + length);
+      return;
+    }
+
+    byte[] chunk = new byte[Math.min(destination.remaining(), READ_CHUNK_SIZE)];
+    long nextPosition = position;
+    while (destination.hasRemaining()) {
+      int length = Math.min(destination.remaining(), chunk.length);
+      inputStream.readFully(nextPosition, chunk, 0, length);
+      destination.put(chunk, 0, length);
+      nextPosition += length;
+    }
+  }
 }
@@ -22,6 +22,7 @@ import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 public class DummyModeCachingInputStream extends CachingInputStream
@@ -78,10 +79,34 @@ public class DummyModeCachingInputStream extends CachingInputStream
     return length;
   }
 
+  @Override
+  public int read(ByteBuffer buffer)
+          throws IOException
+  {
+    byte[] bytes = new byte[buffer.remaining()];
+    int read = read(bytes, 0, bytes.length);
+    if (read > 0) {
+      buffer.put(bytes, 0, read);
+    }
+    return read;
+  }
+
+  @Override
+  public int read(long position, ByteBuffer buffer)
+          throws IOException
+  {
+    byte[] bytes = new byte[buffer.remaining()];
+    int read = read(position, bytes, 0, bytes.length);
+    if (read > 0) {
+      buffer.put(bytes, 0, read);
+    }
+    return read;
+  }
+
   private void dummyRead(final long initPos, final byte[] buffer, final int offset, final int length)
   {
     final long initNextReadBlock = initPos / blockSize;
-    readService.execute(new Runnable()
+    getReadExecutor().getBackgroundService().execute(new Runnable()
     {
       @Override
       public void run()
@@ -0,0 +1,66 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.core;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A range of a file to be read by {@link VectoredReadable#readVectored}. The data of the range is delivered through
+ * the future set on it when the read is issued.
+ *
+ * Mirrors org.apache.hadoop.fs.FileRange which is not available in the hadoop version RubiX builds against.
+ */
+public class FileRange
+{
+  private final long offset;
+  private final int length;
+  private CompletableFuture<ByteBuffer> data;
+
+  public FileRange(long offset, int length)
+  {
+    this.offset = offset;
+    this.length = length;
+  }
+
+  public static FileRange createFileRange(long offset, int length)
+  {
+    return new FileRange(offset, length);
+  }
+
+  public long getOffset()
+  {
+    return offset;
+  }
+
+  public int getLength()
+  {
+    return length;
+  }
+
+  public CompletableFuture<ByteBuffer> getData()
+  {
+    return data;
+  }
+
+  public void setData(CompletableFuture<ByteBuffer> data)
+  {
+    this.data = data;
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format("range[%d,%d)", offset, offset + length);
+  }
+}
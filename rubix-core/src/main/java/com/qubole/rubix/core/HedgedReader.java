@@ -0,0 +1,381 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.core;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.qubole.rubix.spi.CacheConfig;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Throwables.throwIfInstanceOf;
+import static com.google.common.base.Throwables.throwIfUnchecked;
+import static com.qubole.rubix.spi.CommonUtilities.threadsNamed;
+
+/**
+ * Positional reads of a remote file hedged against stalled requests of the remote filesystem.
+ *
+ * Once enough reads of the filesystem scheme completed, a read still running after the configured percentile of
+ * the latencies of reads of a similar size is issued again on a freshly opened stream, and the data of whichever
+ * read finishes first is used. When the hedge wins the next reads go to its stream, as the original one is still
+ * busy with the stalled request. Hedges are capped to rubix.cache.hedged.read.budget percent of the reads of the
+ * scheme, reads that cannot be hedged are read in place.
+ */
+public class HedgedReader
+    implements Closeable
+{
+  private static final Log log = LogFactory.getLog(HedgedReader.class);
+
+  private static final Map<String, LatencyTracker> latencyTrackers = new ConcurrentHashMap<>();
+  private static final AtomicLong hedgedReads = new AtomicLong();
+  private static final AtomicLong hedgedReadWins = new AtomicLong();
+  private static ListeningExecutorService readService;
+
+  private final FileSystem remoteFileSystem;
+  private final Path path;
+  // Owned by the caller, streams opened for hedges are owned by this reader
+  private final FSDataInputStream inputStream;
+  private final LatencyTracker latencyTracker;
+  private final ListeningExecutorService executor;
+  private FSDataInputStream currentStream;
+  // Buffer of the last read that may have been hedged, reused unless a read still running holds it
+  private byte[] spareBuffer;
+
+  public HedgedReader(Configuration conf, FileSystem remoteFileSystem, Path path, FSDataInputStream inputStream)
+  {
+    this(remoteFileSystem, path, inputStream, getLatencyTracker(conf, remoteFileSystem, path), getReadService());
+  }
+
+  @VisibleForTesting
+  HedgedReader(FileSystem remoteFileSystem, Path path, FSDataInputStream inputStream, LatencyTracker latencyTracker,
+      ListeningExecutorService executor)
+  {
+    this.remoteFileSystem = remoteFileSystem;
+    this.path = path;
+    this.inputStream = inputStream;
+    this.latencyTracker = latencyTracker;
+    this.executor = executor;
+    this.currentStream = inputStream;
+  }
+
+  private static LatencyTracker getLatencyTracker(Configuration conf, FileSystem remoteFileSystem, Path path)
+  {
+    String scheme = path.toUri().getScheme();
+    if (scheme == null) {
+      scheme = remoteFileSystem.getUri().getScheme();
+    }
+    return latencyTrackers.computeIfAbsent(String.valueOf(scheme), s -> new LatencyTracker(
+        CacheConfig.getHedgedReadPercentile(conf),
+        CacheConfig.getHedgedReadMinDelay(conf),
+        CacheConfig.getHedgedReadBudget(conf)));
+  }
+
+  private static synchronized ListeningExecutorService getReadService()
+  {
+    if (readService == null) {
+      readService = MoreExecutors.listeningDecorator(Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+          .setThreadFactory(threadsNamed("rubix-hedgedRead-thread-%s"))
+          .setDaemon(true)
+          .build()));
+    }
+    return readService;
+  }
+
+  /**
+   * Positional read filling all the remaining bytes of the destination
+   */
+  public void readFully(long position, ByteBuffer destination)
+      throws IOException
+  {
+    final int length = destination.remaining();
+    long thresholdNanos = latencyTracker.startRead(length);
+    if (thresholdNanos < 0) {
+      // Not enough reads of this size to tell a stalled one yet, or no budget left to hedge it
+      long start = System.nanoTime();
+      DirectReadRequestChain.readFully(currentStream, position, destination);
+      latencyTracker.record(length, System.nanoTime() - start);
+      return;
+    }
+
+    // A read that may be hedged cannot read into the destination, it cannot be stopped once the hedge won
+    final byte[] buffer = spareBuffer != null && spareBuffer.length >= length ? spareBuffer : new byte[length];
+    spareBuffer = null;
+    final FSDataInputStream primaryStream = currentStream;
+    ListenableFuture<ReadResult> primary = executor.submit(() -> {
+      long start = System.nanoTime();
+      primaryStream.readFully(position, buffer, 0, length);
+      latencyTracker.record(length, System.nanoTime() - start);
+      return new ReadResult(primaryStream, buffer);
+    });
+
+    ReadResult result;
+    try {
+      try {
+        result = primary.get(thresholdNanos, TimeUnit.NANOSECONDS);
+      }
+      catch (TimeoutException e) {
+        result = hedge(primary, position, length);
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while reading " + path + " at position " + position);
+    }
+    catch (ExecutionException e) {
+      throwIfInstanceOf(e.getCause(), IOException.class);
+      throwIfUnchecked(e.getCause());
+      throw new IOException(e.getCause());
+    }
+    destination.put(result.data, 0, length);
+    // The losing read, if any, keeps its own buffer
+    spareBuffer = result.data;
+  }
+
+  private ReadResult hedge(ListenableFuture<ReadResult> primary, long position, int length)
+      throws InterruptedException, ExecutionException
+  {
+    if (!latencyTracker.tryAcquireHedge()) {
+      return primary.get();
+    }
+    hedgedReads.incrementAndGet();
+    log.debug(String.format("Hedging read of %d bytes of %s at position %d", length, path, position));
+
+    ListenableFuture<ReadResult> hedge = executor.submit(() -> {
+      FSDataInputStream stream = remoteFileSystem.open(path);
+      try {
+        byte[] data = new byte[length];
+        stream.readFully(position, data, 0, length);
+        return new ReadResult(stream, data);
+      }
+      catch (IOException | RuntimeException e) {
+        closeQuietly(stream);
+        throw e;
+      }
+    });
+
+    // Completes with the first successful read, or with the failure of the last one
+    SettableFuture<ReadResult> first = SettableFuture.create();
+    AtomicInteger failures = new AtomicInteger();
+    FutureCallback<ReadResult> callback = new FutureCallback<ReadResult>()
+    {
+      @Override
+      public void onSuccess(ReadResult result)
+      {
+        first.set(result);
+      }
+
+      @Override
+      public void onFailure(Throwable t)
+      {
+        if (failures.incrementAndGet() == 2) {
+          first.setException(t);
+        }
+      }
+    };
+    Futures.addCallback(primary, callback, MoreExecutors.directExecutor());
+    Futures.addCallback(hedge, callback, MoreExecutors.directExecutor());
+
+    ReadResult result = first.get();
+    if (result.stream == currentStream) {
+      closeWhenDone(hedge);
+    }
+    else {
+      hedgedReadWins.incrementAndGet();
+      final FSDataInputStream stalledStream = currentStream;
+      if (stalledStream != inputStream) {
+        primary.addListener(() -> closeQuietly(stalledStream), MoreExecutors.directExecutor());
+      }
+      currentStream = result.stream;
+    }
+    return result;
+  }
+
+  // Closes the stream of the losing hedge once its read completes, it closes the stream itself if it fails
+  private static void closeWhenDone(ListenableFuture<ReadResult> hedge)
+  {
+    Futures.addCallback(hedge, new FutureCallback<ReadResult>()
+    {
+      @Override
+      public void onSuccess(ReadResult result)
+      {
+        closeQuietly(result.stream);
+      }
+
+      @Override
+      public void onFailure(Throwable t)
+      {
+      }
+    }, MoreExecutors.directExecutor());
+  }
+
+  private static void closeQuietly(FSDataInputStream stream)
+  {
+    try {
+      stream.close();
+    }
+    catch (IOException e) {
+      log.warn("Could not close stream opened for hedged read", e);
+    }
+  }
+
+  /**
+   * Closes the stream opened by the last winning hedge, if any. The stream of the caller is left open.
+   */
+  @Override
+  public void close()
+  {
+    if (currentStream != inputStream) {
+      closeQuietly(currentStream);
+      currentStream = inputStream;
+    }
+  }
+
+  public static long getHedgedReads()
+  {
+    return hedgedReads.get();
+  }
+
+  public static long getHedgedReadWins()
+  {
+    return hedgedReadWins.get();
+  }
+
+  private static class ReadResult
+  {
+    private final FSDataInputStream stream;
+    private final byte[] data;
+
+    ReadResult(FSDataInputStream stream, byte[] data)
+    {
+      this.stream = stream;
+      this.data = data;
+    }
+  }
+
+  /**
+   * Latencies of the recent reads of a filesystem scheme and the budget of its hedges. Latencies grow with the size
+   * of the reads, so they are tracked per size class: reads up to 64KB, then powers of two.
+   */
+  @VisibleForTesting
+  static class LatencyTracker
+  {
+    private static final int WINDOW_SIZE = 1024;
+    // The threshold is recomputed every MIN_SAMPLES reads
+    private static final int MIN_SAMPLES = 32;
+    private static final int MIN_SIZE_CLASS_SHIFT = 16;
+    private static final int SIZE_CLASSES = 16;
+
+    private final int percentile;
+    private final long minDelayNanos;
+    private final int budgetPercent;
+
+    private final SizeClass[] sizeClasses = new SizeClass[SIZE_CLASSES];
+    private long reads;
+    private long hedges;
+
+    LatencyTracker(int percentile, int minDelayMillis, int budgetPercent)
+    {
+      this.percentile = percentile;
+      this.minDelayNanos = TimeUnit.MILLISECONDS.toNanos(minDelayMillis);
+      this.budgetPercent = budgetPercent;
+    }
+
+    /**
+     * Counts a read of `length` bytes against the budget and returns the delay after which it is hedged, -1 if it
+     * should not be
+     */
+    synchronized long startRead(int length)
+    {
+      reads++;
+      SizeClass sizeClass = sizeClasses[getSizeClass(length)];
+      if (sizeClass == null || !hasHedgeBudget()) {
+        return -1;
+      }
+      return sizeClass.thresholdNanos;
+    }
+
+    synchronized void record(int length, long latencyNanos)
+    {
+      int index = getSizeClass(length);
+      if (sizeClasses[index] == null) {
+        sizeClasses[index] = new SizeClass();
+      }
+      SizeClass sizeClass = sizeClasses[index];
+      sizeClass.samples[(int) (sizeClass.sampleCount++ % WINDOW_SIZE)] = latencyNanos;
+      if (sizeClass.sampleCount % MIN_SAMPLES == 0) {
+        long[] window = Arrays.copyOf(sizeClass.samples, (int) Math.min(sizeClass.sampleCount, WINDOW_SIZE));
+        Arrays.sort(window);
+        int percentileIndex = Math.max((int) Math.ceil(percentile / 100.0 * window.length) - 1, 0);
+        sizeClass.thresholdNanos = Math.max(window[percentileIndex], minDelayNanos);
+      }
+    }
+
+    synchronized boolean tryAcquireHedge()
+    {
+      if (!hasHedgeBudget()) {
+        return false;
+      }
+      hedges++;
+      return true;
+    }
+
+    private boolean hasHedgeBudget()
+    {
+      return (hedges + 1) * 100 <= budgetPercent * reads;
+    }
+
+    private static int getSizeClass(int length)
+    {
+      int sizeShift = 32 - Integer.numberOfLeadingZeros(Math.max(length, 1) - 1);
+      return Math.min(Math.max(sizeShift - MIN_SIZE_CLASS_SHIFT, 0), SIZE_CLASSES - 1);
+    }
+
+    @VisibleForTesting
+    synchronized long getThresholdNanos(int length)
+    {
+      SizeClass sizeClass = sizeClasses[getSizeClass(length)];
+      return sizeClass == null ? -1 : sizeClass.thresholdNanos;
+    }
+
+    private static class SizeClass
+    {
+      private final long[] samples = new long[WINDOW_SIZE];
+      private long sampleCount;
+      private long thresholdNanos = -1;
+    }
+  }
+}
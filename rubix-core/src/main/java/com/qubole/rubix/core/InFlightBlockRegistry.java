@@ -0,0 +1,124 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.core;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks the blocks being downloaded into the local cache by RemoteReadRequestChains of this JVM, so concurrent
+ * readers of a block wait for the download in progress instead of fetching the block again.
+ *
+ * Blocks are keyed by their local cache file, which is named after the generation number of the remote file.
+ */
+public class InFlightBlockRegistry
+{
+  private static final InFlightBlockRegistry instance = new InFlightBlockRegistry();
+
+  private final ConcurrentMap<String, SettableFuture<Void>> inFlight = new ConcurrentHashMap<>();
+  private final AtomicLong deduplicatedReads = new AtomicLong();
+  private final AtomicLong deduplicatedBytes = new AtomicLong();
+
+  /**
+   * Creates a registry separate from the one of RemoteReadRequestChains, for downloads tracked at a different level
+   */
+  public InFlightBlockRegistry()
+  {
+  }
+
+  public static InFlightBlockRegistry getInstance()
+  {
+    return instance;
+  }
+
+  /**
+   * Registers the caller as the downloader of the block unless another reader already is.
+   * The owner of the returned fetch must complete it once the block is in the local file or the download failed.
+   */
+  public BlockFetch claim(String localPath, long block)
+  {
+    String key = localPath + ":" + block;
+    SettableFuture<Void> future = SettableFuture.create();
+    SettableFuture<Void> existing = inFlight.putIfAbsent(key, future);
+    if (existing != null) {
+      return new BlockFetch(key, existing, false);
+    }
+    return new BlockFetch(key, future, true);
+  }
+
+  public void complete(BlockFetch fetch, Throwable failure)
+  {
+    if (!fetch.isOwner()) {
+      return;
+    }
+    inFlight.remove(fetch.key, fetch.future);
+    if (failure == null) {
+      fetch.future.set(null);
+    }
+    else {
+      fetch.future.setException(failure);
+    }
+  }
+
+  public void recordDeduplicatedRead(long bytes)
+  {
+    deduplicatedReads.incrementAndGet();
+    deduplicatedBytes.addAndGet(bytes);
+  }
+
+  public long getDeduplicatedReads()
+  {
+    return deduplicatedReads.get();
+  }
+
+  public long getDeduplicatedBytes()
+  {
+    return deduplicatedBytes.get();
+  }
+
+  public int getInFlightBlocks()
+  {
+    return inFlight.size();
+  }
+
+  public static class BlockFetch
+  {
+    private final String key;
+    private final SettableFuture<Void> future;
+    private final boolean owner;
+
+    private BlockFetch(String key, SettableFuture<Void> future, boolean owner)
+    {
+      this.key = key;
+      this.future = future;
+      this.owner = owner;
+    }
+
+    public boolean isOwner()
+    {
+      return owner;
+    }
+
+    /**
+     * Completes once the owner has the block in the local file, fails if its download failed
+     */
+    public ListenableFuture<Void> getFuture()
+    {
+      return future;
+    }
+  }
+}
@@ -17,8 +17,13 @@ import com.qubole.rubix.common.metrics.CustomMetricsReporterProvider;
 import com.qubole.rubix.spi.BookKeeperFactory;
 import com.qubole.rubix.spi.CacheConfig;
 import com.qubole.rubix.spi.DataTransferClientHelper;
+import com.qubole.rubix.spi.DataTransferConnection;
 import com.qubole.rubix.spi.DataTransferHeader;
+import com.qubole.rubix.spi.DataTransferProtocol;
+import com.qubole.rubix.spi.DataTransferRequest;
 import com.qubole.rubix.spi.RetryingPooledBookkeeperClient;
+import com.qubole.rubix.spi.TimedSocketChannel;
+import com.qubole.rubix.spi.WireCompression;
 import com.qubole.rubix.spi.thrift.CacheStatusRequest;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -28,10 +33,9 @@ import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
-import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
 
 import static com.google.common.base.Preconditions.checkState;
 import static com.qubole.rubix.spi.CacheUtil.DUMMY_MODE_GENERATION_NUMBER;
@@ -39,6 +43,9 @@ import static com.qubole.rubix.spi.CacheUtil.UNKONWN_GENERATION_NUMBER;
 import static com.qubole.rubix.common.metrics.CachingFileSystemMetrics.NON_LOCAL_FALLBACK_TO_DIRECT_READ;
 import static com.qubole.rubix.spi.DataTransferClientFactory.DataTransferClient;
 import static com.qubole.rubix.spi.DataTransferClientFactory.getClient;
+import static com.qubole.rubix.spi.DataTransferClientFactory.getConnection;
+import static com.qubole.rubix.spi.DataTransferProtocol.RANGE_SIZE;
+import static com.qubole.rubix.spi.DataTransferProtocol.STATUS_OK;
 
 /**
  * Created by sakshia on 31/8/16.
@@ -98,6 +105,16 @@ public class NonLocalReadRequestChain extends ReadRequestChain
       return 0L;
     }
     checkState(isLocked, "Trying to execute Chain without locking");
+    if (CacheConfig.getDataTransferProtocolVersion(conf) >= DataTransferProtocol.VERSION_2) {
+      return readMultiplexed();
+    }
+    return readSeparately();
+  }
+
+  // Sends one version 1 request per range, each on a connection of the pool
+  private long readSeparately()
+      throws Exception
+  {
     int dataReadInPreviousCycle = 0;
     for (ReadRequest readRequest : readRequests) {
       readFromNonLocalCache += dataReadInPreviousCycle;
@@ -105,44 +122,27 @@ public class NonLocalReadRequestChain extends ReadRequestChain
         propagateCancel(this.getClass().getName());
       }
       try (DataTransferClient dataTransferClient = getClient(remoteNodeName, conf)) {
-        int nread = 0;
-        /*
-        SocketChannels does not support timeouts when used directly, because timeout is used only by streams.
-        We get this working by wrapping it in ReadableByteChannel.
-        Ref - https://technfun.wordpress.com/2009/01/29/networking-in-java-non-blocking-nio-blocking-nio-and-io/
-        */
-        InputStream inStream = dataTransferClient.getSocketChannel().socket().getInputStream();
-        ReadableByteChannel wrappedChannel = Channels.newChannel(inStream);
+        // Reads go straight into the destination, waiting on a selector for at most the client read timeout
+        TimedSocketChannel channel = dataTransferClient.getSocketChannel();
         ByteBuffer buf = DataTransferClientHelper.writeHeaders(conf, new DataTransferHeader(readRequest.getActualReadStart(),
             readRequest.getActualReadLengthIntUnsafe(), fileSize, lastModified, clusterType, filePath));
 
         try {
-          dataTransferClient.getSocketChannel().write(buf);
+          channel.writeFully(buf);
         }
         catch (IOException e) {
-          dataTransferClient.getSocketChannel().close();
+          channel.close();
           throw e;
         }
-        int bytesread = 0;
-        ByteBuffer dst = ByteBuffer.wrap(readRequest.destBuffer, readRequest.getDestBufferOffset(), readRequest.destBuffer.length - readRequest.getDestBufferOffset());
-        while (bytesread != readRequest.getActualReadLengthIntUnsafe()) {
-          try {
-            nread = wrappedChannel.read(dst);
-          }
-          catch (IOException e) {
-            log.warn("Error in reading..closing socket channel: " + dataTransferClient.getSocketChannel(), e);
-            dataTransferClient.getSocketChannel().close();
-            throw e;
-          }
-          if (nread == -1) {
-            log.warn("Error reading from Local Transfer Server");
-            dataTransferClient.getSocketChannel().close();
-            throw new IOException("Error reading from Local Transfer Server");
-          }
-          bytesread += nread;
-          dst.position(bytesread + readRequest.getDestBufferOffset());
+        try {
+          DataTransferProtocol.readFully(channel, readRequest.getDestination());
+        }
+        catch (IOException e) {
+          log.warn("Error in reading..closing socket channel: " + channel, e);
+          channel.close();
+          throw e;
         }
-        dataReadInPreviousCycle = bytesread;
+        dataReadInPreviousCycle = readRequest.getActualReadLengthIntUnsafe();
       }
       catch (Exception e) {
         if (strictMode) {
@@ -166,6 +166,77 @@ public class NonLocalReadRequestChain extends ReadRequestChain
     return readFromNonLocalCache;
   }
 
+  // Sends the ranges in as few requests as fit on the connection shared by the reads from the node. Ranges the node
+  // does not have cached, and all the remaining ones if the connection fails, are read from the object store.
+  // Nodes which only serve version 1 of the protocol get a request per range.
+  private long readMultiplexed()
+      throws Exception
+  {
+    List<ReadRequest> notCached = new ArrayList<>();
+    int index = 0;
+    while (index < readRequests.size()) {
+      if (cancelled) {
+        propagateCancel(this.getClass().getName());
+      }
+      try {
+        DataTransferConnection connection = getConnection(remoteNodeName, conf);
+        if (connection == null) {
+          if (index == 0) {
+            // The node runs a server from before version 2, e.g. during a rolling upgrade
+            return readSeparately();
+          }
+          throw new IOException("Node " + remoteNodeName + " no longer serves version 2 of the data transfer protocol");
+        }
+        DataTransferRequest request = new DataTransferRequest(filePath, fileSize, lastModified, clusterType)
+            .setFlags(WireCompression.getRequestFlags(filePath, conf));
+        List<ByteBuffer> destinations = new ArrayList<>();
+        for (int i = index; i < readRequests.size() && request.getFrameSize() + RANGE_SIZE <= connection.getMaxRequestSize(); i++) {
+          ReadRequest readRequest = readRequests.get(i);
+          request.addRange(readRequest.getActualReadStart(), readRequest.getActualReadLengthIntUnsafe());
+          destinations.add(readRequest.getDestination());
+        }
+        if (request.getRangeCount() == 0) {
+          throw new IOException("Path of " + filePath + " is too long for the data transfer header size");
+        }
+
+        int[] statuses = connection.read(request, destinations);
+        for (int i = 0; i < statuses.length; i++) {
+          ReadRequest readRequest = readRequests.get(index + i);
+          if (statuses[i] == STATUS_OK) {
+            readFromNonLocalCache += readRequest.getActualReadLength();
+          }
+          else {
+            notCached.add(readRequest);
+          }
+        }
+        index += statuses.length;
+      }
+      catch (Exception e) {
+        if (strictMode) {
+          log.warn("Error reading data from node : " + remoteNodeName, e);
+          throw Throwables.propagate(e);
+        }
+        log.warn("Error in reading from node: " + remoteNodeName + " Using direct reads", e);
+        notCached.addAll(readRequests.subList(index, readRequests.size()));
+        break;
+      }
+    }
+    if (statistics != null) {
+      statistics.incrementBytesRead(readFromNonLocalCache);
+    }
+
+    if (!notCached.isEmpty()) {
+      if (strictMode) {
+        throw new IOException(String.format("%d ranges of %s are not cached on node %s", notCached.size(), filePath, remoteNodeName));
+      }
+      log.debug(String.format("Reading %d ranges of %s not cached on node %s from the object store", notCached.size(), filePath, remoteNodeName));
+      CustomMetricsReporterProvider.getCustomMetricsReporter().addMetric(NON_LOCAL_FALLBACK_TO_DIRECT_READ);
+      readDirectly(notCached);
+    }
+    log.debug(String.format("Read %d bytes internally from node %s", readFromNonLocalCache, remoteNodeName));
+    return readFromNonLocalCache + directRead;
+  }
+
   @Override
   public void cancel()
   {
@@ -177,10 +248,17 @@ public class NonLocalReadRequestChain extends ReadRequestChain
 
   private long directReadRequest(int index)
       throws Exception
+  {
+    readDirectly(readRequests.subList(index, readRequests.size()));
+    return (readFromNonLocalCache + directRead);
+  }
+
+  private void readDirectly(List<ReadRequest> requests)
+      throws Exception
   {
     try (FSDataInputStream inputStream = remoteFileSystem.open(new Path(filePath))) {
       directReadChain = new DirectReadRequestChain(inputStream);
-      for (ReadRequest readRequest : readRequests.subList(index, readRequests.size())) {
+      for (ReadRequest readRequest : requests) {
         directReadChain.addReadRequest(readRequest);
         directReadRequests++;
       }
@@ -188,7 +266,6 @@ public class NonLocalReadRequestChain extends ReadRequestChain
       directRead = directReadChain.call();
       directReadChain = null;
     }
-    return (readFromNonLocalCache + directRead);
   }
 
   @Override
@@ -197,8 +274,8 @@ public class NonLocalReadRequestChain extends ReadRequestChain
     if (CacheConfig.isDummyModeEnabled(conf)) {
       try (RetryingPooledBookkeeperClient bookKeeperClient = bookKeeperFactory.createBookKeeperClient(remoteNodeName, conf)) {
         for (ReadRequest readRequest : readRequests) {
-          long startBlock = toBlock(readRequest.getBackendReadStart());
-          long endBlock = toBlock(readRequest.getBackendReadEnd() - 1) + 1;
+          long startBlock = toBlock(readRequest.getBackendReadStart(), blockSize);
+          long endBlock = toBlock(readRequest.getBackendReadEnd() - 1, blockSize) + 1;
           // getCacheStatus() call required to create mdfiles before blocks are set as cached
           CacheStatusRequest request = new CacheStatusRequest(remotePath, fileSize, lastModified, startBlock, endBlock).setClusterType(clusterType);
           bookKeeperClient.getCacheStatus(request);
@@ -214,9 +291,8 @@ public class NonLocalReadRequestChain extends ReadRequestChain
     }
   }
 
-  private long toBlock(long pos)
+  private long toBlock(long pos, int blockSize)
   {
-    long blockSize = CacheConfig.getBlockSize(conf);
     return pos / blockSize;
   }
 }
@@ -15,6 +15,7 @@ package com.qubole.rubix.core;
 import com.google.common.base.Throwables;
 import com.qubole.rubix.spi.BookKeeperFactory;
 import com.qubole.rubix.spi.CacheConfig;
+import com.qubole.rubix.spi.CacheUtil;
 import com.qubole.rubix.spi.RetryingPooledBookkeeperClient;
 import com.qubole.rubix.spi.thrift.BlockLocation;
 import com.qubole.rubix.spi.thrift.CacheStatusRequest;
@@ -70,7 +71,7 @@ public class NonLocalRequestChain extends ReadRequestChain
     this.endBlockForCacheStatus = endBlock;
 
     this.bookKeeperFactory = bookKeeperFactory;
-    this.blockSize = CacheConfig.getBlockSize(conf);
+    this.blockSize = CacheUtil.getFileBlockSize(remoteFilePath, fileSize, conf);
 
     try (RetryingPooledBookkeeperClient bookKeeperClient = bookKeeperFactory.createBookKeeperClient(remoteNodeName, conf)) {
       log.debug(" Trying to getCacheStatus from : " + remoteNodeName + " for file : " + remoteFilePath
@@ -122,7 +123,7 @@ public class NonLocalRequestChain extends ReadRequestChain
   protected boolean needDirectReadRequest(long blockNum)
   {
     int idx = (int) (blockNum - startBlockForCacheStatus);
-    if (isCached != null && isCached.get(idx).getLocation() == Location.CACHED) {
+    if (isCached != null && (isCached.get(idx).getLocation() == Location.CACHED || isCached.get(idx).getLocation() == Location.IN_MEMORY)) {
       return false;
     }
 
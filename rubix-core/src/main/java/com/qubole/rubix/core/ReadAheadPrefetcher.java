@@ -0,0 +1,425 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.core;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
+import com.google.common.collect.TreeRangeSet;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.qubole.rubix.common.cache.PageCacheHints;
+import com.qubole.rubix.spi.BookKeeperFactory;
+import com.qubole.rubix.spi.CacheConfig;
+import com.qubole.rubix.spi.CacheUtil;
+import com.qubole.rubix.spi.ClusterType;
+import com.qubole.rubix.spi.RetryingPooledBookkeeperClient;
+import com.qubole.rubix.spi.thrift.BlockLocation;
+import com.qubole.rubix.spi.thrift.CacheStatusRequest;
+import com.qubole.rubix.spi.thrift.CacheStatusResponse;
+import com.qubole.rubix.spi.thrift.Location;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.DirectBufferPool;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.qubole.rubix.spi.CommonUtilities.threadsNamed;
+
+/**
+ * Warms up the blocks ahead of a sequentially read stream so that foreground reads find them in the cache.
+ *
+ * The prefetcher is fed every foreground read of its CachingInputStream. Once the stream has done enough
+ * back-to-back reads, the blocks following the last read are warmed up asynchronously using the same paths
+ * as a cold read: RemoteReadRequestChain for local blocks, or RemoteFetchRequestChain (i.e. BookKeeper readData)
+ * for non-local blocks and when parallel warmup is enabled.
+ *
+ * The number of blocks warmed up per round starts at `initialBlocks` and doubles every time the foreground
+ * read consumes prefetched data, up to `maxBlocks`. It drops back to `initialBlocks` on random access.
+ * Bytes in flight across all streams of the JVM are capped by `maxInflightSize`, and each stream has at most
+ * one round in flight at a time.
+ *
+ * Blocks of the window already cached on the local disk are not warmed up again. If page cache hints are enabled
+ * the kernel is asked to read them ahead instead, so that the sequential stream does not wait for the disk.
+ */
+public class ReadAheadPrefetcher
+{
+  private static final Log log = LogFactory.getLog(ReadAheadPrefetcher.class);
+  // Local blocks of a round are downloaded in chunks of at most this size, or of one block if larger
+  private static final int MAX_CHUNK_SIZE = 8 * 1024 * 1024;
+
+  private static ListeningExecutorService readAheadService;
+  private static final AtomicLong inflightBytes = new AtomicLong();
+  private static final DirectBufferPool bufferPool = new DirectBufferPool();
+
+  private final String remotePath;
+  private final long fileSize;
+  private final long lastModified;
+  private final int blockSize;
+  private final Configuration conf;
+  private final ClusterType clusterType;
+  private final FileSystem remoteFileSystem;
+  private final BookKeeperFactory bookKeeperFactory;
+  private final CachingFileSystemStatsProvider statsProvider;
+  private final SequentialAccessDetector detector;
+
+  private final int initialBlocks;
+  private final int maxBlocks;
+  private final long maxInflightSize;
+  private final boolean pageCacheHints;
+
+  private int window;
+  // first block which has not been handed to the prefetcher yet
+  private long nextBlockToPrefetch;
+  // byte ranges warmed up by the prefetcher and not yet read by the stream
+  private final RangeSet<Long> prefetched = TreeRangeSet.create();
+  private ListenableFuture<?> pending;
+  private byte[] affixBuffer;
+  private boolean closed;
+
+  public ReadAheadPrefetcher(String remotePath, long fileSize, long lastModified, Configuration conf, ClusterType clusterType,
+                             FileSystem remoteFileSystem, BookKeeperFactory bookKeeperFactory,
+                             CachingFileSystemStatsProvider statsProvider)
+  {
+    this.remotePath = remotePath;
+    this.fileSize = fileSize;
+    this.lastModified = lastModified;
+    this.conf = conf;
+    this.clusterType = clusterType;
+    this.remoteFileSystem = remoteFileSystem;
+    this.bookKeeperFactory = bookKeeperFactory;
+    this.statsProvider = statsProvider;
+    this.blockSize = CacheUtil.getFileBlockSize(remotePath, fileSize, conf);
+    this.initialBlocks = Math.max(1, CacheConfig.getReadAheadInitialBlocks(conf));
+    this.maxBlocks = Math.max(initialBlocks, CacheConfig.getReadAheadMaxBlocks(conf));
+    this.maxInflightSize = CacheConfig.getReadAheadMaxInflightSize(conf);
+    // Blocks of compressed files are not stored at their offset in the remote file
+    this.pageCacheHints = CacheConfig.isPageCacheHintsEnabled(conf) && !CacheUtil.isCompressedFile(remotePath, conf);
+    this.detector = new SequentialAccessDetector(CacheConfig.getReadAheadSequentialThreshold(conf), blockSize);
+    this.window = initialBlocks;
+  }
+
+  private static synchronized ListeningExecutorService getReadAheadService(Configuration conf)
+  {
+    if (readAheadService == null) {
+      readAheadService = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(CacheConfig.getReadAheadThreads(conf),
+          new ThreadFactoryBuilder()
+              .setThreadFactory(threadsNamed("rubix-readahead-thread-%s"))
+              .setDaemon(true)
+              .build()));
+    }
+    return readAheadService;
+  }
+
+  /**
+   * Called after every successful foreground read of the stream
+   */
+  public void onRead(long position, int length)
+  {
+    Range<Long> blocks = recordRead(position, length);
+    if (blocks == null) {
+      return;
+    }
+
+    long startBlock = blocks.lowerEndpoint();
+    long endBlock = blocks.upperEndpoint();
+    long reserved = reserve((endBlock - startBlock) * blockSize);
+    if (reserved < blockSize) {
+      release(reserved);
+      log.debug(String.format("Skipping read-ahead of %s, in-flight read-ahead limit reached", remotePath));
+      return;
+    }
+    endBlock = startBlock + reserved / blockSize;
+    release(reserved - (endBlock - startBlock) * blockSize);
+    final long start = startBlock;
+    final long end = endBlock;
+    final long inflight = (endBlock - startBlock) * blockSize;
+
+    synchronized (this) {
+      if (closed || (pending != null && !pending.isDone())) {
+        release(inflight);
+        return;
+      }
+      nextBlockToPrefetch = endBlock;
+      try {
+        pending = getReadAheadService(conf).submit(new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            try {
+              prefetch(start, end);
+            }
+            finally {
+              release(inflight);
+            }
+          }
+        });
+      }
+      catch (Exception e) {
+        release(inflight);
+        log.debug("Could not submit read-ahead request", e);
+      }
+    }
+  }
+
+  /**
+   * Accounts the read against prefetched data and returns the range of blocks to warm up next, if any
+   */
+  @VisibleForTesting
+  synchronized Range<Long> recordRead(long position, int length)
+  {
+    long readEnd = Math.min(position + length, fileSize);
+    if (readEnd <= position) {
+      return null;
+    }
+
+    Range<Long> readRange = Range.closedOpen(position, readEnd);
+    long hit = 0;
+    for (Range<Long> range : prefetched.subRangeSet(readRange).asRanges()) {
+      hit += range.upperEndpoint() - range.lowerEndpoint();
+    }
+    if (hit > 0) {
+      prefetched.remove(readRange);
+      window = Math.min(window * 2, maxBlocks);
+      statsProvider.addReadRequestChainStats(new ReadRequestChainStats().setReadAheadHitData(hit));
+    }
+
+    if (!detector.recordRead(position, readEnd - position)) {
+      if (detector.getSequentialReads() == 0) {
+        window = initialBlocks;
+        nextBlockToPrefetch = 0;
+      }
+      return null;
+    }
+
+    long currentBlock = readEnd / blockSize;
+    // The block containing readEnd was already fetched by the foreground read if it was partially read
+    long firstBlock = Math.max(nextBlockToPrefetch, (readEnd + blockSize - 1) / blockSize);
+    long lastBlock = (fileSize + blockSize - 1) / blockSize;
+    long endBlock = Math.min(firstBlock + window, lastBlock);
+    if (firstBlock >= endBlock) {
+      return null;
+    }
+
+    // Wait for the stream to consume half of the previous window before issuing more, this keeps the rounds large
+    if (nextBlockToPrefetch - currentBlock > window / 2) {
+      return null;
+    }
+    return Range.closedOpen(firstBlock, endBlock);
+  }
+
+  @VisibleForTesting
+  synchronized int getWindow()
+  {
+    return window;
+  }
+
+  @VisibleForTesting
+  synchronized void markPrefetched(long start, long end)
+  {
+    prefetched.add(Range.closedOpen(start, end));
+  }
+
+  @VisibleForTesting
+  synchronized void setNextBlockToPrefetch(long nextBlockToPrefetch)
+  {
+    this.nextBlockToPrefetch = nextBlockToPrefetch;
+  }
+
+  private void adviseWillNeed(RangeSet<Long> ranges, int generationNumber)
+  {
+    String localPath = CacheUtil.getLocalPath(remotePath, conf, generationNumber);
+    for (Range<Long> range : ranges.asRanges()) {
+      PageCacheHints.willNeed(localPath, range.lowerEndpoint(), range.upperEndpoint() - range.lowerEndpoint());
+    }
+  }
+
+  private void prefetch(long startBlock, long endBlock)
+  {
+    List<BlockLocation> blocks;
+    int generationNumber;
+    try (RetryingPooledBookkeeperClient bookKeeperClient = bookKeeperFactory.createBookKeeperClient(conf)) {
+      // incrMetrics is not set, read-ahead should not be counted towards cache hits and misses
+      CacheStatusRequest request = new CacheStatusRequest(remotePath, fileSize, lastModified, startBlock, endBlock)
+          .setClusterType(clusterType.ordinal());
+      CacheStatusResponse response = bookKeeperClient.getCacheStatus(request);
+      blocks = response.getBlocks();
+      generationNumber = response.getGenerationNumber();
+    }
+    catch (Exception e) {
+      log.debug("Could not get cache status for read-ahead of " + remotePath, e);
+      return;
+    }
+
+    boolean parallelWarmup = CacheConfig.isParallelWarmupEnabled(conf);
+    List<Long> localBlocks = new ArrayList<>();
+    FSDataInputStream inputStream = null;
+    Map<String, RemoteFetchRequestChain> remoteFetchRequestChains = new HashMap<>();
+    RangeSet<Long> warmed = TreeRangeSet.create();
+    RangeSet<Long> cachedOnDisk = TreeRangeSet.create();
+    long requestedBytes = 0;
+
+    try {
+      int idx = 0;
+      for (long blockNum = startBlock; blockNum < endBlock && idx < blocks.size(); blockNum++, idx++) {
+        BlockLocation location = blocks.get(idx);
+        long backendReadStart = blockNum * blockSize;
+        long backendReadEnd = Math.min((blockNum + 1) * blockSize, fileSize);
+        if (location.getLocation() == Location.CACHED) {
+          cachedOnDisk.add(Range.closedOpen(backendReadStart, backendReadEnd));
+          continue;
+        }
+        if (location.getLocation() == Location.IN_MEMORY) {
+          continue;
+        }
+        if (location.getLocation() == Location.LOCAL && !parallelWarmup) {
+          localBlocks.add(blockNum);
+        }
+        else {
+          String node = location.getLocation() == Location.LOCAL ? "localhost" : location.getRemoteLocation();
+          RemoteFetchRequestChain remoteFetchRequestChain = remoteFetchRequestChains.get(node);
+          if (remoteFetchRequestChain == null) {
+            remoteFetchRequestChain = new RemoteFetchRequestChain(remotePath, remoteFileSystem, node, conf,
+                lastModified, fileSize, clusterType.ordinal(), bookKeeperFactory);
+            remoteFetchRequestChains.put(node, remoteFetchRequestChain);
+          }
+          remoteFetchRequestChain.addReadRequest(new ReadRequest(backendReadStart, backendReadEnd, backendReadStart, backendReadEnd,
+              null, 0, fileSize));
+        }
+        warmed.add(Range.closedOpen(backendReadStart, backendReadEnd));
+        requestedBytes += backendReadEnd - backendReadStart;
+      }
+
+      if (!cachedOnDisk.isEmpty() && pageCacheHints) {
+        adviseWillNeed(cachedOnDisk, generationNumber);
+      }
+
+      if (requestedBytes == 0) {
+        return;
+      }
+
+      log.debug(String.format("Read-ahead of blocks [%d, %d) of %s", startBlock, endBlock, remotePath));
+      if (!localBlocks.isEmpty()) {
+        inputStream = remoteFileSystem.open(new Path(remotePath));
+        prefetchLocal(inputStream, localBlocks, generationNumber);
+      }
+      for (RemoteFetchRequestChain remoteFetchRequestChain : remoteFetchRequestChains.values()) {
+        remoteFetchRequestChain.lock();
+        remoteFetchRequestChain.call();
+        remoteFetchRequestChain.updateCacheStatus(remotePath, fileSize, lastModified, blockSize, conf);
+      }
+
+      synchronized (this) {
+        prefetched.addAll(warmed);
+      }
+      statsProvider.addReadRequestChainStats(new ReadRequestChainStats()
+          .setReadAheadRequests(1)
+          .setReadAheadDataRead(requestedBytes));
+    }
+    catch (Exception e) {
+      log.debug("Read-ahead failed for " + remotePath, e);
+    }
+    finally {
+      if (inputStream != null) {
+        try {
+          inputStream.close();
+        }
+        catch (Exception e) {
+          log.debug("Could not close read-ahead stream", e);
+        }
+      }
+    }
+  }
+
+  // Downloads the blocks into the cache in bounded chunks, the data read is not needed so the chunks share one buffer
+  private void prefetchLocal(FSDataInputStream inputStream, List<Long> localBlocks, int generationNumber)
+      throws Exception
+  {
+    int chunkBlocks = Math.max(1, MAX_CHUNK_SIZE / blockSize);
+    byte[] buffer = new byte[Math.min(chunkBlocks, localBlocks.size()) * blockSize];
+    for (int first = 0; first < localBlocks.size(); first += chunkBlocks) {
+      RemoteReadRequestChain remoteReadRequestChain = new RemoteReadRequestChain(inputStream, remotePath, generationNumber,
+          bufferPool, conf, getAffixBuffer(), bookKeeperFactory);
+      for (int i = first; i < Math.min(first + chunkBlocks, localBlocks.size()); i++) {
+        long backendReadStart = localBlocks.get(i) * blockSize;
+        long backendReadEnd = Math.min(backendReadStart + blockSize, fileSize);
+        remoteReadRequestChain.addReadRequest(new ReadRequest(backendReadStart, backendReadEnd, backendReadStart, backendReadEnd,
+            buffer, (i - first) * blockSize, fileSize));
+      }
+      remoteReadRequestChain.lock();
+      remoteReadRequestChain.call();
+      remoteReadRequestChain.updateCacheStatus(remotePath, fileSize, lastModified, blockSize, conf);
+      statsProvider.addReadRequestChainStats(remoteReadRequestChain.getStats());
+    }
+  }
+
+  private synchronized byte[] getAffixBuffer()
+  {
+    // RemoteReadRequestChain derives the block size from affix buffer, requests here are block aligned so it is never filled
+    if (affixBuffer == null) {
+      affixBuffer = new byte[blockSize];
+    }
+    return affixBuffer;
+  }
+
+  private long reserve(long bytes)
+  {
+    while (true) {
+      long current = inflightBytes.get();
+      long available = Math.min(bytes, maxInflightSize - current);
+      if (available <= 0) {
+        return 0;
+      }
+      if (inflightBytes.compareAndSet(current, current + available)) {
+        return available;
+      }
+    }
+  }
+
+  private static void release(long bytes)
+  {
+    if (bytes > 0) {
+      inflightBytes.addAndGet(-bytes);
+    }
+  }
+
+  /**
+   * Reports data that was warmed up but never read by the stream as wasted
+   */
+  public void close()
+  {
+    long wasted = 0;
+    synchronized (this) {
+      closed = true;
+      for (Range<Long> range : prefetched.asRanges()) {
+        wasted += range.upperEndpoint() - range.lowerEndpoint();
+      }
+      prefetched.clear();
+    }
+    if (wasted > 0) {
+      statsProvider.addReadRequestChainStats(new ReadRequestChainStats().setReadAheadWastedData(wasted));
+    }
+  }
+}
@@ -12,6 +12,7 @@
  */
 package com.qubole.rubix.core;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Objects;
 
@@ -38,6 +39,9 @@ public class ReadRequest
   byte[] destBuffer;
   int destBufferOffset;
 
+  // Set instead of destBuffer when reading into a ByteBuffer, destBufferOffset is then the absolute index in it
+  ByteBuffer destByteBuffer;
+
   long backendFileSize;
 
   public ReadRequest() {};
@@ -103,6 +107,31 @@ public class ReadRequest
     this.destBuffer = destBuffer;
   }
 
+  public ByteBuffer getDestByteBuffer()
+  {
+    return destByteBuffer;
+  }
+
+  public void setDestByteBuffer(ByteBuffer destByteBuffer)
+  {
+    this.destByteBuffer = destByteBuffer;
+  }
+
+  /**
+   * Returns a view on the destination of this request, be it an array or a ByteBuffer. The view is positioned
+   * at destBufferOffset and has the actual read length remaining.
+   */
+  public ByteBuffer getDestination()
+  {
+    if (destByteBuffer != null) {
+      ByteBuffer destination = destByteBuffer.duplicate();
+      destination.limit(destBufferOffset + getActualReadLengthIntUnsafe());
+      destination.position(destBufferOffset);
+      return destination;
+    }
+    return ByteBuffer.wrap(destBuffer, destBufferOffset, getActualReadLengthIntUnsafe());
+  }
+
   public int getDestBufferOffset()
   {
     return destBufferOffset;
@@ -154,10 +183,20 @@ public class ReadRequest
     otherRequest.actualReadStart = this.actualReadStart;
     otherRequest.actualReadEnd = this.actualReadEnd;
     if (createNewBuffer) {
-      otherRequest.destBuffer = Arrays.copyOf(this.destBuffer, this.destBuffer.length);
+      if (this.destByteBuffer != null) {
+        ByteBuffer source = this.destByteBuffer.duplicate();
+        source.clear();
+        otherRequest.destByteBuffer = ByteBuffer.allocate(source.capacity());
+        otherRequest.destByteBuffer.put(source);
+        otherRequest.destByteBuffer.clear();
+      }
+      else {
+        otherRequest.destBuffer = Arrays.copyOf(this.destBuffer, this.destBuffer.length);
+      }
     }
     else {
       otherRequest.destBuffer = this.destBuffer;
+      otherRequest.destByteBuffer = this.destByteBuffer;
     }
     otherRequest.destBufferOffset = this.destBufferOffset;
     otherRequest.backendFileSize = this.backendFileSize;
@@ -184,7 +223,8 @@ public class ReadRequest
             actualReadEnd == that.actualReadEnd &&
             destBufferOffset == that.destBufferOffset &&
             backendFileSize == that.backendFileSize &&
-            Arrays.equals(destBuffer, that.destBuffer);
+            Arrays.equals(destBuffer, that.destBuffer) &&
+            Objects.equals(destByteBuffer, that.destByteBuffer);
   }
 
   @Override
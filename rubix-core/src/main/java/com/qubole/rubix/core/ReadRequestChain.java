@@ -40,6 +40,8 @@ public abstract class ReadRequestChain implements Callable<Long>
   boolean isLocked;
   boolean cancelled;
   private long maxReadRequestSize;
+  private int maxCoalesceGap;
+  private int maxCoalescedSize;
   protected final int generationNumber;
 
   protected String threadName;
@@ -67,6 +69,16 @@ public abstract class ReadRequestChain implements Callable<Long>
     this.maxReadRequestSize = maxReadRequestSize;
   }
 
+  /**
+   * Lets requests at most `maxGap` bytes apart be read from the backend at once as long as the data read at once,
+   * gaps included, is at most `maxSize` bytes. With a gap of 0 requests are only merged when they touch.
+   */
+  public void setCoalescing(int maxGap, int maxSize)
+  {
+    this.maxCoalesceGap = maxGap;
+    this.maxCoalescedSize = maxSize;
+  }
+
   // Should be added in forward seek fashion for better performance
   public void addReadRequest(ReadRequest readRequest)
   {
@@ -109,6 +121,7 @@ public abstract class ReadRequestChain implements Callable<Long>
               readRequest.getDestBuffer(),
               readRequest.getDestBufferOffset() + Math.toIntExact(actualReadStart - readRequest.getActualReadStart()),
               readRequest.getBackendFileSize());
+      chunkedRequest.setDestByteBuffer(readRequest.getDestByteBuffer());
       addRequestToQueue(chunkedRequest);
       backendReadStart = backendReadEnd;
       actualReadStart = backendReadStart;
@@ -135,6 +148,31 @@ public abstract class ReadRequestChain implements Callable<Long>
     return readRequests;
   }
 
+  /**
+   * Splits the requests, in order, into runs of requests close enough to be read from the backend at once, see
+   * setCoalescing. Requests are compared by their backend ranges if `backendRanges` is set, by their actual ones
+   * otherwise.
+   */
+  protected List<List<ReadRequest>> getCoalescedRuns(boolean backendRanges)
+  {
+    List<List<ReadRequest>> runs = new ArrayList<>();
+    List<ReadRequest> run = null;
+    long runStart = 0;
+    long runEnd = 0;
+    for (ReadRequest readRequest : readRequests) {
+      long start = backendRanges ? readRequest.getBackendReadStart() : readRequest.getActualReadStart();
+      long end = backendRanges ? readRequest.getBackendReadEnd() : readRequest.getActualReadEnd();
+      if (run == null || start < runEnd || start - runEnd > maxCoalesceGap || end - runStart > maxCoalescedSize) {
+        run = new ArrayList<>();
+        runs.add(run);
+        runStart = start;
+      }
+      run.add(readRequest);
+      runEnd = end;
+    }
+    return runs;
+  }
+
   public abstract ReadRequestChainStats getStats();
 
   /*
@@ -0,0 +1,225 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.core;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.qubole.rubix.spi.CacheConfig;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.qubole.rubix.spi.CommonUtilities.threadsNamed;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Executes the read request chains of all CachingInputStreams of the JVM.
+ *
+ * Type of executor is picked by rubix.cache.read.executor.type:
+ * - shared: one pool for all chains
+ * - split: chains reading from local disk and chains reading from remote locations get separate pools, so slow
+ *   remote reads cannot starve cached reads
+ * - virtual: one virtual thread per chain, falls back to split if the JDK does not have virtual threads
+ *
+ * With rubix.cache.read.executor.caller.runs, a read served by a single chain runs on the calling thread.
+ */
+public class ReadRequestChainExecutor
+{
+  private static final Log log = LogFactory.getLog(ReadRequestChainExecutor.class);
+
+  public enum Type
+  {
+    SHARED,
+    SPLIT,
+    VIRTUAL
+  }
+
+  private static ReadRequestChainExecutor instance;
+
+  private final ListeningExecutorService cachedReadService;
+  private final ListeningExecutorService remoteReadService;
+  private final boolean callerRunsSingleChain;
+  private final QueueTimeStats cachedQueueTimeStats = new QueueTimeStats();
+  private final QueueTimeStats remoteQueueTimeStats;
+
+  @VisibleForTesting
+  ReadRequestChainExecutor(ListeningExecutorService cachedReadService, ListeningExecutorService remoteReadService, boolean callerRunsSingleChain)
+  {
+    this.cachedReadService = cachedReadService;
+    this.remoteReadService = remoteReadService;
+    this.callerRunsSingleChain = callerRunsSingleChain;
+    // Queue time is tracked per pool
+    this.remoteQueueTimeStats = cachedReadService == remoteReadService ? cachedQueueTimeStats : new QueueTimeStats();
+  }
+
+  public static synchronized ReadRequestChainExecutor getInstance(Configuration conf)
+  {
+    if (instance == null) {
+      instance = create(conf);
+    }
+    return instance;
+  }
+
+  private static ReadRequestChainExecutor create(Configuration conf)
+  {
+    Type type = Type.valueOf(CacheConfig.getReadExecutorType(conf).toUpperCase(Locale.ENGLISH));
+    boolean callerRuns = CacheConfig.isReadExecutorCallerRunsEnabled(conf);
+    log.info(String.format("Using %s executor for read request chains, caller runs single chain: %s", type, callerRuns));
+
+    if (type == Type.VIRTUAL) {
+      ExecutorService virtualThreadExecutor = newVirtualThreadPerTaskExecutor();
+      if (virtualThreadExecutor != null) {
+        ListeningExecutorService service = MoreExecutors.listeningDecorator(virtualThreadExecutor);
+        return new ReadRequestChainExecutor(service, service, callerRuns);
+      }
+      log.warn("Virtual threads are not available in this JDK, using split executor for read request chains");
+      type = Type.SPLIT;
+    }
+
+    if (type == Type.SPLIT) {
+      return new ReadRequestChainExecutor(
+          newFixedThreadPool(CacheConfig.getReadExecutorCachedThreads(conf), "rubix-cachedRead-thread-%s"),
+          newFixedThreadPool(CacheConfig.getReadExecutorRemoteThreads(conf), "rubix-remoteRead-thread-%s"),
+          callerRuns);
+    }
+
+    ListeningExecutorService service = newFixedThreadPool(CacheConfig.READ_SERVICE_THREAD_POOL_SIZE, "rubix-readRequest-thread-%s");
+    return new ReadRequestChainExecutor(service, service, callerRuns);
+  }
+
+  private static ListeningExecutorService newFixedThreadPool(int threads, String nameFormat)
+  {
+    return MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(threads,
+        new ThreadFactoryBuilder()
+            .setThreadFactory(threadsNamed(nameFormat))
+            .setDaemon(true)
+            .build()));
+  }
+
+  // Executors.newVirtualThreadPerTaskExecutor is looked up reflectively as RubiX is built for Java 8
+  private static ExecutorService newVirtualThreadPerTaskExecutor()
+  {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    }
+    catch (ReflectiveOperationException | RuntimeException e) {
+      log.debug("Could not create virtual thread executor", e);
+      return null;
+    }
+  }
+
+  /**
+   * Starts the given chains, returning one future per chain in the same order
+   */
+  public List<ListenableFuture<Long>> submit(List<ReadRequestChain> readRequestChains)
+  {
+    List<ListenableFuture<Long>> futures = new ArrayList<>(readRequestChains.size());
+    if (callerRunsSingleChain && readRequestChains.size() == 1) {
+      futures.add(runInCaller(readRequestChains.get(0)));
+      return futures;
+    }
+    for (ReadRequestChain readRequestChain : readRequestChains) {
+      futures.add(submit(readRequestChain));
+    }
+    return futures;
+  }
+
+  public ListenableFuture<Long> submit(final ReadRequestChain readRequestChain)
+  {
+    final QueueTimeStats queueTimeStats;
+    ListeningExecutorService service;
+    if (readRequestChain instanceof CachedReadRequestChain) {
+      service = cachedReadService;
+      queueTimeStats = cachedQueueTimeStats;
+    }
+    else {
+      service = remoteReadService;
+      queueTimeStats = remoteQueueTimeStats;
+    }
+
+    final long submitTime = System.nanoTime();
+    return service.submit(() -> {
+      queueTimeStats.record(System.nanoTime() - submitTime);
+      return readRequestChain.call();
+    });
+  }
+
+  /**
+   * Returns the executor for book keeping work done after reads, like updating the cache status
+   */
+  public ListeningExecutorService getBackgroundService()
+  {
+    return remoteReadService;
+  }
+
+  public QueueTimeStats getCachedQueueTimeStats()
+  {
+    return cachedQueueTimeStats;
+  }
+
+  public QueueTimeStats getRemoteQueueTimeStats()
+  {
+    return remoteQueueTimeStats;
+  }
+
+  private static ListenableFuture<Long> runInCaller(ReadRequestChain readRequestChain)
+  {
+    try {
+      return Futures.immediateFuture(readRequestChain.call());
+    }
+    catch (Exception e) {
+      return Futures.immediateFailedFuture(e);
+    }
+  }
+
+  public static class QueueTimeStats
+  {
+    private final AtomicLong tasks = new AtomicLong();
+    private final AtomicLong totalQueueTimeNanos = new AtomicLong();
+    private final AtomicLong maxQueueTimeNanos = new AtomicLong();
+
+    void record(long queueTimeNanos)
+    {
+      tasks.incrementAndGet();
+      totalQueueTimeNanos.addAndGet(queueTimeNanos);
+      maxQueueTimeNanos.accumulateAndGet(queueTimeNanos, Math::max);
+    }
+
+    public long getTasks()
+    {
+      return tasks.get();
+    }
+
+    public double getAverageQueueTimeMillis()
+    {
+      long count = tasks.get();
+      return count == 0 ? 0 : (double) NANOSECONDS.toMicros(totalQueueTimeNanos.get()) / count / 1000;
+    }
+
+    public long getMaxQueueTimeMillis()
+    {
+      return NANOSECONDS.toMillis(maxQueueTimeNanos.get());
+    }
+  }
+}
@@ -62,6 +62,12 @@ public class ReadRequestChainStats
   private long nonLocalRRCDataRead;
   private long nonLocalRRCRequests;
 
+  // Read-ahead
+  private long readAheadRequests;
+  private long readAheadDataRead;
+  private long readAheadHitData;
+  private long readAheadWastedData;
+
   private int corruptedFileCount;
 
   public ReadRequestChainStats add(ReadRequestChainStats other)
@@ -76,6 +82,10 @@ public class ReadRequestChainStats
     directRRCRequests += other.getDirectRRCRequests();
     nonLocalRRCDataRead += other.getNonLocalRRCDataRead();
     nonLocalRRCRequests += other.getNonLocalRRCRequests();
+    readAheadRequests += other.getReadAheadRequests();
+    readAheadDataRead += other.getReadAheadDataRead();
+    readAheadHitData += other.getReadAheadHitData();
+    readAheadWastedData += other.getReadAheadWastedData();
     corruptedFileCount += other.getCorruptedFileCount();
     return this;
   }
@@ -190,6 +200,50 @@ public class ReadRequestChainStats
     return this;
   }
 
+  public long getReadAheadRequests()
+  {
+    return readAheadRequests;
+  }
+
+  public ReadRequestChainStats setReadAheadRequests(long readAheadRequests)
+  {
+    this.readAheadRequests = readAheadRequests;
+    return this;
+  }
+
+  public long getReadAheadDataRead()
+  {
+    return readAheadDataRead;
+  }
+
+  public ReadRequestChainStats setReadAheadDataRead(long readAheadDataRead)
+  {
+    this.readAheadDataRead = readAheadDataRead;
+    return this;
+  }
+
+  public long getReadAheadHitData()
+  {
+    return readAheadHitData;
+  }
+
+  public ReadRequestChainStats setReadAheadHitData(long readAheadHitData)
+  {
+    this.readAheadHitData = readAheadHitData;
+    return this;
+  }
+
+  public long getReadAheadWastedData()
+  {
+    return readAheadWastedData;
+  }
+
+  public ReadRequestChainStats setReadAheadWastedData(long readAheadWastedData)
+  {
+    this.readAheadWastedData = readAheadWastedData;
+    return this;
+  }
+
   public int getCorruptedFileCount()
   {
     return this.corruptedFileCount;
@@ -88,8 +88,8 @@ public class RemoteFetchRequestChain extends ReadRequestChain
     if (CacheConfig.isDummyModeEnabled(conf)) {
       try (RetryingPooledBookkeeperClient bookKeeperClient = bookKeeperFactory.createBookKeeperClient(remoteNodeLocation, conf)) {
         for (ReadRequest readRequest : readRequests) {
-          long startBlock = toBlock(readRequest.getBackendReadStart());
-          long endBlock = toBlock(readRequest.getBackendReadEnd() - 1) + 1;
+          long startBlock = toBlock(readRequest.getBackendReadStart(), blockSize);
+          long endBlock = toBlock(readRequest.getBackendReadEnd() - 1, blockSize) + 1;
           // getCacheStatus() call required to create mdfiles before blocks are set as cached
           CacheStatusRequest request = new CacheStatusRequest(remotePath, fileSize, lastModified, startBlock, endBlock).setClusterType(clusterType);
           bookKeeperClient.getCacheStatus(request);
@@ -102,9 +102,8 @@ public class RemoteFetchRequestChain extends ReadRequestChain
     }
   }
 
-  private long toBlock(long pos)
+  private long toBlock(long pos, int blockSize)
   {
-    long blockSize = CacheConfig.getBlockSize(conf);
     return pos / blockSize;
   }
 }
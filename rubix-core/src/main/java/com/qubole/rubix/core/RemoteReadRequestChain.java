@@ -13,6 +13,21 @@
 package com.qubole.rubix.core;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.qubole.rubix.common.cache.BlockChecksums;
+import com.qubole.rubix.common.cache.CompressedCacheFile;
+import com.qubole.rubix.common.cache.DiskIoScheduler;
+import com.qubole.rubix.common.cache.DiskIoScheduler.Priority;
+import com.qubole.rubix.common.cache.DiskIoScheduler.Slot;
+import com.qubole.rubix.common.cache.FileChannelCache;
+import com.qubole.rubix.common.cache.FileChannelCache.CachedFileChannel;
+import com.qubole.rubix.common.utils.IoThrottle;
+import com.qubole.rubix.common.utils.IoThrottle.Traffic;
+import com.qubole.rubix.core.InFlightBlockRegistry.BlockFetch;
+import com.qubole.rubix.core.WriteBehindCacheWriter.WriteBatch;
 import com.qubole.rubix.spi.BookKeeperFactory;
 import com.qubole.rubix.spi.CacheConfig;
 import com.qubole.rubix.spi.CacheUtil;
@@ -23,13 +38,19 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.util.DirectBufferPool;
 
+import javax.annotation.Nullable;
+
 import java.io.EOFException;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static com.google.common.base.Preconditions.checkState;
 
@@ -51,10 +72,26 @@ public class RemoteReadRequestChain extends ReadRequestChain
   private int blockSize;
 
   private BookKeeperFactory bookKeeperFactory;
+  private Configuration conf;
 
   private static final Log log = LogFactory.getLog(RemoteReadRequestChain.class);
 
+  private String remotePath;
   private String localFile;
+  // Null if the blocks are stored uncompressed
+  private final CompressedCacheFile compressedFile;
+  // Null if block checksums are disabled
+  private BlockChecksums blockChecksums;
+
+  // Set when the data is written to the cache in background, blocks are marked cached after it completes
+  private ListenableFuture<?> cacheWriteFuture;
+  // Staging buffer of the current ReadRequest in write behind mode, or if the blocks are stored compressed or checksummed
+  private ByteBuffer writeBehindBuffer;
+  // Blocks this chain is downloading for all readers of the JVM, see InFlightBlockRegistry
+  private final List<BlockFetch> ownedFetches = new ArrayList<>();
+  private HedgedReader hedgedReader;
+  private final IoThrottle ioThrottle;
+  private final DiskIoScheduler diskIoScheduler;
 
   public RemoteReadRequestChain(FSDataInputStream inputStream,
       String remotePath,
@@ -70,8 +107,13 @@ public class RemoteReadRequestChain extends ReadRequestChain
     this.directBufferSize = CacheConfig.getDiskReadBufferSize(conf);
     this.affixBuffer = affixBuffer;
     this.blockSize = affixBuffer.length;
+    this.remotePath = remotePath;
     this.localFile = CacheUtil.getLocalPath(remotePath, conf, generationNumber);
+    this.compressedFile = CompressedCacheFile.forFile(remotePath, blockSize, conf);
     this.bookKeeperFactory = bookKeeperFactory;
+    this.conf = conf;
+    this.ioThrottle = IoThrottle.getInstance(conf);
+    this.diskIoScheduler = DiskIoScheduler.getInstance(conf);
   }
 
   @VisibleForTesting
@@ -80,6 +122,15 @@ public class RemoteReadRequestChain extends ReadRequestChain
     this(inputStream, remoteFileName, generationNumber, new DirectBufferPool(), conf, new byte[100], new BookKeeperFactory());
   }
 
+  /**
+   * Issues the positional reads of the chain through `hedgedReader`, which is closed once the chain is executed.
+   * Streaming reads of the prefix and suffix of the chain always go to the stream of the chain.
+   */
+  public void setHedgedReader(HedgedReader hedgedReader)
+  {
+    this.hedgedReader = hedgedReader;
+  }
+
   public Long call()
       throws IOException
   {
@@ -96,15 +147,44 @@ public class RemoteReadRequestChain extends ReadRequestChain
     if (!file.exists()) {
       throw new IOException(String.format("File does not exists %s", localFile));
     }
+    blockChecksums = BlockChecksums.forFile(remotePath, readRequests.get(0).getBackendFileSize(), blockSize, generationNumber, conf);
+
+    WriteBatch writeBatch = null;
+    // Data of compressed files is staged and compressed per ReadRequest instead
+    if (CacheConfig.isWriteBehindEnabled(conf) && compressedFile == null) {
+      // Falls back to writing synchronously if there is no memory left to stage the data
+      writeBatch = WriteBehindCacheWriter.getInstance(conf).newBatch(localFile, getBackendReadLength());
+    }
 
-    FileChannel fileChannel = new FileOutputStream(new RandomAccessFile(file, "rw").getFD()).getChannel();
-    ByteBuffer directBuffer = bufferPool.getBuffer(directBufferSize);
-    checkState(directBuffer != null, "directBuffer could not be allocated");
+    CachedFileChannel cachedFileChannel = null;
+    FileChannel fileChannel = null;
+    ByteBuffer directBuffer = null;
+    if (writeBatch == null) {
+      cachedFileChannel = FileChannelCache.open(conf, localFile);
+      fileChannel = cachedFileChannel.getChannel();
+      directBuffer = bufferPool.getBuffer(directBufferSize);
+      checkState(directBuffer != null, "directBuffer could not be allocated");
+    }
+    boolean singleFlight = CacheConfig.isSingleFlightEnabled(conf);
     try {
       for (ReadRequest readRequest : readRequests) {
         if (cancelled) {
           propagateCancel(this.getClass().getName());
         }
+        if (singleFlight && readFromInFlightFetch(readRequest)) {
+          continue;
+        }
+        ioThrottle.acquireNetwork(Traffic.FOREGROUND, readRequest.getBackendReadLength());
+        if (writeBatch == null) {
+          ioThrottle.acquireDiskWrite(Traffic.FOREGROUND, readRequest.getBackendReadLength());
+        }
+        if (writeBatch != null) {
+          writeBehindBuffer = writeBatch.allocate(readRequest.getBackendReadStart(), (int) (readRequest.getBackendReadEnd() - readRequest.getBackendReadStart()));
+        }
+        else if (compressedFile != null || blockChecksums != null) {
+          // Blocks are compressed and checksummed as a whole, so the backend read is written at once after the suffix is read
+          writeBehindBuffer = ByteBuffer.allocate((int) (readRequest.getBackendReadEnd() - readRequest.getBackendReadStart()));
+        }
         log.debug(String.format("Executing ReadRequest: [%d, %d, %d, %d, %d]", readRequest.getBackendReadStart(), readRequest.getBackendReadEnd(), readRequest.getActualReadStart(), readRequest.getActualReadEnd(), readRequest.getDestBufferOffset()));
         int prefixBufferLength = (int) (readRequest.getActualReadStart() - readRequest.getBackendReadStart());
         int suffixBufferLength = (int) (readRequest.getBackendReadEnd() - readRequest.getActualReadEnd());
@@ -126,14 +206,33 @@ public class RemoteReadRequestChain extends ReadRequestChain
           // For single readRequest in chain, prefix and suffix both may be present
           // seek needed in case of just suffix being present, otherwise it is no-op
           inputStream.seek(readRequest.actualReadStart);
-          readBytes = readIntoBuffer(readRequest.getDestBuffer(), readRequest.destBufferOffset, readRequest.getActualReadLengthIntUnsafe(), inputStream);
+          if (readRequest.getDestByteBuffer() != null) {
+            readBytes = readIntoBuffer(readRequest.getDestination(), inputStream);
+          }
+          else {
+            readBytes = readIntoBuffer(readRequest.getDestBuffer(), readRequest.destBufferOffset, readRequest.getActualReadLengthIntUnsafe(), inputStream);
+          }
         }
         else {
           // Positioned read for all reads between first and last readRequest as these are at least rubix blockSize apart (default 1MB)
-          inputStream.readFully(readRequest.actualReadStart, readRequest.getDestBuffer(), readRequest.destBufferOffset, readRequest.getActualReadLengthIntUnsafe());
+          if (hedgedReader != null) {
+            hedgedReader.readFully(readRequest.actualReadStart, readRequest.getDestination());
+          }
+          else if (readRequest.getDestByteBuffer() != null) {
+            DirectReadRequestChain.readFully(inputStream, readRequest.actualReadStart, readRequest.getDestination());
+          }
+          else {
+            inputStream.readFully(readRequest.actualReadStart, readRequest.getDestBuffer(), readRequest.destBufferOffset, readRequest.getActualReadLengthIntUnsafe());
+          }
           readBytes = readRequest.getActualReadLengthIntUnsafe();
         }
-        int written = copyIntoCache(fileChannel, directBuffer, readRequest.destBuffer, readRequest.destBufferOffset, readRequest.getActualReadLengthIntUnsafe(), readRequest.actualReadStart);
+        int written;
+        if (readRequest.getDestByteBuffer() != null) {
+          written = copyIntoCache(fileChannel, readRequest.getDestination(), readRequest.actualReadStart);
+        }
+        else {
+          written = copyIntoCache(fileChannel, directBuffer, readRequest.destBuffer, readRequest.destBufferOffset, readRequest.getActualReadLengthIntUnsafe(), readRequest.actualReadStart);
+        }
         log.debug(String.format("Copied %d requested bytes into cache", written));
         totalRequestedRead += readRequest.getActualReadLengthIntUnsafe();
 
@@ -146,14 +245,161 @@ public class RemoteReadRequestChain extends ReadRequestChain
           written = copyIntoCache(fileChannel, directBuffer, affixBuffer, 0, suffixBufferLength, readRequest.actualReadEnd);
           log.debug(String.format("Copied %d suffix bytes into cache", written));
         }
+        if (writeBatch != null && blockChecksums != null) {
+          ByteBuffer staged = writeBehindBuffer.duplicate();
+          staged.flip();
+          blockChecksums.write(readRequest.getBackendReadStart(), staged);
+        }
+        else if (writeBatch == null && writeBehindBuffer != null) {
+          writeStaged(fileChannel, readRequest.getBackendReadStart());
+        }
+        if (writeBatch == null) {
+          // Data of this request is on disk, let the readers waiting for it proceed
+          completeOwnedFetches(null);
+        }
+      }
+      if (writeBatch != null) {
+        cacheWriteFuture = WriteBehindCacheWriter.getInstance(conf).submit(writeBatch);
+        writeBatch = null;
+        completeOwnedFetchesWith(cacheWriteFuture);
       }
       log.debug(String.format("Read %d bytes from remote localFile, added %d to destination buffer", extraRead + totalRequestedRead, totalRequestedRead));
       return totalRequestedRead;
     }
     finally {
-      bufferPool.returnBuffer(directBuffer);
-      fileChannel.close();
+      if (!ownedFetches.isEmpty()) {
+        // Read failed, readers waiting for these blocks download them on their own
+        completeOwnedFetches(new IOException("Download of " + localFile + " failed"));
+      }
+      writeBehindBuffer = null;
+      if (hedgedReader != null) {
+        hedgedReader.close();
+      }
+      if (writeBatch != null) {
+        writeBatch.discard();
+      }
+      if (cachedFileChannel != null) {
+        bufferPool.returnBuffer(directBuffer);
+        cachedFileChannel.release();
+      }
+    }
+  }
+
+  /**
+   * Claims the blocks of the request in the InFlightBlockRegistry. If all of them are being downloaded by other
+   * readers, waits for those downloads and reads the requested data from the local file.
+   *
+   * @return true if the request was served from the data downloaded by other readers
+   */
+  private boolean readFromInFlightFetch(ReadRequest readRequest)
+      throws IOException
+  {
+    InFlightBlockRegistry registry = InFlightBlockRegistry.getInstance();
+    List<ListenableFuture<Void>> otherFetches = new ArrayList<>();
+    boolean ownsAny = false;
+    for (long block = toBlock(readRequest.getBackendReadStart()); block <= toBlock(readRequest.getBackendReadEnd() - 1); block++) {
+      BlockFetch fetch = registry.claim(localFile, block);
+      if (fetch.isOwner()) {
+        ownedFetches.add(fetch);
+        ownsAny = true;
+      }
+      else {
+        otherFetches.add(fetch.getFuture());
+      }
+    }
+    if (ownsAny) {
+      // Part of the request has to be downloaded anyway, download all of it
+      return false;
+    }
+
+    try {
+      Futures.allAsList(otherFetches).get(CacheConfig.getClientReadTimeout(conf), TimeUnit.MILLISECONDS);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for download of " + localFile);
+    }
+    catch (ExecutionException e) {
+      log.debug("Download by another reader failed, downloading " + localFile + " again", e);
+      return false;
+    }
+    catch (TimeoutException e) {
+      log.debug("Download by another reader did not finish in time, downloading " + localFile + " again");
+      return false;
+    }
+
+    try (Slot slot = diskIoScheduler.acquire(localFile, Priority.FOREGROUND_READ)) {
+      CachedFileChannel cachedFileChannel = FileChannelCache.open(conf, localFile);
+      try {
+        ByteBuffer destination = readRequest.getDestination();
+        long position = readRequest.getActualReadStart();
+        if (compressedFile != null) {
+          if (compressedFile.read(cachedFileChannel.getChannel(), position, destination) < readRequest.getActualReadLengthIntUnsafe()) {
+            log.debug("Local file " + localFile + " misses downloaded blocks, downloading the data again");
+            return false;
+          }
+        }
+        while (destination.hasRemaining()) {
+          int nread = cachedFileChannel.getChannel().read(destination, position);
+          if (nread < 0) {
+            log.debug("Local file " + localFile + " is shorter than expected, downloading the data again");
+            return false;
+          }
+          position += nread;
+        }
+      }
+      finally {
+        cachedFileChannel.release();
+      }
+    }
+
+    int length = readRequest.getActualReadLengthIntUnsafe();
+    registry.recordDeduplicatedRead(length);
+    totalRequestedRead += length;
+    log.debug(String.format("Read [%d, %d) of %s downloaded by another reader", readRequest.getActualReadStart(), readRequest.getActualReadEnd(), localFile));
+    return true;
+  }
+
+  private void completeOwnedFetches(Throwable failure)
+  {
+    InFlightBlockRegistry registry = InFlightBlockRegistry.getInstance();
+    for (BlockFetch fetch : ownedFetches) {
+      registry.complete(fetch, failure);
+    }
+    ownedFetches.clear();
+  }
+
+  private void completeOwnedFetchesWith(ListenableFuture<?> writeFuture)
+  {
+    final List<BlockFetch> fetches = new ArrayList<>(ownedFetches);
+    ownedFetches.clear();
+    Futures.addCallback(writeFuture, new FutureCallback<Object>()
+    {
+      @Override
+      public void onSuccess(@Nullable Object result)
+      {
+        for (BlockFetch fetch : fetches) {
+          InFlightBlockRegistry.getInstance().complete(fetch, null);
+        }
+      }
+
+      @Override
+      public void onFailure(Throwable t)
+      {
+        for (BlockFetch fetch : fetches) {
+          InFlightBlockRegistry.getInstance().complete(fetch, t);
+        }
+      }
+    }, MoreExecutors.directExecutor());
+  }
+
+  private long getBackendReadLength()
+  {
+    long length = 0;
+    for (ReadRequest readRequest : readRequests) {
+      length += readRequest.getBackendReadLength();
     }
+    return length;
   }
 
   public static int readIntoBuffer(byte[] destBuffer, int destBufferOffset, int length, FSDataInputStream inputStream)
@@ -170,26 +416,93 @@ public class RemoteReadRequestChain extends ReadRequestChain
     return nread;
   }
 
+  // Streaming read into a ByteBuffer destination, staged through the affix buffer which is free at this point
+  private int readIntoBuffer(ByteBuffer destination, FSDataInputStream inputStream)
+      throws IOException
+  {
+    int nread = 0;
+    while (destination.hasRemaining()) {
+      int length = Math.min(destination.remaining(), affixBuffer.length);
+      nread += readIntoBuffer(affixBuffer, 0, length, inputStream);
+      destination.put(affixBuffer, 0, length);
+    }
+    return nread;
+  }
+
+  private int copyIntoCache(FileChannel fileChannel, ByteBuffer source, long cacheReadStart)
+      throws IOException
+  {
+    log.debug(String.format("Trying to copy [%d - %d] bytes into cache into localFile %s", cacheReadStart, cacheReadStart + source.remaining(), localFile));
+    long start = System.nanoTime();
+    if (writeBehindBuffer != null) {
+      int length = source.remaining();
+      writeBehindBuffer.put(source);
+      warmupPenalty += System.nanoTime() - start;
+      return length;
+    }
+    int writtenSoFar = 0;
+    try (Slot slot = diskIoScheduler.acquire(localFile, Priority.READ_THROUGH_WRITE)) {
+      while (source.hasRemaining()) {
+        writtenSoFar += fileChannel.write(source, cacheReadStart + writtenSoFar);
+      }
+    }
+    warmupPenalty += System.nanoTime() - start;
+    return writtenSoFar;
+  }
+
   private int copyIntoCache(FileChannel fileChannel, ByteBuffer directBuffer, byte[] destBuffer, int destBufferOffset, int length, long cacheReadStart)
       throws IOException
   {
     log.debug(String.format("Trying to copy [%d - %d] bytes into cache with offset %d into localFile %s", cacheReadStart, cacheReadStart + length, destBufferOffset, localFile));
     long start = System.nanoTime();
+    if (writeBehindBuffer != null) {
+      // Staged data of a ReadRequest is contiguous, prefix, requested data and suffix are copied in order
+      writeBehindBuffer.put(destBuffer, destBufferOffset, length);
+      warmupPenalty += System.nanoTime() - start;
+      return length;
+    }
     int leftToWrite = length;
     int writtenSoFar = 0;
-    while (leftToWrite > 0) {
-      int writeInThisCycle = Math.min(leftToWrite, directBuffer.capacity());
-      directBuffer.clear();
-      directBuffer.put(destBuffer, destBufferOffset + writtenSoFar, writeInThisCycle);
-      directBuffer.flip();
-      int nwrite = fileChannel.write(directBuffer, cacheReadStart + writtenSoFar);
-      writtenSoFar += nwrite;
-      leftToWrite -= nwrite;
+    try (Slot slot = diskIoScheduler.acquire(localFile, Priority.READ_THROUGH_WRITE)) {
+      while (leftToWrite > 0) {
+        int writeInThisCycle = Math.min(leftToWrite, directBuffer.capacity());
+        directBuffer.clear();
+        directBuffer.put(destBuffer, destBufferOffset + writtenSoFar, writeInThisCycle);
+        directBuffer.flip();
+        int nwrite = fileChannel.write(directBuffer, cacheReadStart + writtenSoFar);
+        writtenSoFar += nwrite;
+        leftToWrite -= nwrite;
+      }
     }
     warmupPenalty += System.nanoTime() - start;
     return writtenSoFar;
   }
 
+  // Writes the staged data of the current ReadRequest, with the checksums of its blocks if enabled
+  private void writeStaged(FileChannel fileChannel, long backendReadStart)
+      throws IOException
+  {
+    long start = System.nanoTime();
+    writeBehindBuffer.flip();
+    long written = 0;
+    try (Slot slot = diskIoScheduler.acquire(localFile, Priority.READ_THROUGH_WRITE)) {
+      if (blockChecksums != null) {
+        blockChecksums.write(backendReadStart, writeBehindBuffer);
+      }
+      if (compressedFile != null) {
+        written = compressedFile.write(fileChannel, backendReadStart, writeBehindBuffer);
+      }
+      else {
+        while (writeBehindBuffer.hasRemaining()) {
+          written += fileChannel.write(writeBehindBuffer, backendReadStart + written);
+        }
+      }
+    }
+    writeBehindBuffer = null;
+    warmupPenalty += System.nanoTime() - start;
+    log.debug(String.format("Wrote %d staged bytes from %d into localFile %s", written, backendReadStart, localFile));
+  }
+
   public ReadRequestChainStats getStats()
   {
     return new ReadRequestChainStats()
@@ -200,7 +513,39 @@ public class RemoteReadRequestChain extends ReadRequestChain
   }
 
   @Override
-  public void updateCacheStatus(String remotePath, long fileSize, long lastModified, int blockSize, Configuration conf)
+  public void updateCacheStatus(final String remotePath, final long fileSize, final long lastModified, final int blockSize, final Configuration conf)
+  {
+    if (cacheWriteFuture == null) {
+      setCached(remotePath, fileSize, lastModified, conf);
+      return;
+    }
+
+    // Blocks must not be reported cached before their data is on disk
+    Futures.addCallback(cacheWriteFuture, new FutureCallback<Object>()
+    {
+      @Override
+      public void onSuccess(@Nullable Object result)
+      {
+        setCached(remotePath, fileSize, lastModified, conf);
+      }
+
+      @Override
+      public void onFailure(Throwable t)
+      {
+        log.warn("Could not write downloaded data into local file " + localFile, t);
+      }
+    }, MoreExecutors.directExecutor());
+  }
+
+  /**
+   * Returns the background write of the downloaded data into the local file, null if it was written synchronously
+   */
+  public ListenableFuture<?> getCacheWriteFuture()
+  {
+    return cacheWriteFuture;
+  }
+
+  private void setCached(String remotePath, long fileSize, long lastModified, Configuration conf)
   {
     try (RetryingPooledBookkeeperClient client = bookKeeperFactory.createBookKeeperClient(conf)) {
       for (ReadRequest readRequest : readRequests) {
@@ -0,0 +1,67 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.core;
+
+/**
+ * Tracks the reads issued on a single stream and reports whether the stream is being consumed sequentially.
+ *
+ * A read is considered to continue the previous one if it starts at or at most `tolerance` bytes after the point
+ * where the previous read ended. Small forward skips are common in columnar formats (e.g. skipping a stream
+ * inside a stripe) and should not break the sequential run.
+ */
+public class SequentialAccessDetector
+{
+  private final int sequentialThreshold;
+  private final long tolerance;
+
+  private long lastReadEnd = -1;
+  private int sequentialReads;
+
+  public SequentialAccessDetector(int sequentialThreshold, long tolerance)
+  {
+    this.sequentialThreshold = sequentialThreshold;
+    this.tolerance = tolerance;
+  }
+
+  /**
+   * Records a read of `length` bytes starting at `position`
+   *
+   * @return true if the stream is in a sequential run after this read
+   */
+  public boolean recordRead(long position, long length)
+  {
+    if (lastReadEnd >= 0 && position >= lastReadEnd && position - lastReadEnd <= tolerance) {
+      sequentialReads++;
+    }
+    else {
+      sequentialReads = 0;
+    }
+    lastReadEnd = position + length;
+    return isSequential();
+  }
+
+  public boolean isSequential()
+  {
+    return sequentialReads >= sequentialThreshold;
+  }
+
+  public int getSequentialReads()
+  {
+    return sequentialReads;
+  }
+
+  public long getLastReadEnd()
+  {
+    return lastReadEnd;
+  }
+}
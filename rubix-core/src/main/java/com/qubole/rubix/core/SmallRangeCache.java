@@ -0,0 +1,196 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.core;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.qubole.rubix.spi.CacheConfig;
+import org.apache.hadoop.conf.Configuration;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide in-memory cache of small ranges of remote files, so the footers read by columnar readers on every
+ * split open are served without a cache status lookup or a disk read.
+ *
+ * It holds the tail of the files, loaded on the first read within it, and the data of recent small reads.
+ * Ranges are keyed by the path and modification time of the file, so a modified file is never served stale data.
+ * Their total size is bounded by rubix.cache.small.range.max.memory. They are kept on the heap, direct buffers
+ * would only be freed by a garbage collection after their eviction and could exceed that bound.
+ */
+public class SmallRangeCache
+{
+  private static SmallRangeCache instance;
+
+  private final Cache<String, FileRanges> files;
+  private final int tailSize;
+  private final int maxReadSize;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong hitBytes = new AtomicLong();
+
+  @VisibleForTesting
+  SmallRangeCache(long maxMemory, int tailSize, int maxReadSize)
+  {
+    this.files = CacheBuilder.newBuilder()
+        .weigher((Weigher<String, FileRanges>) (key, ranges) -> ranges.getSize())
+        .maximumWeight(maxMemory)
+        .build();
+    this.tailSize = tailSize;
+    this.maxReadSize = maxReadSize;
+  }
+
+  public static synchronized SmallRangeCache getInstance(Configuration conf)
+  {
+    if (instance == null) {
+      instance = new SmallRangeCache(
+          CacheConfig.getSmallRangeCacheMaxMemory(conf),
+          CacheConfig.getSmallRangeCacheTailSize(conf),
+          CacheConfig.getSmallRangeCacheMaxReadSize(conf));
+    }
+    return instance;
+  }
+
+  /**
+   * Returns the start of the tail of a file of `fileSize` bytes, the whole tail is loaded on the first read within it
+   */
+  public long getTailStart(long fileSize)
+  {
+    return Math.max(0, fileSize - tailSize);
+  }
+
+  /**
+   * Returns whether the data of a read of `length` bytes is kept once read
+   */
+  public boolean isSmallRead(int length)
+  {
+    return length <= maxReadSize;
+  }
+
+  /**
+   * Fills the remaining bytes of `destination` with the data of the file starting at `position`.
+   *
+   * @return false, leaving `destination` untouched, if the range is not cached as a whole
+   */
+  public boolean read(String remotePath, long lastModified, long position, ByteBuffer destination)
+  {
+    FileRanges ranges = files.getIfPresent(getKey(remotePath, lastModified));
+    if (ranges == null) {
+      return false;
+    }
+
+    int length = destination.remaining();
+    Map.Entry<Long, ByteBuffer> range = ranges.getCoveringRange(position, length);
+    if (range == null) {
+      return false;
+    }
+
+    ByteBuffer source = range.getValue().duplicate();
+    source.position(Math.toIntExact(position - range.getKey()));
+    source.limit(source.position() + length);
+    destination.put(source);
+    hits.incrementAndGet();
+    hitBytes.addAndGet(length);
+    return true;
+  }
+
+  /**
+   * Caches a copy of the remaining bytes of `data`, which holds the data of the file starting at `position`
+   */
+  public void put(String remotePath, long lastModified, long position, ByteBuffer data)
+  {
+    ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+    copy.put(data.duplicate());
+    copy.flip();
+    files.asMap().compute(getKey(remotePath, lastModified),
+        (key, ranges) -> ranges == null ? new FileRanges(position, copy) : ranges.with(position, copy));
+  }
+
+  public long getHits()
+  {
+    return hits.get();
+  }
+
+  public long getHitBytes()
+  {
+    return hitBytes.get();
+  }
+
+  public long getSize()
+  {
+    long size = 0;
+    for (FileRanges ranges : files.asMap().values()) {
+      size += ranges.getSize();
+    }
+    return size;
+  }
+
+  private static String getKey(String remotePath, long lastModified)
+  {
+    return remotePath + ":" + lastModified;
+  }
+
+  // Immutable so that the weight of a file is recomputed whenever a range is added to it
+  private static class FileRanges
+  {
+    private final NavigableMap<Long, ByteBuffer> ranges;
+    private final int size;
+
+    FileRanges(long position, ByteBuffer data)
+    {
+      this(new TreeMap<>(), position, data);
+    }
+
+    private FileRanges(NavigableMap<Long, ByteBuffer> ranges, long position, ByteBuffer data)
+    {
+      long end = position + data.capacity();
+      // Drop the ranges covered by the new one
+      ranges.entrySet().removeIf(range -> range.getKey() >= position && range.getKey() + range.getValue().capacity() <= end);
+      ranges.put(position, data);
+      this.ranges = ranges;
+
+      int size = 0;
+      for (ByteBuffer range : ranges.values()) {
+        size += range.capacity();
+      }
+      this.size = size;
+    }
+
+    FileRanges with(long position, ByteBuffer data)
+    {
+      if (getCoveringRange(position, data.capacity()) != null) {
+        return this;
+      }
+      return new FileRanges(new TreeMap<>(ranges), position, data);
+    }
+
+    Map.Entry<Long, ByteBuffer> getCoveringRange(long position, int length)
+    {
+      Map.Entry<Long, ByteBuffer> range = ranges.floorEntry(position);
+      if (range == null || range.getKey() + range.getValue().capacity() < position + length) {
+        return null;
+      }
+      return range;
+    }
+
+    int getSize()
+    {
+      return size;
+    }
+  }
+}
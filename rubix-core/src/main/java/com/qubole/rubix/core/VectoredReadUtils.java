@@ -0,0 +1,121 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.core;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.IntFunction;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Helpers to validate and coalesce the ranges of a vectored read.
+ */
+public class VectoredReadUtils
+{
+  private VectoredReadUtils()
+  {
+  }
+
+  /**
+   * Returns the ranges sorted by offset after checking that they are well formed and do not overlap
+   */
+  public static List<FileRange> validateAndSortRanges(List<? extends FileRange> ranges)
+  {
+    List<FileRange> sortedRanges = new ArrayList<>(ranges);
+    sortedRanges.sort(Comparator.comparingLong(FileRange::getOffset));
+    FileRange previous = null;
+    for (FileRange range : sortedRanges) {
+      checkArgument(range.getOffset() >= 0, "Negative offset in %s", range);
+      checkArgument(range.getLength() >= 0, "Negative length in %s", range);
+      if (previous != null) {
+        checkArgument(previous.getOffset() + previous.getLength() <= range.getOffset(),
+            "Overlapping ranges %s and %s", previous, range);
+      }
+      previous = range;
+    }
+    return sortedRanges;
+  }
+
+  /**
+   * Coalesces sorted ranges which are at most `minSeek` bytes apart as long as the combined range does not grow
+   * beyond `maxSize`. Reading the gap between two such ranges is cheaper than issuing separate reads for them.
+   */
+  public static List<CombinedFileRange> mergeSortedRanges(List<? extends FileRange> sortedRanges, int minSeek, int maxSize)
+  {
+    List<CombinedFileRange> combinedRanges = new ArrayList<>();
+    CombinedFileRange current = null;
+    for (FileRange range : sortedRanges) {
+      if (current == null || !current.merge(range, minSeek, maxSize)) {
+        current = new CombinedFileRange(range);
+        combinedRanges.add(current);
+      }
+    }
+    return combinedRanges;
+  }
+
+  /**
+   * Copies the data of each underlying range out of the buffer of the combined range and completes its future
+   */
+  public static void scatter(CombinedFileRange combinedRange, byte[] buffer, IntFunction<ByteBuffer> allocate)
+  {
+    for (FileRange range : combinedRange.getUnderlying()) {
+      ByteBuffer data = allocate.apply(range.getLength());
+      data.put(buffer, Math.toIntExact(range.getOffset() - combinedRange.getOffset()), range.getLength());
+      data.flip();
+      range.getData().complete(data);
+    }
+  }
+
+  public static class CombinedFileRange
+  {
+    private final long offset;
+    private long end;
+    private final List<FileRange> underlying = new ArrayList<>();
+
+    public CombinedFileRange(FileRange range)
+    {
+      this.offset = range.getOffset();
+      this.end = range.getOffset() + range.getLength();
+      underlying.add(range);
+    }
+
+    boolean merge(FileRange range, int minSeek, int maxSize)
+    {
+      long newEnd = Math.max(end, range.getOffset() + range.getLength());
+      if (range.getOffset() - end > minSeek || newEnd - offset > maxSize) {
+        return false;
+      }
+      end = newEnd;
+      underlying.add(range);
+      return true;
+    }
+
+    public long getOffset()
+    {
+      return offset;
+    }
+
+    public int getLength()
+    {
+      return Math.toIntExact(end - offset);
+    }
+
+    public List<FileRange> getUnderlying()
+    {
+      return underlying;
+    }
+  }
+}
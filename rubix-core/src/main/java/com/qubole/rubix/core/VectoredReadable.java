@@ -0,0 +1,34 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.function.IntFunction;
+
+/**
+ * Streams which can read a set of ranges of a file in one call.
+ */
+public interface VectoredReadable
+{
+  /**
+   * Reads the given ranges asynchronously. The call returns once the reads are issued, the data of each range is
+   * delivered through {@link FileRange#getData()}. Ranges must not overlap.
+   *
+   * @param ranges ranges to read
+   * @param allocate function to allocate the buffer a range is returned in
+   */
+  void readVectored(List<? extends FileRange> ranges, IntFunction<ByteBuffer> allocate)
+      throws IOException;
+}
@@ -0,0 +1,213 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.core;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.qubole.rubix.common.cache.DirectBuffers;
+import com.qubole.rubix.common.cache.DiskIoScheduler;
+import com.qubole.rubix.common.cache.DiskIoScheduler.Priority;
+import com.qubole.rubix.common.cache.DiskIoScheduler.Slot;
+import com.qubole.rubix.common.cache.FileChannelCache;
+import com.qubole.rubix.common.cache.FileChannelCache.CachedFileChannel;
+import com.qubole.rubix.common.utils.IoThrottle;
+import com.qubole.rubix.common.utils.IoThrottle.Traffic;
+import com.qubole.rubix.spi.CacheConfig;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkState;
+import static com.qubole.rubix.spi.CommonUtilities.threadsNamed;
+
+/**
+ * Writes data downloaded by RemoteReadRequestChains into the local cache files in the background, so the
+ * reader does not wait for the disk.
+ *
+ * Data waiting to be written is staged in direct buffers. Their total size is bounded by
+ * rubix.cache.write.behind.max.memory; once the bound is reached newBatch returns null and the caller
+ * writes synchronously instead. The buffers of a batch are freed as soon as it is written or discarded,
+ * so the bound holds for the memory actually allocated and not only for the pending bytes.
+ */
+public class WriteBehindCacheWriter
+{
+  private static final Log log = LogFactory.getLog(WriteBehindCacheWriter.class);
+
+  private static WriteBehindCacheWriter instance;
+
+  private final Configuration conf;
+  private final long maxPendingBytes;
+  private final ListeningExecutorService writeService;
+  private final AtomicLong pendingBytes = new AtomicLong();
+  private final AtomicLong writtenBytes = new AtomicLong();
+  private final AtomicLong synchronousFallbacks = new AtomicLong();
+
+  @VisibleForTesting
+  WriteBehindCacheWriter(Configuration conf, long maxPendingBytes, ListeningExecutorService writeService)
+  {
+    this.conf = conf;
+    this.maxPendingBytes = maxPendingBytes;
+    this.writeService = writeService;
+  }
+
+  public static synchronized WriteBehindCacheWriter getInstance(Configuration conf)
+  {
+    if (instance == null) {
+      ListeningExecutorService writeService = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(
+          CacheConfig.getWriteBehindThreads(conf),
+          new ThreadFactoryBuilder()
+              .setThreadFactory(threadsNamed("rubix-writeBehind-thread-%s"))
+              .setDaemon(true)
+              .build()));
+      instance = new WriteBehindCacheWriter(conf, CacheConfig.getWriteBehindMaxMemory(conf), writeService);
+    }
+    return instance;
+  }
+
+  /**
+   * Reserves staging memory for `size` bytes to be written to `localPath`.
+   *
+   * @return the batch to stage the data in, or null if there is not enough memory left
+   */
+  public WriteBatch newBatch(String localPath, long size)
+  {
+    while (true) {
+      long pending = pendingBytes.get();
+      if (pending + size > maxPendingBytes) {
+        synchronousFallbacks.incrementAndGet();
+        log.debug(String.format("Write behind queue full with %d bytes, writing %d bytes of %s synchronously", pending, size, localPath));
+        return null;
+      }
+      if (pendingBytes.compareAndSet(pending, pending + size)) {
+        return new WriteBatch(localPath, size);
+      }
+    }
+  }
+
+  /**
+   * Writes the staged data of the batch. The returned future completes once all of it is on disk.
+   */
+  public ListenableFuture<?> submit(final WriteBatch batch)
+  {
+    return writeService.submit(() -> {
+      try {
+        batch.write();
+      }
+      finally {
+        batch.discard();
+      }
+      return null;
+    });
+  }
+
+  public long getPendingBytes()
+  {
+    return pendingBytes.get();
+  }
+
+  public long getWrittenBytes()
+  {
+    return writtenBytes.get();
+  }
+
+  public long getSynchronousFallbacks()
+  {
+    return synchronousFallbacks.get();
+  }
+
+  public class WriteBatch
+  {
+    private final String localPath;
+    private final long reservedBytes;
+    private final List<ByteBuffer> buffers = new ArrayList<>();
+    private final List<Long> positions = new ArrayList<>();
+    private long allocatedBytes;
+    private boolean discarded;
+
+    private WriteBatch(String localPath, long reservedBytes)
+    {
+      this.localPath = localPath;
+      this.reservedBytes = reservedBytes;
+    }
+
+    /**
+     * Returns a buffer for `length` bytes to be written at `position` of the local file. The buffer has to be
+     * filled completely before the batch is submitted.
+     */
+    public ByteBuffer allocate(long position, int length)
+    {
+      checkState(allocatedBytes + length <= reservedBytes, "Allocating more than reserved for " + localPath);
+      allocatedBytes += length;
+      ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+      buffers.add(buffer);
+      positions.add(position);
+      return buffer;
+    }
+
+    private void write()
+        throws IOException
+    {
+      IoThrottle ioThrottle = IoThrottle.getInstance(conf);
+      DiskIoScheduler diskIoScheduler = DiskIoScheduler.getInstance(conf);
+      CachedFileChannel cachedFileChannel = FileChannelCache.open(conf, localPath);
+      try {
+        FileChannel fileChannel = cachedFileChannel.getChannel();
+        for (int i = 0; i < buffers.size(); i++) {
+          ByteBuffer buffer = buffers.get(i);
+          buffer.flip();
+          ioThrottle.acquireDiskWrite(Traffic.FOREGROUND, buffer.remaining());
+          long position = positions.get(i);
+          int written = 0;
+          try (Slot slot = diskIoScheduler.acquire(localPath, Priority.READ_THROUGH_WRITE)) {
+            while (buffer.hasRemaining()) {
+              written += fileChannel.write(buffer, position + written);
+            }
+          }
+          writtenBytes.addAndGet(written);
+        }
+      }
+      finally {
+        cachedFileChannel.release();
+      }
+    }
+
+    /**
+     * Gives back the staging memory, called when the batch is not going to be submitted. The buffers returned
+     * by allocate must not be used afterwards.
+     */
+    public synchronized void discard()
+    {
+      if (discarded) {
+        return;
+      }
+      discarded = true;
+      for (ByteBuffer buffer : buffers) {
+        DirectBuffers.free(buffer);
+      }
+      buffers.clear();
+      positions.clear();
+      pendingBytes.addAndGet(-reservedBytes);
+    }
+  }
+}
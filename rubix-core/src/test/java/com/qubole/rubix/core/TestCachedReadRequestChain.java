@@ -12,6 +12,9 @@
  */
 package com.qubole.rubix.core;
 
+import com.qubole.rubix.common.cache.BlockChecksums;
+import com.qubole.rubix.common.cache.FileChannelCache;
+import com.qubole.rubix.common.cache.MappedFileCache;
 import com.qubole.rubix.common.utils.DataGen;
 import com.qubole.rubix.common.utils.TestUtil;
 import com.qubole.rubix.spi.BookKeeperFactory;
@@ -29,7 +32,11 @@ import org.testng.annotations.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 
 import static com.qubole.rubix.spi.CacheUtil.UNKONWN_GENERATION_NUMBER;
 import static org.testng.Assert.assertTrue;
@@ -87,6 +94,7 @@ public class TestCachedReadRequestChain
   {
     File localFile = new File(CacheUtil.getLocalPath(backendFilePath.toString(), conf, UNKONWN_GENERATION_NUMBER + 1));
     localFile.delete();
+    MappedFileCache.invalidateMapping(localFile.getPath());
 
     backendFile.delete();
 
@@ -182,6 +190,167 @@ public class TestCachedReadRequestChain
     assertTrue(stats.getDirectRRCDataRead() == 1000, "Data read from object store didn't match");
   }
 
+  @Test
+  public void testCachedRead_IntoDirectByteBuffer() throws IOException
+  {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(1010);
+    CachedReadRequestChain cachedReadRequestChain = getCachedReadRequestChain(buffer, 10);
+
+    cachedReadRequestChain.lock();
+    long readSize = cachedReadRequestChain.call();
+
+    ReadRequestChainStats stats = cachedReadRequestChain.getStats();
+
+    assertTrue(readSize == 1000, "Wrong amount of data read " + readSize);
+    assertTrue(buffer.position() == 0, "Position of destination buffer should not change");
+    String output = getContent(buffer, 10);
+    String expectedOutput = DataGen.getExpectedOutput(readSize);
+    assertTrue(expectedOutput.equals(output), "Wrong data read, expected\n" + expectedOutput + "\nBut got\n" + output);
+    assertTrue(stats.getCachedRRCDataRead() == readSize, "All data should be read from cache");
+  }
+
+  @Test
+  public void testCachedRead_IntoByteBufferWithNoLocalCachedFile() throws IOException
+  {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(1010);
+    String localCachedFile = CacheUtil.getLocalPath(backendFilePath.toString(), conf, UNKONWN_GENERATION_NUMBER + 1);
+
+    CachedReadRequestChain cachedReadRequestChain = getCachedReadRequestChain(buffer, 10);
+
+    File localFile = new File(localCachedFile);
+    localFile.delete();
+
+    cachedReadRequestChain.lock();
+    long readSize = cachedReadRequestChain.call();
+
+    ReadRequestChainStats stats = cachedReadRequestChain.getStats();
+
+    assertTrue(readSize == 1000, "Wrong amount of data read " + readSize);
+    String output = getContent(buffer, 10);
+    String expectedOutput = DataGen.getExpectedOutput(readSize);
+    assertTrue(expectedOutput.equals(output), "Wrong data read, expected\n" + expectedOutput + "\nBut got\n" + output);
+    assertTrue(stats.getDirectRRCDataRead() == readSize, "All data should be read from object store");
+  }
+
+  @Test
+  public void testCachedRead_WithMmap() throws IOException
+  {
+    CacheConfig.setMmapReadEnabled(conf, true);
+    byte[] buffer = new byte[1000];
+    CachedReadRequestChain cachedReadRequestChain = getCachedReadRequestChain(buffer);
+
+    cachedReadRequestChain.lock();
+    long readSize = cachedReadRequestChain.call();
+
+    ReadRequestChainStats stats = cachedReadRequestChain.getStats();
+
+    assertTrue(readSize == 1000, "Wrong amount of data read " + readSize);
+    String output = new String(buffer, Charset.defaultCharset());
+    String expectedOutput = DataGen.getExpectedOutput(readSize);
+    assertTrue(expectedOutput.equals(output), "Wrong data read, expected\n" + expectedOutput + "\nBut got\n" + output);
+    assertTrue(stats.getCachedRRCDataRead() == readSize, "All data should be read from cache");
+    assertTrue(stats.getDirectRRCDataRead() == 0, "No data should be read from object store");
+  }
+
+  @Test
+  public void testCachedRead_WithMmapIntoDirectByteBuffer() throws IOException
+  {
+    CacheConfig.setMmapReadEnabled(conf, true);
+    ByteBuffer buffer = ByteBuffer.allocateDirect(1010);
+    CachedReadRequestChain cachedReadRequestChain = getCachedReadRequestChain(buffer, 10);
+
+    cachedReadRequestChain.lock();
+    long readSize = cachedReadRequestChain.call();
+
+    ReadRequestChainStats stats = cachedReadRequestChain.getStats();
+
+    assertTrue(readSize == 1000, "Wrong amount of data read " + readSize);
+    String output = getContent(buffer, 10);
+    String expectedOutput = DataGen.getExpectedOutput(readSize);
+    assertTrue(expectedOutput.equals(output), "Wrong data read, expected\n" + expectedOutput + "\nBut got\n" + output);
+    assertTrue(stats.getCachedRRCDataRead() == readSize, "All data should be read from cache");
+  }
+
+  @Test
+  public void testCachedRead_WithMmapAndCorruptedLocalCachedFile() throws IOException
+  {
+    CacheConfig.setMmapReadEnabled(conf, true);
+    byte[] buffer = new byte[1000];
+    String localCachedFile = CacheUtil.getLocalPath(backendFilePath.toString(), conf, UNKONWN_GENERATION_NUMBER + 1);
+
+    CachedReadRequestChain cachedReadRequestChain = getCachedReadRequestChain(buffer);
+
+    DataGen.truncateFile(localCachedFile, 1800);
+
+    cachedReadRequestChain.lock();
+    long readSize = cachedReadRequestChain.call();
+
+    ReadRequestChainStats stats = cachedReadRequestChain.getStats();
+
+    assertTrue(readSize == 1000, "Wrong amount of data read " + readSize);
+    String output = new String(buffer, Charset.defaultCharset());
+    String expectedOutput = DataGen.getExpectedOutput(readSize);
+    assertTrue(expectedOutput.equals(output), "Wrong data read, expected\n" + expectedOutput + "\nBut got\n" + output);
+    assertTrue(stats.getCachedRRCDataRead() == 0, "No data should be read from cache");
+    assertTrue(stats.getDirectRRCDataRead() == 1000, "Data read from object store didn't match");
+  }
+
+  @Test
+  public void testCachedRead_WithChecksumsAndCorruptedBlock() throws IOException
+  {
+    CacheConfig.setBlockChecksumEnabled(conf, true);
+    CacheConfig.setBlockSize(conf, 100);
+    byte[] buffer = new byte[1000];
+    String remotePath = backendFilePath.toString();
+    String localCachedFile = CacheUtil.getLocalPath(remotePath, conf, UNKONWN_GENERATION_NUMBER + 1);
+    String mdFile = CacheUtil.getMetadataFilePath(remotePath, conf, UNKONWN_GENERATION_NUMBER + 1);
+    new File(mdFile).createNewFile();
+    BlockChecksums.forFile(remotePath, backendFile.length(), 100, UNKONWN_GENERATION_NUMBER + 1, conf)
+        .write(0, ByteBuffer.wrap(Files.readAllBytes(Paths.get(localCachedFile))));
+    try (RandomAccessFile file = new RandomAccessFile(localCachedFile, "rw")) {
+      file.seek(250);
+      file.write('#');
+    }
+
+    CachedReadRequestChain cachedReadRequestChain = getCachedReadRequestChain(buffer);
+    cachedReadRequestChain.lock();
+    long readSize = cachedReadRequestChain.call();
+
+    ReadRequestChainStats stats = cachedReadRequestChain.getStats();
+    FileChannelCache.invalidateChannel(mdFile);
+    new File(mdFile).delete();
+
+    assertTrue(readSize == 1000, "Wrong amount of data read " + readSize);
+    String output = new String(buffer, Charset.defaultCharset());
+    String expectedOutput = DataGen.getExpectedOutput(readSize);
+    assertTrue(expectedOutput.equals(output), "Wrong data read, expected\n" + expectedOutput + "\nBut got\n" + output);
+    assertTrue(stats.getCachedRRCDataRead() == 900, "Data of the blocks not corrupted should be read from cache");
+    assertTrue(stats.getDirectRRCDataRead() == 100, "Only the request over the corrupted block should be read from object store");
+  }
+
+  private String getContent(ByteBuffer buffer, int offset)
+  {
+    byte[] content = new byte[buffer.capacity() - offset];
+    ByteBuffer source = buffer.duplicate();
+    source.position(offset);
+    source.get(content);
+    return new String(content, Charset.defaultCharset());
+  }
+
+  private CachedReadRequestChain getCachedReadRequestChain(ByteBuffer buffer, int offset) throws IOException
+  {
+    MockCachingFileSystem fs = new MockCachingFileSystem();
+    fs.initialize(backendFilePath.toUri(), conf);
+
+    CachedReadRequestChain cachedReadRequestChain = new CachedReadRequestChain(fs.getRemoteFileSystem(), backendFilePath.toString(), conf, factory, UNKONWN_GENERATION_NUMBER + 1);
+    for (ReadRequest rr : getReadRequests(null)) {
+      rr.setDestByteBuffer(buffer);
+      rr.setDestBufferOffset(rr.getDestBufferOffset() + offset);
+      cachedReadRequestChain.addReadRequest(rr);
+    }
+    return cachedReadRequestChain;
+  }
+
   private CachedReadRequestChain getCachedReadRequestChain(byte[] buffer) throws IOException
   {
     MockCachingFileSystem fs = new MockCachingFileSystem();
@@ -0,0 +1,169 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.core;
+
+import com.google.common.collect.ImmutableList;
+import com.qubole.rubix.common.utils.DataGen;
+import com.qubole.rubix.spi.CacheConfig;
+import com.qubole.rubix.spi.ClusterType;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+
+public class TestCachingBufferedFSInputStream
+{
+  private static final String TEST_FILE = System.getProperty("java.io.tmpdir") + "/TestCachingBufferedFSInputStream";
+  private static final int MIN_BUFFER_SIZE = 10;
+  private static final int MAX_BUFFER_SIZE = 40;
+
+  private RecordingInputStream recordingInputStream;
+  private CachingBufferedFSInputStream inputStream;
+
+  @BeforeMethod
+  public void setup()
+      throws IOException
+  {
+    DataGen.populateFile(TEST_FILE);
+
+    Configuration conf = new Configuration();
+    CacheConfig.setFileStalenessCheck(conf, true);
+    FileSystem localFileSystem = new RawLocalFileSystem();
+    localFileSystem.initialize(new Path(TEST_FILE).toUri(), conf);
+
+    recordingInputStream = new RecordingInputStream(new Path("file://" + TEST_FILE), conf, localFileSystem);
+    inputStream = new CachingBufferedFSInputStream(recordingInputStream, MIN_BUFFER_SIZE, MAX_BUFFER_SIZE);
+  }
+
+  @AfterMethod
+  public void cleanup()
+      throws IOException
+  {
+    inputStream.close();
+    new File(TEST_FILE).delete();
+  }
+
+  @Test
+  public void testBufferGrowsOnSequentialReads()
+      throws IOException
+  {
+    byte[] buffer = new byte[5];
+    StringBuilder output = new StringBuilder();
+    for (int i = 0; i < 30; i++) {
+      int read = inputStream.read(buffer, 0, buffer.length);
+      output.append(new String(buffer, 0, read, Charset.defaultCharset()));
+    }
+
+    assertEquals(output.toString(), getContent(0, 150));
+    assertEquals(recordingInputStream.reads.subList(0, 4), ImmutableList.of(10, 20, 40, 40), "Buffer should double up to max size on sequential fills");
+  }
+
+  @Test
+  public void testBufferResetsOnRandomReads()
+      throws IOException
+  {
+    byte[] buffer = new byte[5];
+    for (int i = 0; i < 6; i++) {
+      inputStream.read(buffer, 0, buffer.length);
+    }
+    assertEquals(inputStream.getFillSize(), 20);
+
+    inputStream.seek(1000);
+    inputStream.read(buffer, 0, buffer.length);
+    assertEquals(inputStream.getFillSize(), MIN_BUFFER_SIZE, "Buffer should shrink after a seek");
+    assertEquals(new String(buffer, Charset.defaultCharset()), getContent(1000, 1005));
+
+    // Seek back into the buffered range is served without reading the stream
+    int reads = recordingInputStream.reads.size();
+    inputStream.seek(1002);
+    inputStream.read(buffer, 0, 3);
+    assertEquals(recordingInputStream.reads.size(), reads);
+    assertEquals(new String(buffer, 0, 3, Charset.defaultCharset()), getContent(1002, 1005));
+  }
+
+  @Test
+  public void testLargeReadBypassesBuffer()
+      throws IOException
+  {
+    byte[] buffer = new byte[100];
+    int read = inputStream.read(buffer, 0, buffer.length);
+
+    assertEquals(read, 100);
+    assertEquals(recordingInputStream.reads, ImmutableList.of(100), "Large read should go straight to the destination buffer");
+    assertEquals(new String(buffer, Charset.defaultCharset()), getContent(0, 100));
+
+    ByteBuffer byteBuffer = ByteBuffer.allocate(5);
+    inputStream.read(byteBuffer);
+    assertEquals(new String(byteBuffer.array(), Charset.defaultCharset()), getContent(100, 105));
+    assertEquals(inputStream.getPos(), 105);
+  }
+
+  private static String getContent(int start, int end)
+      throws IOException
+  {
+    byte[] content = Files.readAllBytes(Paths.get(TEST_FILE));
+    return new String(content, start, end - start, Charset.defaultCharset());
+  }
+
+  /**
+   * Reads straight from the file and records the length of every read issued by the buffering layer
+   */
+  private static class RecordingInputStream extends CachingInputStream
+  {
+    private final List<Integer> reads = new ArrayList<>();
+
+    RecordingInputStream(Path path, Configuration conf, FileSystem remoteFileSystem)
+        throws IOException
+    {
+      super(path, conf, null, ClusterType.TEST_CLUSTER_MANAGER, null, remoteFileSystem, 1024, null);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length)
+        throws IOException
+    {
+      reads.add(length);
+      int read = getParentDataInputStream().read(getPos(), buffer, offset, length);
+      if (read > 0) {
+        seek(getPos() + read);
+      }
+      return read;
+    }
+
+    @Override
+    public int read(ByteBuffer buffer)
+        throws IOException
+    {
+      byte[] bytes = new byte[buffer.remaining()];
+      int read = read(bytes, 0, bytes.length);
+      if (read > 0) {
+        buffer.put(bytes, 0, read);
+      }
+      return read;
+    }
+  }
+}
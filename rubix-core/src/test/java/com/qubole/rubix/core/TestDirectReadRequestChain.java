@@ -0,0 +1,133 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.core;
+
+import com.qubole.rubix.common.utils.DataGen;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSInputStream;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+
+import static org.testng.Assert.assertEquals;
+
+public class TestDirectReadRequestChain
+{
+  private static final String BACKEND_FILE_NAME = "/tmp/testDirectReadRequestChainBackendFile";
+
+  private CountingInputStream backendStream;
+
+  @BeforeMethod
+  public void setup()
+      throws IOException
+  {
+    DataGen.populateFile(BACKEND_FILE_NAME);
+    backendStream = new CountingInputStream(new RandomAccessFile(BACKEND_FILE_NAME, "r"));
+  }
+
+  @AfterMethod
+  public void cleanup()
+      throws IOException
+  {
+    backendStream.close();
+    new File(BACKEND_FILE_NAME).delete();
+  }
+
+  @Test
+  public void testRequestsCoalescedAcrossGaps()
+      throws Exception
+  {
+    long fileSize = new File(BACKEND_FILE_NAME).length();
+    byte[] buffer = new byte[300];
+    DirectReadRequestChain chain = new DirectReadRequestChain(new FSDataInputStream(backendStream));
+    chain.setCoalescing(100, 1024);
+    chain.addReadRequest(new ReadRequest(0, 100, 0, 100, buffer, 0, fileSize));
+    chain.addReadRequest(new ReadRequest(150, 250, 150, 250, buffer, 100, fileSize));
+    // Too far from the previous request
+    chain.addReadRequest(new ReadRequest(1000, 1100, 1000, 1100, buffer, 200, fileSize));
+    chain.lock();
+
+    assertEquals(chain.call().longValue(), 300);
+
+    String generatedTestData = DataGen.generateContent();
+    String expectedBufferOutput = generatedTestData.substring(0, 100) + generatedTestData.substring(150, 250) + generatedTestData.substring(1000, 1100);
+    assertEquals(new String(buffer, Charset.defaultCharset()), expectedBufferOutput);
+    assertEquals(backendStream.positionalReads, 2, "Requests within the gap should be read at once");
+  }
+
+  private static class CountingInputStream
+      extends FSInputStream
+  {
+    private final RandomAccessFile file;
+    private int positionalReads;
+
+    CountingInputStream(RandomAccessFile file)
+    {
+      this.file = file;
+    }
+
+    @Override
+    public void readFully(long position, byte[] buffer, int offset, int length)
+        throws IOException
+    {
+      positionalReads++;
+      super.readFully(position, buffer, offset, length);
+    }
+
+    @Override
+    public void seek(long pos)
+        throws IOException
+    {
+      file.seek(pos);
+    }
+
+    @Override
+    public long getPos()
+        throws IOException
+    {
+      return file.getFilePointer();
+    }
+
+    @Override
+    public boolean seekToNewSource(long targetPos)
+    {
+      return false;
+    }
+
+    @Override
+    public int read()
+        throws IOException
+    {
+      return file.read();
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length)
+        throws IOException
+    {
+      return file.read(buffer, offset, length);
+    }
+
+    @Override
+    public void close()
+        throws IOException
+    {
+      file.close();
+    }
+  }
+}
@@ -0,0 +1,228 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.core;
+
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.qubole.rubix.core.HedgedReader.LatencyTracker;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Arrays.copyOfRange;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TestHedgedReader
+{
+  private static final String TEST_FILE = System.getProperty("java.io.tmpdir") + "/TestHedgedReader";
+  private static final int FILE_SIZE = 1000;
+  private static final long STALL_MILLIS = 2000;
+
+  private final byte[] data = new byte[FILE_SIZE];
+  private ListeningExecutorService executor;
+  private FileSystem localFileSystem;
+
+  @BeforeClass
+  public void setupClass()
+      throws IOException
+  {
+    executor = MoreExecutors.listeningDecorator(Executors.newCachedThreadPool());
+    localFileSystem = FileSystem.getLocal(new Configuration());
+  }
+
+  @AfterClass
+  public void tearDownClass()
+  {
+    executor.shutdownNow();
+  }
+
+  @BeforeMethod
+  public void setup()
+      throws IOException
+  {
+    for (int i = 0; i < FILE_SIZE; i++) {
+      data[i] = (byte) i;
+    }
+    try (RandomAccessFile file = new RandomAccessFile(TEST_FILE, "rw")) {
+      file.write(data);
+    }
+  }
+
+  @AfterMethod
+  public void cleanup()
+  {
+    new File(TEST_FILE).delete();
+  }
+
+  @Test
+  public void testThresholdFromPercentile()
+  {
+    LatencyTracker latencyTracker = new LatencyTracker(90, 0, 100);
+    assertEquals(latencyTracker.startRead(1000), -1, "Reads should not be hedged before enough latencies are known");
+
+    for (int i = 1; i <= 320; i++) {
+      latencyTracker.record(1000, TimeUnit.MILLISECONDS.toNanos(i % 10 + 1));
+    }
+    assertEquals(latencyTracker.getThresholdNanos(1000), TimeUnit.MILLISECONDS.toNanos(9));
+    assertEquals(latencyTracker.startRead(1000), TimeUnit.MILLISECONDS.toNanos(9));
+
+    latencyTracker = new LatencyTracker(90, 50, 100);
+    for (int i = 1; i <= 320; i++) {
+      latencyTracker.record(1000, TimeUnit.MILLISECONDS.toNanos(i % 10 + 1));
+    }
+    assertEquals(latencyTracker.getThresholdNanos(1000), TimeUnit.MILLISECONDS.toNanos(50), "Threshold should not be below the minimum delay");
+  }
+
+  @Test
+  public void testThresholdPerSizeClass()
+  {
+    LatencyTracker latencyTracker = new LatencyTracker(90, 0, 100);
+    for (int i = 0; i < 32; i++) {
+      latencyTracker.record(1000, TimeUnit.MILLISECONDS.toNanos(10));
+      latencyTracker.record(8 << 20, TimeUnit.MILLISECONDS.toNanos(200));
+    }
+
+    assertEquals(latencyTracker.getThresholdNanos(60000), TimeUnit.MILLISECONDS.toNanos(10), "Small reads should share a size class");
+    assertEquals(latencyTracker.getThresholdNanos(6 << 20), TimeUnit.MILLISECONDS.toNanos(200));
+    assertEquals(latencyTracker.startRead(1 << 20), -1, "Reads of a size without latencies should not be hedged");
+  }
+
+  @Test
+  public void testStalledReadHedged()
+      throws IOException
+  {
+    long hedgedReads = HedgedReader.getHedgedReads();
+    long hedgedReadWins = HedgedReader.getHedgedReadWins();
+    HedgedReader hedgedReader = createHedgedReader(100);
+
+    long start = System.currentTimeMillis();
+    ByteBuffer destination = ByteBuffer.allocate(300);
+    hedgedReader.readFully(200, destination);
+    assertTrue(System.currentTimeMillis() - start < STALL_MILLIS, "Hedge should complete before the stalled read");
+    assertEquals(destination.array(), copyOfRange(data, 200, 500));
+    assertEquals(HedgedReader.getHedgedReads(), hedgedReads + 1);
+    assertEquals(HedgedReader.getHedgedReadWins(), hedgedReadWins + 1);
+
+    start = System.currentTimeMillis();
+    destination = ByteBuffer.allocate(100);
+    hedgedReader.readFully(900, destination);
+    assertTrue(System.currentTimeMillis() - start < STALL_MILLIS, "Next reads should go to the stream of the hedge");
+    assertEquals(destination.array(), copyOfRange(data, 900, 1000));
+    hedgedReader.close();
+  }
+
+  @Test
+  public void testHedgesCappedByBudget()
+      throws IOException
+  {
+    long hedgedReads = HedgedReader.getHedgedReads();
+    HedgedReader hedgedReader = createHedgedReader(0);
+
+    long start = System.currentTimeMillis();
+    ByteBuffer destination = ByteBuffer.allocate(300);
+    hedgedReader.readFully(200, destination);
+    assertTrue(System.currentTimeMillis() - start >= STALL_MILLIS, "Read should wait for the stalled read without budget");
+    assertEquals(destination.array(), copyOfRange(data, 200, 500));
+    assertEquals(HedgedReader.getHedgedReads(), hedgedReads);
+    hedgedReader.close();
+  }
+
+  private HedgedReader createHedgedReader(int budgetPercent)
+      throws IOException
+  {
+    LatencyTracker latencyTracker = new LatencyTracker(95, 0, budgetPercent);
+    for (int i = 0; i < 32; i++) {
+      latencyTracker.record(100, TimeUnit.MILLISECONDS.toNanos(10));
+    }
+    FSDataInputStream stalledStream = new FSDataInputStream(new StalledInputStream(TEST_FILE));
+    return new HedgedReader(localFileSystem, new Path(TEST_FILE), stalledStream, latencyTracker, executor);
+  }
+
+  // Stalls every positional read, like a stream of an object store with a stuck connection
+  private static class StalledInputStream
+      extends FSInputStream
+  {
+    private final RandomAccessFile file;
+
+    StalledInputStream(String path)
+        throws IOException
+    {
+      this.file = new RandomAccessFile(path, "r");
+    }
+
+    @Override
+    public int read(long position, byte[] buffer, int offset, int length)
+        throws IOException
+    {
+      try {
+        Thread.sleep(STALL_MILLIS);
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      synchronized (this) {
+        file.seek(position);
+        return file.read(buffer, offset, length);
+      }
+    }
+
+    @Override
+    public synchronized void seek(long pos)
+        throws IOException
+    {
+      file.seek(pos);
+    }
+
+    @Override
+    public synchronized long getPos()
+        throws IOException
+    {
+      return file.getFilePointer();
+    }
+
+    @Override
+    public boolean seekToNewSource(long targetPos)
+    {
+      return false;
+    }
+
+    @Override
+    public synchronized int read()
+        throws IOException
+    {
+      return file.read();
+    }
+
+    @Override
+    public void close()
+        throws IOException
+    {
+      file.close();
+    }
+  }
+}
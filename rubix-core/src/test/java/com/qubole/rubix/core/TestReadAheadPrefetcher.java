@@ -0,0 +1,113 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.core;
+
+import com.google.common.collect.Range;
+import com.qubole.rubix.spi.CacheConfig;
+import com.qubole.rubix.spi.ClusterType;
+import org.apache.hadoop.conf.Configuration;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class TestReadAheadPrefetcher
+{
+  private static final int BLOCK_SIZE = 100;
+  private static final long FILE_SIZE = 100 * BLOCK_SIZE;
+
+  private CachingFileSystemStatsProvider stats;
+  private ReadAheadPrefetcher prefetcher;
+
+  @BeforeMethod
+  public void setUp()
+  {
+    Configuration conf = new Configuration();
+    CacheConfig.setBlockSize(conf, BLOCK_SIZE);
+    CacheConfig.setReadAheadInitialBlocks(conf, 2);
+    CacheConfig.setReadAheadMaxBlocks(conf, 8);
+    stats = new CachingFileSystemStatsProvider();
+    prefetcher = new ReadAheadPrefetcher("file:///tmp/readahead", FILE_SIZE, 1000, conf, ClusterType.TEST_CLUSTER_MANAGER,
+        null, null, stats);
+  }
+
+  @Test
+  public void testSequentialDetection()
+  {
+    SequentialAccessDetector detector = new SequentialAccessDetector(2, 10);
+    assertFalse(detector.recordRead(0, 100));
+    assertFalse(detector.recordRead(100, 100));
+    assertTrue(detector.recordRead(205, 100), "Small forward skip should continue the sequential run");
+    assertFalse(detector.recordRead(1000, 100), "Large jump should reset the sequential run");
+    assertEquals(detector.getSequentialReads(), 0);
+    assertFalse(detector.recordRead(0, 100), "Backward seek should reset the sequential run");
+  }
+
+  @Test
+  public void testReadAheadAfterSequentialReads()
+  {
+    assertNull(prefetcher.recordRead(0, BLOCK_SIZE));
+    assertNull(prefetcher.recordRead(BLOCK_SIZE, BLOCK_SIZE));
+    Range<Long> blocks = prefetcher.recordRead(2 * BLOCK_SIZE, BLOCK_SIZE);
+    assertEquals(blocks, Range.closedOpen(3L, 5L), "Should warm up initial window after the last read block");
+  }
+
+  @Test
+  public void testReadAheadStopsAtEndOfFile()
+  {
+    prefetcher.recordRead(FILE_SIZE - 4 * BLOCK_SIZE, BLOCK_SIZE);
+    prefetcher.recordRead(FILE_SIZE - 3 * BLOCK_SIZE, BLOCK_SIZE);
+    assertEquals(prefetcher.recordRead(FILE_SIZE - 2 * BLOCK_SIZE, BLOCK_SIZE), Range.closedOpen(99L, 100L));
+    prefetcher.setNextBlockToPrefetch(100);
+    assertNull(prefetcher.recordRead(FILE_SIZE - BLOCK_SIZE, BLOCK_SIZE));
+  }
+
+  @Test
+  public void testWindowGrowsOnHitsAndResetsOnRandomAccess()
+  {
+    prefetcher.recordRead(0, BLOCK_SIZE);
+    prefetcher.recordRead(BLOCK_SIZE, BLOCK_SIZE);
+    prefetcher.recordRead(2 * BLOCK_SIZE, BLOCK_SIZE);
+    prefetcher.setNextBlockToPrefetch(5);
+    prefetcher.markPrefetched(3 * BLOCK_SIZE, 5 * BLOCK_SIZE);
+
+    prefetcher.recordRead(3 * BLOCK_SIZE, BLOCK_SIZE);
+    assertEquals(prefetcher.getWindow(), 4);
+    Range<Long> blocks = prefetcher.recordRead(4 * BLOCK_SIZE, BLOCK_SIZE);
+    assertEquals(prefetcher.getWindow(), 8);
+    assertEquals(blocks, Range.closedOpen(5L, 13L));
+    prefetcher.setNextBlockToPrefetch(13);
+    prefetcher.recordRead(5 * BLOCK_SIZE, BLOCK_SIZE);
+    prefetcher.recordRead(6 * BLOCK_SIZE, BLOCK_SIZE);
+    assertEquals(prefetcher.getWindow(), 8, "Window should be capped at max blocks");
+
+    assertEquals(stats.getStats().getReadAheadHitData(), 2 * BLOCK_SIZE);
+
+    assertNull(prefetcher.recordRead(50 * BLOCK_SIZE, BLOCK_SIZE));
+    assertEquals(prefetcher.getWindow(), 2, "Random access should reset the window");
+  }
+
+  @Test
+  public void testWastedDataReportedOnClose()
+  {
+    prefetcher.markPrefetched(3 * BLOCK_SIZE, 7 * BLOCK_SIZE);
+    prefetcher.recordRead(3 * BLOCK_SIZE, BLOCK_SIZE / 2);
+    prefetcher.close();
+
+    assertEquals(stats.getStats().getReadAheadHitData(), BLOCK_SIZE / 2);
+    assertEquals(stats.getStats().getReadAheadWastedData(), 3 * BLOCK_SIZE + BLOCK_SIZE / 2);
+  }
+}
@@ -78,4 +78,33 @@ public class TestReadRequestChain
       idx++;
     }
   }
+
+  @Test
+  public void testCoalescedRuns()
+  {
+    ReadRequest rr1 = new ReadRequest(0, 1024, 0, 1024, null, 0, 8192);
+    ReadRequest rr2 = new ReadRequest(2048, 3072, 2048, 3072, null, 1024, 8192);
+    ReadRequest rr3 = new ReadRequest(3072, 4096, 3072, 3500, null, 2048, 8192);
+    ReadRequest rr4 = new ReadRequest(6144, 7168, 6144, 7168, null, 2476, 8192);
+    ReadRequest rr5 = new ReadRequest(7168 + 512, 8192, 7168 + 512, 8192, null, 3500, 8192);
+
+    CachedReadRequestChain chain = new CachedReadRequestChain();
+    chain.setCoalescing(1024, 4096);
+    chain.addReadRequest(rr1);
+    chain.addReadRequest(rr2);
+    chain.addReadRequest(rr3);
+    chain.addReadRequest(rr4);
+    chain.addReadRequest(rr5);
+    chain.lock();
+
+    // rr2 and rr3 touch so they are merged into one request, rr4 is too far from it
+    List<List<ReadRequest>> runs = chain.getCoalescedRuns(true);
+    assertEquals(runs.size(), 2);
+    assertEquals(runs.get(0).size(), 2, "Requests within the gap should be coalesced");
+    assertEquals(runs.get(0).get(1).getBackendReadEnd(), 4096);
+    assertEquals(runs.get(1).size(), 2);
+
+    chain.setCoalescing(1024, 3072);
+    assertEquals(chain.getCoalescedRuns(true).size(), 3, "Runs should not grow beyond the max size");
+  }
 }
@@ -0,0 +1,128 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.core;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+
+import static com.qubole.rubix.spi.CacheUtil.UNKONWN_GENERATION_NUMBER;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+
+public class TestReadRequestChainExecutor
+{
+  private ListeningExecutorService cachedReadService;
+  private ListeningExecutorService remoteReadService;
+
+  @BeforeMethod
+  public void setup()
+  {
+    cachedReadService = MoreExecutors.listeningDecorator(Executors.newSingleThreadExecutor());
+    remoteReadService = MoreExecutors.listeningDecorator(Executors.newSingleThreadExecutor());
+  }
+
+  @AfterMethod
+  public void cleanup()
+  {
+    cachedReadService.shutdownNow();
+    remoteReadService.shutdownNow();
+  }
+
+  @Test
+  public void testChainsRoutedByType()
+      throws Exception
+  {
+    ReadRequestChainExecutor executor = new ReadRequestChainExecutor(cachedReadService, remoteReadService, false);
+    List<ListenableFuture<Long>> futures = executor.submit(ImmutableList.of(new CachedReadRequestChain(), new TestChain(10)));
+
+    assertEquals(futures.get(0).get(), Long.valueOf(0));
+    assertEquals(futures.get(1).get(), Long.valueOf(10));
+    assertEquals(executor.getCachedQueueTimeStats().getTasks(), 1);
+    assertEquals(executor.getRemoteQueueTimeStats().getTasks(), 1);
+  }
+
+  @Test
+  public void testCallerRunsSingleChain()
+      throws Exception
+  {
+    ReadRequestChainExecutor executor = new ReadRequestChainExecutor(cachedReadService, remoteReadService, true);
+
+    TestChain chain = new TestChain(10);
+    assertEquals(executor.submit(ImmutableList.<ReadRequestChain>of(chain)).get(0).get(), Long.valueOf(10));
+    assertSame(chain.executingThread, Thread.currentThread(), "Single chain should run in the calling thread");
+
+    TestChain first = new TestChain(10);
+    TestChain second = new TestChain(20);
+    for (ListenableFuture<Long> future : executor.submit(ImmutableList.<ReadRequestChain>of(first, second))) {
+      future.get();
+    }
+    assertNotSame(first.executingThread, Thread.currentThread(), "Multiple chains should run in the pool");
+    assertEquals(executor.getRemoteQueueTimeStats().getTasks(), 2);
+  }
+
+  @Test(expectedExceptions = ExecutionException.class)
+  public void testCallerRunsFailureSurfacesOnGet()
+      throws Exception
+  {
+    ReadRequestChainExecutor executor = new ReadRequestChainExecutor(cachedReadService, remoteReadService, true);
+    ReadRequestChain chain = new TestChain(10)
+    {
+      @Override
+      public Long call()
+          throws IOException
+      {
+        throw new IOException("Failed read");
+      }
+    };
+
+    executor.submit(ImmutableList.of(chain)).get(0).get();
+  }
+
+  private static class TestChain
+      extends ReadRequestChain
+  {
+    private final long bytes;
+    private volatile Thread executingThread;
+
+    TestChain(long bytes)
+    {
+      super(UNKONWN_GENERATION_NUMBER);
+      this.bytes = bytes;
+    }
+
+    @Override
+    public Long call()
+        throws IOException
+    {
+      executingThread = Thread.currentThread();
+      return bytes;
+    }
+
+    @Override
+    public ReadRequestChainStats getStats()
+    {
+      return new ReadRequestChainStats();
+    }
+  }
+}
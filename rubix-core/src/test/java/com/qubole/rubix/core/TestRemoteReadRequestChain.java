@@ -12,6 +12,7 @@
  */
 package com.qubole.rubix.core;
 
+import com.qubole.rubix.common.cache.CompressedCacheFile;
 import com.qubole.rubix.common.utils.DataGen;
 import com.qubole.rubix.spi.CacheConfig;
 import com.qubole.rubix.spi.CacheUtil;
@@ -29,10 +30,15 @@ import org.testng.annotations.Test;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.file.Paths;
 
 import static com.qubole.rubix.spi.CacheUtil.UNKONWN_GENERATION_NUMBER;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
 import static org.testng.Assert.assertTrue;
 
 
@@ -174,6 +180,230 @@ public class TestRemoteReadRequestChain
         assertEquals(actualCacheOutput, expectedCacheOutput, "Wrong data read in local randomAccessFile, expected\n" + expectedCacheOutput + "\nBut got\n" + actualCacheOutput);
     }
 
+  @Test
+  public void testBlockUnalignedReadIntoByteBuffer()
+      throws IOException
+  {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(900);
+    ReadRequest[] readRequests = {
+        new ReadRequest(0, 100, 50, 100, null, 0, backendFile.length()),
+        new ReadRequest(200, 300, 200, 300, null, 50, backendFile.length()),
+        new ReadRequest(400, 500, 400, 500, null, 150, backendFile.length()),
+        new ReadRequest(600, 700, 600, 700, null, 250, backendFile.length()),
+        new ReadRequest(800, 900, 800, 900, null, 350, backendFile.length()),
+        new ReadRequest(1000, 1100, 1000, 1100, null, 450, backendFile.length()),
+        new ReadRequest(1200, 1300, 1200, 1300, null, 550, backendFile.length()),
+        new ReadRequest(1400, 1500, 1400, 1500, null, 650, backendFile.length()),
+        new ReadRequest(1600, 1700, 1600, 1700, null, 750, backendFile.length()),
+        new ReadRequest(1800, 1900, 1800, 1850, null, 850, backendFile.length())
+    };
+    for (ReadRequest rr : readRequests) {
+      rr.setDestByteBuffer(buffer);
+      remoteReadRequestChain.addReadRequest(rr);
+    }
+    remoteReadRequestChain.lock();
+
+    long readSize = remoteReadRequestChain.call();
+
+    String generatedTestData = DataGen.getExpectedOutput(1000);
+    String expectedBufferOutput = generatedTestData.substring(50, 950);
+    byte[] content = new byte[buffer.remaining()];
+    buffer.duplicate().get(content);
+    String actualBufferOutput = new String(content, Charset.defaultCharset());
+    assertEquals(readSize, expectedBufferOutput.length());
+    assertEquals(actualBufferOutput, expectedBufferOutput, "Wrong data read, expected\n" + expectedBufferOutput + "\nBut got\n" + actualBufferOutput);
+
+    verifyCachedData(generatedTestData);
+  }
+
+  @Test
+  public void testBlockUnalignedReadWithWriteBehind()
+      throws Exception
+  {
+    Configuration conf = new Configuration();
+    CacheConfig.setCacheDataDirPrefix(conf, "/tmp");
+    CacheConfig.setWriteBehindEnabled(conf, true);
+    remoteReadRequestChain = new RemoteReadRequestChain(fsDataInputStream, backendFileName, UNKONWN_GENERATION_NUMBER + 1, conf);
+
+    byte[] buffer = new byte[900];
+    ReadRequest[] readRequests = {
+        new ReadRequest(0, 100, 50, 100, buffer, 0, backendFile.length()),
+        new ReadRequest(200, 300, 200, 300, buffer, 50, backendFile.length()),
+        new ReadRequest(400, 500, 400, 500, buffer, 150, backendFile.length()),
+        new ReadRequest(600, 700, 600, 700, buffer, 250, backendFile.length()),
+        new ReadRequest(800, 900, 800, 900, buffer, 350, backendFile.length()),
+        new ReadRequest(1000, 1100, 1000, 1100, buffer, 450, backendFile.length()),
+        new ReadRequest(1200, 1300, 1200, 1300, buffer, 550, backendFile.length()),
+        new ReadRequest(1400, 1500, 1400, 1500, buffer, 650, backendFile.length()),
+        new ReadRequest(1600, 1700, 1600, 1700, buffer, 750, backendFile.length()),
+        new ReadRequest(1800, 1900, 1800, 1850, buffer, 850, backendFile.length())
+    };
+    for (ReadRequest rr : readRequests) {
+      remoteReadRequestChain.addReadRequest(rr);
+    }
+    remoteReadRequestChain.lock();
+
+    long readSize = remoteReadRequestChain.call();
+
+    String generatedTestData = DataGen.getExpectedOutput(1000);
+    String expectedBufferOutput = generatedTestData.substring(50, 950);
+    assertEquals(readSize, expectedBufferOutput.length());
+    assertEquals(new String(buffer, Charset.defaultCharset()), expectedBufferOutput);
+
+    assertNotNull(remoteReadRequestChain.getCacheWriteFuture(), "Data should be written into cache in background");
+    remoteReadRequestChain.getCacheWriteFuture().get();
+    verifyCachedData(generatedTestData);
+  }
+
+  @Test
+  public void testBlockUnalignedReadWithCompression()
+      throws Exception
+  {
+    Configuration conf = new Configuration();
+    CacheConfig.setCacheDataDirPrefix(conf, "/tmp");
+    CacheConfig.setCompressionEnabled(conf, true);
+    remoteReadRequestChain = new RemoteReadRequestChain(fsDataInputStream, backendFileName, UNKONWN_GENERATION_NUMBER + 1, conf);
+
+    byte[] buffer = new byte[300];
+    ReadRequest[] readRequests = {
+        new ReadRequest(0, 100, 50, 100, buffer, 0, backendFile.length()),
+        new ReadRequest(200, 300, 200, 300, buffer, 50, backendFile.length()),
+        new ReadRequest(400, 600, 400, 550, buffer, 150, backendFile.length())
+    };
+    for (ReadRequest rr : readRequests) {
+      remoteReadRequestChain.addReadRequest(rr);
+    }
+    remoteReadRequestChain.lock();
+
+    long readSize = remoteReadRequestChain.call();
+
+    String generatedTestData = DataGen.generateContent();
+    String expectedBufferOutput = generatedTestData.substring(50, 100) + generatedTestData.substring(200, 300) + generatedTestData.substring(400, 550);
+    assertEquals(readSize, expectedBufferOutput.length());
+    assertEquals(new String(buffer, Charset.defaultCharset()), expectedBufferOutput);
+
+    // Whole blocks are stored compressed, the blocks not read are missing
+    CompressedCacheFile compressedFile = CompressedCacheFile.forFile(backendFileName, 100, conf);
+    try (FileChannel localFile = FileChannel.open(Paths.get(localFileName))) {
+      ByteBuffer cachedData = ByteBuffer.allocate(200);
+      assertEquals(compressedFile.read(localFile, 400, cachedData), 200);
+      assertEquals(new String(cachedData.array(), Charset.defaultCharset()), generatedTestData.substring(400, 600));
+      assertEquals(compressedFile.read(localFile, 100, ByteBuffer.allocate(100)), 0);
+    }
+  }
+
+  @Test
+  public void testRequestsWithGapsReadSeparately()
+      throws Exception
+  {
+    Configuration conf = new Configuration();
+    CacheConfig.setCacheDataDirPrefix(conf, "/tmp");
+    CacheConfig.setReadCoalesceMaxGap(conf, 100);
+    remoteReadRequestChain = new RemoteReadRequestChain(fsDataInputStream, backendFileName, UNKONWN_GENERATION_NUMBER + 1, conf);
+
+    byte[] buffer = new byte[300];
+    ReadRequest[] readRequests = {
+        new ReadRequest(0, 100, 50, 100, buffer, 0, backendFile.length()),
+        new ReadRequest(200, 300, 200, 300, buffer, 50, backendFile.length()),
+        new ReadRequest(400, 600, 400, 550, buffer, 150, backendFile.length())
+    };
+    for (ReadRequest rr : readRequests) {
+      remoteReadRequestChain.addReadRequest(rr);
+    }
+    remoteReadRequestChain.lock();
+
+    long readSize = remoteReadRequestChain.call();
+
+    String generatedTestData = DataGen.generateContent();
+    String expectedBufferOutput = generatedTestData.substring(50, 100) + generatedTestData.substring(200, 300) + generatedTestData.substring(400, 550);
+    assertEquals(readSize, expectedBufferOutput.length());
+    assertEquals(new String(buffer, Charset.defaultCharset()), expectedBufferOutput);
+    assertEquals(remoteReadRequestChain.getStats().getRemoteRRCExtraDataRead(), 100, "Only prefix and suffix should be read as extra data");
+
+    // Blocks in the gaps are cached already or owned by other nodes, they are not downloaded
+    byte[] cachedData = new byte[600];
+    try (RandomAccessFile localFile = new RandomAccessFile(localFileName, "r")) {
+      localFile.readFully(cachedData);
+    }
+    String missingBlock = new String(new byte[100], Charset.defaultCharset());
+    assertEquals(new String(cachedData, 0, 100, Charset.defaultCharset()), generatedTestData.substring(0, 100));
+    assertEquals(new String(cachedData, 100, 100, Charset.defaultCharset()), missingBlock);
+    assertEquals(new String(cachedData, 200, 100, Charset.defaultCharset()), generatedTestData.substring(200, 300));
+    assertEquals(new String(cachedData, 300, 100, Charset.defaultCharset()), missingBlock);
+    assertEquals(new String(cachedData, 400, 200, Charset.defaultCharset()), generatedTestData.substring(400, 600));
+  }
+
+  @Test
+  public void testReadServedByInFlightDownload()
+      throws Exception
+  {
+    Configuration conf = new Configuration();
+    CacheConfig.setCacheDataDirPrefix(conf, "/tmp");
+    CacheConfig.setSingleFlightEnabled(conf, true);
+    remoteReadRequestChain = new RemoteReadRequestChain(fsDataInputStream, backendFileName, UNKONWN_GENERATION_NUMBER + 1, conf);
+
+    // Another reader is downloading the first block
+    final InFlightBlockRegistry registry = InFlightBlockRegistry.getInstance();
+    final InFlightBlockRegistry.BlockFetch fetch = registry.claim(localFileName, 0);
+    assertTrue(fetch.isOwner());
+    String generatedTestData = DataGen.generateContent();
+    try (RandomAccessFile localFile = new RandomAccessFile(localFileName, "rw")) {
+      localFile.write(generatedTestData.substring(0, 100).getBytes(Charset.defaultCharset()));
+    }
+    long deduplicatedReads = registry.getDeduplicatedReads();
+
+    byte[] buffer = new byte[50];
+    remoteReadRequestChain.addReadRequest(new ReadRequest(0, 100, 25, 75, buffer, 0, backendFile.length()));
+    remoteReadRequestChain.lock();
+    Thread owner = new Thread(() -> {
+      try {
+        Thread.sleep(100);
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      registry.complete(fetch, null);
+    });
+    owner.start();
+
+    long readSize = remoteReadRequestChain.call();
+    owner.join();
+
+    assertEquals(readSize, 50);
+    assertEquals(new String(buffer, Charset.defaultCharset()), generatedTestData.substring(25, 75));
+    assertEquals(registry.getDeduplicatedReads(), deduplicatedReads + 1, "Read should wait for the download in progress");
+    assertEquals(registry.getInFlightBlocks(), 0);
+  }
+
+  @Test
+  public void testReadDownloadsWhenInFlightDownloadTimesOut()
+      throws Exception
+  {
+    Configuration conf = new Configuration();
+    CacheConfig.setCacheDataDirPrefix(conf, "/tmp");
+    CacheConfig.setSingleFlightEnabled(conf, true);
+    CacheConfig.setClientReadTimeout(conf, 100);
+    remoteReadRequestChain = new RemoteReadRequestChain(fsDataInputStream, backendFileName, UNKONWN_GENERATION_NUMBER + 1, conf);
+
+    // Another reader claimed the first block but never finishes the download
+    final InFlightBlockRegistry registry = InFlightBlockRegistry.getInstance();
+    final InFlightBlockRegistry.BlockFetch fetch = registry.claim(localFileName, 0);
+    assertTrue(fetch.isOwner());
+    long deduplicatedReads = registry.getDeduplicatedReads();
+
+    byte[] buffer = new byte[50];
+    remoteReadRequestChain.addReadRequest(new ReadRequest(0, 100, 25, 75, buffer, 0, backendFile.length()));
+    remoteReadRequestChain.lock();
+    long readSize = remoteReadRequestChain.call();
+    registry.complete(fetch, null);
+
+    String generatedTestData = DataGen.generateContent();
+    assertEquals(readSize, 50);
+    assertEquals(new String(buffer, Charset.defaultCharset()), generatedTestData.substring(25, 75));
+    assertEquals(registry.getDeduplicatedReads(), deduplicatedReads, "Read should download the data itself");
+    assertEquals(registry.getInFlightBlocks(), 0);
+  }
+
   private void testRead(ReadRequest[] readRequests,
                         byte[] buffer,
                         String expectedBufferOutput,
@@ -194,11 +424,17 @@ public class TestRemoteReadRequestChain
     assertTrue(expectedBufferOutput.equals(actualBufferOutput), "Wrong data read, expected\n" + expectedBufferOutput + "\nBut got\n" + actualBufferOutput);
 
     // 3. read from randomAccessFile and verify that it has the right data
+    verifyCachedData(expectedCacheOutput);
+  }
+
+  private void verifyCachedData(String expectedCacheOutput)
+      throws IOException
+  {
     // data present should be of form 100bytes of data and 100bytes of holes
     byte[] filledBuffer = new byte[expectedCacheOutput.length()];
     byte[] emptyBuffer = new byte[100];
     int filledBufferOffset = 0;
-    readSize = 0;
+    long readSize = 0;
 
     FileInputStream localFileInputStream = new FileInputStream(new File(localFileName));
     for (int i = 1; i < 20; i++) {
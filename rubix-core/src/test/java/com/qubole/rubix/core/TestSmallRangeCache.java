@@ -0,0 +1,78 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.core;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestSmallRangeCache
+{
+  private static final String TEST_PATH = "file:///tmp/TestSmallRangeCache";
+  private static final long TEST_LAST_MODIFIED = 1514764800;
+
+  private SmallRangeCache cache;
+
+  @BeforeMethod
+  public void setup()
+  {
+    cache = new SmallRangeCache(16, 4, 2);
+  }
+
+  @Test
+  public void testReadWithinCachedRange()
+  {
+    cache.put(TEST_PATH, TEST_LAST_MODIFIED, 10, bytes("abcdef"));
+
+    ByteBuffer destination = ByteBuffer.allocate(3);
+    assertTrue(cache.read(TEST_PATH, TEST_LAST_MODIFIED, 12, destination));
+    assertEquals(new String(destination.array(), StandardCharsets.UTF_8), "cde");
+    assertEquals(cache.getHits(), 1);
+    assertEquals(cache.getHitBytes(), 3);
+
+    assertFalse(cache.read(TEST_PATH, TEST_LAST_MODIFIED, 14, ByteBuffer.allocate(3)), "Range ending beyond the cached one should not be served");
+    assertFalse(cache.read(TEST_PATH, TEST_LAST_MODIFIED + 1, 12, ByteBuffer.allocate(3)), "Range of a modified file should not be served");
+  }
+
+  @Test
+  public void testRangesCoveredByNewRangeDropped()
+  {
+    cache.put(TEST_PATH, TEST_LAST_MODIFIED, 2, bytes("cd"));
+    cache.put(TEST_PATH, TEST_LAST_MODIFIED, 6, bytes("gh"));
+    cache.put(TEST_PATH, TEST_LAST_MODIFIED, 0, bytes("abcdefgh"));
+    assertEquals(cache.getSize(), 8);
+
+    cache.put(TEST_PATH, TEST_LAST_MODIFIED, 3, bytes("de"));
+    assertEquals(cache.getSize(), 8, "Range within a cached one should not be added");
+  }
+
+  @Test
+  public void testMemoryBounded()
+  {
+    cache.put(TEST_PATH, TEST_LAST_MODIFIED, 0, bytes("abcdefghij"));
+    cache.put(TEST_PATH + "2", TEST_LAST_MODIFIED, 0, bytes("abcdefghij"));
+
+    assertTrue(cache.getSize() <= 16, "Cached ranges should not exceed the memory limit");
+  }
+
+  private static ByteBuffer bytes(String data)
+  {
+    return ByteBuffer.wrap(data.getBytes(StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.core;
+
+import com.google.common.collect.ImmutableList;
+import com.qubole.rubix.core.VectoredReadUtils.CombinedFileRange;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.testng.Assert.assertEquals;
+
+public class TestVectoredReadUtils
+{
+  @Test
+  public void testSortRanges()
+  {
+    List<FileRange> sorted = VectoredReadUtils.validateAndSortRanges(ImmutableList.of(
+        FileRange.createFileRange(300, 10),
+        FileRange.createFileRange(0, 10),
+        FileRange.createFileRange(100, 10)));
+
+    assertEquals(sorted.get(0).getOffset(), 0);
+    assertEquals(sorted.get(1).getOffset(), 100);
+    assertEquals(sorted.get(2).getOffset(), 300);
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testOverlappingRanges()
+  {
+    VectoredReadUtils.validateAndSortRanges(ImmutableList.of(
+        FileRange.createFileRange(0, 100),
+        FileRange.createFileRange(50, 100)));
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testNegativeOffset()
+  {
+    VectoredReadUtils.validateAndSortRanges(ImmutableList.of(FileRange.createFileRange(-1, 100)));
+  }
+
+  @Test
+  public void testMergeRanges()
+  {
+    List<FileRange> ranges = ImmutableList.of(
+        FileRange.createFileRange(0, 100),
+        FileRange.createFileRange(110, 100),
+        FileRange.createFileRange(400, 100),
+        FileRange.createFileRange(500, 100),
+        FileRange.createFileRange(600, 100));
+
+    List<CombinedFileRange> combined = VectoredReadUtils.mergeSortedRanges(ranges, 50, 250);
+
+    assertEquals(combined.size(), 3, "Ranges not coalesced");
+    assertEquals(combined.get(0).getOffset(), 0);
+    assertEquals(combined.get(0).getLength(), 210);
+    assertEquals(combined.get(0).getUnderlying().size(), 2);
+    assertEquals(combined.get(1).getOffset(), 400, "Ranges further than min seek apart should not be coalesced");
+    assertEquals(combined.get(1).getLength(), 200);
+    assertEquals(combined.get(2).getOffset(), 600, "Combined range should not grow beyond max size");
+    assertEquals(combined.get(2).getLength(), 100);
+  }
+
+  @Test
+  public void testScatter()
+      throws Exception
+  {
+    FileRange first = FileRange.createFileRange(10, 5);
+    FileRange second = FileRange.createFileRange(20, 5);
+    first.setData(new CompletableFuture<>());
+    second.setData(new CompletableFuture<>());
+    CombinedFileRange combined = VectoredReadUtils.mergeSortedRanges(ImmutableList.of(first, second), 10, 100).get(0);
+
+    byte[] buffer = new byte[combined.getLength()];
+    for (int i = 0; i < buffer.length; i++) {
+      buffer[i] = (byte) (i + 10);
+    }
+    VectoredReadUtils.scatter(combined, buffer, ByteBuffer::allocate);
+
+    ByteBuffer data = second.getData().get();
+    assertEquals(data.remaining(), 5);
+    assertEquals(data.get(), (byte) 20);
+    assertEquals(first.getData().get().get(), (byte) 10);
+  }
+}
@@ -0,0 +1,83 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.core;
+
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.qubole.rubix.core.WriteBehindCacheWriter.WriteBatch;
+import org.apache.hadoop.conf.Configuration;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.Executors;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+
+public class TestWriteBehindCacheWriter
+{
+  private static final String TEST_FILE = System.getProperty("java.io.tmpdir") + "/TestWriteBehindCacheWriter";
+
+  private ListeningExecutorService writeService;
+  private WriteBehindCacheWriter writer;
+
+  @BeforeMethod
+  public void setup()
+      throws IOException
+  {
+    new File(TEST_FILE).createNewFile();
+    writeService = MoreExecutors.listeningDecorator(Executors.newSingleThreadExecutor());
+    writer = new WriteBehindCacheWriter(new Configuration(), 10, writeService);
+  }
+
+  @AfterMethod
+  public void cleanup()
+  {
+    writeService.shutdownNow();
+    new File(TEST_FILE).delete();
+  }
+
+  @Test
+  public void testBatchWritten()
+      throws Exception
+  {
+    WriteBatch batch = writer.newBatch(TEST_FILE, 6);
+    batch.allocate(0, 3).put("abc".getBytes(StandardCharsets.UTF_8));
+    batch.allocate(5, 3).put("xyz".getBytes(StandardCharsets.UTF_8));
+    assertEquals(writer.getPendingBytes(), 6);
+
+    writer.submit(batch).get();
+
+    assertEquals(new String(Files.readAllBytes(new File(TEST_FILE).toPath()), StandardCharsets.UTF_8), "abc\0\0xyz");
+    assertEquals(writer.getPendingBytes(), 0, "Staging memory should be released after the write");
+    assertEquals(writer.getWrittenBytes(), 6);
+  }
+
+  @Test
+  public void testFallbackWhenMemoryExhausted()
+  {
+    WriteBatch batch = writer.newBatch(TEST_FILE, 8);
+    assertNotNull(batch);
+    assertNull(writer.newBatch(TEST_FILE, 4), "Batch should not be created beyond the memory limit");
+    assertEquals(writer.getSynchronousFallbacks(), 1);
+
+    batch.discard();
+    assertNotNull(writer.newBatch(TEST_FILE, 4), "Discarded batch should give back its memory");
+  }
+}
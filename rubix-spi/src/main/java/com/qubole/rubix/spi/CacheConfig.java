@@ -17,6 +17,8 @@ import org.apache.hadoop.conf.Configuration;
 
 import java.util.List;
 
+import static com.qubole.rubix.spi.utils.DataSizeUnits.GIGABYTES;
+import static com.qubole.rubix.spi.utils.DataSizeUnits.KILOBYTES;
 import static com.qubole.rubix.spi.utils.DataSizeUnits.MEGABYTES;
 
 /**
@@ -71,6 +73,7 @@ public class CacheConfig
   private static final String KEY_DATA_TRANSFER_BUFFER_SIZE = "rubix.cache.data.transfer.buffer.size";
   private static final String KEY_LOCAL_SERVER_PORT = "rubix.network.local.transfer.server.port";
   private static final String KEY_LOCAL_SERVER_MAX_THREADS = "rubix.local.transfer.max-threads";
+  private static final String KEY_LOCAL_SERVER_IO_THREADS = "rubix.local.transfer.io-threads";
   private static final String KEY_MAX_RETRIES = "rubix.network.client.num-retries";
   private static final String KEY_METRICS_CACHE_ENABLED = "rubix.metrics.cache.enabled";
   private static final String KEY_METRICS_HEALTH_ENABLED = "rubix.metrics.health.enabled";
@@ -109,6 +112,70 @@ public class CacheConfig
   private static final String KEY_EMBEDDED_MODE = "rubix.cluster.embedded.mode";
   private static final String KEY_HEARTBEAT_ENABLED = "rubix.cluster.heartbeat.enabled";
   private static final String KEY_PARALLEL_WARMUP_MAX_CHUNK_SIZE = "rubix.cache.parallel.warmup.max_chunk_size";
+  private static final String KEY_READ_AHEAD_ENABLED = "rubix.cache.readahead.enabled";
+  private static final String KEY_READ_AHEAD_SEQUENTIAL_THRESHOLD = "rubix.cache.readahead.sequential.threshold";
+  private static final String KEY_READ_AHEAD_INITIAL_BLOCKS = "rubix.cache.readahead.initial.blocks";
+  private static final String KEY_READ_AHEAD_MAX_BLOCKS = "rubix.cache.readahead.max.blocks";
+  private static final String KEY_READ_AHEAD_MAX_INFLIGHT_SIZE = "rubix.cache.readahead.max.inflight.size";
+  private static final String KEY_READ_AHEAD_THREADS = "rubix.cache.readahead.threads";
+  private static final String KEY_VECTORED_READ_MIN_SEEK_SIZE = "rubix.cache.vectored.read.min.seek.size";
+  private static final String KEY_VECTORED_READ_MAX_MERGED_SIZE = "rubix.cache.vectored.read.max.merged.size";
+  private static final String KEY_MMAP_READ_ENABLED = "rubix.cache.mmap.read.enabled";
+  private static final String KEY_MMAP_MAX_MAPPED_SIZE = "rubix.cache.mmap.max.mapped.size";
+  private static final String KEY_FILE_HANDLE_CACHE_ENABLED = "rubix.cache.file.handle.cache.enabled";
+  private static final String KEY_FILE_HANDLE_CACHE_SIZE = "rubix.cache.file.handle.cache.size";
+  private static final String KEY_READ_BUFFER_MIN_SIZE = "rubix.cache.read.buffer.min.size";
+  private static final String KEY_READ_EXECUTOR_TYPE = "rubix.cache.read.executor.type";
+  private static final String KEY_READ_EXECUTOR_CALLER_RUNS = "rubix.cache.read.executor.caller.runs";
+  private static final String KEY_READ_EXECUTOR_CACHED_THREADS = "rubix.cache.read.executor.cached.threads";
+  private static final String KEY_READ_EXECUTOR_REMOTE_THREADS = "rubix.cache.read.executor.remote.threads";
+  private static final String KEY_WRITE_BEHIND_ENABLED = "rubix.cache.write.behind.enabled";
+  private static final String KEY_WRITE_BEHIND_MAX_MEMORY = "rubix.cache.write.behind.max.memory";
+  private static final String KEY_WRITE_BEHIND_THREADS = "rubix.cache.write.behind.threads";
+  private static final String KEY_SINGLE_FLIGHT_ENABLED = "rubix.cache.single.flight.enabled";
+  private static final String KEY_ADAPTIVE_BLOCK_SIZE_ENABLED = "rubix.cache.block.size.adaptive.enabled";
+  private static final String KEY_MIN_BLOCK_SIZE = "rubix.cache.block.size.min";
+  private static final String KEY_MAX_BLOCK_SIZE = "rubix.cache.block.size.max";
+  private static final String KEY_TARGET_BLOCKS_PER_FILE = "rubix.cache.block.size.target.blocks";
+  private static final String KEY_BLOCK_SIZE_PATH_POLICY = "rubix.cache.block.size.path.policy";
+  private static final String KEY_SMALL_RANGE_CACHE_ENABLED = "rubix.cache.small.range.enabled";
+  private static final String KEY_SMALL_RANGE_CACHE_MAX_MEMORY = "rubix.cache.small.range.max.memory";
+  private static final String KEY_SMALL_RANGE_CACHE_TAIL_SIZE = "rubix.cache.small.range.tail.size";
+  private static final String KEY_SMALL_RANGE_CACHE_MAX_READ_SIZE = "rubix.cache.small.range.max.read.size";
+  private static final String KEY_MEMORY_TIER_ENABLED = "rubix.cache.memory.tier.enabled";
+  private static final String KEY_MEMORY_TIER_MAX_MEMORY = "rubix.cache.memory.tier.max.memory";
+  private static final String KEY_MEMORY_TIER_EVICTION_POLICY = "rubix.cache.memory.tier.eviction.policy";
+  private static final String KEY_MEMORY_TIER_PROMOTION_THRESHOLD = "rubix.cache.memory.tier.promotion.threshold";
+  private static final String KEY_COMPRESSION_ENABLED = "rubix.cache.compression.enabled";
+  private static final String KEY_COMPRESSION_CODEC = "rubix.cache.compression.codec";
+  private static final String KEY_COMPRESSION_INCLUDE_PATTERN = "rubix.cache.compression.include.pattern";
+  private static final String KEY_COMPRESSION_EXCLUDE_PATTERN = "rubix.cache.compression.exclude.pattern";
+  private static final String KEY_BLOCK_CHECKSUM_ENABLED = "rubix.cache.block.checksum.enabled";
+  private static final String KEY_READ_COALESCE_MAX_GAP = "rubix.cache.read.coalesce.max.gap";
+  private static final String KEY_READ_COALESCE_MAX_SIZE = "rubix.cache.read.coalesce.max.size";
+  private static final String KEY_HEDGED_READ_ENABLED = "rubix.cache.hedged.read.enabled";
+  private static final String KEY_HEDGED_READ_PERCENTILE = "rubix.cache.hedged.read.percentile";
+  private static final String KEY_HEDGED_READ_MIN_DELAY = "rubix.cache.hedged.read.min.delay";
+  private static final String KEY_HEDGED_READ_BUDGET = "rubix.cache.hedged.read.budget";
+  private static final String KEY_THROTTLE_FOREGROUND_NETWORK_BANDWIDTH = "rubix.cache.throttle.foreground.network.bandwidth";
+  private static final String KEY_THROTTLE_FOREGROUND_DISK_BANDWIDTH = "rubix.cache.throttle.foreground.disk.bandwidth";
+  private static final String KEY_THROTTLE_FOREGROUND_DISK_IOPS = "rubix.cache.throttle.foreground.disk.iops";
+  private static final String KEY_THROTTLE_WARMUP_NETWORK_BANDWIDTH = "rubix.cache.throttle.warmup.network.bandwidth";
+  private static final String KEY_THROTTLE_WARMUP_DISK_BANDWIDTH = "rubix.cache.throttle.warmup.disk.bandwidth";
+  private static final String KEY_THROTTLE_WARMUP_DISK_IOPS = "rubix.cache.throttle.warmup.disk.iops";
+  private static final String KEY_THROTTLE_WARMUP_BACKOFF_LATENCY_FACTOR = "rubix.cache.throttle.warmup.backoff.latency.factor";
+  private static final String KEY_DISK_IO_QUEUE_DEPTH = "rubix.cache.disk.io.queue.depth";
+  private static final String KEY_WARMUP_DIRECT_IO_ENABLED = "rubix.cache.warmup.direct.io.enabled";
+  private static final String KEY_PAGE_CACHE_HINTS_ENABLED = "rubix.cache.page.cache.hints.enabled";
+  private static final String KEY_DATA_TRANSFER_PROTOCOL_VERSION = "rubix.network.local.transfer.protocol.version";
+  private static final String KEY_WIRE_COMPRESSION_ENABLED = "rubix.network.local.transfer.compression.enabled";
+  private static final String KEY_WIRE_COMPRESSION_CODEC = "rubix.network.local.transfer.compression.codec";
+  private static final String KEY_WIRE_COMPRESSION_INCLUDE_PATTERN = "rubix.network.local.transfer.compression.include.pattern";
+  private static final String KEY_WIRE_COMPRESSION_EXCLUDE_PATTERN = "rubix.network.local.transfer.compression.exclude.pattern";
+  private static final String KEY_REPLICATION_ENABLED = "rubix.cache.replication.enabled";
+  private static final String KEY_REPLICATION_THRESHOLD = "rubix.cache.replication.threshold";
+  private static final String KEY_REPLICATION_WINDOW = "rubix.cache.replication.window";
+  private static final String KEY_REPLICATION_MAX_CACHE_FULLNESS_PERCENTAGE = "rubix.cache.replication.max.fullness.percentage";
 
   // Internal Configurations used in RubiX
   private static final String KEY_YARN_RESOURCEMANAGER_ADDRESS = "yarn.resourcemanager.address";
@@ -161,6 +228,7 @@ public class CacheConfig
   private static final int DEFAULT_REMOTE_FETCH_THREADS = 10;
   private static final boolean DEFAULT_RUBIX_ON_MASTER = false;
   private static final int DEFAULT_SERVER_MAX_THREADS = 4096;
+  private static final int DEFAULT_LOCAL_SERVER_IO_THREADS = 2;
   private static final int DEFAULT_SERVICE_RETRY_INTERVAL = 30000; // ms
   private static final int DEFAULT_SERVICE_MAX_RETRIES = 100;
   private static final int DEFAULT_CLIENT_READ_TIMEOUT = 3000; // ms
@@ -185,6 +253,71 @@ public class CacheConfig
   public static final String DEFAULT_RUBIX_SITE_LOCATION = "/usr/lib/rubix/etc/rubix-site.xml";
   private static final boolean DEFAULT_HEARTBEAT_ENABLED = true;
   private static final long DEFAULT_PARALLEL_WARMUP_MAX_CHUNK_SIZE = MEGABYTES.toBytes(100);
+  private static final boolean DEFAULT_READ_AHEAD_ENABLED = false;
+  private static final int DEFAULT_READ_AHEAD_SEQUENTIAL_THRESHOLD = 2;
+  private static final int DEFAULT_READ_AHEAD_INITIAL_BLOCKS = 2;
+  private static final int DEFAULT_READ_AHEAD_MAX_BLOCKS = 16;
+  private static final long DEFAULT_READ_AHEAD_MAX_INFLIGHT_SIZE = MEGABYTES.toBytes(256);
+  private static final int DEFAULT_READ_AHEAD_THREADS = 8;
+  private static final int DEFAULT_VECTORED_READ_MIN_SEEK_SIZE = 64 * 1024;
+  private static final int DEFAULT_VECTORED_READ_MAX_MERGED_SIZE = (int) MEGABYTES.toBytes(8);
+  private static final boolean DEFAULT_MMAP_READ_ENABLED = false;
+  private static final long DEFAULT_MMAP_MAX_MAPPED_SIZE = GIGABYTES.toBytes(4);
+  private static final boolean DEFAULT_FILE_HANDLE_CACHE_ENABLED = false;
+  private static final int DEFAULT_FILE_HANDLE_CACHE_SIZE = 1024;
+  private static final int DEFAULT_READ_BUFFER_MIN_SIZE = 64 * 1024;
+  private static final String DEFAULT_READ_EXECUTOR_TYPE = "shared";
+  private static final boolean DEFAULT_READ_EXECUTOR_CALLER_RUNS = false;
+  private static final int DEFAULT_READ_EXECUTOR_CACHED_THREADS = 50;
+  private static final int DEFAULT_READ_EXECUTOR_REMOTE_THREADS = READ_SERVICE_THREAD_POOL_SIZE;
+  private static final boolean DEFAULT_WRITE_BEHIND_ENABLED = false;
+  private static final long DEFAULT_WRITE_BEHIND_MAX_MEMORY = MEGABYTES.toBytes(256);
+  private static final int DEFAULT_WRITE_BEHIND_THREADS = 4;
+  private static final boolean DEFAULT_SINGLE_FLIGHT_ENABLED = false;
+  private static final boolean DEFAULT_ADAPTIVE_BLOCK_SIZE_ENABLED = false;
+  private static final int DEFAULT_MIN_BLOCK_SIZE = (int) KILOBYTES.toBytes(128);
+  private static final int DEFAULT_MAX_BLOCK_SIZE = (int) MEGABYTES.toBytes(8);
+  private static final int DEFAULT_TARGET_BLOCKS_PER_FILE = 1024;
+  private static final String DEFAULT_BLOCK_SIZE_PATH_POLICY = "";
+  private static final boolean DEFAULT_SMALL_RANGE_CACHE_ENABLED = false;
+  private static final long DEFAULT_SMALL_RANGE_CACHE_MAX_MEMORY = MEGABYTES.toBytes(64);
+  private static final int DEFAULT_SMALL_RANGE_CACHE_TAIL_SIZE = (int) KILOBYTES.toBytes(64);
+  private static final int DEFAULT_SMALL_RANGE_CACHE_MAX_READ_SIZE = (int) KILOBYTES.toBytes(16);
+  private static final boolean DEFAULT_MEMORY_TIER_ENABLED = false;
+  private static final long DEFAULT_MEMORY_TIER_MAX_MEMORY = MEGABYTES.toBytes(512);
+  private static final String DEFAULT_MEMORY_TIER_EVICTION_POLICY = "lru";
+  private static final int DEFAULT_MEMORY_TIER_PROMOTION_THRESHOLD = 2;
+  private static final boolean DEFAULT_COMPRESSION_ENABLED = false;
+  private static final String DEFAULT_COMPRESSION_CODEC = "lz4";
+  private static final String DEFAULT_COMPRESSION_INCLUDE_PATTERN = ".*";
+  private static final String DEFAULT_COMPRESSION_EXCLUDE_PATTERN = ".*\\.(parquet|orc|avro|gz|bz2|snappy|lz4|zst|zstd)$";
+  private static final boolean DEFAULT_BLOCK_CHECKSUM_ENABLED = false;
+  private static final int DEFAULT_READ_COALESCE_MAX_GAP = 0;
+  private static final int DEFAULT_READ_COALESCE_MAX_SIZE = (int) MEGABYTES.toBytes(8);
+  private static final boolean DEFAULT_HEDGED_READ_ENABLED = false;
+  private static final int DEFAULT_HEDGED_READ_PERCENTILE = 95;
+  private static final int DEFAULT_HEDGED_READ_MIN_DELAY = 50; // ms
+  private static final int DEFAULT_HEDGED_READ_BUDGET = 5;
+  // Bandwidths in bytes per second, 0 for no limit
+  private static final long DEFAULT_THROTTLE_FOREGROUND_NETWORK_BANDWIDTH = 0;
+  private static final long DEFAULT_THROTTLE_FOREGROUND_DISK_BANDWIDTH = 0;
+  private static final int DEFAULT_THROTTLE_FOREGROUND_DISK_IOPS = 0;
+  private static final long DEFAULT_THROTTLE_WARMUP_NETWORK_BANDWIDTH = 0;
+  private static final long DEFAULT_THROTTLE_WARMUP_DISK_BANDWIDTH = 0;
+  private static final int DEFAULT_THROTTLE_WARMUP_DISK_IOPS = 0;
+  private static final float DEFAULT_THROTTLE_WARMUP_BACKOFF_LATENCY_FACTOR = 2.0f;
+  private static final int DEFAULT_DISK_IO_QUEUE_DEPTH = 0;
+  private static final boolean DEFAULT_WARMUP_DIRECT_IO_ENABLED = false;
+  private static final boolean DEFAULT_PAGE_CACHE_HINTS_ENABLED = false;
+  private static final int DEFAULT_DATA_TRANSFER_PROTOCOL_VERSION = 1;
+  private static final boolean DEFAULT_WIRE_COMPRESSION_ENABLED = false;
+  private static final String DEFAULT_WIRE_COMPRESSION_CODEC = "lz4";
+  private static final String DEFAULT_WIRE_COMPRESSION_INCLUDE_PATTERN = ".*";
+  private static final String DEFAULT_WIRE_COMPRESSION_EXCLUDE_PATTERN = DEFAULT_COMPRESSION_EXCLUDE_PATTERN;
+  private static final boolean DEFAULT_REPLICATION_ENABLED = false;
+  private static final int DEFAULT_REPLICATION_THRESHOLD = 20;
+  private static final long DEFAULT_REPLICATION_WINDOW = 60000; // ms
+  private static final int DEFAULT_REPLICATION_MAX_CACHE_FULLNESS_PERCENTAGE = 90;
 
   private CacheConfig()
   {
@@ -340,6 +473,11 @@ public class CacheConfig
     return conf.getInt(KEY_LOCAL_SERVER_MAX_THREADS, DEFAULT_SERVER_MAX_THREADS);
   }
 
+  public static int getLocalTransferServerIoThreads(Configuration conf)
+  {
+    return conf.getInt(KEY_LOCAL_SERVER_IO_THREADS, DEFAULT_LOCAL_SERVER_IO_THREADS);
+  }
+
   public static int getDataTransferServerPort(Configuration conf)
   {
     return conf.getInt(KEY_LOCAL_SERVER_PORT, DEFAULT_DATA_TRANSFER_SERVER_PORT);
@@ -583,6 +721,335 @@ public class CacheConfig
     return conf.getLong(KEY_PARALLEL_WARMUP_MAX_CHUNK_SIZE, DEFAULT_PARALLEL_WARMUP_MAX_CHUNK_SIZE);
   }
 
+  public static boolean isReadAheadEnabled(Configuration conf)
+  {
+    return conf.getBoolean(KEY_READ_AHEAD_ENABLED, DEFAULT_READ_AHEAD_ENABLED);
+  }
+
+  public static int getReadAheadSequentialThreshold(Configuration conf)
+  {
+    return conf.getInt(KEY_READ_AHEAD_SEQUENTIAL_THRESHOLD, DEFAULT_READ_AHEAD_SEQUENTIAL_THRESHOLD);
+  }
+
+  public static int getReadAheadInitialBlocks(Configuration conf)
+  {
+    return conf.getInt(KEY_READ_AHEAD_INITIAL_BLOCKS, DEFAULT_READ_AHEAD_INITIAL_BLOCKS);
+  }
+
+  public static int getReadAheadMaxBlocks(Configuration conf)
+  {
+    return conf.getInt(KEY_READ_AHEAD_MAX_BLOCKS, DEFAULT_READ_AHEAD_MAX_BLOCKS);
+  }
+
+  public static long getReadAheadMaxInflightSize(Configuration conf)
+  {
+    return conf.getLong(KEY_READ_AHEAD_MAX_INFLIGHT_SIZE, DEFAULT_READ_AHEAD_MAX_INFLIGHT_SIZE);
+  }
+
+  public static int getReadAheadThreads(Configuration conf)
+  {
+    return conf.getInt(KEY_READ_AHEAD_THREADS, DEFAULT_READ_AHEAD_THREADS);
+  }
+
+  public static int getVectoredReadMinSeekSize(Configuration conf)
+  {
+    return conf.getInt(KEY_VECTORED_READ_MIN_SEEK_SIZE, DEFAULT_VECTORED_READ_MIN_SEEK_SIZE);
+  }
+
+  public static int getVectoredReadMaxMergedSize(Configuration conf)
+  {
+    return conf.getInt(KEY_VECTORED_READ_MAX_MERGED_SIZE, DEFAULT_VECTORED_READ_MAX_MERGED_SIZE);
+  }
+
+  public static boolean isMmapReadEnabled(Configuration conf)
+  {
+    return conf.getBoolean(KEY_MMAP_READ_ENABLED, DEFAULT_MMAP_READ_ENABLED);
+  }
+
+  public static long getMmapMaxMappedSize(Configuration conf)
+  {
+    return conf.getLong(KEY_MMAP_MAX_MAPPED_SIZE, DEFAULT_MMAP_MAX_MAPPED_SIZE);
+  }
+
+  public static boolean isFileHandleCacheEnabled(Configuration conf)
+  {
+    return conf.getBoolean(KEY_FILE_HANDLE_CACHE_ENABLED, DEFAULT_FILE_HANDLE_CACHE_ENABLED);
+  }
+
+  public static int getFileHandleCacheSize(Configuration conf)
+  {
+    return conf.getInt(KEY_FILE_HANDLE_CACHE_SIZE, DEFAULT_FILE_HANDLE_CACHE_SIZE);
+  }
+
+  public static int getReadBufferMinSize(Configuration conf)
+  {
+    return conf.getInt(KEY_READ_BUFFER_MIN_SIZE, DEFAULT_READ_BUFFER_MIN_SIZE);
+  }
+
+  public static String getReadExecutorType(Configuration conf)
+  {
+    return conf.get(KEY_READ_EXECUTOR_TYPE, DEFAULT_READ_EXECUTOR_TYPE);
+  }
+
+  public static boolean isReadExecutorCallerRunsEnabled(Configuration conf)
+  {
+    return conf.getBoolean(KEY_READ_EXECUTOR_CALLER_RUNS, DEFAULT_READ_EXECUTOR_CALLER_RUNS);
+  }
+
+  public static int getReadExecutorCachedThreads(Configuration conf)
+  {
+    return conf.getInt(KEY_READ_EXECUTOR_CACHED_THREADS, DEFAULT_READ_EXECUTOR_CACHED_THREADS);
+  }
+
+  public static int getReadExecutorRemoteThreads(Configuration conf)
+  {
+    return conf.getInt(KEY_READ_EXECUTOR_REMOTE_THREADS, DEFAULT_READ_EXECUTOR_REMOTE_THREADS);
+  }
+
+  public static boolean isWriteBehindEnabled(Configuration conf)
+  {
+    return conf.getBoolean(KEY_WRITE_BEHIND_ENABLED, DEFAULT_WRITE_BEHIND_ENABLED);
+  }
+
+  public static long getWriteBehindMaxMemory(Configuration conf)
+  {
+    return conf.getLong(KEY_WRITE_BEHIND_MAX_MEMORY, DEFAULT_WRITE_BEHIND_MAX_MEMORY);
+  }
+
+  public static int getWriteBehindThreads(Configuration conf)
+  {
+    return conf.getInt(KEY_WRITE_BEHIND_THREADS, DEFAULT_WRITE_BEHIND_THREADS);
+  }
+
+  public static boolean isSingleFlightEnabled(Configuration conf)
+  {
+    return conf.getBoolean(KEY_SINGLE_FLIGHT_ENABLED, DEFAULT_SINGLE_FLIGHT_ENABLED);
+  }
+
+  public static boolean isAdaptiveBlockSizeEnabled(Configuration conf)
+  {
+    return conf.getBoolean(KEY_ADAPTIVE_BLOCK_SIZE_ENABLED, DEFAULT_ADAPTIVE_BLOCK_SIZE_ENABLED);
+  }
+
+  // Values which are not positive fall back to the default
+  public static int getMinBlockSize(Configuration conf)
+  {
+    return getPositiveInt(conf, KEY_MIN_BLOCK_SIZE, DEFAULT_MIN_BLOCK_SIZE);
+  }
+
+  // Values which are not positive fall back to the default, values below the min block size to the min block size
+  public static int getMaxBlockSize(Configuration conf)
+  {
+    return Math.max(getPositiveInt(conf, KEY_MAX_BLOCK_SIZE, DEFAULT_MAX_BLOCK_SIZE), getMinBlockSize(conf));
+  }
+
+  // Values which are not positive fall back to the default
+  public static int getTargetBlocksPerFile(Configuration conf)
+  {
+    return getPositiveInt(conf, KEY_TARGET_BLOCKS_PER_FILE, DEFAULT_TARGET_BLOCKS_PER_FILE);
+  }
+
+  private static int getPositiveInt(Configuration conf, String key, int defaultValue)
+  {
+    int value = conf.getInt(key, defaultValue);
+    return value > 0 ? value : defaultValue;
+  }
+
+  public static String getBlockSizePathPolicy(Configuration conf)
+  {
+    return conf.get(KEY_BLOCK_SIZE_PATH_POLICY, DEFAULT_BLOCK_SIZE_PATH_POLICY);
+  }
+
+  public static boolean isSmallRangeCacheEnabled(Configuration conf)
+  {
+    return conf.getBoolean(KEY_SMALL_RANGE_CACHE_ENABLED, DEFAULT_SMALL_RANGE_CACHE_ENABLED);
+  }
+
+  public static long getSmallRangeCacheMaxMemory(Configuration conf)
+  {
+    return conf.getLong(KEY_SMALL_RANGE_CACHE_MAX_MEMORY, DEFAULT_SMALL_RANGE_CACHE_MAX_MEMORY);
+  }
+
+  public static int getSmallRangeCacheTailSize(Configuration conf)
+  {
+    return conf.getInt(KEY_SMALL_RANGE_CACHE_TAIL_SIZE, DEFAULT_SMALL_RANGE_CACHE_TAIL_SIZE);
+  }
+
+  public static int getSmallRangeCacheMaxReadSize(Configuration conf)
+  {
+    return conf.getInt(KEY_SMALL_RANGE_CACHE_MAX_READ_SIZE, DEFAULT_SMALL_RANGE_CACHE_MAX_READ_SIZE);
+  }
+
+  public static boolean isMemoryTierEnabled(Configuration conf)
+  {
+    return conf.getBoolean(KEY_MEMORY_TIER_ENABLED, DEFAULT_MEMORY_TIER_ENABLED);
+  }
+
+  public static long getMemoryTierMaxMemory(Configuration conf)
+  {
+    return conf.getLong(KEY_MEMORY_TIER_MAX_MEMORY, DEFAULT_MEMORY_TIER_MAX_MEMORY);
+  }
+
+  public static String getMemoryTierEvictionPolicy(Configuration conf)
+  {
+    return conf.get(KEY_MEMORY_TIER_EVICTION_POLICY, DEFAULT_MEMORY_TIER_EVICTION_POLICY);
+  }
+
+  public static int getMemoryTierPromotionThreshold(Configuration conf)
+  {
+    return conf.getInt(KEY_MEMORY_TIER_PROMOTION_THRESHOLD, DEFAULT_MEMORY_TIER_PROMOTION_THRESHOLD);
+  }
+
+  public static boolean isCompressionEnabled(Configuration conf)
+  {
+    return conf.getBoolean(KEY_COMPRESSION_ENABLED, DEFAULT_COMPRESSION_ENABLED);
+  }
+
+  public static String getCompressionCodec(Configuration conf)
+  {
+    return conf.get(KEY_COMPRESSION_CODEC, DEFAULT_COMPRESSION_CODEC);
+  }
+
+  public static String getCompressionIncludePattern(Configuration conf)
+  {
+    return conf.get(KEY_COMPRESSION_INCLUDE_PATTERN, DEFAULT_COMPRESSION_INCLUDE_PATTERN);
+  }
+
+  public static String getCompressionExcludePattern(Configuration conf)
+  {
+    return conf.get(KEY_COMPRESSION_EXCLUDE_PATTERN, DEFAULT_COMPRESSION_EXCLUDE_PATTERN);
+  }
+
+  public static boolean isBlockChecksumEnabled(Configuration conf)
+  {
+    return conf.getBoolean(KEY_BLOCK_CHECKSUM_ENABLED, DEFAULT_BLOCK_CHECKSUM_ENABLED);
+  }
+
+  public static int getReadCoalesceMaxGap(Configuration conf)
+  {
+    return conf.getInt(KEY_READ_COALESCE_MAX_GAP, DEFAULT_READ_COALESCE_MAX_GAP);
+  }
+
+  public static int getReadCoalesceMaxSize(Configuration conf)
+  {
+    return conf.getInt(KEY_READ_COALESCE_MAX_SIZE, DEFAULT_READ_COALESCE_MAX_SIZE);
+  }
+
+  public static boolean isHedgedReadEnabled(Configuration conf)
+  {
+    return conf.getBoolean(KEY_HEDGED_READ_ENABLED, DEFAULT_HEDGED_READ_ENABLED);
+  }
+
+  public static int getHedgedReadPercentile(Configuration conf)
+  {
+    return conf.getInt(KEY_HEDGED_READ_PERCENTILE, DEFAULT_HEDGED_READ_PERCENTILE);
+  }
+
+  public static int getHedgedReadMinDelay(Configuration conf)
+  {
+    return conf.getInt(KEY_HEDGED_READ_MIN_DELAY, DEFAULT_HEDGED_READ_MIN_DELAY);
+  }
+
+  public static int getHedgedReadBudget(Configuration conf)
+  {
+    return conf.getInt(KEY_HEDGED_READ_BUDGET, DEFAULT_HEDGED_READ_BUDGET);
+  }
+
+  public static long getThrottleForegroundNetworkBandwidth(Configuration conf)
+  {
+    return conf.getLong(KEY_THROTTLE_FOREGROUND_NETWORK_BANDWIDTH, DEFAULT_THROTTLE_FOREGROUND_NETWORK_BANDWIDTH);
+  }
+
+  public static long getThrottleForegroundDiskBandwidth(Configuration conf)
+  {
+    return conf.getLong(KEY_THROTTLE_FOREGROUND_DISK_BANDWIDTH, DEFAULT_THROTTLE_FOREGROUND_DISK_BANDWIDTH);
+  }
+
+  public static int getThrottleForegroundDiskIops(Configuration conf)
+  {
+    return conf.getInt(KEY_THROTTLE_FOREGROUND_DISK_IOPS, DEFAULT_THROTTLE_FOREGROUND_DISK_IOPS);
+  }
+
+  public static long getThrottleWarmupNetworkBandwidth(Configuration conf)
+  {
+    return conf.getLong(KEY_THROTTLE_WARMUP_NETWORK_BANDWIDTH, DEFAULT_THROTTLE_WARMUP_NETWORK_BANDWIDTH);
+  }
+
+  public static long getThrottleWarmupDiskBandwidth(Configuration conf)
+  {
+    return conf.getLong(KEY_THROTTLE_WARMUP_DISK_BANDWIDTH, DEFAULT_THROTTLE_WARMUP_DISK_BANDWIDTH);
+  }
+
+  public static int getThrottleWarmupDiskIops(Configuration conf)
+  {
+    return conf.getInt(KEY_THROTTLE_WARMUP_DISK_IOPS, DEFAULT_THROTTLE_WARMUP_DISK_IOPS);
+  }
+
+  public static float getThrottleWarmupBackoffLatencyFactor(Configuration conf)
+  {
+    return conf.getFloat(KEY_THROTTLE_WARMUP_BACKOFF_LATENCY_FACTOR, DEFAULT_THROTTLE_WARMUP_BACKOFF_LATENCY_FACTOR);
+  }
+
+  public static int getDiskIoQueueDepth(Configuration conf)
+  {
+    return conf.getInt(KEY_DISK_IO_QUEUE_DEPTH, DEFAULT_DISK_IO_QUEUE_DEPTH);
+  }
+
+  public static boolean isWarmupDirectIoEnabled(Configuration conf)
+  {
+    return conf.getBoolean(KEY_WARMUP_DIRECT_IO_ENABLED, DEFAULT_WARMUP_DIRECT_IO_ENABLED);
+  }
+
+  public static boolean isPageCacheHintsEnabled(Configuration conf)
+  {
+    return conf.getBoolean(KEY_PAGE_CACHE_HINTS_ENABLED, DEFAULT_PAGE_CACHE_HINTS_ENABLED);
+  }
+
+  public static int getDataTransferProtocolVersion(Configuration conf)
+  {
+    return conf.getInt(KEY_DATA_TRANSFER_PROTOCOL_VERSION, DEFAULT_DATA_TRANSFER_PROTOCOL_VERSION);
+  }
+
+  public static boolean isWireCompressionEnabled(Configuration conf)
+  {
+    return conf.getBoolean(KEY_WIRE_COMPRESSION_ENABLED, DEFAULT_WIRE_COMPRESSION_ENABLED);
+  }
+
+  public static String getWireCompressionCodec(Configuration conf)
+  {
+    return conf.get(KEY_WIRE_COMPRESSION_CODEC, DEFAULT_WIRE_COMPRESSION_CODEC);
+  }
+
+  public static String getWireCompressionIncludePattern(Configuration conf)
+  {
+    return conf.get(KEY_WIRE_COMPRESSION_INCLUDE_PATTERN, DEFAULT_WIRE_COMPRESSION_INCLUDE_PATTERN);
+  }
+
+  public static String getWireCompressionExcludePattern(Configuration conf)
+  {
+    return conf.get(KEY_WIRE_COMPRESSION_EXCLUDE_PATTERN, DEFAULT_WIRE_COMPRESSION_EXCLUDE_PATTERN);
+  }
+
+  public static boolean isReplicationEnabled(Configuration conf)
+  {
+    return conf.getBoolean(KEY_REPLICATION_ENABLED, DEFAULT_REPLICATION_ENABLED);
+  }
+
+  public static int getReplicationThreshold(Configuration conf)
+  {
+    return conf.getInt(KEY_REPLICATION_THRESHOLD, DEFAULT_REPLICATION_THRESHOLD);
+  }
+
+  public static long getReplicationWindow(Configuration conf)
+  {
+    return conf.getLong(KEY_REPLICATION_WINDOW, DEFAULT_REPLICATION_WINDOW);
+  }
+
+  public static int getReplicationMaxCacheFullnessPercentage(Configuration conf)
+  {
+    return conf.getInt(KEY_REPLICATION_MAX_CACHE_FULLNESS_PERCENTAGE, DEFAULT_REPLICATION_MAX_CACHE_FULLNESS_PERCENTAGE);
+  }
+
   public static void setRubixConfigApplied(Configuration conf, boolean value)
   {
     conf.setBoolean(KEY_RUBIX_SITE_CONFIG_APPLIED, value);
@@ -743,6 +1210,11 @@ public class CacheConfig
     conf.setInt(KEY_SERVER_SOCKET_TIMEOUT, timeout);
   }
 
+  public static void setClientReadTimeout(Configuration conf, int timeout)
+  {
+    conf.setInt(KEY_CLIENT_READ_TIMEOUT, timeout);
+  }
+
   public static void setBookKeeperServerPort(Configuration conf, int serverPort)
   {
     conf.setInt(KEY_SERVER_PORT, serverPort);
@@ -892,4 +1364,194 @@ public class CacheConfig
   {
     conf.setLong(KEY_PARALLEL_WARMUP_MAX_CHUNK_SIZE, size);
   }
+
+  public static void setReadAheadEnabled(Configuration conf, boolean enabled)
+  {
+    conf.setBoolean(KEY_READ_AHEAD_ENABLED, enabled);
+  }
+
+  public static void setReadAheadInitialBlocks(Configuration conf, int blocks)
+  {
+    conf.setInt(KEY_READ_AHEAD_INITIAL_BLOCKS, blocks);
+  }
+
+  public static void setReadAheadMaxBlocks(Configuration conf, int blocks)
+  {
+    conf.setInt(KEY_READ_AHEAD_MAX_BLOCKS, blocks);
+  }
+
+  public static void setVectoredReadMinSeekSize(Configuration conf, int size)
+  {
+    conf.setInt(KEY_VECTORED_READ_MIN_SEEK_SIZE, size);
+  }
+
+  public static void setMmapReadEnabled(Configuration conf, boolean enabled)
+  {
+    conf.setBoolean(KEY_MMAP_READ_ENABLED, enabled);
+  }
+
+  public static void setFileHandleCacheEnabled(Configuration conf, boolean enabled)
+  {
+    conf.setBoolean(KEY_FILE_HANDLE_CACHE_ENABLED, enabled);
+  }
+
+  public static void setReadBufferMinSize(Configuration conf, int size)
+  {
+    conf.setInt(KEY_READ_BUFFER_MIN_SIZE, size);
+  }
+
+  public static void setReadExecutorType(Configuration conf, String type)
+  {
+    conf.set(KEY_READ_EXECUTOR_TYPE, type);
+  }
+
+  public static void setReadExecutorCallerRunsEnabled(Configuration conf, boolean enabled)
+  {
+    conf.setBoolean(KEY_READ_EXECUTOR_CALLER_RUNS, enabled);
+  }
+
+  public static void setWriteBehindEnabled(Configuration conf, boolean enabled)
+  {
+    conf.setBoolean(KEY_WRITE_BEHIND_ENABLED, enabled);
+  }
+
+  public static void setSingleFlightEnabled(Configuration conf, boolean enabled)
+  {
+    conf.setBoolean(KEY_SINGLE_FLIGHT_ENABLED, enabled);
+  }
+
+  public static void setAdaptiveBlockSizeEnabled(Configuration conf, boolean enabled)
+  {
+    conf.setBoolean(KEY_ADAPTIVE_BLOCK_SIZE_ENABLED, enabled);
+  }
+
+  public static void setMinBlockSize(Configuration conf, int size)
+  {
+    conf.setInt(KEY_MIN_BLOCK_SIZE, size);
+  }
+
+  public static void setMaxBlockSize(Configuration conf, int size)
+  {
+    conf.setInt(KEY_MAX_BLOCK_SIZE, size);
+  }
+
+  public static void setBlockSizePathPolicy(Configuration conf, String policy)
+  {
+    conf.set(KEY_BLOCK_SIZE_PATH_POLICY, policy);
+  }
+
+  public static void setSmallRangeCacheEnabled(Configuration conf, boolean enabled)
+  {
+    conf.setBoolean(KEY_SMALL_RANGE_CACHE_ENABLED, enabled);
+  }
+
+  public static void setMemoryTierEnabled(Configuration conf, boolean enabled)
+  {
+    conf.setBoolean(KEY_MEMORY_TIER_ENABLED, enabled);
+  }
+
+  public static void setMemoryTierPromotionThreshold(Configuration conf, int threshold)
+  {
+    conf.setInt(KEY_MEMORY_TIER_PROMOTION_THRESHOLD, threshold);
+  }
+
+  public static void setCompressionEnabled(Configuration conf, boolean enabled)
+  {
+    conf.setBoolean(KEY_COMPRESSION_ENABLED, enabled);
+  }
+
+  public static void setCompressionCodec(Configuration conf, String codec)
+  {
+    conf.set(KEY_COMPRESSION_CODEC, codec);
+  }
+
+  public static void setCompressionExcludePattern(Configuration conf, String pattern)
+  {
+    conf.set(KEY_COMPRESSION_EXCLUDE_PATTERN, pattern);
+  }
+
+  public static void setBlockChecksumEnabled(Configuration conf, boolean enabled)
+  {
+    conf.setBoolean(KEY_BLOCK_CHECKSUM_ENABLED, enabled);
+  }
+
+  public static void setReadCoalesceMaxGap(Configuration conf, int maxGap)
+  {
+    conf.setInt(KEY_READ_COALESCE_MAX_GAP, maxGap);
+  }
+
+  public static void setHedgedReadEnabled(Configuration conf, boolean enabled)
+  {
+    conf.setBoolean(KEY_HEDGED_READ_ENABLED, enabled);
+  }
+
+  public static void setThrottleWarmupNetworkBandwidth(Configuration conf, long bandwidth)
+  {
+    conf.setLong(KEY_THROTTLE_WARMUP_NETWORK_BANDWIDTH, bandwidth);
+  }
+
+  public static void setThrottleWarmupBackoffLatencyFactor(Configuration conf, float factor)
+  {
+    conf.setFloat(KEY_THROTTLE_WARMUP_BACKOFF_LATENCY_FACTOR, factor);
+  }
+
+  public static void setDiskIoQueueDepth(Configuration conf, int queueDepth)
+  {
+    conf.setInt(KEY_DISK_IO_QUEUE_DEPTH, queueDepth);
+  }
+
+  public static void setWarmupDirectIoEnabled(Configuration conf, boolean enabled)
+  {
+    conf.setBoolean(KEY_WARMUP_DIRECT_IO_ENABLED, enabled);
+  }
+
+  public static void setPageCacheHintsEnabled(Configuration conf, boolean enabled)
+  {
+    conf.setBoolean(KEY_PAGE_CACHE_HINTS_ENABLED, enabled);
+  }
+
+  public static void setDataTransferProtocolVersion(Configuration conf, int version)
+  {
+    conf.setInt(KEY_DATA_TRANSFER_PROTOCOL_VERSION, version);
+  }
+
+  public static void setLocalTransferServerIoThreads(Configuration conf, int threads)
+  {
+    conf.setInt(KEY_LOCAL_SERVER_IO_THREADS, threads);
+  }
+
+  public static void setWireCompressionEnabled(Configuration conf, boolean enabled)
+  {
+    conf.setBoolean(KEY_WIRE_COMPRESSION_ENABLED, enabled);
+  }
+
+  public static void setWireCompressionCodec(Configuration conf, String codec)
+  {
+    conf.set(KEY_WIRE_COMPRESSION_CODEC, codec);
+  }
+
+  public static void setWireCompressionIncludePattern(Configuration conf, String pattern)
+  {
+    conf.set(KEY_WIRE_COMPRESSION_INCLUDE_PATTERN, pattern);
+  }
+
+  public static void setReplicationEnabled(Configuration conf, boolean enabled)
+  {
+    conf.setBoolean(KEY_REPLICATION_ENABLED, enabled);
+  }
+
+  public static void setReplicationThreshold(Configuration conf, int threshold)
+  {
+    conf.setInt(KEY_REPLICATION_THRESHOLD, threshold);
+  }
+
+  public static void setReplicationWindow(Configuration conf, long windowMillis)
+  {
+    conf.setLong(KEY_REPLICATION_WINDOW, windowMillis);
+  }
+
+  public static void setReplicationMaxCacheFullnessPercentage(Configuration conf, int percentage)
+  {
+    conf.setInt(KEY_REPLICATION_MAX_CACHE_FULLNESS_PERCENTAGE, percentage);
+  }
 }
@@ -28,7 +28,11 @@ import java.io.FileNotFoundException;
 import java.net.URI;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import static com.google.common.base.Preconditions.checkState;
 
@@ -36,7 +40,11 @@ public class CacheUtil
 {
   public static final int UNKONWN_GENERATION_NUMBER = 0;
   public static final int DUMMY_MODE_GENERATION_NUMBER = UNKONWN_GENERATION_NUMBER + 1;
+  // The mdfile starts with this magic and the block size of the file, followed by the bitmap of cached blocks
+  public static final int METADATA_FILE_MAGIC = 0x52424d44;
+  public static final int METADATA_HEADER_SIZE = 2 * Integer.BYTES;
   private static final Log log = LogFactory.getLog(CacheUtil.class.getName());
+  private static volatile BlockSizePathPolicy blockSizePathPolicy = new BlockSizePathPolicy("");
 
   private CacheUtil()
   {
@@ -221,6 +229,72 @@ public class CacheUtil
     return false;
   }
 
+  /**
+   * Determine the block size of a file, used for its cache bitmap and for aligning reads of it.
+   * <p>
+   * Without adaptive block sizes this is the configured block size. Otherwise the first entry of the path policy
+   * matching the path wins; if none matches, the block size is the power of two that splits the file into about
+   * the target number of blocks, bounded by the min and max block sizes.
+   * Clients and BookKeepers must agree on it, so it only depends on the path, the file size and the configuration.
+   * The block size is stored in the mdfile, cached files of another block size are not reused.
+   *
+   * @param remotePath  The path of the remote file.
+   * @param fileSize    The size of the remote file.
+   * @param conf        The current Hadoop configuration.
+   * @return The block size in bytes.
+   */
+  public static int getFileBlockSize(String remotePath, long fileSize, Configuration conf)
+  {
+    if (!CacheConfig.isAdaptiveBlockSizeEnabled(conf)) {
+      return CacheConfig.getBlockSize(conf);
+    }
+
+    Integer policyBlockSize = getBlockSizePathPolicy(conf).getBlockSize(remotePath);
+    if (policyBlockSize != null) {
+      return policyBlockSize;
+    }
+
+    int minBlockSize = CacheConfig.getMinBlockSize(conf);
+    int maxBlockSize = CacheConfig.getMaxBlockSize(conf);
+    long targetBlockSize = fileSize / CacheConfig.getTargetBlocksPerFile(conf);
+    long blockSize = minBlockSize;
+    while (blockSize < targetBlockSize && blockSize < maxBlockSize) {
+      blockSize *= 2;
+    }
+    return (int) Math.min(blockSize, maxBlockSize);
+  }
+
+  private static BlockSizePathPolicy getBlockSizePathPolicy(Configuration conf)
+  {
+    String policy = CacheConfig.getBlockSizePathPolicy(conf);
+    BlockSizePathPolicy pathPolicy = blockSizePathPolicy;
+    if (!pathPolicy.policy.equals(policy)) {
+      // Parsed once per policy value instead of on every lookup of a block size
+      pathPolicy = new BlockSizePathPolicy(policy);
+      blockSizePathPolicy = pathPolicy;
+    }
+    return pathPolicy;
+  }
+
+  /**
+   * Determine whether the blocks of a file are stored compressed in the local cache.
+   * <p>
+   * With compression enabled these are the files whose path matches the include pattern but not the exclude
+   * pattern, which by default excludes formats that are compressed already.
+   *
+   * @param remotePath  The path of the remote file.
+   * @param conf        The current Hadoop configuration.
+   * @return true if the cached data of the file is compressed.
+   */
+  public static boolean isCompressedFile(String remotePath, Configuration conf)
+  {
+    if (!CacheConfig.isCompressionEnabled(conf)) {
+      return false;
+    }
+    return remotePath.matches(CacheConfig.getCompressionIncludePattern(conf))
+        && !remotePath.matches(CacheConfig.getCompressionExcludePattern(conf));
+  }
+
   /**
    * Create the cache directory from the provided path.
    *
@@ -386,4 +460,46 @@ public class CacheUtil
   {
     return CacheConfig.getCacheDataMinColumns(conf) <= CacheConfig.getCacheDataChosenColumns(conf);
   }
+
+  private static class BlockSizePathPolicy
+  {
+    private final String policy;
+    private final Map<Pattern, Integer> blockSizes = new LinkedHashMap<>();
+
+    BlockSizePathPolicy(String policy)
+    {
+      this.policy = policy;
+      if (policy.isEmpty()) {
+        return;
+      }
+      for (String entry : policy.split(";")) {
+        int separator = entry.lastIndexOf('=');
+        if (separator <= 0) {
+          log.warn("Ignoring invalid block size policy entry: " + entry);
+          continue;
+        }
+        try {
+          int blockSize = Integer.parseInt(entry.substring(separator + 1).trim());
+          if (blockSize <= 0) {
+            log.warn("Ignoring block size policy entry with non-positive block size: " + entry);
+            continue;
+          }
+          blockSizes.put(Pattern.compile(entry.substring(0, separator).trim()), blockSize);
+        }
+        catch (NumberFormatException | PatternSyntaxException e) {
+          log.warn("Ignoring invalid block size policy entry: " + entry, e);
+        }
+      }
+    }
+
+    Integer getBlockSize(String remotePath)
+    {
+      for (Map.Entry<Pattern, Integer> entry : blockSizes.entrySet()) {
+        if (entry.getKey().matcher(remotePath).matches()) {
+          return entry.getValue();
+        }
+      }
+      return null;
+    }
+  }
 }
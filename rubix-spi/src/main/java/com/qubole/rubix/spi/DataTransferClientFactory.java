@@ -21,7 +21,12 @@ import org.apache.hadoop.conf.Configuration;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import static com.qubole.rubix.spi.fop.SocketChannelObjectFactory.createSocketChannelObjectPool;
@@ -30,6 +35,11 @@ public class DataTransferClientFactory
 {
   private static final AtomicBoolean initFlag = new AtomicBoolean();
   private static ObjectPool pool;
+  private static final ConcurrentMap<String, DataTransferConnection> connections = new ConcurrentHashMap<>();
+  // Nodes whose server only serves version 1 of the protocol, with the time after which they are asked again as they
+  // may have been upgraded
+  private static final ConcurrentMap<String, Long> versionOneNodes = new ConcurrentHashMap<>();
+  private static final long VERSION_RECHECK_INTERVAL = TimeUnit.MINUTES.toMillis(5);
   private static final Log log = LogFactory.getLog(DataTransferClientHelper.class.getName());
 
   private DataTransferClientFactory()
@@ -41,6 +51,11 @@ public class DataTransferClientFactory
   {
     initFlag.set(false);
     pool = null;
+    for (DataTransferConnection connection : connections.values()) {
+      connection.close();
+    }
+    connections.clear();
+    versionOneNodes.clear();
   }
 
   public static DataTransferClient getClient(String host, Configuration conf)
@@ -53,22 +68,83 @@ public class DataTransferClientFactory
         }
       }
     }
-    Poolable<SocketChannel> socketChannelPoolable = pool.borrowObject(host, conf);
+    Poolable<TimedSocketChannel> socketChannelPoolable = pool.borrowObject(host, conf);
     return new DataTransferClient(socketChannelPoolable);
   }
 
+  /**
+   * Returns the multiplexed connection to the node shared by the JVM, a new one is opened if the previous one failed
+   *
+   * @return the connection, null if the server of the node only serves version 1 of the protocol
+   */
+  public static DataTransferConnection getConnection(String host, Configuration conf)
+      throws IOException
+  {
+    DataTransferConnection connection = connections.get(host);
+    if (connection != null && connection.isOpen()) {
+      return connection;
+    }
+    Long recheckTime = versionOneNodes.get(host);
+    if (recheckTime != null && System.currentTimeMillis() < recheckTime) {
+      return null;
+    }
+    try {
+      return connections.compute(host, (node, existing) -> {
+        if (existing != null && existing.isOpen()) {
+          return existing;
+        }
+        try {
+          return openConnection(node, conf);
+        }
+        catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+    }
+    catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  private static DataTransferConnection openConnection(String host, Configuration conf)
+      throws IOException
+  {
+    SocketChannel socketChannel = SocketChannel.open();
+    try {
+      socketChannel.socket().setTcpNoDelay(true);
+      socketChannel.socket().connect(new InetSocketAddress(host, CacheConfig.getDataTransferServerPort(conf)),
+          CacheConfig.getServerConnectTimeout(conf));
+      log.debug("Opened data transfer connection to " + host + " from " + socketChannel.socket().getLocalSocketAddress());
+      DataTransferConnection connection = new DataTransferConnection(host, socketChannel, CacheConfig.getClientReadTimeout(conf),
+          CacheConfig.getMaxHeaderSize(conf));
+      int version = connection.handshake();
+      if (version < DataTransferProtocol.VERSION_2) {
+        log.info("Node " + host + " serves version " + version + " of the data transfer protocol, not using multiplexed connections to it");
+        versionOneNodes.put(host, System.currentTimeMillis() + VERSION_RECHECK_INTERVAL);
+        connection.close();
+        return null;
+      }
+      versionOneNodes.remove(host);
+      return connection;
+    }
+    catch (IOException e) {
+      socketChannel.close();
+      throw e;
+    }
+  }
+
   public static class DataTransferClient
     implements Closeable
   {
-    private Poolable<SocketChannel> socketChannelPoolable;
+    private Poolable<TimedSocketChannel> socketChannelPoolable;
     private static final Log log = LogFactory.getLog(DataTransferClientHelper.class.getName());
 
-    public DataTransferClient(Poolable<SocketChannel> socketChannelPoolable)
+    public DataTransferClient(Poolable<TimedSocketChannel> socketChannelPoolable)
     {
       this.socketChannelPoolable = socketChannelPoolable;
     }
 
-    public SocketChannel getSocketChannel()
+    public TimedSocketChannel getSocketChannel()
     {
       return socketChannelPoolable.getObject();
     }
@@ -43,6 +43,18 @@ public class DataTransferClientHelper
     return buf;
   }
 
+  /**
+   * Returns true if all of the header was received
+   */
+  public static boolean isHeaderComplete(ByteBuffer dataInfo)
+  {
+    if (dataInfo.remaining() < Integer.BYTES) {
+      return false;
+    }
+    int filePathLength = dataInfo.getInt(dataInfo.position());
+    return filePathLength >= 0 && dataInfo.remaining() >= (long) Integer.BYTES + filePathLength + 3 * Long.BYTES + 2 * Integer.BYTES;
+  }
+
   public static DataTransferHeader readHeaders(ByteBuffer dataInfo)
   {
     byte[] fileBytes = new byte[dataInfo.getInt()];
@@ -0,0 +1,287 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.spi;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.io.compress.CompressionCodec;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.qubole.rubix.spi.DataTransferProtocol.HANDSHAKE_SIZE;
+import static com.qubole.rubix.spi.DataTransferProtocol.RANGE_HEADER_SIZE;
+import static com.qubole.rubix.spi.DataTransferProtocol.RESPONSE_HEADER_SIZE;
+import static com.qubole.rubix.spi.DataTransferProtocol.STATUS_ERROR;
+import static com.qubole.rubix.spi.DataTransferProtocol.STATUS_OK;
+import static com.qubole.rubix.spi.DataTransferProtocol.STATUS_OK_COMPRESSED;
+import static com.qubole.rubix.spi.DataTransferProtocol.VERSION_1;
+import static com.qubole.rubix.spi.DataTransferProtocol.VERSION_2;
+import static com.qubole.rubix.spi.DataTransferProtocol.readFully;
+
+/**
+ * Connection to the local data transfer server of a node, shared by all the reads of the JVM from that node.
+ *
+ * Requests are sent as soon as they are issued, without waiting for the responses of the previous ones. Responses
+ * come back in the order of the requests: each caller waits for its turn and reads its response straight into its
+ * buffers. An I/O error breaks the connection for all its callers, the next request opens a new one.
+ * A new connection starts with the handshake of the protocol version.
+ */
+public class DataTransferConnection
+    implements Closeable
+{
+  private static final Log log = LogFactory.getLog(DataTransferConnection.class);
+  private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+  private final String host;
+  private final TimedSocketChannel channel;
+  // Guards sending of requests
+  private final ByteBuffer requestBuffer;
+  // Used by the caller whose turn it is to read its response
+  private final ByteBuffer responseHeader = ByteBuffer.allocate(RESPONSE_HEADER_SIZE);
+  private final ByteBuffer rangeHeader = ByteBuffer.allocate(RANGE_HEADER_SIZE);
+  private ByteBuffer compressedData = ByteBuffer.allocate(0);
+
+  // Ids of the requests sent and not answered yet, in the order they were sent
+  private final Deque<Long> pending = new ArrayDeque<>();
+  private long nextRequestId;
+  private IOException failure;
+
+  public DataTransferConnection(String host, SocketChannel socketChannel, int readTimeout, int maxRequestSize)
+      throws IOException
+  {
+    this.host = host;
+    this.channel = new TimedSocketChannel(socketChannel, readTimeout);
+    this.requestBuffer = ByteBuffer.allocate(maxRequestSize);
+  }
+
+  public String getHost()
+  {
+    return host;
+  }
+
+  public int getMaxRequestSize()
+  {
+    return requestBuffer.capacity();
+  }
+
+  /**
+   * Agrees on the version of the protocol with the server, must be done before the first request
+   *
+   * @return the version the server serves the connection with, VERSION_1 if the server did not answer in time or
+   *     closed the connection as servers from before version 2 do
+   */
+  public int handshake()
+      throws IOException
+  {
+    ByteBuffer handshake = ByteBuffer.allocate(HANDSHAKE_SIZE);
+    DataTransferProtocol.writeHandshake(handshake, VERSION_2);
+    handshake.flip();
+    channel.writeFully(handshake);
+    handshake.clear();
+    try {
+      readFully(channel, handshake);
+    }
+    catch (IOException e) {
+      log.debug("No handshake answered by " + host + ", using version 1 of the protocol", e);
+      return VERSION_1;
+    }
+    handshake.flip();
+    return DataTransferProtocol.readHandshake(handshake);
+  }
+
+  /**
+   * Reads the ranges of the request, each into its destination which must have the length of the range remaining
+   *
+   * @return the status of each range, destinations of the ranges not STATUS_OK are left untouched. Ranges sent
+   *     compressed are decompressed and reported as STATUS_OK.
+   */
+  public int[] read(DataTransferRequest request, List<ByteBuffer> destinations)
+      throws IOException
+  {
+    checkArgument(request.getFrameSize() <= requestBuffer.capacity(), "Request of %s bytes exceeds max size %s",
+        request.getFrameSize(), requestBuffer.capacity());
+    checkArgument(destinations.size() == request.getRangeCount(), "Expected one destination per range");
+
+    long requestId;
+    synchronized (requestBuffer) {
+      synchronized (this) {
+        if (failure != null) {
+          throw new IOException("Connection to " + host + " failed", failure);
+        }
+        requestId = nextRequestId++;
+        pending.addLast(requestId);
+      }
+      request.setRequestId(requestId);
+      requestBuffer.clear();
+      DataTransferProtocol.writeRequest(request, requestBuffer);
+      requestBuffer.flip();
+      try {
+        channel.writeFully(requestBuffer);
+      }
+      catch (IOException e) {
+        fail(e);
+        throw e;
+      }
+    }
+
+    awaitTurn(requestId);
+    try {
+      return readResponse(request, destinations);
+    }
+    catch (IOException | RuntimeException e) {
+      fail(e instanceof IOException ? (IOException) e : new IOException(e));
+      throw e;
+    }
+    finally {
+      synchronized (this) {
+        pending.remove(requestId);
+        notifyAll();
+      }
+    }
+  }
+
+  private synchronized void awaitTurn(long requestId)
+      throws IOException
+  {
+    try {
+      while (failure == null && pending.peekFirst() != requestId) {
+        wait();
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      // The response would be left unread on the connection
+      fail(new InterruptedIOException("Interrupted while waiting for response of " + host));
+    }
+    if (failure != null) {
+      pending.remove(requestId);
+      throw new IOException("Connection to " + host + " failed", failure);
+    }
+  }
+
+  private int[] readResponse(DataTransferRequest request, List<ByteBuffer> destinations)
+      throws IOException
+  {
+    // Each read also takes the header of the next range, so the data of consecutive ranges is read by the same
+    // scattering reads as the headers between them
+    int rangeCount = request.getRangeCount();
+    responseHeader.clear();
+    rangeHeader.clear();
+    readFully(channel, responseHeader, rangeCount > 0 ? rangeHeader : EMPTY);
+    responseHeader.flip();
+    long requestId = responseHeader.getLong();
+    int responseRangeCount = responseHeader.getInt();
+    if (requestId != request.getRequestId() || responseRangeCount != rangeCount) {
+      throw new IOException(String.format("Response for request %d with %d ranges received for request %d with %d ranges",
+          requestId, responseRangeCount, request.getRequestId(), rangeCount));
+    }
+
+    int[] statuses = new int[rangeCount];
+    for (int i = 0; i < rangeCount; i++) {
+      rangeHeader.flip();
+      int status = rangeHeader.getInt();
+      int length = rangeHeader.getInt();
+      rangeHeader.clear();
+      ByteBuffer nextRangeHeader = i + 1 < rangeCount ? rangeHeader : EMPTY;
+      if (status == STATUS_OK) {
+        ByteBuffer destination = destinations.get(i);
+        if (length != request.getLength(i) || destination.remaining() != length) {
+          throw new IOException(String.format("Response of %d bytes for range of %d bytes of request %d",
+              length, request.getLength(i), requestId));
+        }
+        readFully(channel, destination, nextRangeHeader);
+      }
+      else if (status == STATUS_OK_COMPRESSED) {
+        // Data is only sent compressed if it takes less space than uncompressed
+        if (length <= 0 || length >= request.getLength(i) || destinations.get(i).remaining() != request.getLength(i)) {
+          throw new IOException(String.format("Compressed response of %d bytes for range of %d bytes of request %d",
+              length, request.getLength(i), requestId));
+        }
+        if (compressedData.capacity() < length) {
+          compressedData = ByteBuffer.allocate(length);
+        }
+        compressedData.clear().limit(length);
+        readFully(channel, compressedData, nextRangeHeader);
+        compressedData.flip();
+        status = decompress(request, i, destinations.get(i));
+      }
+      else if (length != 0) {
+        throw new IOException(String.format("Data sent for range with status %d of request %d", status, requestId));
+      }
+      else {
+        readFully(channel, nextRangeHeader);
+      }
+      statuses[i] = status;
+    }
+    return statuses;
+  }
+
+  // Decompresses the data of the range read into compressedData, returns the status of the range
+  private int decompress(DataTransferRequest request, int range, ByteBuffer destination)
+      throws IOException
+  {
+    CompressionCodec codec = WireCompression.getCodec(request.getFlags());
+    if (codec == null) {
+      throw new IOException("Compressed response received for request " + request.getRequestId() + " without codec");
+    }
+    int wireLength = compressedData.remaining();
+    int start = destination.position();
+    try {
+      WireCompression.decompress(codec, compressedData, destination);
+    }
+    catch (IOException | RuntimeException e) {
+      // All the data of the range was consumed, the connection can still be used for the next ranges
+      log.warn(String.format("Could not decompress range at offset %d of %s from %s",
+          request.getOffset(range), request.getFilePath(), host), e);
+      destination.position(start);
+      return STATUS_ERROR;
+    }
+    WireCompression.recordReceived(request.getLength(range), wireLength);
+    return STATUS_OK;
+  }
+
+  public synchronized boolean isOpen()
+  {
+    return failure == null;
+  }
+
+  private synchronized void fail(IOException cause)
+  {
+    if (failure != null) {
+      return;
+    }
+    failure = cause;
+    notifyAll();
+    try {
+      channel.close();
+    }
+    catch (IOException e) {
+      log.warn("Error in closing connection to " + host, e);
+    }
+  }
+
+  @Override
+  public void close()
+  {
+    fail(new ClosedChannelException());
+  }
+}
@@ -0,0 +1,277 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.spi;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Version 2 of the protocol of the local data transfer server, multiplexing requests on one connection per node.
+ *
+ * A connection carries pipelined requests, each for several ranges of one file. The server answers the requests
+ * in the order it received them. A response starts with the id of its request and gives a status per range, the
+ * data of a range follows its status if it is STATUS_OK. Ranges which are not cached are answered with
+ * STATUS_NOT_CACHED so that the client reads them from the object store and keeps using the connection.
+ * If the flags of a request ask for a codec the server may answer ranges with STATUS_OK_COMPRESSED, their data
+ * being the frames described in WireCompression.
+ *
+ * Request frame:
+ *   int : MAGIC
+ *   int : length of the rest of the frame
+ *   long : requestId
+ *   int : flags, the codec of WireCompression in the low byte, the other bits are reserved
+ *   int : filePathLength
+ *   byte[] : filePath, UTF-8
+ *   long : fileSize
+ *   long : lastModified
+ *   int : clusterType
+ *   int : rangeCount
+ *   (long : offset, int : length) * rangeCount
+ *
+ * Response:
+ *   long : requestId
+ *   int : rangeCount
+ *   (int : status, int : length on the wire, byte[] : data) * rangeCount
+ *
+ * Version 1 headers start with the length of the file path, MAGIC is negative so that the server tells the
+ * versions apart from the first bytes of a connection.
+ *
+ * Clients open a connection with a handshake before their first request, servers answer it with the version they
+ * serve for the connection. Servers from before version 2 take the handshake for an invalid version 1 header and
+ * never answer it, the client then uses version 1 with that node.
+ *
+ * Handshake, both ways:
+ *   int : HANDSHAKE_MAGIC
+ *   int : version
+ */
+public final class DataTransferProtocol
+{
+  public static final int VERSION_1 = 1;
+  public static final int VERSION_2 = 2;
+
+  public static final int MAGIC = 0xDA7A0002;
+  public static final int HANDSHAKE_MAGIC = 0xDA7A0000;
+  public static final int HANDSHAKE_SIZE = 2 * Integer.BYTES;
+
+  public static final int STATUS_OK = 0;
+  public static final int STATUS_NOT_CACHED = 1;
+  public static final int STATUS_ERROR = 2;
+  public static final int STATUS_OK_COMPRESSED = 3;
+
+  public static final int RESPONSE_HEADER_SIZE = Long.BYTES + Integer.BYTES;
+  public static final int RANGE_HEADER_SIZE = 2 * Integer.BYTES;
+  public static final int RANGE_SIZE = Long.BYTES + Integer.BYTES;
+
+  private static final int FRAME_HEADER_SIZE = 2 * Integer.BYTES;
+  private static final int FIXED_REQUEST_SIZE = 3 * Long.BYTES + 4 * Integer.BYTES;
+
+  private DataTransferProtocol()
+  {
+  }
+
+  static int getFrameSize(int filePathLength, int rangeCount)
+  {
+    return FRAME_HEADER_SIZE + FIXED_REQUEST_SIZE + filePathLength + rangeCount * RANGE_SIZE;
+  }
+
+  /**
+   * Returns true if the received bytes start with a request of this protocol
+   */
+  public static boolean isMultiplexed(ByteBuffer received)
+  {
+    return received.remaining() >= Integer.BYTES && received.getInt(received.position()) == MAGIC;
+  }
+
+  /**
+   * Returns true if the received bytes start with a handshake
+   */
+  public static boolean isHandshake(ByteBuffer received)
+  {
+    return received.remaining() >= Integer.BYTES && received.getInt(received.position()) == HANDSHAKE_MAGIC;
+  }
+
+  public static void writeHandshake(ByteBuffer buffer, int version)
+  {
+    buffer.putInt(HANDSHAKE_MAGIC);
+    buffer.putInt(version);
+  }
+
+  /**
+   * Reads a handshake of HANDSHAKE_SIZE bytes
+   *
+   * @return the version it gives
+   */
+  public static int readHandshake(ByteBuffer buffer)
+      throws IOException
+  {
+    int magic = buffer.getInt();
+    int version = buffer.getInt();
+    if (magic != HANDSHAKE_MAGIC || version < VERSION_1) {
+      throw new IOException(String.format("Invalid handshake, magic %x version %d", magic, version));
+    }
+    return version;
+  }
+
+  public static void writeRequest(DataTransferRequest request, ByteBuffer buffer)
+  {
+    byte[] filePath = request.getFilePathBytes();
+    buffer.putInt(MAGIC);
+    buffer.putInt(request.getFrameSize() - FRAME_HEADER_SIZE);
+    buffer.putLong(request.getRequestId());
+    buffer.putInt(request.getFlags());
+    buffer.putInt(filePath.length);
+    buffer.put(filePath);
+    buffer.putLong(request.getFileSize());
+    buffer.putLong(request.getLastModified());
+    buffer.putInt(request.getClusterType());
+    buffer.putInt(request.getRangeCount());
+    for (int i = 0; i < request.getRangeCount(); i++) {
+      buffer.putLong(request.getOffset(i));
+      buffer.putInt(request.getLength(i));
+    }
+  }
+
+  /**
+   * Reads the next request of the connection
+   *
+   * @param received bytes received and not consumed yet, in read mode. Its capacity bounds the size of requests.
+   * @return the request, null if the client closed the connection
+   */
+  public static DataTransferRequest readRequest(ReadableByteChannel channel, ByteBuffer received)
+      throws IOException
+  {
+    if (!fill(channel, received, FRAME_HEADER_SIZE)) {
+      if (received.hasRemaining()) {
+        throw new EOFException("Connection closed in the middle of a request");
+      }
+      return null;
+    }
+    int length = checkFrameHeader(received.getInt(), received.getInt(), received.capacity());
+    if (!fill(channel, received, length)) {
+      throw new EOFException("Connection closed in the middle of a request");
+    }
+    return decodeRequest(received, length);
+  }
+
+  /**
+   * Reads the next request if all of it was received, without blocking
+   *
+   * @param received bytes received and not consumed yet, in read mode. Its capacity bounds the size of requests.
+   * @return the request, null if more bytes are needed in which case nothing is consumed
+   */
+  public static DataTransferRequest readRequest(ByteBuffer received)
+      throws IOException
+  {
+    if (received.remaining() < FRAME_HEADER_SIZE) {
+      return null;
+    }
+    int length = checkFrameHeader(received.getInt(received.position()), received.getInt(received.position() + Integer.BYTES),
+        received.capacity());
+    if (received.remaining() < FRAME_HEADER_SIZE + length) {
+      return null;
+    }
+    received.position(received.position() + FRAME_HEADER_SIZE);
+    return decodeRequest(received, length);
+  }
+
+  // Returns the length of the rest of the frame
+  private static int checkFrameHeader(int magic, int length, int maxFrameSize)
+      throws IOException
+  {
+    if (magic != MAGIC) {
+      throw new IOException(String.format("Invalid request frame, magic %x", magic));
+    }
+    if (length < FIXED_REQUEST_SIZE || length > maxFrameSize - FRAME_HEADER_SIZE) {
+      throw new IOException(String.format("Invalid request frame of %d bytes, at most %d supported", length + FRAME_HEADER_SIZE, maxFrameSize));
+    }
+    return length;
+  }
+
+  private static DataTransferRequest decodeRequest(ByteBuffer received, int length)
+      throws IOException
+  {
+    long requestId = received.getLong();
+    int flags = received.getInt();
+    int filePathLength = received.getInt();
+    if (filePathLength < 0 || filePathLength > length - FIXED_REQUEST_SIZE) {
+      throw new IOException("Invalid file path length " + filePathLength + " in request " + requestId);
+    }
+    byte[] filePath = new byte[filePathLength];
+    received.get(filePath);
+    DataTransferRequest request = new DataTransferRequest(new String(filePath, StandardCharsets.UTF_8),
+        received.getLong(), received.getLong(), received.getInt())
+        .setRequestId(requestId)
+        .setFlags(flags);
+    int rangeCount = received.getInt();
+    if (rangeCount < 0 || (long) rangeCount * RANGE_SIZE > received.remaining()) {
+      throw new IOException("Invalid range count " + rangeCount + " in request " + requestId);
+    }
+    for (int i = 0; i < rangeCount; i++) {
+      request.addRange(received.getLong(), received.getInt());
+    }
+    return request;
+  }
+
+  // Reads until `length` bytes are available in the buffer, returns false if the channel ends before
+  private static boolean fill(ReadableByteChannel channel, ByteBuffer buffer, int length)
+      throws IOException
+  {
+    while (buffer.remaining() < length) {
+      buffer.compact();
+      int nread;
+      try {
+        nread = channel.read(buffer);
+      }
+      finally {
+        buffer.flip();
+      }
+      if (nread < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Reads exactly the remaining bytes of the buffer
+   */
+  public static void readFully(ReadableByteChannel channel, ByteBuffer buffer)
+      throws IOException
+  {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) < 0) {
+        throw new EOFException("Error reading from Local Transfer Server");
+      }
+    }
+  }
+
+  /**
+   * Reads exactly the remaining bytes of the buffers, in order and with as few reads as the channel allows
+   */
+  public static void readFully(ScatteringByteChannel channel, ByteBuffer... buffers)
+      throws IOException
+  {
+    for (int first = 0; first < buffers.length; ) {
+      if (!buffers[first].hasRemaining()) {
+        first++;
+      }
+      else if (channel.read(buffers, first, buffers.length - first) < 0) {
+        throw new EOFException("Error reading from Local Transfer Server");
+      }
+    }
+  }
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.spi;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Request of the multiplexed data transfer protocol for ranges of one cached file
+ */
+public class DataTransferRequest
+{
+  private long requestId;
+  private int flags;
+  private final String filePath;
+  private final byte[] filePathBytes;
+  private final long fileSize;
+  private final long lastModified;
+  private final int clusterType;
+  private final List<Long> offsets = new ArrayList<>();
+  private final List<Integer> lengths = new ArrayList<>();
+
+  public DataTransferRequest(String filePath, long fileSize, long lastModified, int clusterType)
+  {
+    this.filePath = filePath;
+    this.filePathBytes = filePath.getBytes(StandardCharsets.UTF_8);
+    this.fileSize = fileSize;
+    this.lastModified = lastModified;
+    this.clusterType = clusterType;
+  }
+
+  public DataTransferRequest addRange(long offset, int length)
+  {
+    offsets.add(offset);
+    lengths.add(length);
+    return this;
+  }
+
+  public long getRequestId()
+  {
+    return requestId;
+  }
+
+  public DataTransferRequest setRequestId(long requestId)
+  {
+    this.requestId = requestId;
+    return this;
+  }
+
+  public int getFlags()
+  {
+    return flags;
+  }
+
+  public DataTransferRequest setFlags(int flags)
+  {
+    this.flags = flags;
+    return this;
+  }
+
+  public String getFilePath()
+  {
+    return filePath;
+  }
+
+  byte[] getFilePathBytes()
+  {
+    return filePathBytes;
+  }
+
+  public long getFileSize()
+  {
+    return fileSize;
+  }
+
+  public long getLastModified()
+  {
+    return lastModified;
+  }
+
+  public int getClusterType()
+  {
+    return clusterType;
+  }
+
+  public int getRangeCount()
+  {
+    return offsets.size();
+  }
+
+  public long getOffset(int range)
+  {
+    return offsets.get(range);
+  }
+
+  public int getLength(int range)
+  {
+    return lengths.get(range);
+  }
+
+  /**
+   * Returns the size of the request on the wire
+   */
+  public int getFrameSize()
+  {
+    return DataTransferProtocol.getFrameSize(filePathBytes.length, getRangeCount());
+  }
+}
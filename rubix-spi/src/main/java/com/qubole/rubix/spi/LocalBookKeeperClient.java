@@ -90,6 +90,20 @@ public class LocalBookKeeperClient extends RetryingPooledBookkeeperClient
     bookKeeper.invalidateFileMetadata(remotePath);
   }
 
+  @Override
+  public void invalidateBlocks(String remotePath, long startBlock, long endBlock, int generationNumber)
+          throws TException
+  {
+    bookKeeper.invalidateBlocks(remotePath, startBlock, endBlock, generationNumber);
+  }
+
+  @Override
+  public void replicateBlocks(String remotePath, long fileLength, long lastModified, long startBlock, long endBlock, int clusterType)
+          throws TException
+  {
+    bookKeeper.replicateBlocks(remotePath, fileLength, lastModified, startBlock, endBlock, clusterType);
+  }
+
   @Override
   public Map<String, Long> getReadRequestChainStats()
           throws TException
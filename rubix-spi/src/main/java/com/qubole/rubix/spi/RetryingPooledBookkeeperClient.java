@@ -127,4 +127,24 @@ public class RetryingPooledBookkeeperClient
       return null;
     });
   }
+
+  @Override
+  public void invalidateBlocks(final String remotePath, final long startBlock, final long endBlock, final int generationNumber)
+          throws TException
+  {
+    retryConnection((Callable<Void>) () -> {
+      client().invalidateBlocks(remotePath, startBlock, endBlock, generationNumber);
+      return null;
+    });
+  }
+
+  @Override
+  public void replicateBlocks(final String remotePath, final long fileLength, final long lastModified,
+                              final long startBlock, final long endBlock, final int clusterType) throws TException
+  {
+    retryConnection((Callable<Void>) () -> {
+      client().replicateBlocks(remotePath, fileLength, lastModified, startBlock, endBlock, clusterType);
+      return null;
+    });
+  }
 }
@@ -0,0 +1,260 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.spi;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connected socket channel whose reads and writes block with a timeout.
+ *
+ * SocketChannels in blocking mode ignore the socket timeout, it only applies to the streams of the socket which
+ * copy the data through temporary arrays. The channel is put in non-blocking mode instead, and a read or write
+ * which cannot make progress waits on a selector for at most the timeout. Reads and writes go straight between
+ * the socket and the buffers of the caller, several of them at once for scattering reads and gathering writes.
+ *
+ * Reads and writes each use their own selector, so one thread can read while another one writes. Concurrent reads,
+ * or concurrent writes, are not supported.
+ */
+public class TimedSocketChannel
+    implements ScatteringByteChannel, GatheringByteChannel
+{
+  private final SocketChannel channel;
+  // 0 waits without timeout
+  private final int timeoutMillis;
+  // Opened on first wait as most reads and writes complete without waiting, guarded by this
+  private Selector readSelector;
+  private Selector writeSelector;
+
+  public TimedSocketChannel(SocketChannel channel, int timeoutMillis)
+      throws IOException
+  {
+    this.channel = channel;
+    this.timeoutMillis = timeoutMillis;
+    channel.configureBlocking(false);
+  }
+
+  public SocketChannel getChannel()
+  {
+    return channel;
+  }
+
+  /**
+   * Reads at least one byte unless the buffer is full
+   *
+   * @return the number of bytes read, -1 at the end of the stream
+   * @throws SocketTimeoutException if nothing was received within the timeout
+   */
+  @Override
+  public int read(ByteBuffer dst)
+      throws IOException
+  {
+    long deadline = getDeadline();
+    int nread;
+    while ((nread = channel.read(dst)) == 0 && dst.hasRemaining()) {
+      await(SelectionKey.OP_READ, deadline);
+    }
+    return nread;
+  }
+
+  @Override
+  public long read(ByteBuffer[] dsts, int offset, int length)
+      throws IOException
+  {
+    long deadline = getDeadline();
+    long nread;
+    while ((nread = channel.read(dsts, offset, length)) == 0 && hasRemaining(dsts, offset, length)) {
+      await(SelectionKey.OP_READ, deadline);
+    }
+    return nread;
+  }
+
+  @Override
+  public long read(ByteBuffer[] dsts)
+      throws IOException
+  {
+    return read(dsts, 0, dsts.length);
+  }
+
+  /**
+   * Writes at least one byte unless the buffer is empty
+   *
+   * @throws SocketTimeoutException if the peer did not take anything within the timeout
+   */
+  @Override
+  public int write(ByteBuffer src)
+      throws IOException
+  {
+    long deadline = getDeadline();
+    int nwritten;
+    while ((nwritten = channel.write(src)) == 0 && src.hasRemaining()) {
+      await(SelectionKey.OP_WRITE, deadline);
+    }
+    return nwritten;
+  }
+
+  @Override
+  public long write(ByteBuffer[] srcs, int offset, int length)
+      throws IOException
+  {
+    long deadline = getDeadline();
+    long nwritten;
+    while ((nwritten = channel.write(srcs, offset, length)) == 0 && hasRemaining(srcs, offset, length)) {
+      await(SelectionKey.OP_WRITE, deadline);
+    }
+    return nwritten;
+  }
+
+  @Override
+  public long write(ByteBuffer[] srcs)
+      throws IOException
+  {
+    return write(srcs, 0, srcs.length);
+  }
+
+  /**
+   * Writes all the remaining bytes of the buffer
+   */
+  public void writeFully(ByteBuffer src)
+      throws IOException
+  {
+    while (src.hasRemaining()) {
+      write(src);
+    }
+  }
+
+  private long getDeadline()
+  {
+    return timeoutMillis > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis) : Long.MAX_VALUE;
+  }
+
+  // Waits until the channel is ready for the operation
+  private void await(int operation, long deadline)
+      throws IOException
+  {
+    Selector selector = getSelector(operation);
+    while (true) {
+      long timeout = 0;
+      if (deadline != Long.MAX_VALUE) {
+        long remainingNanos = deadline - System.nanoTime();
+        if (remainingNanos <= 0) {
+          throw new SocketTimeoutException(String.format("Timed out after %d ms %s %s", timeoutMillis,
+              operation == SelectionKey.OP_READ ? "reading from" : "writing to", channel));
+        }
+        // Rounded up, as a timeout of 0 waits forever
+        timeout = TimeUnit.NANOSECONDS.toMillis(remainingNanos + TimeUnit.MILLISECONDS.toNanos(1) - 1);
+      }
+      int ready;
+      try {
+        ready = selector.select(timeout);
+        selector.selectedKeys().clear();
+      }
+      catch (ClosedSelectorException e) {
+        // Closed by another thread
+        throw new ClosedChannelException();
+      }
+      if (!channel.isOpen()) {
+        throw new ClosedChannelException();
+      }
+      if (ready > 0) {
+        return;
+      }
+      if (Thread.currentThread().isInterrupted()) {
+        throw new InterruptedIOException("Interrupted while waiting for " + channel);
+      }
+    }
+  }
+
+  private synchronized Selector getSelector(int operation)
+      throws IOException
+  {
+    Selector selector = operation == SelectionKey.OP_READ ? readSelector : writeSelector;
+    if (selector != null) {
+      return selector;
+    }
+    // Checked with the lock held so that close() does not miss the selector
+    if (!channel.isOpen()) {
+      throw new ClosedChannelException();
+    }
+    selector = Selector.open();
+    try {
+      channel.register(selector, operation);
+    }
+    catch (IOException | RuntimeException e) {
+      selector.close();
+      throw e;
+    }
+    if (operation == SelectionKey.OP_READ) {
+      readSelector = selector;
+    }
+    else {
+      writeSelector = selector;
+    }
+    return selector;
+  }
+
+  private static boolean hasRemaining(ByteBuffer[] buffers, int offset, int length)
+  {
+    for (int i = offset; i < offset + length; i++) {
+      if (buffers[i].hasRemaining()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public boolean isOpen()
+  {
+    return channel.isOpen();
+  }
+
+  @Override
+  public void close()
+      throws IOException
+  {
+    try {
+      channel.close();
+    }
+    finally {
+      synchronized (this) {
+        closeSelector(readSelector);
+        closeSelector(writeSelector);
+      }
+    }
+  }
+
+  private static void closeSelector(Selector selector)
+      throws IOException
+  {
+    if (selector != null) {
+      selector.close();
+    }
+  }
+
+  @Override
+  public String toString()
+  {
+    return channel.toString();
+  }
+}
@@ -0,0 +1,265 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.spi;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.CompressionInputStream;
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.io.compress.Compressor;
+import org.apache.hadoop.io.compress.Decompressor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Compression of the data of non-local reads on the wire, negotiated per request of version 2 of the protocol.
+ *
+ * The client sets the codec it wants in the flags of a request if compression is enabled for the file and the
+ * codec is available in its JVM. A server which has compression enabled may then answer a range with
+ * STATUS_OK_COMPRESSED, its data being a sequence of frames laid out like the slots of CompressedCacheFile: the
+ * uncompressed and the stored length of the chunk followed by the stored data, compressed or as is if it does not
+ * compress. Servers with compression disabled ignore the flags, so either side can be upgraded first.
+ */
+public final class WireCompression
+{
+  private static final Log log = LogFactory.getLog(WireCompression.class);
+
+  public static final int FRAME_HEADER_SIZE = 2 * Integer.BYTES;
+
+  // Request flags holding the id of the codec, the index of its name in CODEC_NAMES
+  public static final int FLAGS_CODEC_MASK = 0xFF;
+
+  private static final List<String> CODEC_NAMES = Arrays.asList(null, "lz4", "deflate", "snappy", "zstd");
+
+  private static final Configuration codecConf = new Configuration();
+  private static final ConcurrentMap<Integer, Optional<CompressionCodec>> codecs = new ConcurrentHashMap<>();
+
+  private static final AtomicLong sentBytes = new AtomicLong();
+  private static final AtomicLong sentWireBytes = new AtomicLong();
+  private static final AtomicLong compressionNanos = new AtomicLong();
+  private static final AtomicLong receivedBytes = new AtomicLong();
+  private static final AtomicLong receivedWireBytes = new AtomicLong();
+  private static final AtomicLong decompressionNanos = new AtomicLong();
+
+  private WireCompression()
+  {
+  }
+
+  /**
+   * Returns the flags a client sets in its requests for ranges of the remote file
+   */
+  public static int getRequestFlags(String remotePath, Configuration conf)
+  {
+    if (!CacheConfig.isWireCompressionEnabled(conf)
+        || !remotePath.matches(CacheConfig.getWireCompressionIncludePattern(conf))
+        || remotePath.matches(CacheConfig.getWireCompressionExcludePattern(conf))) {
+      return 0;
+    }
+    int codecId = CODEC_NAMES.indexOf(CacheConfig.getWireCompressionCodec(conf));
+    if (codecId <= 0 || getCodec(codecId) == null) {
+      return 0;
+    }
+    return codecId;
+  }
+
+  /**
+   * Returns the codec a server compresses the data of a request with, null if it is sent uncompressed
+   */
+  public static CompressionCodec getResponseCodec(int requestFlags, Configuration conf)
+  {
+    if (!CacheConfig.isWireCompressionEnabled(conf)) {
+      return null;
+    }
+    return getCodec(requestFlags);
+  }
+
+  /**
+   * Returns the codec of the flags of a request, null if the flags ask for none or for one which is not available
+   */
+  public static CompressionCodec getCodec(int requestFlags)
+  {
+    int codecId = requestFlags & FLAGS_CODEC_MASK;
+    if (codecId <= 0 || codecId >= CODEC_NAMES.size()) {
+      return null;
+    }
+    return codecs.computeIfAbsent(codecId, id -> {
+      String codecName = CODEC_NAMES.get(id);
+      CompressionCodec codec = new CompressionCodecFactory(codecConf).getCodecByName(codecName);
+      if (codec == null) {
+        log.warn("Unknown compression codec " + codecName + ", data is transferred uncompressed");
+        return Optional.empty();
+      }
+      try {
+        // Codecs like lz4 and zstd of older Hadoop versions need the native hadoop library
+        CodecPool.returnCompressor(CodecPool.getCompressor(codec));
+        CodecPool.returnDecompressor(CodecPool.getDecompressor(codec));
+        return Optional.of(codec);
+      }
+      catch (RuntimeException | UnsatisfiedLinkError e) {
+        log.warn("Compression codec " + codecName + " is not available, data is transferred uncompressed", e);
+        return Optional.empty();
+      }
+    }).orElse(null);
+  }
+
+  /**
+   * Compresses the remaining bytes of `data` into frames of at most `chunkSize` uncompressed bytes
+   *
+   * @return the frames, in read mode
+   */
+  public static ByteBuffer compress(CompressionCodec codec, ByteBuffer data, int chunkSize)
+      throws IOException
+  {
+    checkArgument(chunkSize > 0, "Invalid chunk size %s", chunkSize);
+    long start = System.nanoTime();
+    int uncompressedLength = data.remaining();
+    ByteArrayOutputStream frames = new ByteArrayOutputStream(uncompressedLength + FRAME_HEADER_SIZE);
+    Compressor compressor = CodecPool.getCompressor(codec);
+    try {
+      byte[] chunk = new byte[Math.min(chunkSize, uncompressedLength)];
+      ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+      while (data.hasRemaining()) {
+        int length = Math.min(chunk.length, data.remaining());
+        data.get(chunk, 0, length);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(length);
+        if (compressor != null) {
+          compressor.reset();
+        }
+        try (CompressionOutputStream outputStream = codec.createOutputStream(compressed, compressor)) {
+          outputStream.write(chunk, 0, length);
+        }
+        boolean useCompressed = compressed.size() < length;
+        header.clear();
+        header.putInt(length).putInt(useCompressed ? compressed.size() : length);
+        frames.write(header.array());
+        if (useCompressed) {
+          compressed.writeTo(frames);
+        }
+        else {
+          frames.write(chunk, 0, length);
+        }
+      }
+    }
+    finally {
+      CodecPool.returnCompressor(compressor);
+    }
+    compressionNanos.addAndGet(System.nanoTime() - start);
+    return ByteBuffer.wrap(frames.toByteArray());
+  }
+
+  /**
+   * Decompresses the remaining frames of the heap buffer `frames` into `destination`, which they must fill exactly
+   */
+  public static void decompress(CompressionCodec codec, ByteBuffer frames, ByteBuffer destination)
+      throws IOException
+  {
+    long start = System.nanoTime();
+    Decompressor decompressor = CodecPool.getDecompressor(codec);
+    try {
+      while (frames.hasRemaining()) {
+        if (frames.remaining() < FRAME_HEADER_SIZE) {
+          throw new IOException("Truncated compressed frame");
+        }
+        int uncompressedLength = frames.getInt();
+        int storedLength = frames.getInt();
+        if (uncompressedLength <= 0 || uncompressedLength > destination.remaining()
+            || storedLength <= 0 || storedLength > uncompressedLength || storedLength > frames.remaining()) {
+          throw new IOException(String.format("Invalid compressed frame: uncompressed length %d, stored length %d",
+              uncompressedLength, storedLength));
+        }
+        if (storedLength == uncompressedLength) {
+          ByteBuffer stored = frames.duplicate();
+          stored.limit(stored.position() + storedLength);
+          destination.put(stored);
+        }
+        else {
+          if (decompressor != null) {
+            decompressor.reset();
+          }
+          byte[] uncompressed = new byte[uncompressedLength];
+          try (CompressionInputStream inputStream = codec.createInputStream(
+              new ByteArrayInputStream(frames.array(), frames.arrayOffset() + frames.position(), storedLength), decompressor)) {
+            IOUtils.readFully(inputStream, uncompressed, 0, uncompressedLength);
+          }
+          destination.put(uncompressed);
+        }
+        frames.position(frames.position() + storedLength);
+      }
+    }
+    finally {
+      CodecPool.returnDecompressor(decompressor);
+    }
+    if (destination.hasRemaining()) {
+      throw new IOException(String.format("Compressed frames miss %d bytes of the range", destination.remaining()));
+    }
+    decompressionNanos.addAndGet(System.nanoTime() - start);
+  }
+
+  public static void recordSent(long uncompressedLength, long wireLength)
+  {
+    sentBytes.addAndGet(uncompressedLength);
+    sentWireBytes.addAndGet(wireLength);
+  }
+
+  public static void recordReceived(long uncompressedLength, long wireLength)
+  {
+    receivedBytes.addAndGet(uncompressedLength);
+    receivedWireBytes.addAndGet(wireLength);
+  }
+
+  /**
+   * Returns the ratio of the size of the data this process sent compressed to the size it took on the wire,
+   * 1 if nothing was sent compressed
+   */
+  public static double getSentCompressionRatio()
+  {
+    long wire = sentWireBytes.get();
+    return wire == 0 ? 1 : (double) sentBytes.get() / wire;
+  }
+
+  /**
+   * Returns the ratio of the size of the data this process received compressed to the size it took on the wire,
+   * 1 if nothing was received compressed
+   */
+  public static double getReceivedCompressionRatio()
+  {
+    long wire = receivedWireBytes.get();
+    return wire == 0 ? 1 : (double) receivedBytes.get() / wire;
+  }
+
+  public static long getCompressionTimeMillis()
+  {
+    return compressionNanos.get() / 1_000_000;
+  }
+
+  public static long getDecompressionTimeMillis()
+  {
+    return decompressionNanos.get() / 1_000_000;
+  }
+}
@@ -13,6 +13,7 @@
 package com.qubole.rubix.spi.fop;
 
 import com.qubole.rubix.spi.CacheConfig;
+import com.qubole.rubix.spi.TimedSocketChannel;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
@@ -23,7 +24,7 @@ import java.net.SocketAddress;
 import java.nio.channels.SocketChannel;
 
 public class SocketChannelObjectFactory
-    implements ObjectFactory<SocketChannel>
+    implements ObjectFactory<TimedSocketChannel>
 {
   private static final Log log = LogFactory.getLog(SocketChannelObjectFactory.class.getName());
   private static final String LDS_POOL = "lds-pool";
@@ -36,25 +37,33 @@ public class SocketChannelObjectFactory
   }
 
   @Override
-  public SocketChannel create(String host, int socketTimeout, int connectTimeout)
+  public TimedSocketChannel create(String host, int socketTimeout, int connectTimeout)
   {
     SocketAddress sad = new InetSocketAddress(host, this.port);
     SocketChannel socket = null;
     try {
       socket = SocketChannel.open();
-      socket.socket().setSoTimeout(socketTimeout);
       socket.socket().connect(sad, connectTimeout);
       log.debug(LDS_POOL + " : Socket channel connected to host: " + host +
               " with local socket address: " + socket.socket().getLocalSocketAddress());
+      return new TimedSocketChannel(socket, socketTimeout);
     }
     catch (IOException e) {
       log.warn(LDS_POOL + " : Unable to open connection to host " + host, e);
+      if (socket != null) {
+        try {
+          socket.close();
+        }
+        catch (IOException ex) {
+          // Let os time it out
+        }
+      }
     }
-    return socket;
+    return null;
   }
 
   @Override
-  public void destroy(SocketChannel o)
+  public void destroy(TimedSocketChannel o)
   {
     // clean up and release resources
     log.debug(LDS_POOL + " : Destroy socket channel: " + o);
@@ -67,14 +76,14 @@ public class SocketChannelObjectFactory
   }
 
   @Override
-  public boolean validate(SocketChannel o)
+  public boolean validate(TimedSocketChannel o)
   {
     boolean isClosed = (o != null && !o.isOpen());
 
     // Saw that transport.close did not close socket, explicitly closing socket
     if (isClosed && o != null) {
       try {
-        o.socket().close();
+        o.getChannel().socket().close();
       }
       catch (IOException e) {
         // Let os time it out
@@ -84,7 +93,7 @@ public class SocketChannelObjectFactory
     return !isClosed;
   }
 
-  public static ObjectPool<SocketChannel> createSocketChannelObjectPool(Configuration conf, String host, int port)
+  public static ObjectPool<TimedSocketChannel> createSocketChannelObjectPool(Configuration conf, String host, int port)
   {
     log.debug(LDS_POOL + " : Creating socket channel object pool");
     PoolConfig poolConfig = new PoolConfig();
@@ -96,8 +105,8 @@ public class SocketChannelObjectFactory
     poolConfig.setConnectTimeoutMilliseconds(CacheConfig.getServerConnectTimeout(conf));
     poolConfig.setSocketTimeoutMilliseconds(CacheConfig.getClientReadTimeout(conf));
 
-    ObjectFactory<SocketChannel> factory = new SocketChannelObjectFactory(port);
-    ObjectPool<SocketChannel> pool = new ObjectPool(poolConfig, factory, LDS_POOL);
+    ObjectFactory<TimedSocketChannel> factory = new SocketChannelObjectFactory(port);
+    ObjectPool<TimedSocketChannel> pool = new ObjectPool(poolConfig, factory, LDS_POOL);
     pool.registerHost(host);
     return pool;
   }
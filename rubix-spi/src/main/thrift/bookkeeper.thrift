@@ -6,7 +6,8 @@ typedef i32 int
 enum Location {
 CACHED,
 LOCAL,
-NON_LOCAL
+NON_LOCAL,
+IN_MEMORY
 }
 
 struct BlockLocation {
@@ -37,6 +38,8 @@ struct CacheStatusRequest {
 struct CacheStatusResponse {
         1: required list<BlockLocation> blocks;
         2: required int generationNumber;
+        3: optional int blockSize;
+        4: optional bool compressed;
 }
 
 struct ReadResponse {
@@ -64,4 +67,10 @@ service BookKeeperService
     bool isBookKeeperAlive()
 
     oneway void invalidateFileMetadata(1:string remotePath)
+
+    // Marks the blocks not cached, e.g. when their data is found to be corrupted
+    oneway void invalidateBlocks(1:string remotePath, 2:long startBlock, 3:long endBlock, 4:int generationNumber)
+
+    // Caches a copy of blocks owned by another node which this node reads often
+    oneway void replicateBlocks(1:string remotePath, 2:long fileLength, 3:long lastModified, 4:long startBlock, 5:long endBlock, 6:int clusterType)
 }
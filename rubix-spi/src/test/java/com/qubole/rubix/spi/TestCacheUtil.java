@@ -33,6 +33,8 @@ import java.util.HashMap;
 import java.util.Set;
 
 import static com.qubole.rubix.spi.CacheUtil.UNKONWN_GENERATION_NUMBER;
+import static com.qubole.rubix.spi.utils.DataSizeUnits.KILOBYTES;
+import static com.qubole.rubix.spi.utils.DataSizeUnits.MEGABYTES;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertTrue;
@@ -351,6 +353,61 @@ public class TestCacheUtil
     assertFalse(skipCache, "Cache is being skipped!");
   }
 
+  @Test
+  public void testGetFileBlockSize_adaptiveDisabled()
+  {
+    CacheConfig.setBlockSize(conf, 1000);
+
+    assertEquals(CacheUtil.getFileBlockSize("/test/path", MEGABYTES.toBytes(1024), conf), 1000);
+  }
+
+  @Test
+  public void testGetFileBlockSize_sizedByFileLength()
+  {
+    CacheConfig.setAdaptiveBlockSizeEnabled(conf, true);
+
+    assertEquals(CacheUtil.getFileBlockSize("/test/path", 1000, conf), CacheConfig.getMinBlockSize(conf),
+        "Small file should use the min block size");
+    assertEquals(CacheUtil.getFileBlockSize("/test/path", MEGABYTES.toBytes(1000), conf), (int) MEGABYTES.toBytes(1),
+        "Block size should split the file into about the target number of blocks");
+    assertEquals(CacheUtil.getFileBlockSize("/test/path", MEGABYTES.toBytes(100000), conf), CacheConfig.getMaxBlockSize(conf),
+        "Large file should use the max block size");
+  }
+
+  @Test
+  public void testGetFileBlockSize_pathPolicy()
+  {
+    CacheConfig.setAdaptiveBlockSizeEnabled(conf, true);
+    CacheConfig.setBlockSizePathPolicy(conf, ".*\\.orc=262144; .*/logs/.*=4194304");
+
+    assertEquals(CacheUtil.getFileBlockSize("/table/part-0.orc", MEGABYTES.toBytes(1000), conf), 262144);
+    assertEquals(CacheUtil.getFileBlockSize("/logs/app.log", 1000, conf), 4194304);
+    assertEquals(CacheUtil.getFileBlockSize("/table/part-0.parquet", 1000, conf), CacheConfig.getMinBlockSize(conf),
+        "Path not matching the policy should be sized by its length");
+  }
+
+  @Test
+  public void testGetFileBlockSize_invalidPathPolicyEntriesIgnored()
+  {
+    CacheConfig.setAdaptiveBlockSizeEnabled(conf, true);
+    CacheConfig.setBlockSizePathPolicy(conf, ".*\\.orc=0; .*\\.orc=large; [.*=1024; .*\\.orc=262144");
+
+    assertEquals(CacheUtil.getFileBlockSize("/table/part-0.orc", MEGABYTES.toBytes(1000), conf), 262144,
+        "Entries with invalid block sizes or patterns should be skipped");
+  }
+
+  @Test(timeOut = 10000)
+  public void testGetFileBlockSize_invalidBoundsUseDefaults()
+  {
+    CacheConfig.setAdaptiveBlockSizeEnabled(conf, true);
+    CacheConfig.setMinBlockSize(conf, 0);
+    CacheConfig.setMaxBlockSize(conf, -1);
+
+    assertEquals(CacheUtil.getFileBlockSize("/test/path", 1000, conf), (int) KILOBYTES.toBytes(128),
+        "Block size bounds which are not positive should fall back to the defaults");
+    assertEquals(CacheUtil.getFileBlockSize("/test/path", MEGABYTES.toBytes(100000), conf), (int) MEGABYTES.toBytes(8));
+  }
+
   /**
    * Create the cache directories necessary for running the test.
    *
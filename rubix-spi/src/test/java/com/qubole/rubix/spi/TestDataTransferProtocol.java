@@ -0,0 +1,280 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.spi;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.qubole.rubix.spi.DataTransferProtocol.STATUS_ERROR;
+import static com.qubole.rubix.spi.DataTransferProtocol.STATUS_NOT_CACHED;
+import static com.qubole.rubix.spi.DataTransferProtocol.STATUS_OK;
+import static com.qubole.rubix.spi.DataTransferProtocol.STATUS_OK_COMPRESSED;
+import static com.qubole.rubix.spi.DataTransferProtocol.VERSION_1;
+import static com.qubole.rubix.spi.DataTransferProtocol.VERSION_2;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class TestDataTransferProtocol
+{
+  private static final int MAX_REQUEST_SIZE = 1024;
+
+  @Test
+  public void testPipelinedRequests() throws IOException
+  {
+    ByteBuffer wire = ByteBuffer.allocate(2 * MAX_REQUEST_SIZE);
+    DataTransferRequest first = new DataTransferRequest("s3://bucket/file1", 1000, 10, 1)
+        .addRange(0, 100)
+        .addRange(500, 200)
+        .setRequestId(7);
+    DataTransferProtocol.writeRequest(first, wire);
+    DataTransferProtocol.writeRequest(new DataTransferRequest("s3://bucket/file2", 2000, 20, 2).addRange(1500, 300).setRequestId(8), wire);
+    assertEquals(wire.position(), first.getFrameSize() + new DataTransferRequest("s3://bucket/file2", 2000, 20, 2).addRange(1500, 300).getFrameSize());
+
+    // Read through small chunks, as frames can be split in any way by the network
+    ReadableByteChannel channel = new ChunkedChannel(Arrays.copyOf(wire.array(), wire.position()), 7);
+    ByteBuffer received = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+    received.flip();
+
+    DataTransferRequest request = DataTransferProtocol.readRequest(channel, received);
+    assertEquals(request.getRequestId(), 7);
+    assertEquals(request.getFilePath(), "s3://bucket/file1");
+    assertEquals(request.getFileSize(), 1000);
+    assertEquals(request.getLastModified(), 10);
+    assertEquals(request.getClusterType(), 1);
+    assertEquals(request.getRangeCount(), 2);
+    assertEquals(request.getOffset(1), 500);
+    assertEquals(request.getLength(1), 200);
+
+    request = DataTransferProtocol.readRequest(channel, received);
+    assertEquals(request.getRequestId(), 8);
+    assertEquals(request.getFilePath(), "s3://bucket/file2");
+    assertEquals(request.getRangeCount(), 1);
+    assertEquals(request.getOffset(0), 1500);
+    assertEquals(request.getLength(0), 300);
+
+    assertNull(DataTransferProtocol.readRequest(channel, received), "End of connection should end the requests");
+  }
+
+  @Test
+  public void testVersionDetection()
+  {
+    ByteBuffer buffer = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+    DataTransferProtocol.writeRequest(new DataTransferRequest("file", 10, 1, 1).addRange(0, 10), buffer);
+    buffer.flip();
+    assertTrue(DataTransferProtocol.isMultiplexed(buffer));
+
+    buffer = DataTransferClientHelper.writeHeaders(new Configuration(), new DataTransferHeader(0, 10, 10, 1, 1, "file"));
+    assertFalse(DataTransferProtocol.isMultiplexed(buffer));
+    assertFalse(DataTransferProtocol.isHandshake(buffer));
+
+    buffer = ByteBuffer.allocate(DataTransferProtocol.HANDSHAKE_SIZE);
+    DataTransferProtocol.writeHandshake(buffer, VERSION_2);
+    buffer.flip();
+    assertTrue(DataTransferProtocol.isHandshake(buffer));
+    assertFalse(DataTransferProtocol.isMultiplexed(buffer));
+    assertFalse(DataTransferClientHelper.isHeaderComplete(buffer), "Servers from before version 2 should not take the handshake for a header");
+  }
+
+  @Test
+  public void testHandshakeWithVersion1Server() throws Exception
+  {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try (ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0))) {
+      // Rejects the handshake as an invalid version 1 header
+      executor.submit(() -> {
+        try (SocketChannel client = server.accept()) {
+          client.read(ByteBuffer.allocate(MAX_REQUEST_SIZE));
+        }
+        return null;
+      });
+
+      try (DataTransferConnection connection = new DataTransferConnection("localhost",
+          SocketChannel.open(server.getLocalAddress()), 1000, MAX_REQUEST_SIZE)) {
+        assertEquals(connection.handshake(), VERSION_1);
+      }
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testRangeStatuses() throws Exception
+  {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try (ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0))) {
+      // Serves the first range of each request and answers the others as not cached
+      Future<Integer> served = executor.submit(() -> {
+        int requests = 0;
+        try (SocketChannel client = server.accept()) {
+          ByteBuffer received = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+          received.flip();
+          DataTransferRequest request;
+          while ((request = DataTransferProtocol.readRequest(client, received)) != null) {
+            ByteBuffer response = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+            response.putLong(request.getRequestId()).putInt(request.getRangeCount());
+            response.putInt(STATUS_OK).putInt(request.getLength(0));
+            for (int i = 0; i < request.getLength(0); i++) {
+              response.put((byte) (request.getOffset(0) + i));
+            }
+            for (int i = 1; i < request.getRangeCount(); i++) {
+              response.putInt(STATUS_NOT_CACHED).putInt(0);
+            }
+            response.flip();
+            while (response.hasRemaining()) {
+              client.write(response);
+            }
+            requests++;
+          }
+        }
+        return requests;
+      });
+
+      try (DataTransferConnection connection = new DataTransferConnection("localhost",
+          SocketChannel.open(server.getLocalAddress()), 0, MAX_REQUEST_SIZE)) {
+        for (int offset = 0; offset < 3; offset++) {
+          ByteBuffer first = ByteBuffer.allocate(10);
+          ByteBuffer second = ByteBuffer.allocate(20);
+          int[] statuses = connection.read(new DataTransferRequest("file", 100, 1, 1).addRange(offset, 10).addRange(50, 20),
+              Arrays.asList(first, second));
+
+          assertEquals(statuses, new int[] {STATUS_OK, STATUS_NOT_CACHED});
+          assertEquals(first.position(), 10);
+          assertEquals(first.get(9), (byte) (offset + 9));
+          assertEquals(second.position(), 0, "Range not cached should not be read");
+        }
+        assertTrue(connection.isOpen());
+      }
+      assertEquals(served.get().intValue(), 3);
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testCompressedRanges() throws Exception
+  {
+    Configuration conf = new Configuration();
+    CacheConfig.setWireCompressionEnabled(conf, true);
+    CacheConfig.setWireCompressionCodec(conf, "deflate");
+    int flags = WireCompression.getRequestFlags("s3://bucket/file.txt", conf);
+    assertEquals(WireCompression.getRequestFlags("s3://bucket/file.orc", conf), 0, "Excluded files should not be compressed");
+    assertEquals(WireCompression.getRequestFlags("s3://bucket/file.txt", new Configuration()), 0);
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try (ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0))) {
+      // Answers the first range compressed in chunks of 1000 bytes and the second one with a corrupted frame
+      Future<?> served = executor.submit(() -> {
+        try (SocketChannel client = server.accept()) {
+          ByteBuffer received = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+          received.flip();
+          DataTransferRequest request;
+          while ((request = DataTransferProtocol.readRequest(client, received)) != null) {
+            CompressionCodec codec = WireCompression.getResponseCodec(request.getFlags(), conf);
+            ByteBuffer data = ByteBuffer.allocate(request.getLength(0));
+            while (data.hasRemaining()) {
+              data.put((byte) ((request.getOffset(0) + data.position()) / 100));
+            }
+            data.flip();
+            ByteBuffer frames = WireCompression.compress(codec, data, 1000);
+
+            ByteBuffer response = ByteBuffer.allocate(MAX_REQUEST_SIZE + frames.remaining());
+            response.putLong(request.getRequestId()).putInt(request.getRangeCount());
+            response.putInt(STATUS_OK_COMPRESSED).putInt(frames.remaining()).put(frames);
+            response.putInt(STATUS_OK_COMPRESSED).putInt(12).putInt(request.getLength(1)).putInt(4).putInt(0xBAD);
+            response.flip();
+            while (response.hasRemaining()) {
+              client.write(response);
+            }
+          }
+        }
+        return null;
+      });
+
+      try (DataTransferConnection connection = new DataTransferConnection("localhost",
+          SocketChannel.open(server.getLocalAddress()), 0, MAX_REQUEST_SIZE)) {
+        for (int offset = 0; offset < 2; offset++) {
+          ByteBuffer first = ByteBuffer.allocate(5000);
+          ByteBuffer second = ByteBuffer.allocate(100);
+          int[] statuses = connection.read(new DataTransferRequest("file", 10000, 1, 1).addRange(offset, 5000).addRange(6000, 100)
+              .setFlags(flags), Arrays.asList(first, second));
+
+          assertEquals(statuses, new int[] {STATUS_OK, STATUS_ERROR});
+          assertEquals(first.position(), 5000);
+          assertEquals(first.get(4999), (byte) ((offset + 4999) / 100));
+          assertEquals(second.position(), 0, "Range which could not be decompressed should not be read");
+        }
+        assertTrue(connection.isOpen(), "Corrupted compressed ranges should not break the connection");
+      }
+      served.get();
+    }
+    finally {
+      executor.shutdownNow();
+    }
+    assertTrue(WireCompression.getReceivedCompressionRatio() > 1);
+  }
+
+  private static class ChunkedChannel
+      implements ReadableByteChannel
+  {
+    private final ReadableByteChannel channel;
+    private final int chunkSize;
+
+    ChunkedChannel(byte[] data, int chunkSize)
+    {
+      this.channel = Channels.newChannel(new ByteArrayInputStream(data));
+      this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException
+    {
+      ByteBuffer chunk = dst.duplicate();
+      chunk.limit(Math.min(dst.limit(), dst.position() + chunkSize));
+      int nread = channel.read(chunk);
+      if (nread > 0) {
+        dst.position(chunk.position());
+      }
+      return nread;
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+      return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+      channel.close();
+    }
+  }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright (c) 2019. Qubole Inc
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an AS IS BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+package com.qubole.rubix.spi;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TestTimedSocketChannel
+{
+  private static final int TIMEOUT = 200;
+
+  private ServerSocketChannel server;
+  private SocketChannel peer;
+  private TimedSocketChannel channel;
+
+  @BeforeMethod
+  public void setUp() throws IOException
+  {
+    server = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0));
+    channel = new TimedSocketChannel(SocketChannel.open(server.getLocalAddress()), TIMEOUT);
+    peer = server.accept();
+  }
+
+  @AfterMethod
+  public void tearDown() throws IOException
+  {
+    channel.close();
+    peer.close();
+    server.close();
+  }
+
+  @Test
+  public void testReadTimeout() throws IOException
+  {
+    peer.write(ByteBuffer.wrap(new byte[] {1, 2}));
+    ByteBuffer data = ByteBuffer.allocate(4);
+    long start = System.nanoTime();
+    try {
+      DataTransferProtocol.readFully(channel, data);
+      fail("Read should time out");
+    }
+    catch (SocketTimeoutException e) {
+      // Expected
+    }
+    assertTrue(System.nanoTime() - start >= TIMEOUT * 1_000_000L, "Read should wait for the timeout");
+    assertEquals(data.position(), 2, "Bytes received before the timeout should be read");
+  }
+
+  @Test
+  public void testScatteringRead() throws Exception
+  {
+    ByteBuffer[] buffers = {ByteBuffer.allocate(3), ByteBuffer.allocate(0), ByteBuffer.allocate(5000), ByteBuffer.allocate(1)};
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      // Sent in small pieces so that the reads wait for data
+      Future<?> sent = executor.submit(() -> {
+        for (int i = 0; i < 5004; i += 1000) {
+          byte[] chunk = new byte[Math.min(1000, 5004 - i)];
+          for (int j = 0; j < chunk.length; j++) {
+            chunk[j] = (byte) (i + j);
+          }
+          ByteBuffer buffer = ByteBuffer.wrap(chunk);
+          while (buffer.hasRemaining()) {
+            peer.write(buffer);
+          }
+          Thread.sleep(20);
+        }
+        return null;
+      });
+      DataTransferProtocol.readFully(channel, buffers);
+      sent.get();
+    }
+    finally {
+      executor.shutdownNow();
+    }
+    assertEquals(buffers[0].get(2), (byte) 2);
+    assertEquals(buffers[2].get(0), (byte) 3);
+    assertEquals(buffers[2].get(4999), (byte) 5002);
+    assertEquals(buffers[3].get(0), (byte) 5003);
+  }
+
+  @Test
+  public void testCloseWhileReading() throws Exception
+  {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      TimedSocketChannel withoutTimeout = new TimedSocketChannel(SocketChannel.open(server.getLocalAddress()), 0);
+      Future<Integer> read = executor.submit(() -> withoutTimeout.read(ByteBuffer.allocate(1)));
+      Thread.sleep(100);
+      withoutTimeout.close();
+      try {
+        read.get();
+        fail("Read should fail once the channel is closed");
+      }
+      catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof ClosedChannelException, "Unexpected failure " + e.getCause());
+      }
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -13,12 +13,15 @@
 package com.qubole.rubix.tests;
 
 import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableList;
 import com.qubole.rubix.bookkeeper.BookKeeperServer;
 import com.qubole.rubix.bookkeeper.LocalDataTransferServer;
 import com.qubole.rubix.common.utils.DataGen;
 import com.qubole.rubix.common.utils.DeleteFileVisitor;
 import com.qubole.rubix.core.CachingFileSystemStatsProvider;
 import com.qubole.rubix.core.CachingInputStream;
+import com.qubole.rubix.core.FileRange;
+import com.qubole.rubix.core.SmallRangeCache;
 import com.qubole.rubix.spi.BookKeeperFactory;
 import com.qubole.rubix.spi.CacheConfig;
 import com.qubole.rubix.spi.CacheUtil;
@@ -26,6 +29,8 @@ import com.qubole.rubix.spi.ClusterType;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSInputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.RawLocalFileSystem;
@@ -35,17 +40,23 @@ import org.testng.annotations.BeforeClass;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.qubole.rubix.spi.CacheUtil.UNKONWN_GENERATION_NUMBER;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
 /**
  * Created by stagra on 25/1/16.
@@ -129,7 +140,12 @@ public class TestCachingInputStream
   private CachingInputStream createCachingStream(Configuration conf)
       throws IOException
   {
-    FileSystem localFileSystem = new RawLocalFileSystem();
+    return createCachingStream(conf, new RawLocalFileSystem());
+  }
+
+  private CachingInputStream createCachingStream(Configuration conf, FileSystem localFileSystem)
+      throws IOException
+  {
     Path backendFilePath = new Path(backendFileName);
     localFileSystem.initialize(backendFilePath.toUri(), new Configuration());
     CacheConfig.setBlockSize(conf, blockSize);
@@ -293,10 +309,217 @@ public class TestCachingInputStream
     assertTrue(readSize == -1, "Did not get EOF");
   }
 
+  @Test(priority=6)
+  public void testVectoredRead() throws Exception
+  {
+    // 1. Vectored read on cold cache, ranges are coalesced and split across blocks
+    testVectoredReadHelper();
+
+    // 2. Delete backend file
+    Thread.sleep(3000); // sleep to give server chance to update cache status
+    File file = new File(backendFileName);
+    file.delete();
+
+    // 3. Read the same ranges to ensure that data read from cache correctly
+    testVectoredReadHelper();
+
+    // 4. Range beyond the end of file fails with EOFException
+    FileRange beyondEof = FileRange.createFileRange(2550, 100);
+    inputStream.readVectored(ImmutableList.of(beyondEof), ByteBuffer::allocate);
+    try {
+      beyondEof.getData().get();
+      fail("Read beyond end of file should fail");
+    }
+    catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof EOFException, "Unexpected exception " + e.getCause());
+    }
+  }
+
+  @Test(priority=7)
+  public void testFooterReadFromSmallRangeCache() throws IOException
+  {
+    Configuration smallRangeConf = new Configuration(conf);
+    CacheConfig.setSmallRangeCacheEnabled(smallRangeConf, true);
+    SmallRangeCache smallRangeCache = SmallRangeCache.getInstance(smallRangeConf);
+    long hits = smallRangeCache.getHits();
+
+    try (CachingInputStream inputStream = createCachingStream(smallRangeConf)) {
+      // 1. Footer read loads the tail of the file in memory
+      byte[] buffer = new byte[10];
+      int readSize = inputStream.read(2590, buffer, 0, 10);
+      assertions(readSize, 10, buffer, DataGen.generateContent().substring(2590));
+
+      // 2. Delete backend file, the footer is still served from memory
+      File file = new File(backendFileName);
+      file.delete();
+      buffer = new byte[8];
+      readSize = inputStream.read(2500, buffer, 0, 8);
+      assertions(readSize, 8, buffer, DataGen.generateContent().substring(2500, 2508));
+    }
+    assertEquals(smallRangeCache.getHits(), hits + 2, "Footer reads should be served from memory");
+  }
+
+  @Test(priority=8)
+  public void testVectoredReadWithFailedRange() throws Exception
+  {
+    Configuration vectoredReadConf = new Configuration(conf);
+    CacheConfig.setVectoredReadMinSeekSize(vectoredReadConf, 0);
+    FailingFileSystem failingFileSystem = new FailingFileSystem(1000, 1100);
+    List<FileRange> ranges = ImmutableList.of(
+        FileRange.createFileRange(150, 20),
+        FileRange.createFileRange(1020, 20),
+        FileRange.createFileRange(2050, 20));
+
+    try (CachingInputStream inputStream = createCachingStream(vectoredReadConf, failingFileSystem)) {
+      inputStream.readVectored(ranges, ByteBuffer::allocate);
+
+      // 1. Only the range whose data cannot be read fails
+      try {
+        ranges.get(1).getData().get();
+        fail("Read of the failing range should fail");
+      }
+      catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof IOException, "Unexpected exception " + e.getCause());
+      }
+
+      // 2. The other ranges are read from the parent stream
+      for (FileRange range : ImmutableList.of(ranges.get(0), ranges.get(2))) {
+        ByteBuffer data = range.getData().get();
+        byte[] output = new byte[data.remaining()];
+        data.get(output);
+        String expectedOutput = DataGen.generateContent().substring((int) range.getOffset(), (int) range.getOffset() + range.getLength());
+        assertions(output.length, range.getLength(), output, expectedOutput);
+      }
+    }
+    assertEquals(failingFileSystem.opens.get(), 2, "Only the failed range should fall back to a separate stream");
+  }
+
+  private void testVectoredReadHelper()
+      throws Exception
+  {
+    List<FileRange> ranges = ImmutableList.of(
+        FileRange.createFileRange(1550, 200),
+        FileRange.createFileRange(100, 150),
+        FileRange.createFileRange(260, 40),
+        FileRange.createFileRange(2590, 10),
+        FileRange.createFileRange(700, 0));
+    inputStream.readVectored(ranges, ByteBuffer::allocate);
+
+    for (FileRange range : ranges) {
+      ByteBuffer data = range.getData().get();
+      assertEquals(data.remaining(), range.getLength(), "Wrong amount of data read for " + range);
+      byte[] output = new byte[data.remaining()];
+      data.get(output);
+      String expectedOutput = DataGen.generateContent().substring((int) range.getOffset(), (int) range.getOffset() + range.getLength());
+      assertions(output.length, range.getLength(), output, expectedOutput);
+    }
+  }
+
   private void assertions(int readSize, int expectedReadSize, byte[] outputBuffer, String expectedOutput)
   {
     assertTrue(readSize == expectedReadSize, "Wrong amount of data read " + readSize + " was expecting " + expectedReadSize);
     String output = new String(outputBuffer, Charset.defaultCharset());
     assertTrue(expectedOutput.equals(output), "Wrong data read, expected\n" + expectedOutput + "\nBut got\n" + output);
   }
+
+  // Local filesystem whose streams fail reads overlapping [failingStart, failingEnd)
+  private static class FailingFileSystem
+      extends RawLocalFileSystem
+  {
+    private final long failingStart;
+    private final long failingEnd;
+    private final AtomicInteger opens = new AtomicInteger();
+
+    FailingFileSystem(long failingStart, long failingEnd)
+    {
+      this.failingStart = failingStart;
+      this.failingEnd = failingEnd;
+    }
+
+    @Override
+    public FSDataInputStream open(Path path, int bufferSize)
+        throws IOException
+    {
+      opens.incrementAndGet();
+      return new FSDataInputStream(new FailingInputStream(super.open(path, bufferSize)));
+    }
+
+    private class FailingInputStream
+        extends FSInputStream
+    {
+      private final FSDataInputStream delegate;
+
+      FailingInputStream(FSDataInputStream delegate)
+      {
+        this.delegate = delegate;
+      }
+
+      private void checkRange(long position, int length)
+          throws IOException
+      {
+        if (position < failingEnd && position + length > failingStart) {
+          throw new IOException(String.format("Injected failure reading [%d, %d)", position, position + length));
+        }
+      }
+
+      @Override
+      public void seek(long pos)
+          throws IOException
+      {
+        delegate.seek(pos);
+      }
+
+      @Override
+      public long getPos()
+          throws IOException
+      {
+        return delegate.getPos();
+      }
+
+      @Override
+      public boolean seekToNewSource(long targetPos)
+      {
+        return false;
+      }
+
+      @Override
+      public int read()
+          throws IOException
+      {
+        checkRange(getPos(), 1);
+        return delegate.read();
+      }
+
+      @Override
+      public int read(byte[] buffer, int offset, int length)
+          throws IOException
+      {
+        checkRange(getPos(), length);
+        return delegate.read(buffer, offset, length);
+      }
+
+      @Override
+      public int read(long position, byte[] buffer, int offset, int length)
+          throws IOException
+      {
+        checkRange(position, length);
+        return delegate.read(position, buffer, offset, length);
+      }
+
+      @Override
+      public void readFully(long position, byte[] buffer, int offset, int length)
+          throws IOException
+      {
+        checkRange(position, length);
+        delegate.readFully(position, buffer, offset, length);
+      }
+
+      @Override
+      public void close()
+          throws IOException
+      {
+        delegate.close();
+      }
+    }
+  }
 }